@@ -1,19 +1,19 @@
 package com.example.tenbillionfiles;
 
 import com.example.tenbillionfiles.config.StorageConfigurations;
-import com.example.tenbillionfiles.config.SwaggerConfig;
+import com.example.tenbillionfiles.startup.StartupProfiler;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 
 @SpringBootApplication
 @EnableConfigurationProperties({
-        StorageConfigurations.class,
-        SwaggerConfig.class
+        StorageConfigurations.class
 })
 public class TenBillionFilesApplication {
 
     public static void main(String[] args) {
+        StartupProfiler.mainStarted();
         SpringApplication.run(TenBillionFilesApplication.class, args);
     }
 
@@ -0,0 +1,25 @@
+package com.example.tenbillionfiles.config;
+
+import com.example.tenbillionfiles.controller.ClusterRoutingFilter;
+import com.example.tenbillionfiles.services.ClusterService;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+
+@Configuration
+public class ClusterConfig {
+
+    /**
+     * Runs before the other filters, a request for a file of another node is proxied untouched.
+     */
+    @Bean
+    public FilterRegistrationBean<ClusterRoutingFilter> clusterRoutingFilter(ClusterService clusterService,
+                                                                             StorageConfigurations storageConfigurations) {
+        FilterRegistrationBean<ClusterRoutingFilter> registration =
+                new FilterRegistrationBean<>(new ClusterRoutingFilter(clusterService, storageConfigurations));
+        registration.addUrlPatterns("/file/*", "/stream/file/*");
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registration;
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.tenbillionfiles.config;
+
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+/**
+ * Production profile: beans are only created when first needed. What the startup listener and the web server
+ * use is still created at startup, the rest (controllers, services of seldom used end-points) on the first request.
+ */
+@Configuration
+@Profile(LazyInitConfig.PRODUCTION_PROFILE)
+public class LazyInitConfig {
+
+    public static final String PRODUCTION_PROFILE = "prod";
+
+    @Bean
+    public static BeanFactoryPostProcessor lazyInitBeanFactoryPostProcessor() {
+        return beanFactory -> {
+            for (String beanName : beanFactory.getBeanDefinitionNames()) {
+                beanFactory.getBeanDefinition(beanName).setLazyInit(true);
+            }
+        };
+    }
+}
@@ -6,6 +6,8 @@ import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
 import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.List;
 
 @ConfigurationProperties(prefix = "file")
 @Getter @Setter
@@ -17,11 +19,170 @@ public class StorageConfigurations {
     private @NotNull String storageDrive;
     private @NonNull String storageDir;
 
+    // mount points the partitions are spread on, when empty every partition lives under storageDrive
+    private List<Device> devices = new ArrayList<>();
+    private @NotNull Integer deviceMaxConcurrentIo;
+    private @NotNull Integer deviceMaxConcurrentWrites;
+    // a waiting write gets the next slot after this many reads went first, or after waiting this long
+    private @NotNull Integer deviceMaxReadsPerWrite;
+    private @NotNull Long deviceWriteMaxWaitMillis;
+
+    // base URLs of all the cluster nodes, listed in the same order on every node. Empty runs a single node.
+    private List<String> clusterNodes = new ArrayList<>();
+    // position of this node in clusterNodes
+    private @NotNull Integer clusterNodeIndex;
+    private @NotNull Integer clusterConnectTimeoutMillis;
+    private @NotNull Integer clusterReadTimeoutMillis;
+    // shared by the nodes, sent on every request between them. Required with clusterNodes.
+    private String clusterSecret;
+
+    // copies of each partition on distinct nodes, 1 disables replication
+    private @NotNull Integer replicationFactor;
+    private @NotNull Long replicationHeartbeatMillis;
+    private @NotNull Long replicationFailureTimeoutMillis;
+    private @NotNull Integer replicationBufferSize;
+    private @NotNull Long replicationRetryMillis;
+
+    // nested sub-directories inside each partition, 0 levels keeps the partition flat
+    private @NotNull Integer layoutLevels;
+    private @NotNull Integer layoutFanout;
+
     private @NonNull Integer executorCorePoolSize;
     private @NotNull Integer executorMaxPoolSize;
     private @NotNull Integer executorQueueCapacity;
     private @NotNull String executorThreadNamePrefix;
 
+    // work-stealing pool splitting each partition search, 0 uses every core
+    private @NotNull Integer searchParallelism;
+    // regex index entries scanned by one task
+    private @NotNull Long searchChunkSize;
+
+    // admission control of the searches, see AdmissionService
+    private @NotNull Boolean admissionEnabled;
+    // estimated cost (names examined, weighted) from which a query is MODERATE, then EXPENSIVE
+    private @NotNull Long admissionModerateCost;
+    private @NotNull Long admissionExpensiveCost;
+    // queries per second of each class, for one client and for the whole node
+    private @NotNull Double admissionModerateClientRate;
+    private @NotNull Double admissionExpensiveClientRate;
+    private @NotNull Double admissionModerateRate;
+    private @NotNull Double admissionExpensiveRate;
+    // seconds of rate a bucket can save up
+    private @NotNull Double admissionBurstSeconds;
+    // queries of each class running at once
+    private @NotNull Integer admissionModerateConcurrency;
+    private @NotNull Integer admissionExpensiveConcurrency;
+    private @NotNull Long admissionMaxWaitMillis;
+    // request header naming the client, the remote address is used without it
+    private @NotNull String admissionClientHeader;
+
+    private @NotNull Integer ingestCorePoolSize;
+    private @NotNull Integer ingestMaxPoolSize;
+    private @NotNull Integer ingestQueueCapacity;
+    private @NotNull String ingestThreadNamePrefix;
+    private @NotNull Long ingestTimeoutMillis;
+
     private @NonNull String indexDir;
 
+    // memory mapped regex name index, the segment size must be a power of 2 between 1MB and 1GB
+    private @NotNull String regexIndexDir;
+    private @NotNull Integer regexIndexSegmentSize;
+    private @NotNull Long regexIndexCompactionIntervalMillis;
+    // share of removed names triggering the compaction of a partition
+    private @NotNull Double regexIndexCompactionDeadRatio;
+
+    // engine of the regexes without a byte level plan: backtracking (java.util.regex) or linear (automaton)
+    private @NotNull String regexEngine;
+    // characters read by the backtracking engine on a single name before the query is rejected
+    private @NotNull Long regexMatchStepBudget;
+    // states of the automaton of engine=linear before the query is rejected
+    private @NotNull Integer regexMaxDeterminizedStates;
+    private @NotNull Long regexTimeoutMillis;
+
+    // must be power of 2, see PartitioningService.getNameLock
+    private @NotNull Integer lockStripes;
+
+    private @NotNull String walDir;
+    private @NotNull Long walMaxSize;
+    private @NotNull Integer walCheckpointInterval;
+    private @NotNull Long walCheckpointIntervalMillis;
+
+    private @NotNull Integer metadataCacheSize;
+    private @NotNull Long metadataBloomExpectedNames;
+    private @NotNull Double metadataBloomFalsePositiveProbability;
+
+    // off-heap content cache of the small files, see ContentCache
+    private @NotNull Boolean contentCacheEnabled;
+    private @NotNull Long contentCacheMaxBytes;
+    private @NotNull Long contentCacheMaxFileSize;
+    // direct memory is allocated by slabs as the cache fills up, and handed out by pages
+    private @NotNull Integer contentCachePageSize;
+    private @NotNull Integer contentCacheSlabSize;
+    // share of the budget kept by the admission window
+    private @NotNull Double contentCacheWindowRatio;
+
+    // transparent compression of the stored files, see CompressionService
+    private @NotNull Boolean compressionEnabled;
+    // types compressed when uploaded, e.g. text/* or application/json
+    private List<String> compressionContentTypes = new ArrayList<>();
+    // smaller files are kept plain
+    private @NotNull Integer compressionMinSize;
+    // larger files use zstd, the others LZ4. Uploads are read ahead in memory up to this size.
+    private @NotNull Integer compressionZstdMinSize;
+    private @NotNull Integer compressionZstdLevel;
+
+    private @NotNull Integer indexerQueueCapacity;
+    private @NotNull Integer indexerBatchSize;
+    private @NotNull String indexerThreadNamePrefix;
+    private @NotNull Long indexerConsistencyTimeoutMillis;
+
+    // lucene writers, see LuceneIndexService
+    private @NotNull Double luceneRamBufferSizeMb;
+    private @NotNull Long luceneCommitIntervalMillis;
+    private @NotNull Integer luceneCommitMaxUpdates;
+    // period of the searcher refresh, the due commits and force merges
+    private @NotNull Long luceneRefreshIntervalMillis;
+    // tiered or log-byte-size
+    private @NotNull String luceneMergePolicy;
+    // merge factor of log-byte-size
+    private @NotNull Double luceneSegmentsPerTier;
+    private @NotNull Double luceneMaxMergedSegmentMb;
+    // 0 lets lucene pick them from the disk type
+    private @NotNull Integer luceneMergeThreads;
+    private @NotNull Integer luceneMaxMerges;
+    // HH:mm-HH:mm local time, no force merge when empty
+    private String luceneForceMergeWindow;
+    private @NotNull Integer luceneForceMergeMinSegments;
+    private @NotNull Integer luceneForceMergeMaxSegments;
+
+    // period of the walk repairing the drift of the per partition stats
+    private @NotNull Long statsReconcileIntervalMillis;
+
+    private @NotNull String changesDir;
+    // changes per partition kept in memory, the older ones are read from the log
+    private @NotNull Integer changesBufferSize;
+    private @NotNull Long changesMaxLogSize;
+    private @NotNull Integer changesMaxBatch;
+    private @NotNull Long changesMaxWaitMillis;
+
+    private @NotNull Integer warmupThreads;
+    // warmed up first, in this order
+    private List<Integer> warmupPriorityPartitions = new ArrayList<>();
+
+    // stop once every partition is warmed up, for the class data sharing training run, see StartupProfiler
+    private @NotNull Boolean startupExitWhenReady;
+    // seed files the startup workload uploads when missing, before it exits
+    private @NotNull Integer startupSeedFiles;
+
+    @Getter @Setter
+    public static class Device {
+        // path prefix, partitions are laid out as {path}{partition}
+        private @NotNull String path;
+        // relative share of partitions, e.g. the capacity in TB
+        private @NotNull Integer weight = 1;
+        // overrides of the device-max-concurrent-* defaults
+        private Integer maxConcurrentIo;
+        private Integer maxConcurrentWrites;
+    }
+
 }
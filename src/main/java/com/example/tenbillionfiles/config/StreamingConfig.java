@@ -0,0 +1,25 @@
+package com.example.tenbillionfiles.config;
+
+import org.springframework.boot.web.servlet.filter.OrderedHiddenHttpMethodFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.servlet.http.HttpServletRequest;
+
+@Configuration
+public class StreamingConfig {
+
+    /**
+     * The default filter reads the "_method" request parameter, which makes the container parse (and spool)
+     * multipart bodies before the /stream end-points get a chance to stream them.
+     */
+    @Bean
+    public OrderedHiddenHttpMethodFilter hiddenHttpMethodFilter() {
+        return new OrderedHiddenHttpMethodFilter() {
+            @Override
+            protected boolean shouldNotFilter(HttpServletRequest request) {
+                return request.getServletPath().startsWith("/stream/");
+            }
+        };
+    }
+}
@@ -1,14 +1,19 @@
 package com.example.tenbillionfiles.config;
 
-import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 import springfox.documentation.builders.PathSelectors;
 import springfox.documentation.builders.RequestHandlerSelectors;
 import springfox.documentation.spi.DocumentationType;
 import springfox.documentation.spring.web.plugins.Docket;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
-@ConfigurationProperties
+/**
+ * Left out of the production profile, scanning the controllers for the docs slows the startup down.
+ */
+@Configuration
+@Profile("!" + LazyInitConfig.PRODUCTION_PROFILE)
 @EnableSwagger2
 public class SwaggerConfig {
     @Bean
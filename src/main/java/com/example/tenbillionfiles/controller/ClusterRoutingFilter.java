@@ -0,0 +1,169 @@
+package com.example.tenbillionfiles.controller;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.exception.RemoteNodeException;
+import com.example.tenbillionfiles.services.ClusterService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Proxies the requests addressing one file by its path ("/file/{name}", "/stream/file/{name}") to the node holding
+ * the file: the primary for writes, any synced copy for reads. Bodies and responses are streamed through, status and headers are passed as they are.
+ *
+ * Multipart uploads carry the name in the body and are forwarded by the controller once the part is parsed.
+ */
+public class ClusterRoutingFilter extends OncePerRequestFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClusterRoutingFilter.class);
+
+    private static final List<String> ROUTED_PREFIXES = Arrays.asList("/file/", "/stream/file/");
+
+    private static final Set<String> HOP_BY_HOP_HEADERS = caseInsensitive(HttpHeaders.CONNECTION, "Keep-Alive",
+            HttpHeaders.PROXY_AUTHENTICATE, HttpHeaders.PROXY_AUTHORIZATION, HttpHeaders.TE, HttpHeaders.TRAILER,
+            HttpHeaders.TRANSFER_ENCODING, HttpHeaders.UPGRADE, HttpHeaders.HOST, HttpHeaders.CONTENT_LENGTH);
+
+    private static final Set<String> READ_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD"));
+
+    private static final Set<String> METHODS_WITH_BODY = new HashSet<>(Arrays.asList("POST", "PUT"));
+
+    private final ClusterService clusterService;
+
+    private final StorageConfigurations storageConfigurations;
+
+    public ClusterRoutingFilter(ClusterService clusterService, StorageConfigurations storageConfigurations) {
+        this.clusterService = clusterService;
+        this.storageConfigurations = storageConfigurations;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !clusterService.isClustered();
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        if (request.getHeader(ClusterService.FORWARDED_HEADER) != null) {
+            // served here whatever the membership says, only for the other nodes
+            if (clusterService.isNodeRequest(request)) {
+                filterChain.doFilter(request, response);
+            } else {
+                response.sendError(HttpStatus.FORBIDDEN.value(), "Forwarded request without the cluster secret");
+            }
+            return;
+        }
+        String fileName = getFileName(request.getServletPath());
+        if (fileName == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        String nodeUrl;
+        try {
+            nodeUrl = clusterService.getTargetUrl(fileName, !READ_METHODS.contains(request.getMethod()));
+        } catch (RemoteNodeException e) {
+            response.sendError(HttpStatus.BAD_GATEWAY.value(), e.getMessage());
+            return;
+        }
+        if (nodeUrl == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        String target = nodeUrl + request.getRequestURI()
+                + (request.getQueryString() != null ? "?" + request.getQueryString() : "");
+        logger.debug("Routing {} {} to {}", request.getMethod(), fileName, target);
+
+        HttpURLConnection connection;
+        int status;
+        try {
+            connection = (HttpURLConnection) new URL(target).openConnection();
+            connection.setConnectTimeout(storageConfigurations.getClusterConnectTimeoutMillis());
+            connection.setReadTimeout(storageConfigurations.getClusterReadTimeoutMillis());
+            connection.setInstanceFollowRedirects(false);
+            connection.setRequestMethod(request.getMethod());
+            for (String name : Collections.list(request.getHeaderNames())) {
+                if (!HOP_BY_HOP_HEADERS.contains(name) && !ClusterService.SECRET_HEADER.equalsIgnoreCase(name)) {
+                    for (String value : Collections.list(request.getHeaders(name))) {
+                        connection.addRequestProperty(name, value);
+                    }
+                }
+            }
+            clusterService.nodeHeaders().forEach((name, values) -> connection.setRequestProperty(name, values.get(0)));
+
+            if (METHODS_WITH_BODY.contains(request.getMethod())) {
+                connection.setDoOutput(true);
+                long contentLength = request.getContentLengthLong();
+                if (contentLength >= 0) {
+                    connection.setFixedLengthStreamingMode(contentLength);
+                } else {
+                    connection.setChunkedStreamingMode(StreamUtils.BUFFER_SIZE);
+                }
+                try (OutputStream out = connection.getOutputStream()) {
+                    StreamUtils.copy(request.getInputStream(), out);
+                }
+            }
+            status = connection.getResponseCode();
+        } catch (IOException e) {
+            logger.warn("Could not route {} {} to {}", request.getMethod(), fileName, target, e);
+            response.sendError(HttpStatus.BAD_GATEWAY.value(), "Node owning " + fileName + " is unreachable");
+            return;
+        }
+
+        response.setStatus(status);
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            // the null key is the status line
+            if (header.getKey() != null && !HOP_BY_HOP_HEADERS.contains(header.getKey())) {
+                for (String value : header.getValue()) {
+                    response.addHeader(header.getKey(), value);
+                }
+            }
+        }
+        if (connection.getContentLengthLong() >= 0) {
+            response.setContentLengthLong(connection.getContentLengthLong());
+        }
+        InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (body != null) {
+            try (InputStream in = body) {
+                StreamUtils.copy(in, response.getOutputStream());
+            }
+        }
+    }
+
+    private String getFileName(String servletPath) {
+        for (String prefix : ROUTED_PREFIXES) {
+            if (servletPath.startsWith(prefix) && servletPath.length() > prefix.length()) {
+                return StringUtils.cleanPath(servletPath.substring(prefix.length()));
+            }
+        }
+        return null;
+    }
+
+    private static Set<String> caseInsensitive(String... names) {
+        Set<String> set = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        set.addAll(Arrays.asList(names));
+        return set;
+    }
+
+}
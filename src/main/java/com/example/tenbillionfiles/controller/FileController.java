@@ -1,21 +1,48 @@
 package com.example.tenbillionfiles.controller;
 
+import com.example.tenbillionfiles.payload.AdmissionStatus;
+import com.example.tenbillionfiles.payload.ChangeFeed;
+import com.example.tenbillionfiles.payload.CompressionStatus;
+import com.example.tenbillionfiles.payload.ContentCacheStatus;
+import com.example.tenbillionfiles.payload.DeviceStatus;
+import com.example.tenbillionfiles.payload.FileStats;
 import com.example.tenbillionfiles.payload.FileStorageResponse;
+import com.example.tenbillionfiles.payload.IndexingStatus;
+import com.example.tenbillionfiles.payload.LayoutMigrationStatus;
+import com.example.tenbillionfiles.payload.LuceneIndexStatus;
+import com.example.tenbillionfiles.payload.StartupReport;
+import com.example.tenbillionfiles.payload.WarmUpStatus;
+import com.example.tenbillionfiles.services.AdmissionService;
+import com.example.tenbillionfiles.services.ChangeFeedService;
+import com.example.tenbillionfiles.services.ClusterService;
+import com.example.tenbillionfiles.services.CompressionService;
+import com.example.tenbillionfiles.services.ContentCacheService;
+import com.example.tenbillionfiles.services.DeviceService;
 import com.example.tenbillionfiles.services.FileStorageService;
+import com.example.tenbillionfiles.services.IndexingService;
+import com.example.tenbillionfiles.services.LayoutMigrationService;
+import com.example.tenbillionfiles.services.LuceneIndexService;
+import com.example.tenbillionfiles.services.StatsService;
+import com.example.tenbillionfiles.services.WarmUpService;
+import com.example.tenbillionfiles.services.compression.StoredHeader;
+import com.example.tenbillionfiles.services.metadata.FileMetadata;
+import com.example.tenbillionfiles.startup.StartupProfiler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import javax.servlet.http.HttpServletRequest;
-import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -28,8 +55,49 @@ public class FileController {
     @Autowired
     private FileStorageService fileStorageService;
 
+    @Autowired
+    private IndexingService indexingService;
+
+    @Autowired
+    private LuceneIndexService luceneIndexService;
+
+    @Autowired
+    private LayoutMigrationService layoutMigrationService;
+
+    @Autowired
+    private DeviceService deviceService;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    @Autowired
+    private StatsService statsService;
+
+    @Autowired
+    private AdmissionService admissionService;
+
+    @Autowired
+    private ContentCacheService contentCacheService;
+
+    @Autowired
+    private CompressionService compressionService;
+
+    @Autowired
+    private ChangeFeedService changeFeedService;
+
+    @Autowired
+    private WarmUpService warmUpService;
+
+    @Autowired
+    private StartupProfiler startupProfiler;
+
     @PostMapping("/file")
     public FileStorageResponse createFile(@RequestParam("file") MultipartFile file) {
+        // the name is only known once the part is parsed, so these uploads are routed here and not by ClusterRoutingFilter
+        String primaryUrl = clusterService.getTargetUrl(StringUtils.cleanPath(file.getOriginalFilename()), true);
+        if (primaryUrl != null) {
+            return clusterService.forwardFile(primaryUrl, HttpMethod.POST, StringUtils.cleanPath(file.getOriginalFilename()), file);
+        }
         String fileName = fileStorageService.addFile(file);
 
         return new FileStorageResponse(fileName, fileStorageService.getDownloadUri(fileName),
@@ -47,15 +115,20 @@ public class FileController {
 
     @GetMapping("/file/{fileName}")
     public ResponseEntity<Resource> readFile(@PathVariable String fileName, HttpServletRequest request) {
+        // Size, type and dates come from the metadata cache, no stat of the file
+        FileMetadata metadata = fileStorageService.getFileMetadata(fileName);
+
+        // a compressed file is sent as stored to the clients decoding its codec
+        String encoding = metadata.getEncoding();
+        boolean encoded = compressionService.accepts(request.getHeader(HttpHeaders.ACCEPT_ENCODING), encoding);
+
         // Load file as Resource
-        Resource resource = fileStorageService.loadFileAsResource(fileName);
+        Resource resource = fileStorageService.loadFileAsResource(metadata, encoded);
 
         // Try to determine file's content type
-        String contentType = null;
-        try {
-            contentType = request.getServletContext().getMimeType(resource.getFile().getAbsolutePath());
-        } catch (IOException ex) {
-            logger.info("Could not determine file type.");
+        String contentType = metadata.getContentType();
+        if (contentType == null) {
+            contentType = request.getServletContext().getMimeType(fileName);
         }
 
         // Fallback to the default content type if type could not be determined
@@ -63,14 +136,30 @@ public class FileController {
             contentType = "application/octet-stream";
         }
 
-        return ResponseEntity.ok()
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
                 .contentType(MediaType.parseMediaType(contentType))
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + resource.getFilename() + "\"")
-                .body(resource);
+                .lastModified(metadata.getLastModified())
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + resource.getFilename() + "\"");
+        if (encoding != null) {
+            response.varyBy(HttpHeaders.ACCEPT_ENCODING);
+        }
+        if (encoded) {
+            response.header(HttpHeaders.CONTENT_ENCODING, encoding)
+                    .contentLength(metadata.getStoredSize() - StoredHeader.LENGTH)
+                    .eTag(metadata.getEncodedETag());
+        } else {
+            response.contentLength(metadata.getSize())
+                    .eTag(metadata.getETag());
+        }
+        return response.body(resource);
     }
 
     @PutMapping("/file")
     public FileStorageResponse updateFile(@RequestParam("file") MultipartFile file) {
+        String primaryUrl = clusterService.getTargetUrl(StringUtils.cleanPath(file.getOriginalFilename()), true);
+        if (primaryUrl != null) {
+            return clusterService.forwardFile(primaryUrl, HttpMethod.PUT, StringUtils.cleanPath(file.getOriginalFilename()), file);
+        }
         String fileName = fileStorageService.modifyFile(file);
 
         String fileDownloadUri = ServletUriComponentsBuilder.fromCurrentContextPath()
@@ -91,20 +180,111 @@ public class FileController {
 
     @GetMapping("/search")
     @ResponseBody
-    public List<String> search(@RequestParam String query) {
-        return fileStorageService.luceneSearch(query);
+    public List<String> search(@RequestParam String query,
+                               @RequestParam(required = false) String consistency,
+                               @RequestParam(required = false) List<Integer> partitions) {
+        return fileStorageService.luceneSearch(query, consistency, clusterService.requestedPartitions(partitions));
     }
 
     @GetMapping("/regex")
     @ResponseBody
-    public List<String> regex(@RequestParam String regex) {
-        return fileStorageService.regexSearch(regex);
+    public List<String> regex(@RequestParam String regex,
+                              @RequestParam(required = false) String engine,
+                              @RequestParam(required = false) String consistency,
+                              @RequestParam(required = false) List<Integer> partitions) {
+        return fileStorageService.regexSearch(regex, engine, consistency, clusterService.requestedPartitions(partitions));
     }
 
     @GetMapping("/count")
     @ResponseBody
-    public long count() {
-        return fileStorageService.count();
+    public long count(@RequestParam(required = false) List<Integer> partitions) {
+        return fileStorageService.count(clusterService.requestedPartitions(partitions));
+    }
+
+    @GetMapping("/stats")
+    @ResponseBody
+    public FileStats stats(@RequestParam(required = false) List<Integer> partitions) {
+        return statsService.getStats(clusterService.requestedPartitions(partitions));
+    }
+
+    @GetMapping("/stats/count")
+    @ResponseBody
+    public long countMatching(@RequestParam(required = false) String prefix,
+                              @RequestParam(required = false) String regex,
+                              @RequestParam(required = false) String engine,
+                              @RequestParam(required = false) String consistency,
+                              @RequestParam(required = false) List<Integer> partitions) {
+        return statsService.countMatching(prefix, regex, engine, consistency, clusterService.requestedPartitions(partitions));
+    }
+
+    @GetMapping("/changes")
+    @ResponseBody
+    public DeferredResult<ChangeFeed> changes(@RequestParam(required = false) String since,
+                                              @RequestParam(required = false) Integer max,
+                                              @RequestParam(required = false) Long waitMillis,
+                                              @RequestParam(required = false) List<Integer> partitions) {
+        // answered by the change feed notifier while waiting, not on this thread
+        return changeFeedService.getChanges(since, max, waitMillis, clusterService.requestedPartitions(partitions));
+    }
+
+    @GetMapping("/indexing")
+    @ResponseBody
+    public List<IndexingStatus> indexing() {
+        return indexingService.getStatus();
+    }
+
+    @GetMapping("/lucene")
+    @ResponseBody
+    public List<LuceneIndexStatus> lucene() {
+        return luceneIndexService.getStatus();
+    }
+
+    @PostMapping("/layout/migration")
+    public ResponseEntity<LayoutMigrationStatus> startLayoutMigration() {
+        boolean started = layoutMigrationService.startMigration();
+        return new ResponseEntity<>(layoutMigrationService.getStatus(), started ? HttpStatus.ACCEPTED : HttpStatus.CONFLICT);
+    }
+
+    @GetMapping("/layout/migration")
+    @ResponseBody
+    public LayoutMigrationStatus layoutMigration() {
+        return layoutMigrationService.getStatus();
+    }
+
+    @GetMapping("/devices")
+    @ResponseBody
+    public List<DeviceStatus> devices() {
+        return deviceService.getStatus();
+    }
+
+    @GetMapping("/cache")
+    @ResponseBody
+    public ContentCacheStatus cache() {
+        return contentCacheService.getStatus();
+    }
+
+    @GetMapping("/compression")
+    @ResponseBody
+    public List<CompressionStatus> compression() {
+        return compressionService.getStatus();
+    }
+
+    @GetMapping("/warmup")
+    @ResponseBody
+    public List<WarmUpStatus> warmUp() {
+        return warmUpService.getStatus();
+    }
+
+    @GetMapping("/startup")
+    @ResponseBody
+    public StartupReport startup() {
+        return startupProfiler.getReport();
+    }
+
+    @GetMapping("/admission")
+    @ResponseBody
+    public List<AdmissionStatus> admission() {
+        return admissionService.getStatus();
     }
 
 }
@@ -0,0 +1,85 @@
+package com.example.tenbillionfiles.controller;
+
+import com.example.tenbillionfiles.payload.ReplicaStatus;
+import com.example.tenbillionfiles.payload.ReplicationNodeState;
+import com.example.tenbillionfiles.services.FileStorageService;
+import com.example.tenbillionfiles.services.ReplicationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.*;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Heartbeats, lag metrics and the end-points a primary ships its changes to. Shipped changes are refused unless the
+ * current primary of the partition sent them, see {@link ReplicationService#checkShippedByPrimary(int)}.
+ */
+@RestController
+@RequestMapping("/replication")
+public class ReplicationController {
+
+    @Autowired
+    private ReplicationService replicationService;
+
+    @Autowired
+    private FileStorageService fileStorageService;
+
+    @GetMapping
+    @ResponseBody
+    public List<ReplicaStatus> status() {
+        return replicationService.getStatus();
+    }
+
+    @GetMapping("/state")
+    @ResponseBody
+    public ReplicationNodeState state() {
+        return replicationService.getState();
+    }
+
+    @PutMapping("/file/{fileName:.+}")
+    public ResponseEntity replicateFile(@PathVariable String fileName, HttpServletRequest request) {
+        fileStorageService.replicateFile(StringUtils.cleanPath(fileName),
+                request.getHeader(ReplicationService.CONTENT_TYPE_HEADER), request::getInputStream);
+        return new ResponseEntity(HttpStatus.OK);
+    }
+
+    @DeleteMapping("/file/{fileName:.+}")
+    public ResponseEntity deleteReplicatedFile(@PathVariable String fileName) {
+        fileStorageService.deleteReplicatedFile(StringUtils.cleanPath(fileName));
+        return new ResponseEntity(HttpStatus.OK);
+    }
+
+    @PostMapping("/{partition}/resync")
+    public ResponseEntity resyncStarted(@PathVariable int partition) {
+        replicationService.resyncStarted(partition);
+        return new ResponseEntity(HttpStatus.OK);
+    }
+
+    /**
+     * Body: the names of all the files of the partition on the primary, one per line.
+     */
+    @PostMapping("/{partition}/resync/complete")
+    public ResponseEntity resyncCompleted(@PathVariable int partition, HttpServletRequest request) throws IOException {
+        Set<String> fileNames = new HashSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8))) {
+            String fileName;
+            while ((fileName = reader.readLine()) != null) {
+                if (!fileName.isEmpty()) {
+                    fileNames.add(fileName);
+                }
+            }
+        }
+        replicationService.resyncCompleted(partition, fileNames);
+        return new ResponseEntity(HttpStatus.OK);
+    }
+
+}
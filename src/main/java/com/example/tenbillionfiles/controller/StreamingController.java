@@ -0,0 +1,92 @@
+package com.example.tenbillionfiles.controller;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.payload.FileStorageResponse;
+import com.example.tenbillionfiles.services.FileStorageService;
+import com.example.tenbillionfiles.services.StreamingService;
+import com.example.tenbillionfiles.services.metadata.FileMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import reactor.core.publisher.Flux;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Streaming end-points: uploads are written to the partition while they are received, on the ingest pool,
+ * and search results are sent as soon as each partition answers.
+ */
+@RestController
+@RequestMapping("/stream")
+public class StreamingController {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingController.class);
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private FileStorageService fileStorageService;
+
+    @Autowired
+    private StreamingService streamingService;
+
+    @PostMapping("/file/{fileName}")
+    public WebAsyncTask<FileStorageResponse> createFile(@PathVariable String fileName, HttpServletRequest request) {
+        return ingest(fileName, request, false);
+    }
+
+    @PutMapping("/file/{fileName}")
+    public WebAsyncTask<FileStorageResponse> updateFile(@PathVariable String fileName, HttpServletRequest request) {
+        return ingest(fileName, request, true);
+    }
+
+    @PostMapping(value = "/files", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public WebAsyncTask<List<FileStorageResponse>> createMultipleFiles(HttpServletRequest request) {
+        // download URIs depend on the current request, resolve the base before leaving the container thread
+        String downloadBase = fileStorageService.getDownloadUri("");
+        return new WebAsyncTask<>(storageConfigurations.getIngestTimeoutMillis(), streamingService.getIngestExecutor(),
+                () -> streamingService.ingestMultipart(request).stream()
+                        .map(metadata -> toResponse(metadata, downloadBase + metadata.getFileName()))
+                        .collect(Collectors.toList()));
+    }
+
+    @GetMapping(value = "/search", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<String> search(@RequestParam String query,
+                               @RequestParam(required = false) String consistency) {
+        return streamingService.luceneSearch(query, consistency);
+    }
+
+    @GetMapping(value = "/regex", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<String> regex(@RequestParam String regex,
+                              @RequestParam(required = false) String engine,
+                              @RequestParam(required = false) String consistency) {
+        return streamingService.regexSearch(regex, engine, consistency);
+    }
+
+    @ExceptionHandler(TaskRejectedException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public void ingestSaturated(TaskRejectedException e) {
+        logger.warn("Ingest pool saturated, upload rejected.");
+    }
+
+    private WebAsyncTask<FileStorageResponse> ingest(String fileName, HttpServletRequest request, boolean replace) {
+        String downloadUri = fileStorageService.getDownloadUri(StringUtils.cleanPath(fileName));
+        String contentType = request.getContentType();
+        return new WebAsyncTask<>(storageConfigurations.getIngestTimeoutMillis(), streamingService.getIngestExecutor(),
+                () -> toResponse(streamingService.ingest(fileName, contentType, request.getInputStream(), replace), downloadUri));
+    }
+
+    private FileStorageResponse toResponse(FileMetadata metadata, String downloadUri) {
+        return new FileStorageResponse(metadata.getFileName(), downloadUri, metadata.getContentType(), metadata.getSize());
+    }
+
+}
@@ -0,0 +1,15 @@
+package com.example.tenbillionfiles.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class IndexNotReadyException extends RuntimeException {
+    public IndexNotReadyException(String message) {
+        super(message);
+    }
+
+    public IndexNotReadyException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
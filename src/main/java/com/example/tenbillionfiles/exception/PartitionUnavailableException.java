@@ -0,0 +1,11 @@
+package com.example.tenbillionfiles.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class PartitionUnavailableException extends RuntimeException {
+    public PartitionUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,11 @@
+package com.example.tenbillionfiles.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+public class QueryRejectedException extends RuntimeException {
+    public QueryRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.tenbillionfiles.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class RegexRejectedException extends RuntimeException {
+    public RegexRejectedException(String message) {
+        super(message);
+    }
+
+    public RegexRejectedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
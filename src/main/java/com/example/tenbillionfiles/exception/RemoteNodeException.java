@@ -0,0 +1,15 @@
+package com.example.tenbillionfiles.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.BAD_GATEWAY)
+public class RemoteNodeException extends RuntimeException {
+    public RemoteNodeException(String message) {
+        super(message);
+    }
+
+    public RemoteNodeException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,11 @@
+package com.example.tenbillionfiles.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.FORBIDDEN)
+public class ReplicationRejectedException extends RuntimeException {
+    public ReplicationRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,18 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class AdmissionStatus {
+    private String queryClass;
+    private long admitted;
+    private long queued;
+    private long rejected;
+    private int running;
+    private int maxRunning;
+
+}
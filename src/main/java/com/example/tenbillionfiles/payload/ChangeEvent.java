@@ -0,0 +1,20 @@
+package com.example.tenbillionfiles.payload;
+
+import com.example.tenbillionfiles.services.wal.WalOperation;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class ChangeEvent {
+    private int partition;
+    // increasing by 1 within the partition
+    private long sequence;
+    private WalOperation operation;
+    private String fileName;
+
+}
@@ -0,0 +1,20 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class ChangeFeed {
+    // in sequence order within each partition
+    private List<ChangeEvent> changes;
+    // position after these changes, the "since" of the next call
+    private String next;
+
+}
@@ -0,0 +1,23 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class CompressionStatus {
+    private int partition;
+    private long compressedFiles;
+    private long plainFiles;
+    private long originalBytes;
+    private long compressedBytes;
+    // original / compressed bytes of the files compressed since startup
+    private double ratio;
+    private long compressCpuMillis;
+    private long decompressedBytes;
+    private long decompressCpuMillis;
+    private long encodedBytesServed;
+
+}
@@ -0,0 +1,25 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class ContentCacheStatus {
+    private boolean enabled;
+    private int entries;
+    private long usedBytes;
+    private long allocatedBytes;
+    private long maxBytes;
+    private long hits;
+    private long misses;
+    private double hitRatio;
+    private long evictions;
+    private long rejections;
+    private long invalidations;
+    // content served from memory instead of the disk
+    private long bytesSaved;
+
+}
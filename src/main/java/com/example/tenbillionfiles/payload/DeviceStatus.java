@@ -0,0 +1,28 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class DeviceStatus {
+    private String path;
+    private List<Integer> partitions;
+    private int activeReads;
+    private int activeWrites;
+    private int waitingReads;
+    private int waitingWrites;
+    private long completedReads;
+    private long completedWrites;
+    private long bytesRead;
+    private long bytesWritten;
+    // share of the time with at least one operation in flight
+    private double utilization;
+    private long totalSpace;
+    private long usableSpace;
+
+}
@@ -0,0 +1,22 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class FileStats {
+    private long count;
+    private long totalBytes;
+    // buckets in bytes
+    private List<HistogramBucket> sizeHistogram;
+    // buckets in days since the last modification
+    private List<HistogramBucket> ageHistogram;
+
+}
@@ -2,11 +2,13 @@ package com.example.tenbillionfiles.payload;
 
 import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.NoArgsConstructor;
 import lombok.Setter;
 
 @Getter
 @Setter
 @AllArgsConstructor
+@NoArgsConstructor
 public class FileStorageResponse {
     private String fileName;
     private String fileDownloadUri;
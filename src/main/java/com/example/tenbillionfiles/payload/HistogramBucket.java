@@ -0,0 +1,21 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Files with a value in [from, to).
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class HistogramBucket {
+    private long from;
+    // Long.MAX_VALUE for the last, unbounded, bucket
+    private long to;
+    private long count;
+
+}
@@ -0,0 +1,25 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class IndexingStatus {
+    private int partition;
+    private int queued;
+    private long enqueuedTicket;
+    private long appliedTicket;
+    private long lag;
+    private long oldestPendingMillis;
+    private long appliedTotal;
+    private long coalescedTotal;
+    private long failedBatches;
+    // waiting for this ticket or a later one fails until its updates are applied again, 0 when none failed
+    private long firstFailedTicket;
+    private int lastBatchSize;
+    private long lastBatchMillis;
+
+}
@@ -0,0 +1,18 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class LayoutMigrationStatus {
+    private boolean running;
+    private List<Integer> pendingPartitions;
+    private long migratedFiles;
+    private long failedFiles;
+
+}
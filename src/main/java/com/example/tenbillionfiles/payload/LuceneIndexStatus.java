@@ -0,0 +1,30 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class LuceneIndexStatus {
+    private int partition;
+    // as of the last searcher refresh
+    private int segments;
+    private int documents;
+    private int deletedDocuments;
+    // applied, not committed yet
+    private int pendingUpdates;
+    private long oldestPendingMillis;
+    private long commits;
+    private long lastCommitMillis;
+    private long merges;
+    private int runningMerges;
+    private long mergedBytes;
+    private long mergeMillis;
+    // per merge thread
+    private double mergeMegabytesPerSecond;
+    private long forceMerges;
+    private long lastForceMergeTime;
+
+}
@@ -0,0 +1,20 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class ReplicaStatus {
+    private int partition;
+    private String node;
+    private boolean primary;
+    private boolean alive;
+    private boolean synced;
+    // changes of the primary not yet acknowledged by this replica, and the age of the oldest one
+    private long lagRecords;
+    private long lagMillis;
+
+}
@@ -0,0 +1,24 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * Roles of a node, exchanged by the replication heartbeats.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class ReplicationNodeState {
+    private int node;
+    // partitions this node is the primary of
+    private List<Integer> primaryPartitions;
+    // partitions whose copy on this node is complete and can serve reads
+    private List<Integer> syncedPartitions;
+
+}
@@ -0,0 +1,20 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Time spent in one step of the startup, summed over the partitions it ran on.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+public class StartupPhase {
+    private String name;
+    private int runs;
+    private long totalMillis;
+    // slowest partition
+    private long maxMillis;
+
+}
@@ -0,0 +1,27 @@
+package com.example.tenbillionfiles.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * Startup timeline, every time since the JVM start. 0 for a step not reached yet.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+public class StartupReport {
+    // JVM boot and class loading up to main
+    private long mainMillis;
+    // beans created, before the web server starts
+    private long contextRefreshedMillis;
+    // web server accepting requests
+    private long servingMillis;
+    // every partition warmed up (or quarantined): the cold start time
+    private long readyMillis;
+    // in the order they first ran
+    private List<StartupPhase> phases;
+
+}
@@ -0,0 +1,20 @@
+package com.example.tenbillionfiles.payload;
+
+import com.example.tenbillionfiles.services.warmup.PartitionState;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class WarmUpStatus {
+    private int partition;
+    private PartitionState state;
+    // searches and counts that had to go without the partition while it was cold
+    private long demand;
+    private long warmUpMillis;
+    // why the partition is quarantined
+    private String error;
+
+}
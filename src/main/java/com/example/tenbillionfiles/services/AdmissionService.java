@@ -0,0 +1,244 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.exception.QueryRejectedException;
+import com.example.tenbillionfiles.payload.AdmissionStatus;
+import com.example.tenbillionfiles.services.admission.Admission;
+import com.example.tenbillionfiles.services.admission.QueryClass;
+import com.example.tenbillionfiles.services.admission.QueryCost;
+import com.example.tenbillionfiles.services.admission.TokenBucket;
+import com.example.tenbillionfiles.services.partioning.PartitioningService;
+import com.example.tenbillionfiles.services.regex.AutomatonNameMatcher;
+import com.example.tenbillionfiles.services.regex.LiteralNameMatcher;
+import com.example.tenbillionfiles.services.regex.NameMatcher;
+import com.example.tenbillionfiles.services.regex.PatternNameMatcher;
+import com.example.tenbillionfiles.services.regex.RegexQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
+
+/**
+ * Decides whether a search may run before any partition work starts.
+ *
+ * Queries are classified by an estimated cost: the names the index has to examine, weighted by how expensive one
+ * examination is. MODERATE and EXPENSIVE queries take a token from the bucket of their client and from the bucket
+ * of the whole node for their class, then one of the concurrency slots of the class. A query waits up to
+ * file.admission-max-wait-millis for these, otherwise it is rejected with 429. CHEAP queries are never limited,
+ * nor are the requests scattered by the other cluster nodes, which were admitted where they entered.
+ */
+@Service
+public class AdmissionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionService.class);
+
+    // examining a name with java.util.regex costs about 10 byte matcher examinations
+    private static final int REGEX_ENGINE_WEIGHT = 10;
+    // the automaton of engine=linear makes one table lookup per byte, about twice the byte matchers
+    private static final int AUTOMATON_WEIGHT = 2;
+    // a leading wildcard walks the whole term dictionary
+    private static final int LEADING_WILDCARD_WEIGHT = 10;
+
+    // a '*' or '?' starting a lucene term, i.e. at the start or after a space, '(', ':' or '+' / '-'
+    private static final Pattern LEADING_WILDCARD = Pattern.compile("(^|[\\s(:+\\-])[*?]");
+    // prefix, wildcard, fuzzy, regexp and range queries enumerate terms
+    private static final Pattern TERM_ENUMERATION = Pattern.compile("[*?~/\\[{]");
+
+    // buckets of idle clients are dropped once there are more
+    private static final int MAX_CLIENT_BUCKETS = 10000;
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private PartitioningService partitioningService;
+
+    @Autowired
+    private StatsService statsService;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    private final Map<QueryClass, TokenBucket> nodeBuckets = new EnumMap<>(QueryClass.class);
+    private final Map<QueryClass, Semaphore> slots = new EnumMap<>(QueryClass.class);
+    private final Map<QueryClass, Integer> maxSlots = new EnumMap<>(QueryClass.class);
+
+    // client + class -> bucket
+    private final Map<String, TokenBucket> clientBuckets = new ConcurrentHashMap<>();
+
+    private final Map<QueryClass, AtomicLong> admitted = new EnumMap<>(QueryClass.class);
+    private final Map<QueryClass, AtomicLong> queued = new EnumMap<>(QueryClass.class);
+    private final Map<QueryClass, AtomicLong> rejected = new EnumMap<>(QueryClass.class);
+
+    @PostConstruct
+    public void initLimits() {
+        double burst = storageConfigurations.getAdmissionBurstSeconds();
+        nodeBuckets.put(QueryClass.MODERATE, new TokenBucket(storageConfigurations.getAdmissionModerateRate(),
+                storageConfigurations.getAdmissionModerateRate() * burst));
+        nodeBuckets.put(QueryClass.EXPENSIVE, new TokenBucket(storageConfigurations.getAdmissionExpensiveRate(),
+                storageConfigurations.getAdmissionExpensiveRate() * burst));
+        maxSlots.put(QueryClass.MODERATE, storageConfigurations.getAdmissionModerateConcurrency());
+        maxSlots.put(QueryClass.EXPENSIVE, storageConfigurations.getAdmissionExpensiveConcurrency());
+        maxSlots.forEach((queryClass, max) -> slots.put(queryClass, new Semaphore(max, true)));
+        for (QueryClass queryClass : QueryClass.values()) {
+            admitted.put(queryClass, new AtomicLong());
+            queued.put(queryClass, new AtomicLong());
+            rejected.put(queryClass, new AtomicLong());
+        }
+    }
+
+    public QueryCost estimateRegex(RegexQuery query, List<Integer> partitions) {
+        NameMatcher matcher = query.getMatcher();
+        long names = estimateNames(partitions);
+        if (matcher instanceof LiteralNameMatcher && ((LiteralNameMatcher) matcher).matchesEverything()) {
+            return new QueryCost(QueryClass.EXPENSIVE, names, "regex returning every name");
+        }
+        if (matcher instanceof PatternNameMatcher) {
+            return classify(names * REGEX_ENGINE_WEIGHT, "regex engine scan of " + names + " names");
+        }
+        if (matcher instanceof AutomatonNameMatcher) {
+            return classify(names * AUTOMATON_WEIGHT, "automaton scan of " + names + " names");
+        }
+        return classify(names, "byte scan of " + names + " names");
+    }
+
+    public QueryCost estimateLucene(String query, List<Integer> partitions) {
+        long names = estimateNames(partitions);
+        if (LEADING_WILDCARD.matcher(query.trim()).find()) {
+            return classify(names * LEADING_WILDCARD_WEIGHT, "leading wildcard over " + names + " names");
+        }
+        if (TERM_ENUMERATION.matcher(query).find()) {
+            return classify(names, "term enumeration over " + names + " names");
+        }
+        return new QueryCost(QueryClass.CHEAP, 1L, "term lookup");
+    }
+
+    public QueryCost estimatePrefixCount() {
+        // counted from the postings of the terms, no stored field is read
+        return new QueryCost(QueryClass.CHEAP, 1L, "prefix count");
+    }
+
+    /**
+     * Waits for the limits of the query class, the returned admission must be closed once the query is done.
+     *
+     * @throws QueryRejectedException when the query can't start within file.admission-max-wait-millis
+     */
+    public Admission admit(QueryCost cost) {
+        QueryClass queryClass = cost.getQueryClass();
+        // a query scattered by another node was admitted there, the exemption needs an authenticated cluster hop
+        boolean scattered = clusterService.isClustered() && clusterService.isForwardedRequest();
+        if (!storageConfigurations.getAdmissionEnabled() || queryClass == QueryClass.CHEAP || scattered) {
+            admitted.get(queryClass).incrementAndGet();
+            return Admission.UNLIMITED;
+        }
+        String client = getClientId();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(storageConfigurations.getAdmissionMaxWaitMillis());
+
+        TokenBucket clientBucket = getClientBucket(client, queryClass);
+        long clientWait = clientBucket.reserve(deadline - System.nanoTime());
+        if (clientWait < 0) {
+            throw reject(cost, "client " + client + " is over its rate of " + queryClass + " queries");
+        }
+        TokenBucket nodeBucket = nodeBuckets.get(queryClass);
+        long nodeWait = nodeBucket.reserve(deadline - System.nanoTime() - clientWait);
+        if (nodeWait < 0) {
+            clientBucket.cancel();
+            throw reject(cost, "node is over its rate of " + queryClass + " queries");
+        }
+        Semaphore classSlots = slots.get(queryClass);
+        try {
+            long wait = Math.max(clientWait, nodeWait);
+            if (wait > 0) {
+                queued.get(queryClass).incrementAndGet();
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            if (!classSlots.tryAcquire(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                clientBucket.cancel();
+                nodeBucket.cancel();
+                throw reject(cost, "too many " + queryClass + " queries running");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            clientBucket.cancel();
+            nodeBucket.cancel();
+            throw reject(cost, "interrupted while queued");
+        }
+        admitted.get(queryClass).incrementAndGet();
+        logger.debug("Admitted {} query of client {}: {}", queryClass, client, cost);
+        return new Admission(classSlots);
+    }
+
+    public List<AdmissionStatus> getStatus() {
+        List<AdmissionStatus> status = new ArrayList<>();
+        for (QueryClass queryClass : QueryClass.values()) {
+            Semaphore classSlots = slots.get(queryClass);
+            int max = classSlots == null ? 0 : maxSlots.get(queryClass);
+            status.add(new AdmissionStatus(queryClass.name(), admitted.get(queryClass).get(), queued.get(queryClass).get(),
+                    rejected.get(queryClass).get(), classSlots == null ? 0 : max - classSlots.availablePermits(), max));
+        }
+        return status;
+    }
+
+    private QueryCost classify(long cost, String reason) {
+        QueryClass queryClass = cost >= storageConfigurations.getAdmissionExpensiveCost() ? QueryClass.EXPENSIVE
+                : cost >= storageConfigurations.getAdmissionModerateCost() ? QueryClass.MODERATE : QueryClass.CHEAP;
+        return new QueryCost(queryClass, cost, reason);
+    }
+
+    /**
+     * Names in the searched partitions. In a cluster only the local partitions are counted here, the others are
+     * assumed to hold as many names on average (names are spread by hash).
+     */
+    private long estimateNames(List<Integer> partitions) {
+        List<Integer> local = partitioningService.getLocalPartitions();
+        int searched = partitions == null ? PARTITIONS_NUMBER : partitions.size();
+        if (local.isEmpty() || searched == 0) {
+            return 0L;
+        }
+        return statsService.getFileCount(local) * searched / local.size();
+    }
+
+    private TokenBucket getClientBucket(String client, QueryClass queryClass) {
+        if (clientBuckets.size() > MAX_CLIENT_BUCKETS) {
+            clientBuckets.values().removeIf(TokenBucket::isFull);
+        }
+        double rate = queryClass == QueryClass.EXPENSIVE ? storageConfigurations.getAdmissionExpensiveClientRate()
+                : storageConfigurations.getAdmissionModerateClientRate();
+        return clientBuckets.computeIfAbsent(client + '|' + queryClass,
+                key -> new TokenBucket(rate, rate * storageConfigurations.getAdmissionBurstSeconds()));
+    }
+
+    private QueryRejectedException reject(QueryCost cost, String why) {
+        rejected.get(cost.getQueryClass()).incrementAndGet();
+        logger.info("Rejected query {}: {}", cost, why);
+        return new QueryRejectedException("Query rejected, " + why + ": " + cost + ". Retry later or narrow it down.");
+    }
+
+    private String getClientId() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (!(attributes instanceof ServletRequestAttributes)) {
+            return "internal";
+        }
+        HttpServletRequest request = ((ServletRequestAttributes) attributes).getRequest();
+        String client = request.getHeader(storageConfigurations.getAdmissionClientHeader());
+        return client != null && !client.isEmpty() ? client : request.getRemoteAddr();
+    }
+
+}
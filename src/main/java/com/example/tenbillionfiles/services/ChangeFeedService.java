@@ -0,0 +1,325 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.exception.ChangeFeedExpiredException;
+import com.example.tenbillionfiles.exception.FileStorageException;
+import com.example.tenbillionfiles.exception.RemoteNodeException;
+import com.example.tenbillionfiles.payload.ChangeEvent;
+import com.example.tenbillionfiles.payload.ChangeFeed;
+import com.example.tenbillionfiles.services.changes.ChangeCursor;
+import com.example.tenbillionfiles.services.changes.ChangeLog;
+import com.example.tenbillionfiles.services.wal.WalOperation;
+import com.example.tenbillionfiles.services.wal.WalRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
+
+/**
+ * Feed of the files added, modified and deleted, read from the {@link ChangeLog} of each primary partition.
+ * Long polls wait without holding a request thread, the notifier thread syncs the logs and answers them.
+ */
+@Service
+public class ChangeFeedService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeFeedService.class);
+
+    // how often the waiting requests check their deadline and the other nodes
+    private static final long REMOTE_CHECK_MILLIS = 100L;
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private FileStorageService fileStorageService;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    @Autowired
+    private WriteAheadLogService writeAheadLogService;
+
+    // null for a partition whose log could not be opened
+    private final ChangeLog[] changeLogs = new ChangeLog[PARTITIONS_NUMBER];
+
+    // the notifier waits on it
+    private final AtomicLong recordedChanges = new AtomicLong();
+
+    private final Set<PendingPoll> pendingPolls = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean running;
+    private Thread notifier;
+
+    @PostConstruct
+    public void initNotifier() {
+        running = true;
+        // never interrupted, an fsync interrupted would close the log
+        notifier = new Thread(this::notifyLoop, "ChangeFeed-Notifier");
+        notifier.setDaemon(true);
+        notifier.start();
+    }
+
+    /**
+     * Must be called once the WAL of the partition is open.
+     */
+    public void openLog(int partition) throws IOException {
+        ChangeLog changeLog = new ChangeLog(partition, fileStorageService.getChangesLocation(partition),
+                storageConfigurations.getChangesBufferSize(), storageConfigurations.getChangesMaxLogSize());
+        if (!changeLog.isClosedCleanly()) {
+            rebuildTail(changeLog);
+        }
+        logger.debug("Change log of partition {} opened at sequence {}", partition, changeLog.getNextSequence());
+        changeLogs[partition] = changeLog;
+    }
+
+    /**
+     * Must be called while holding the write lock of the name, before the WAL record is queued to the indexer.
+     */
+    public void recordChange(int partition, WalOperation operation, String fileName) {
+        ChangeLog changeLog = changeLogs[partition];
+        if (changeLog == null || changeLog.append(operation, fileName) < 0) {
+            return;
+        }
+        recordedChanges.incrementAndGet();
+        synchronized (recordedChanges) {
+            recordedChanges.notifyAll();
+        }
+    }
+
+    /**
+     * Must be called before the WAL of the partition is checkpointed.
+     */
+    public void syncLog(int partition) {
+        ChangeLog changeLog = changeLogs[partition];
+        if (changeLog != null) {
+            changeLog.sync();
+        }
+    }
+
+    /**
+     * @param since position returned by the previous call, null to start from the current end
+     * @param partitions partitions to read, all of them when null (only set by the other cluster nodes)
+     * @return set once there are changes, the wait is over or the other nodes answered
+     */
+    public DeferredResult<ChangeFeed> getChanges(String since, Integer max, Long waitMillis, List<Integer> partitions) {
+        ChangeCursor cursor = ChangeCursor.parse(since);
+        int limit = Math.max(1, Math.min(max != null ? max : storageConfigurations.getChangesMaxBatch(),
+                storageConfigurations.getChangesMaxBatch()));
+        // a new consumer only gets the current end
+        long wait = since == null ? 0L : Math.max(0L, Math.min(waitMillis != null ? waitMillis : 0L,
+                storageConfigurations.getChangesMaxWaitMillis()));
+
+        Map<Integer, List<Integer>> assignment = clusterService.assignPrimaryPartitions(partitions);
+        List<Integer> localPartitions = clusterService.getLocalPartitions(assignment);
+        boolean remoteNodes = assignment.size() > (localPartitions.isEmpty() ? 0 : 1);
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("since", since);
+        parameters.put("max", String.valueOf(limit));
+        parameters.put("waitMillis", String.valueOf(wait));
+        CompletableFuture<List<ChangeFeed>> remote = clusterService.scatter("/changes", parameters, assignment, ChangeFeed.class);
+
+        DeferredResult<ChangeFeed> result = new DeferredResult<>(wait + storageConfigurations.getClusterConnectTimeoutMillis()
+                + storageConfigurations.getClusterReadTimeoutMillis());
+        PendingPoll poll = new PendingPoll(cursor, localPartitions, partitions, limit, System.currentTimeMillis() + wait,
+                remote, remoteNodes, result);
+        result.onCompletion(() -> pendingPolls.remove(poll));
+        result.onTimeout(() -> result.setErrorResult(new RemoteNodeException("The other nodes did not answer the change feed in time")));
+        // registered first, so a change synced meanwhile is not missed
+        pendingPolls.add(poll);
+        poll.check(true);
+        return result;
+    }
+
+    @PreDestroy
+    public void closeLogs() {
+        running = false;
+        synchronized (recordedChanges) {
+            recordedChanges.notifyAll();
+        }
+        if (notifier != null) {
+            try {
+                notifier.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (ChangeLog changeLog : changeLogs) {
+            if (changeLog == null) {
+                continue;
+            }
+            try {
+                changeLog.close();
+            } catch (IOException e) {
+                logger.error("Could not close change log of partition " + changeLog.getPartition(), e);
+            }
+        }
+    }
+
+    private void notifyLoop() {
+        long seen = recordedChanges.get();
+        while (running) {
+            try {
+                synchronized (recordedChanges) {
+                    if (running && recordedChanges.get() == seen) {
+                        recordedChanges.wait(REMOTE_CHECK_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            long recorded = recordedChanges.get();
+            boolean changed = recorded != seen;
+            seen = recorded;
+            if (changed) {
+                // group commit of every change recorded since the last round
+                for (ChangeLog changeLog : changeLogs) {
+                    if (changeLog != null) {
+                        changeLog.sync();
+                    }
+                }
+            }
+            for (PendingPoll poll : pendingPolls) {
+                poll.check(changed);
+            }
+        }
+    }
+
+    /**
+     * Appends the changes of the WAL tail the storage still agrees with, a consumer may get some of them twice.
+     */
+    private void rebuildTail(ChangeLog changeLog) throws IOException {
+        int partition = changeLog.getPartition();
+        long first = changeLog.getNextSequence();
+        for (WalRecord record : writeAheadLogService.readTail(partition)) {
+            boolean exists = Files.exists(fileStorageService.findFileLocation(record.getFileName()));
+            if (exists != (record.getOperation() == WalOperation.DELETE)) {
+                changeLog.append(record.getOperation(), record.getFileName());
+            }
+        }
+        changeLog.sync();
+        logger.warn("Change log of partition {} was not closed cleanly, {} changes appended again from the WAL",
+                partition, changeLog.getNextSequence() - first);
+    }
+
+    /**
+     * Reads the changes of the partitions after the cursor, up to an even share of the limit each.
+     */
+    private void readLocal(ChangeCursor cursor, List<Integer> partitions, int limit, List<ChangeEvent> changes,
+                           ChangeCursor served) {
+        int share = Math.max(1, (limit + partitions.size() - 1) / Math.max(1, partitions.size()));
+        for (int partition : partitions) {
+            ChangeLog changeLog = changeLogs[partition];
+            if (changeLog == null) {
+                // quarantined, nothing is written there
+                continue;
+            }
+            if (!cursor.contains(partition)) {
+                // the changes after the synced end may be numbered again after a crash
+                cursor.put(partition, changeLog.getEpoch(), changeLog.getSyncedSequence());
+            }
+            if (cursor.getEpoch(partition) != changeLog.getEpoch()) {
+                throw new ChangeFeedExpiredException("Change log of partition " + partition
+                        + " restarted (failover or crash), resync and read the feed from its end.");
+            }
+            long sequence = cursor.getSequence(partition);
+
+            List<WalRecord> records;
+            try {
+                records = changeLog.read(sequence, share);
+            } catch (IOException e) {
+                throw new FileStorageException("Could not read the change log of partition " + partition, e);
+            }
+            if (records == null) {
+                throw new ChangeFeedExpiredException("Changes of partition " + partition + " from sequence "
+                        + sequence + " are not kept anymore, resync and read the feed from its end.");
+            }
+            for (WalRecord record : records) {
+                changes.add(new ChangeEvent(partition, record.getSequence(), record.getOperation(), record.getFileName()));
+            }
+            served.put(partition, changeLog.getEpoch(), sequence + records.size());
+        }
+    }
+
+    /**
+     * Long poll waiting for changes, checked by the notifier.
+     */
+    private class PendingPoll {
+
+        private final ChangeCursor cursor;
+        private final List<Integer> localPartitions;
+        private final List<Integer> partitions;
+        private final int limit;
+        private final long deadline;
+        private final CompletableFuture<List<ChangeFeed>> remote;
+        private final boolean remoteNodes;
+        private final DeferredResult<ChangeFeed> result;
+
+        private PendingPoll(ChangeCursor cursor, List<Integer> localPartitions, List<Integer> partitions, int limit,
+                            long deadline, CompletableFuture<List<ChangeFeed>> remote, boolean remoteNodes,
+                            DeferredResult<ChangeFeed> result) {
+            this.cursor = cursor;
+            this.localPartitions = localPartitions;
+            this.partitions = partitions;
+            this.limit = limit;
+            this.deadline = deadline;
+            this.remote = remote;
+            this.remoteNodes = remoteNodes;
+            this.result = result;
+        }
+
+        /**
+         * @param changed true when changes were synced since the last check
+         */
+        private synchronized void check(boolean changed) {
+            if (result.isSetOrExpired()) {
+                // answered before its completion callback was registered, or since
+                pendingPolls.remove(this);
+                return;
+            }
+            boolean expired = System.currentTimeMillis() >= deadline;
+            boolean remoteAnswered = remoteNodes && remote.isDone();
+            if (!changed && !expired && !remoteAnswered) {
+                return;
+            }
+            try {
+                ChangeCursor served = new ChangeCursor();
+                List<ChangeEvent> changes = new ArrayList<>();
+                readLocal(cursor, localPartitions, limit, changes, served);
+                if (changes.isEmpty() && !remoteAnswered && !(expired && remote.isDone())) {
+                    return;
+                }
+
+                // the other nodes still waiting keep their position
+                if (changes.isEmpty() || remote.isDone()) {
+                    for (ChangeFeed remoteFeed : clusterService.gather(remote)) {
+                        changes.addAll(remoteFeed.getChanges());
+                        served.putAll(ChangeCursor.parse(remoteFeed.getNext()));
+                    }
+                }
+                if (partitions == null) {
+                    cursor.putAll(served);
+                    served = cursor;
+                }
+                result.setResult(new ChangeFeed(changes, served.toString()));
+            } catch (RuntimeException e) {
+                result.setErrorResult(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.exception.FileAlreadyExists;
+import com.example.tenbillionfiles.exception.FileNotFoundException;
+import com.example.tenbillionfiles.exception.RemoteNodeException;
+import com.example.tenbillionfiles.payload.FileStorageResponse;
+import com.example.tenbillionfiles.services.partioning.PartitioningService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.StringUtils;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
+
+/**
+ * Multi-node mode: every node holds the partitions assigned to it by {@link PartitioningService} and forwards
+ * the requests on the other partitions to a node holding them (the primary for writes, see {@link ReplicationService}).
+ * Searches and counts are scattered to all the nodes and gathered on the node that received the request.
+ *
+ * Requests sent by another node carry the {@link #FORWARDED_HEADER} and are always served locally, so a
+ * membership mismatch between nodes can't make a request bounce forever. They also carry the shared secret of the
+ * nodes in the {@link #SECRET_HEADER}: without it the forwarded header is the client's, and is not trusted.
+ */
+@Service
+public class ClusterService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClusterService.class);
+
+    public static final String FORWARDED_HEADER = "X-Cluster-Forwarded";
+
+    public static final String SECRET_HEADER = "X-Cluster-Secret";
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private PartitioningService partitioningService;
+
+    @Autowired
+    private ReplicationService replicationService;
+
+    @Autowired
+    private WarmUpService warmUpService;
+
+    private RestTemplate restTemplate;
+
+    private ThreadPoolTaskExecutor scatterExecutor;
+
+    @PostConstruct
+    public void initClient() {
+        if (isClustered() && StringUtils.isEmpty(storageConfigurations.getClusterSecret())) {
+            throw new IllegalStateException("file.cluster-secret must be set when file.cluster-nodes is");
+        }
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(storageConfigurations.getClusterConnectTimeoutMillis());
+        requestFactory.setReadTimeout(storageConfigurations.getClusterReadTimeoutMillis());
+        // forwarded uploads are streamed, not copied in memory first
+        requestFactory.setBufferRequestBody(false);
+        restTemplate = new RestTemplate(requestFactory);
+
+        ThreadPoolTaskExecutor threadPoolTaskExecutor = new ThreadPoolTaskExecutor();
+        // remote calls mostly wait on the network, keep them off the partition executor
+        threadPoolTaskExecutor.setCorePoolSize(Math.max(1, 4 * storageConfigurations.getClusterNodes().size()));
+        threadPoolTaskExecutor.setAllowCoreThreadTimeOut(true);
+        threadPoolTaskExecutor.setThreadNamePrefix("Cluster-");
+        threadPoolTaskExecutor.initialize();
+        scatterExecutor = threadPoolTaskExecutor;
+    }
+
+    public boolean isClustered() {
+        return !storageConfigurations.getClusterNodes().isEmpty();
+    }
+
+    /**
+     * Base URL of the node the request on the file has to go to, null when this node serves it.
+     * Writes go to the primary of the partition, reads are spread over its synced copies.
+     */
+    public String getTargetUrl(String fileName, boolean write) {
+        if (!isClustered() || isForwardedRequest()) {
+            return null;
+        }
+        int partition = partitioningService.getPartition(fileName);
+        int node = write ? replicationService.getWriteNode(partition) : replicationService.getReadNode(partition);
+        if (node < 0) {
+            throw new RemoteNodeException("No " + (write ? "primary" : "synced copy") + " of partition " + partition + " is available");
+        }
+        return node == storageConfigurations.getClusterNodeIndex() ? null : storageConfigurations.getClusterNodes().get(node);
+    }
+
+    /**
+     * The partitions named by the request, only honoured when another node sent it.
+     * @return null when the request is on all the partitions
+     */
+    public List<Integer> requestedPartitions(List<Integer> partitions) {
+        return isForwardedRequest() ? partitions : null;
+    }
+
+    /**
+     * Node searching each partition for the current request, by node index. A request from another node
+     * names the partitions it wants from this one, see {@link #requestedPartitions(List)}.
+     */
+    public Map<Integer, List<Integer>> assignPartitions(List<Integer> requestedPartitions) {
+        Map<Integer, List<Integer>> assignment = new HashMap<>();
+        int self = storageConfigurations.getClusterNodeIndex();
+        if (requestedPartitions != null) {
+            assignment.put(self, requestedPartitions);
+        } else if (!isClustered()) {
+            assignment.put(self, partitioningService.getLocalPartitions());
+        } else {
+            for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+                int node = replicationService.getReadNode(partition);
+                if (node < 0) {
+                    throw new RemoteNodeException("No synced copy of partition " + partition + " is available");
+                }
+                assignment.computeIfAbsent(node, key -> new ArrayList<>()).add(partition);
+            }
+        }
+        return assignment;
+    }
+
+    /**
+     * Like {@link #assignPartitions(List)}, with the primary of each partition, whose change feed is the one read.
+     */
+    public Map<Integer, List<Integer>> assignPrimaryPartitions(List<Integer> requestedPartitions) {
+        if (requestedPartitions != null || !isClustered()) {
+            return assignPartitions(requestedPartitions);
+        }
+        Map<Integer, List<Integer>> assignment = new HashMap<>();
+        for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+            int node = replicationService.getWriteNode(partition);
+            if (node < 0) {
+                throw new RemoteNodeException("No primary of partition " + partition + " is available");
+            }
+            assignment.computeIfAbsent(node, key -> new ArrayList<>()).add(partition);
+        }
+        return assignment;
+    }
+
+    public List<Integer> getLocalPartitions(Map<Integer, List<Integer>> assignment) {
+        return assignment.getOrDefault(storageConfigurations.getClusterNodeIndex(), Collections.emptyList());
+    }
+
+    /**
+     * Sends a multipart upload to the node owning the file.
+     */
+    public FileStorageResponse forwardFile(String ownerUrl, HttpMethod method, String fileName, MultipartFile file) {
+        HttpHeaders partHeaders = new HttpHeaders();
+        if (file.getContentType() != null) {
+            partHeaders.setContentType(MediaType.parseMediaType(file.getContentType()));
+        }
+        MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
+        body.add("file", new HttpEntity<>(file.getResource(), partHeaders));
+
+        HttpHeaders headers = nodeHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        URI uri = UriComponentsBuilder.fromHttpUrl(ownerUrl).path("/file").build().toUri();
+        try {
+            logger.debug("Forwarding {} of '{}' to {}", method, fileName, ownerUrl);
+            return restTemplate.exchange(uri, method, new HttpEntity<>(body, headers), FileStorageResponse.class).getBody();
+        } catch (HttpStatusCodeException e) {
+            if (e.getStatusCode() == HttpStatus.CONFLICT) {
+                throw new FileAlreadyExists("File " + fileName + " already exists");
+            }
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
+                throw new FileNotFoundException("File not found " + fileName);
+            }
+            throw new RemoteNodeException("Node " + ownerUrl + " answered " + e.getStatusCode() + " for " + fileName, e);
+        } catch (ResourceAccessException e) {
+            throw new RemoteNodeException("Node " + ownerUrl + " owning " + fileName + " is unreachable", e);
+        }
+    }
+
+    /**
+     * Sends the GET request to every other node of the assignment, in parallel, with the partitions it has to answer for.
+     */
+    public <T> CompletableFuture<List<T>> scatter(String path, Map<String, String> parameters,
+                                                  Map<Integer, List<Integer>> assignment, Class<T> responseType) {
+        List<CompletableFuture<T>> futures = new ArrayList<>();
+        List<String> nodes = storageConfigurations.getClusterNodes();
+        // the partitions the other nodes skip are recorded in the request, from the scatter threads
+        RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+        assignment.forEach((node, partitions) -> {
+            if (node == storageConfigurations.getClusterNodeIndex()) {
+                return;
+            }
+            UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(nodes.get(node)).path(path)
+                    .queryParam("partitions", partitions.toArray());
+            Map<String, String> values = new HashMap<>();
+            parameters.forEach((name, value) -> {
+                if (value != null) {
+                    // expanded as URI variables, so the values are strictly encoded ('+' of a regex included)
+                    builder.queryParam(name, "{" + name + "}");
+                    values.put(name, value);
+                }
+            });
+            URI uri = builder.encode().buildAndExpand(values).toUri();
+            futures.add(CompletableFuture.supplyAsync(() -> get(uri, responseType, requestAttributes), scatterExecutor));
+        });
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(v -> {
+                    List<T> results = new ArrayList<>(futures.size());
+                    futures.forEach(future -> results.add(future.join()));
+                    return results;
+                });
+    }
+
+    /**
+     * Scatters a file name search ("/search" or "/regex"), the results of all the other nodes are concatenated.
+     */
+    public CompletableFuture<List<String>> scatterSearch(String path, String parameter, String value, String consistency,
+                                                         Map<Integer, List<Integer>> assignment) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(parameter, value);
+        parameters.put("consistency", consistency);
+        return scatterSearch(path, parameters, assignment);
+    }
+
+    public CompletableFuture<List<String>> scatterSearch(String path, Map<String, String> parameters,
+                                                         Map<Integer, List<Integer>> assignment) {
+        return scatter(path, parameters, assignment, String[].class).thenApply(nodeResults -> {
+            List<String> results = new ArrayList<>();
+            nodeResults.forEach(found -> results.addAll(Arrays.asList(found)));
+            return results;
+        });
+    }
+
+    /**
+     * Waits for the scattered requests, a failing node fails the whole request instead of returning partial results.
+     * The partitions the other nodes skipped while warming up are added to the response headers.
+     */
+    public <T> List<T> gather(CompletableFuture<List<T>> scattered) {
+        try {
+            List<T> results = scattered.join();
+            warmUpService.reportRemoteNotReady();
+            return results;
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RemoteNodeException("Scatter-gather failed", e.getCause());
+        }
+    }
+
+    @PreDestroy
+    public void shutdownExecutor() {
+        scatterExecutor.shutdown();
+    }
+
+    private <T> T get(URI uri, Class<T> responseType, RequestAttributes requestAttributes) {
+        try {
+            ResponseEntity<T> response = restTemplate.exchange(uri, HttpMethod.GET, new HttpEntity<>(nodeHeaders()), responseType);
+            warmUpService.recordRemoteNotReady(requestAttributes, response.getHeaders().get(WarmUpService.NOT_READY_HEADER));
+            return response.getBody();
+        } catch (RestClientException e) {
+            throw new RemoteNodeException("Could not query " + uri, e);
+        }
+    }
+
+    /**
+     * Headers of a request sent to another node: this node's URL and the shared secret.
+     */
+    public HttpHeaders nodeHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(FORWARDED_HEADER, storageConfigurations.getClusterNodes().get(storageConfigurations.getClusterNodeIndex()));
+        headers.set(SECRET_HEADER, storageConfigurations.getClusterSecret());
+        return headers;
+    }
+
+    /**
+     * True while serving a request sent by another node of the cluster.
+     */
+    public boolean isForwardedRequest() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        return attributes instanceof ServletRequestAttributes
+                && isNodeRequest(((ServletRequestAttributes) attributes).getRequest());
+    }
+
+    /**
+     * Index of the node that sent the current request, -1 when a client sent it.
+     */
+    public int getForwardingNode() {
+        if (!isForwardedRequest()) {
+            return -1;
+        }
+        HttpServletRequest request = ((ServletRequestAttributes) RequestContextHolder.getRequestAttributes()).getRequest();
+        return storageConfigurations.getClusterNodes().indexOf(request.getHeader(FORWARDED_HEADER));
+    }
+
+    /**
+     * True when the request was sent by a node of the cluster: forwarded, and carrying the shared secret.
+     */
+    public boolean isNodeRequest(HttpServletRequest request) {
+        String secret = request.getHeader(SECRET_HEADER);
+        return isClustered() && request.getHeader(FORWARDED_HEADER) != null && secret != null
+                // compared in constant time
+                && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                storageConfigurations.getClusterSecret().getBytes(StandardCharsets.UTF_8));
+    }
+
+}
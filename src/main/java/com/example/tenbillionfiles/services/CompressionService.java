@@ -0,0 +1,219 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.payload.CompressionStatus;
+import com.example.tenbillionfiles.services.compression.Codec;
+import com.example.tenbillionfiles.services.compression.CompressionStats;
+import com.example.tenbillionfiles.services.compression.MeteredOutputStream;
+import com.example.tenbillionfiles.services.compression.StoredFile;
+import com.example.tenbillionfiles.services.compression.StoredHeader;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
+
+/**
+ * Transparent compression of the stored files, opt-in.
+ *
+ * Uploads of a compressible content type are written LZ4 encoded, or zstd encoded from compression-zstd-min-size
+ * bytes, behind a {@link StoredHeader}. The files smaller than compression-min-size are kept plain. Reads decode them,
+ * see {@link com.example.tenbillionfiles.services.compression.StoredFileResource}.
+ */
+@Service
+public class CompressionService {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int READ_AHEAD_SIZE = 8 * 1024;
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    private final CompressionStats[] partitionStats = new CompressionStats[PARTITIONS_NUMBER];
+
+    private List<MediaType> compressibleTypes;
+
+    @PostConstruct
+    public void initCompression() {
+        for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+            partitionStats[partition] = new CompressionStats();
+        }
+        compressibleTypes = new ArrayList<>();
+        for (String type : storageConfigurations.getCompressionContentTypes()) {
+            compressibleTypes.add(MediaType.parseMediaType(type));
+        }
+    }
+
+    /**
+     * Writes the content at the position of the channel, compressed when its type and size are worth it.
+     * Nothing is read from the content before the first write, the caller opens the channel first.
+     */
+    public StoredFile write(int partition, String contentType, InputStream in, FileChannel channel) throws IOException {
+        boolean compressible = storageConfigurations.getCompressionEnabled() && isCompressible(contentType);
+        // a content shorter than the read ahead has a known size, the read ahead only grows while the content is
+        // still shorter than the sizes choosing the codec, plus one byte telling a content of exactly these sizes
+        // from a longer one
+        int limit = compressible ? 1 + Math.max(StoredHeader.LENGTH, Math.max(storageConfigurations.getCompressionMinSize(),
+                storageConfigurations.getCompressionZstdMinSize())) : StoredHeader.LENGTH;
+        byte[] prefix = new byte[Math.min(limit, READ_AHEAD_SIZE)];
+        int length = StoredHeader.readPrefix(in, prefix);
+        while (length == prefix.length && length < limit) {
+            prefix = Arrays.copyOf(prefix, (int) Math.min(limit, 2L * prefix.length));
+            length = StoredHeader.readPrefix(in, prefix, length);
+        }
+        boolean complete = length < prefix.length;
+        InputStream content = new SequenceInputStream(new ByteArrayInputStream(prefix, 0, length), in);
+
+        Codec codec = null;
+        if (compressible && !(complete && length < storageConfigurations.getCompressionMinSize())) {
+            codec = complete && length < storageConfigurations.getCompressionZstdMinSize() ? Codec.LZ4 : Codec.ZSTD;
+        } else if (StoredHeader.decode(prefix, length) != null) {
+            // would be taken for an encoded file when read
+            codec = Codec.STORED;
+        }
+
+        OutputStream file = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        if (codec == null) {
+            long size = StreamUtils.copy(content, file);
+            file.flush();
+            partitionStats[partition].getPlainFiles().incrementAndGet();
+            return new StoredFile(size, size, null);
+        }
+        return encode(partition, codec, content, file, channel);
+    }
+
+    /**
+     * Writes the content as shipped by the primary: the stored bytes, header included, kept as they are.
+     */
+    public StoredFile writeStored(InputStream in, FileChannel channel) throws IOException {
+        byte[] prefix = new byte[StoredHeader.LENGTH];
+        int length = StoredHeader.readPrefix(in, prefix);
+        StoredHeader header = StoredHeader.decode(prefix, length);
+        OutputStream file = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        long storedSize = StreamUtils.copy(new SequenceInputStream(new ByteArrayInputStream(prefix, 0, length), in), file);
+        file.flush();
+        return header == null ? new StoredFile(storedSize, storedSize, null)
+                : new StoredFile(header.getSize(), storedSize, header.getCodec());
+    }
+
+    /**
+     * @param acceptEncoding the Accept-Encoding header of the request
+     * @return true when the client takes the encoding, "*" is not enough for the codings browsers don't know
+     */
+    public boolean accepts(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null || encoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            if (!parameters[0].trim().equalsIgnoreCase(encoding)) {
+                continue;
+            }
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public CompressionStats getStats(int partition) {
+        return partitionStats[partition];
+    }
+
+    public List<CompressionStatus> getStatus() {
+        List<CompressionStatus> status = new ArrayList<>(PARTITIONS_NUMBER);
+        for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+            CompressionStats stats = partitionStats[partition];
+            long originalBytes = stats.getOriginalBytes().get();
+            long compressedBytes = stats.getCompressedBytes().get();
+            status.add(new CompressionStatus(partition, stats.getCompressedFiles().get(), stats.getPlainFiles().get(),
+                    originalBytes, compressedBytes, compressedBytes == 0 ? 0.0 : (double) originalBytes / compressedBytes,
+                    TimeUnit.NANOSECONDS.toMillis(stats.getCompressNanos().get()), stats.getDecompressedBytes().get(),
+                    TimeUnit.NANOSECONDS.toMillis(stats.getDecompressNanos().get()), stats.getEncodedBytesServed().get()));
+        }
+        return status;
+    }
+
+    private StoredFile encode(int partition, Codec codec, InputStream content, OutputStream file, FileChannel channel) throws IOException {
+        long headerPosition = channel.position();
+        // the size is only known at the end, the header is written again then
+        file.write(new StoredHeader(codec, 0L).encode().array());
+        MeteredOutputStream stored = new MeteredOutputStream(file);
+        long size = 0L;
+        long nanos = 0L;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        OutputStream encoder = codec.encode(stored, storageConfigurations.getCompressionZstdLevel());
+        try {
+            int count;
+            // only the time in the encoder is counted, not the upload reads
+            while ((count = content.read(buffer)) >= 0) {
+                long start = System.nanoTime();
+                encoder.write(buffer, 0, count);
+                nanos += System.nanoTime() - start;
+                size += count;
+            }
+        } finally {
+            long start = System.nanoTime();
+            // flushes the file, which stays open
+            encoder.close();
+            nanos += System.nanoTime() - start;
+        }
+
+        ByteBuffer header = new StoredHeader(codec, size).encode();
+        long position = headerPosition;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+
+        long storedSize = StoredHeader.LENGTH + stored.getBytes();
+        if (codec == Codec.STORED) {
+            partitionStats[partition].getPlainFiles().incrementAndGet();
+        } else {
+            partitionStats[partition].compressed(size, storedSize, nanos - stored.getNanos());
+        }
+        return new StoredFile(size, storedSize, codec);
+    }
+
+    private boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        try {
+            MediaType type = MediaType.parseMediaType(contentType);
+            for (MediaType compressibleType : compressibleTypes) {
+                if (compressibleType.includes(type)) {
+                    return true;
+                }
+            }
+        } catch (InvalidMediaTypeException e) {
+            // sent by the client, stored as it is
+        }
+        return false;
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.payload.ContentCacheStatus;
+import com.example.tenbillionfiles.services.cache.CachedContent;
+import com.example.tenbillionfiles.services.cache.CachedResource;
+import com.example.tenbillionfiles.services.cache.ContentCache;
+import com.example.tenbillionfiles.services.cache.SlabPages;
+import com.example.tenbillionfiles.services.metadata.FileMetadata;
+import com.example.tenbillionfiles.services.partioning.PartitioningService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Serves the small, frequently read files from memory, see {@link ContentCache}.
+ *
+ * Contents are keyed by the ETag of their metadata and read from the disk under the read lock of the name, so
+ * they always match the metadata sent with them. The write path invalidates a name while it holds its write lock.
+ */
+@Service
+public class ContentCacheService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentCacheService.class);
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private MetadataService metadataService;
+
+    @Autowired
+    private PartitioningService partitioningService;
+
+    private ContentCache cache;
+
+    @PostConstruct
+    public void initCache() {
+        if (!storageConfigurations.getContentCacheEnabled()) {
+            return;
+        }
+        SlabPages pages = new SlabPages(storageConfigurations.getContentCacheMaxBytes(),
+                storageConfigurations.getContentCachePageSize(), storageConfigurations.getContentCacheSlabSize());
+        cache = new ContentCache(pages, storageConfigurations.getContentCacheWindowRatio(),
+                storageConfigurations.getContentCacheMaxFileSize());
+        logger.info("Content cache of {} bytes for files up to {} bytes", cache.getMaxBytes(),
+                storageConfigurations.getContentCacheMaxFileSize());
+    }
+
+    /**
+     * @return the cached content of the file, or the disk resource when it isn't cacheable or can't be read now
+     */
+    public Resource getResource(FileMetadata metadata, Resource diskResource) {
+        if (cache == null || metadata.getSize() > storageConfigurations.getContentCacheMaxFileSize()) {
+            return diskResource;
+        }
+        String fileName = metadata.getFileName();
+        CachedContent content = cache.get(fileName, metadata.getETag());
+        if (content != null) {
+            return new CachedResource(cache, content, diskResource, true);
+        }
+        content = load(metadata, diskResource);
+        return content != null ? new CachedResource(cache, content, diskResource, false) : diskResource;
+    }
+
+    /**
+     * Must be called while holding the write lock of the name.
+     */
+    public void invalidate(String fileName) {
+        if (cache != null) {
+            cache.invalidate(fileName);
+        }
+    }
+
+    public ContentCacheStatus getStatus() {
+        if (cache == null) {
+            return new ContentCacheStatus(false, 0, 0L, 0L, 0L, 0L, 0L, 0.0, 0L, 0L, 0L, 0L);
+        }
+        long hits = cache.getHits().get();
+        long misses = cache.getMisses().get();
+        return new ContentCacheStatus(true, cache.getEntryCount(), cache.getUsedBytes(), cache.getAllocatedBytes(),
+                cache.getMaxBytes(), hits, misses, hits + misses == 0 ? 0.0 : (double) hits / (hits + misses),
+                cache.getEvictions().get(), cache.getRejections().get(), cache.getInvalidations().get(),
+                cache.getBytesSaved().get());
+    }
+
+    private CachedContent load(FileMetadata metadata, Resource diskResource) {
+        String fileName = metadata.getFileName();
+        Lock nameLock = partitioningService.getNameLock(fileName).readLock();
+        try {
+            nameLock.lock();
+            FileMetadata current = metadataService.getMetadata(fileName);
+            if (current == null || !current.getETag().equals(metadata.getETag())) {
+                // written meanwhile, the disk resource of the caller refuses to stream the new content
+                return null;
+            }
+            byte[] content = new byte[(int) metadata.getSize()];
+            int length = 0;
+            // the read slot of the device is held while reading, like any download
+            try (InputStream in = diskResource.getInputStream()) {
+                int count;
+                while (length < content.length && (count = in.read(content, length, content.length - length)) > 0) {
+                    length += count;
+                }
+                if (length < content.length || in.read() >= 0) {
+                    logger.warn("Size of {} differs from its metadata, not cached", fileName);
+                    return null;
+                }
+            }
+            return cache.put(fileName, metadata.getETag(), content, length);
+        } catch (IOException e) {
+            logger.debug("Could not cache {}", fileName, e);
+            return null;
+        } finally {
+            nameLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.exception.FileStorageException;
+import com.example.tenbillionfiles.payload.DeviceStatus;
+import com.example.tenbillionfiles.services.devices.DeviceIoScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
+
+/**
+ * Places the partitions on the configured devices and owns the I/O scheduler of each device.
+ *
+ * Partitions are dealt out in order to the device with the fewest partitions per unit of weight, so the placement
+ * only depends on the device list: changing that list moves partitions and needs the data to be moved by hand.
+ */
+@Service
+public class DeviceService {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeviceService.class);
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private FileStorageService fileStorageService;
+
+    private List<DeviceIoScheduler> schedulers;
+
+    private DeviceIoScheduler[] partitionSchedulers;
+
+    @PostConstruct
+    public void initDevices() {
+        List<StorageConfigurations.Device> devices = storageConfigurations.getDevices();
+        if (devices.isEmpty()) {
+            StorageConfigurations.Device device = new StorageConfigurations.Device();
+            device.setPath(storageConfigurations.getStorageDrive());
+            devices = Collections.singletonList(device);
+        }
+
+        List<List<Integer>> placement = new ArrayList<>(devices.size());
+        for (StorageConfigurations.Device device : devices) {
+            if (device.getWeight() == null || device.getWeight() <= 0) {
+                throw new IllegalArgumentException("Weight of device " + device.getPath() + " must be positive.");
+            }
+            placement.add(new ArrayList<>());
+        }
+        for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+            int target = 0;
+            for (int device = 1; device < devices.size(); device++) {
+                // compare placement[device]/weight[device] < placement[target]/weight[target] without division
+                if ((long) placement.get(device).size() * devices.get(target).getWeight()
+                        < (long) placement.get(target).size() * devices.get(device).getWeight()) {
+                    target = device;
+                }
+            }
+            placement.get(target).add(partition);
+        }
+
+        schedulers = new ArrayList<>(devices.size());
+        partitionSchedulers = new DeviceIoScheduler[PARTITIONS_NUMBER];
+        for (int i = 0; i < devices.size(); i++) {
+            StorageConfigurations.Device device = devices.get(i);
+            int maxConcurrentIo = device.getMaxConcurrentIo() != null
+                    ? device.getMaxConcurrentIo() : storageConfigurations.getDeviceMaxConcurrentIo();
+            int maxConcurrentWrites = device.getMaxConcurrentWrites() != null
+                    ? device.getMaxConcurrentWrites() : storageConfigurations.getDeviceMaxConcurrentWrites();
+            DeviceIoScheduler scheduler = new DeviceIoScheduler(device.getPath(),
+                    Collections.unmodifiableList(placement.get(i)), maxConcurrentIo, maxConcurrentWrites,
+                    storageConfigurations.getDeviceMaxReadsPerWrite(), storageConfigurations.getDeviceWriteMaxWaitMillis());
+            schedulers.add(scheduler);
+            for (int partition : placement.get(i)) {
+                partitionSchedulers[partition] = scheduler;
+            }
+            logger.info("Device {} holds partitions {}", device.getPath(), placement.get(i));
+        }
+    }
+
+    /**
+     * Path prefix of the partition, the partition number is appended to it.
+     */
+    public String getDevicePath(int partition) {
+        return partitionSchedulers[partition].getPath();
+    }
+
+    public DeviceIoScheduler getScheduler(int partition) {
+        return partitionSchedulers[partition];
+    }
+
+    public List<DeviceStatus> getStatus() {
+        List<DeviceStatus> statuses = new ArrayList<>(schedulers.size());
+        for (DeviceIoScheduler scheduler : schedulers) {
+            DeviceStatus status = scheduler.getStatus();
+            if (!scheduler.getPartitions().isEmpty()) {
+                try {
+                    FileStore store = Files.getFileStore(fileStorageService.getStorageLocation(scheduler.getPartitions().get(0)));
+                    status.setTotalSpace(store.getTotalSpace());
+                    status.setUsableSpace(store.getUsableSpace());
+                } catch (IOException e) {
+                    throw new FileStorageException("Could not read the space of device " + scheduler.getPath(), e);
+                }
+            }
+            statuses.add(status);
+        }
+        return statuses;
+    }
+
+}
@@ -4,33 +4,67 @@ import com.example.tenbillionfiles.config.StorageConfigurations;
 import com.example.tenbillionfiles.exception.FileAlreadyExists;
 import com.example.tenbillionfiles.exception.FileNotFoundException;
 import com.example.tenbillionfiles.exception.FileStorageException;
+import com.example.tenbillionfiles.services.admission.Admission;
+import com.example.tenbillionfiles.services.compression.StoredFile;
+import com.example.tenbillionfiles.services.compression.StoredFileResource;
+import com.example.tenbillionfiles.services.devices.DeviceIoScheduler;
+import com.example.tenbillionfiles.services.devices.IoClass;
+import com.example.tenbillionfiles.services.devices.ThrottledUploadStream;
+import com.example.tenbillionfiles.services.metadata.ContentTypeAttribute;
+import com.example.tenbillionfiles.services.metadata.FileMetadata;
+import com.example.tenbillionfiles.services.partioning.DirectoryLayout;
 import com.example.tenbillionfiles.services.partioning.PartitioningService;
-import org.apache.lucene.index.IndexWriterConfig;
+import com.example.tenbillionfiles.services.regex.RegexQuery;
+import com.example.tenbillionfiles.services.wal.WalOperation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import javax.annotation.PostConstruct;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
 
 @Service
 public class FileStorageService {
 
     private static final Logger logger = LoggerFactory.getLogger(FileStorageService.class);
 
+    // uploads are written next to their target under this suffix, then renamed over it
+    private static final String UPLOAD_SUFFIX = ".~upload~";
+
+    private static final Set<StandardOpenOption> UPLOAD_OPTIONS =
+            EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
     @Autowired
     private StorageConfigurations storageConfigurations;
 
@@ -40,25 +74,74 @@ public class FileStorageService {
     @Autowired
     private RegexIndexService regexIndexService;
 
+    @Autowired
+    private ContentCacheService contentCacheService;
+
+    @Autowired
+    private CompressionService compressionService;
+
     @Autowired
     private LuceneIndexService luceneIndexService;
 
     @Autowired
-    private CounterService counterService;
+    private StatsService statsService;
+
+    @Autowired
+    private WriteAheadLogService writeAheadLogService;
+
+    @Autowired
+    private IndexingService indexingService;
+
+    @Autowired
+    private MetadataService metadataService;
+
+    @Autowired
+    private LayoutMigrationService layoutMigrationService;
+
+    @Autowired
+    private DeviceService deviceService;
 
-    public void initStorage() {
+    @Autowired
+    private ClusterService clusterService;
+
+    @Autowired
+    private ReplicationService replicationService;
+
+    @Autowired
+    private AdmissionService admissionService;
+
+    @Autowired
+    private WarmUpService warmUpService;
+
+    @Autowired
+    private ChangeFeedService changeFeedService;
+
+    private DirectoryLayout directoryLayout;
+
+    @PostConstruct
+    public void initDirectoryLayout() {
+        directoryLayout = new DirectoryLayout(storageConfigurations.getLayoutLevels(), storageConfigurations.getLayoutFanout());
+    }
+
+    public void initStorage(int partition) {
         try {
-            for (int partition=0; partition<StorageConfigurations.PARTITIONS_NUMBER; partition++) {
-                Files.createDirectories(getStorageLocation(partition));
-            }
+            Files.createDirectories(getStorageLocation(partition));
         } catch (IOException e) {
-            throw new FileStorageException("Could not create the directory where the uploaded files will be stored.", e);
+            throw new FileStorageException("Could not create the directory where the uploaded files of partition "
+                    + partition + " will be stored.", e);
         }
     }
 
     public String addFile(MultipartFile file) {
+        return addFile(file.getOriginalFilename(), file.getContentType(), file).getFileName();
+    }
+
+    /**
+     * Stores a new file, reading its content only once the name is locked and known to be free.
+     */
+    public FileMetadata addFile(String originalFileName, String contentType, InputStreamSource content) {
         // Normalize file name
-        String fileName = StringUtils.cleanPath(file.getOriginalFilename());
+        String fileName = StringUtils.cleanPath(originalFileName);
 
         try {
             // Check if the file's name contains invalid characters
@@ -67,37 +150,53 @@ public class FileStorageService {
             }
 
             int partition = partitioningService.getPartition(fileName);
-            Path targetLocation = getStorageLocation(partition).resolve(fileName);
-
-            if (Files.exists(targetLocation)) {
-                throw new FileAlreadyExists("File " + fileName +  " already exists");
-            }
-
-            ReentrantLock partitionLock = partitioningService.getPartitionLock(partition);
-            ReentrantLock counterLock = counterService.getCounterLock();
+            replicationService.checkPrimary(partition);
+            warmUpService.checkWritable(partition);
+            Path targetLocation = getFileLocation(fileName);
+
+            FileMetadata stored;
+            long sequence = -1;
+            boolean queued = false;
+            boolean written = false;
+            Lock nameLock = partitioningService.getNameLock(fileName).writeLock();
             try {
-                partitionLock.lock();
-                counterLock.lock();
+                nameLock.lock();
+                // checked under the lock, so two concurrent creates of the same name can't both succeed
+                if (metadataService.exists(fileName)) {
+                    throw new FileAlreadyExists("File " + fileName +  " already exists");
+                }
+
+                // log the intent first, a crash in the middle of the steps below is repaired by WAL replay
+                sequence = writeAheadLogService.append(partition, WalOperation.ADD, fileName);
                 // Copy file to the target location (Replacing existing file with the same name)
-                Files.copy(file.getInputStream(), targetLocation, StandardCopyOption.REPLACE_EXISTING);
-                regexIndexService.indexDoc(fileName);
-                luceneIndexService.indexDoc(fileName, IndexWriterConfig.OpenMode.CREATE);
-
-                counterService.incrementFileCounter();
+                StoredFile storedFile = copyToLocation(content, contentType, targetLocation, partition, false);
+                written = true;
+                stored = metadataService.fileWritten(fileName, storedFile);
+                // indexes are updated in background, the WAL record is completed by the indexer
+                // recorded before the indexer can complete the WAL record
+                changeFeedService.recordChange(partition, WalOperation.ADD, fileName);
+                indexingService.enqueue(partition, sequence, WalOperation.ADD, fileName);
+                queued = true;
+                replicationService.recordWrite(partition, WalOperation.ADD, fileName);
+
+                statsService.fileWritten(partition, null, stored);
             } finally {
-                partitionLock.unlock();
-                counterLock.unlock();
+                endWrite(nameLock, partition, sequence, WalOperation.ADD, fileName, written, queued);
             }
 
-            return fileName;
+            return stored;
         } catch (IOException ex) {
             throw new FileStorageException("Could not store file " + fileName + ". Please try again!", ex);
         }
     }
 
     public String modifyFile(MultipartFile file) {
+        return modifyFile(file.getOriginalFilename(), file.getContentType(), file).getFileName();
+    }
+
+    public FileMetadata modifyFile(String originalFileName, String contentType, InputStreamSource content) {
         // Normalize file name
-        String fileName = StringUtils.cleanPath(file.getOriginalFilename());
+        String fileName = StringUtils.cleanPath(originalFileName);
 
         try {
             // Check if the file's name contains invalid characters
@@ -106,44 +205,76 @@ public class FileStorageService {
             }
 
             int partition = partitioningService.getPartition(fileName);
-            // Copy file to the target location (Replacing existing file with the same name)
-            Path targetLocation = getStorageLocation(partition).resolve(fileName);
-
-            if (Files.notExists(targetLocation)) {
-                throw new FileNotFoundException("File not found " + fileName);
-            }
-
-            ReentrantLock partitionLock = partitioningService.getPartitionLock(partition);
+            replicationService.checkPrimary(partition);
+            warmUpService.checkWritable(partition);
+
+            FileMetadata stored;
+            long sequence = -1;
+            boolean queued = false;
+            boolean written = false;
+            Lock nameLock = partitioningService.getNameLock(fileName).writeLock();
             try {
-                partitionLock.lock();
+                nameLock.lock();
+                FileMetadata previous = metadataService.getMetadata(fileName);
+                if (previous == null) {
+                    throw new FileNotFoundException("File not found " + fileName);
+                }
+
+                // the file may still be in a flat partition waiting for layout migration
+                Path targetLocation = findFileLocation(fileName);
+                sequence = writeAheadLogService.append(partition, WalOperation.MODIFY, fileName);
                 // Copy file to the target location (Replacing existing file with the same name)
-                Files.copy(file.getInputStream(), targetLocation, StandardCopyOption.REPLACE_EXISTING);
-                regexIndexService.indexDoc(fileName);
-                luceneIndexService.indexDoc(fileName, IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+                StoredFile storedFile = copyToLocation(content, contentType, targetLocation, partition, false);
+                written = true;
+                contentCacheService.invalidate(fileName);
+                stored = metadataService.fileWritten(fileName, storedFile);
+                changeFeedService.recordChange(partition, WalOperation.MODIFY, fileName);
+                indexingService.enqueue(partition, sequence, WalOperation.MODIFY, fileName);
+                queued = true;
+                replicationService.recordWrite(partition, WalOperation.MODIFY, fileName);
+                statsService.fileWritten(partition, previous, stored);
             } finally {
-                partitionLock.unlock();
+                endWrite(nameLock, partition, sequence, WalOperation.MODIFY, fileName, written, queued);
             }
 
-            return fileName;
+            return stored;
         } catch (IOException ex) {
             throw new FileStorageException("Could not store file " + fileName + ". Please try again!", ex);
         }
     }
 
     public Resource loadFileAsResource(String fileName) {
+        return loadFileAsResource(getFileMetadata(fileName), false);
+    }
+
+    /**
+     * @param metadata the metadata the response is described with, the resource fails to stream another content
+     * @param encoded true to stream the stored bytes of a compressed file as they are, for the clients decoding them
+     */
+    public Resource loadFileAsResource(FileMetadata metadata, boolean encoded) {
+        // existence comes from the metadata cache, the file itself is only opened when streamed (or cached)
+        String fileName = metadata.getFileName();
         try {
-            Path filePath = getStorageLocation(partitioningService.getPartition(fileName)).resolve(fileName);;
-            Resource resource = new UrlResource(filePath.toUri());
-            if(resource.exists()) {
-                return resource;
-            } else {
-                throw new FileNotFoundException("File not found " + fileName);
-            }
+            Path filePath = findFileLocation(fileName);
+            int partition = partitioningService.getPartition(fileName);
+            // the read slot of the device is taken when the content is streamed
+            Resource diskResource = new StoredFileResource(filePath, deviceService.getScheduler(partition), metadata,
+                    encoded, compressionService.getStats(partition));
+            // the cache holds decoded contents
+            return encoded ? diskResource : contentCacheService.getResource(metadata, diskResource);
         } catch (MalformedURLException ex) {
             throw new FileNotFoundException("File not found " + fileName, ex);
         }
     }
 
+    public FileMetadata getFileMetadata(String fileName) {
+        FileMetadata metadata = metadataService.getMetadata(fileName);
+        if (metadata == null) {
+            throw new FileNotFoundException("File not found " + fileName);
+        }
+        return metadata;
+    }
+
     public void deleteFile(String fileName) {
         try {
             // Check if the file's name contains invalid characters
@@ -152,26 +283,34 @@ public class FileStorageService {
             }
 
             int partition = partitioningService.getPartition(fileName);
-            Path targetLocation = getStorageLocation(partition).resolve(fileName);
-
-            if (Files.notExists(targetLocation)) {
-                throw new FileNotFoundException("File not found " + fileName);
-            }
-
-            ReentrantLock partitionLock = partitioningService.getPartitionLock(partition);
-            ReentrantLock counterLock = counterService.getCounterLock();
+            replicationService.checkPrimary(partition);
+            warmUpService.checkWritable(partition);
 
+            long sequence = -1;
+            boolean queued = false;
+            boolean written = false;
+            Lock nameLock = partitioningService.getNameLock(fileName).writeLock();
             try {
-                partitionLock.lock();
-                counterLock.lock();
+                nameLock.lock();
+                FileMetadata previous = metadataService.getMetadata(fileName);
+                if (previous == null) {
+                    throw new FileNotFoundException("File not found " + fileName);
+                }
+
+                Path targetLocation = findFileLocation(fileName);
+                sequence = writeAheadLogService.append(partition, WalOperation.DELETE, fileName);
                 // Delete the file
-                Files.delete(targetLocation);
-                regexIndexService.removeDocFromIndex(fileName);
-                luceneIndexService.removeDocFromIndex(fileName);
-                counterService.decrementFileCounter();
+                deleteFromLocation(targetLocation, partition);
+                written = true;
+                contentCacheService.invalidate(fileName);
+                metadataService.fileDeleted(fileName);
+                changeFeedService.recordChange(partition, WalOperation.DELETE, fileName);
+                indexingService.enqueue(partition, sequence, WalOperation.DELETE, fileName);
+                queued = true;
+                replicationService.recordWrite(partition, WalOperation.DELETE, fileName);
+                statsService.fileDeleted(partition, previous);
             } finally {
-                partitionLock.unlock();
-                counterLock.unlock();
+                endWrite(nameLock, partition, sequence, WalOperation.DELETE, fileName, written, queued);
             }
 
         } catch (IOException ex) {
@@ -179,34 +318,314 @@ public class FileStorageService {
         }
     }
 
-    public List<String> luceneSearch(String query) {
+    /**
+     * Applies a change shipped by the primary: creates or replaces the file, whether it exists here or not.
+     */
+    public FileMetadata replicateFile(String fileName, String contentType, InputStreamSource content) {
+        if (fileName.contains("..")) {
+            throw new FileStorageException("Sorry! Filename contains invalid path sequence " + fileName);
+        }
+        int partition = partitioningService.getPartition(fileName);
+        replicationService.checkShippedByPrimary(partition);
+        warmUpService.checkWritable(partition);
+
+        FileMetadata stored;
+        long sequence = -1;
+        WalOperation operation = null;
+        boolean queued = false;
+        boolean written = false;
+        Lock nameLock = partitioningService.getNameLock(fileName).writeLock();
+        try {
+            nameLock.lock();
+            FileMetadata previous = metadataService.getMetadata(fileName);
+            boolean exists = previous != null;
+            operation = exists ? WalOperation.MODIFY : WalOperation.ADD;
+            Path targetLocation = exists ? findFileLocation(fileName) : getFileLocation(fileName);
+            sequence = writeAheadLogService.append(partition, operation, fileName);
+            // the primary ships the stored bytes, compressed or not
+            StoredFile storedFile = copyToLocation(content, contentType, targetLocation, partition, true);
+            written = true;
+            contentCacheService.invalidate(fileName);
+            stored = metadataService.fileWritten(fileName, storedFile);
+            changeFeedService.recordChange(partition, operation, fileName);
+            indexingService.enqueue(partition, sequence, operation, fileName);
+            queued = true;
+            statsService.fileWritten(partition, previous, stored);
+        } catch (IOException ex) {
+            throw new FileStorageException("Could not replicate file " + fileName, ex);
+        } finally {
+            endWrite(nameLock, partition, sequence, operation, fileName, written, queued);
+        }
+        return stored;
+    }
+
+    /**
+     * Applies a delete shipped by the primary, a file already missing here is fine.
+     */
+    public void deleteReplicatedFile(String fileName) {
+        if (fileName.contains("..")) {
+            throw new FileStorageException("Sorry! Filename contains invalid path sequence " + fileName);
+        }
+        int partition = partitioningService.getPartition(fileName);
+        replicationService.checkShippedByPrimary(partition);
+        warmUpService.checkWritable(partition);
+
+        long sequence = -1;
+        boolean queued = false;
+        boolean written = false;
+        Lock nameLock = partitioningService.getNameLock(fileName).writeLock();
+        try {
+            nameLock.lock();
+            FileMetadata previous = metadataService.getMetadata(fileName);
+            if (previous == null) {
+                return;
+            }
+            Path targetLocation = findFileLocation(fileName);
+            sequence = writeAheadLogService.append(partition, WalOperation.DELETE, fileName);
+            deleteFromLocation(targetLocation, partition);
+            written = true;
+            contentCacheService.invalidate(fileName);
+            metadataService.fileDeleted(fileName);
+            changeFeedService.recordChange(partition, WalOperation.DELETE, fileName);
+            indexingService.enqueue(partition, sequence, WalOperation.DELETE, fileName);
+            queued = true;
+            statsService.fileDeleted(partition, previous);
+        } catch (IOException ex) {
+            throw new FileStorageException("Could not delete replicated file " + fileName, ex);
+        } finally {
+            endWrite(nameLock, partition, sequence, WalOperation.DELETE, fileName, written, queued);
+        }
+    }
+
+    /**
+     * Releases the name lock of a logged write. A write failing before the disk changed completes its WAL record, one
+     * failing after but before its index update was queued hands the update to the indexer, which completes the
+     * record once applied.
+     */
+    private void endWrite(Lock nameLock, int partition, long sequence, WalOperation operation, String fileName,
+                          boolean written, boolean queued) {
         try {
-            return luceneIndexService.multiThreadSearch(query);
+            if (sequence < 0 || queued) {
+                return;
+            }
+            if (written) {
+                indexingService.repair(partition, sequence, operation, fileName);
+            } else {
+                writeAheadLogService.complete(partition, sequence);
+            }
+        } finally {
+            nameLock.unlock();
+        }
+    }
+
+    /**
+     * @param partitions partitions to search, all of them when null (only set by the other cluster nodes)
+     */
+    public List<String> luceneSearch(String query, String consistency, List<Integer> partitions) {
+        // admitted before anything is scattered
+        try (Admission admission = admissionService.admit(admissionService.estimateLucene(query, partitions))) {
+            Map<Integer, List<Integer>> assignment = clusterService.assignPartitions(partitions);
+            // the other nodes search their partitions meanwhile
+            CompletableFuture<List<String>> remote = clusterService.scatterSearch("/search", "query", query, consistency, assignment);
+            indexingService.awaitConsistency(consistency);
+            // partitions still warming up are skipped and reported
+            List<Integer> localPartitions = warmUpService.readyPartitions(clusterService.getLocalPartitions(assignment));
+            return withRemoteResults(luceneIndexService.multiThreadSearch(query, localPartitions), remote);
         } catch (CloneNotSupportedException e) {
             logger.error("Exception calling lucene index service.",  e);
         }
         return null;
     }
 
-    public List<String> regexSearch(String regex) {
-        try {
-            return regexIndexService.multiThreadSearch(regex);
+    public List<String> regexSearch(String regex, String engine, String consistency, List<Integer> partitions) {
+        RegexQuery query = regexIndexService.plan(regex, engine);
+        try (Admission admission = admissionService.admit(admissionService.estimateRegex(query, partitions))) {
+            Map<Integer, List<Integer>> assignment = clusterService.assignPartitions(partitions);
+            CompletableFuture<List<String>> remote = clusterService.scatterSearch("/regex", regexParameters(regex, engine, consistency), assignment);
+            indexingService.awaitConsistency(consistency);
+            List<Integer> localPartitions = warmUpService.readyPartitions(clusterService.getLocalPartitions(assignment));
+            return withRemoteResults(regexIndexService.multiThreadSearch(query, localPartitions), remote);
         } catch (CloneNotSupportedException e) {
             logger.error("Exception calling regex index service.",  e);
         }
         return null;
     }
 
+    /**
+     * Parameters of a regex search scattered to the other nodes, which plan it again with the same engine.
+     */
+    public static Map<String, String> regexParameters(String regex, String engine, String consistency) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("regex", regex);
+        parameters.put("engine", engine);
+        parameters.put("consistency", consistency);
+        return parameters;
+    }
+
+    private List<String> withRemoteResults(List<String> results, CompletableFuture<List<String>> remote) {
+        List<String> all = new ArrayList<>(results);
+        all.addAll(clusterService.gather(remote));
+        return all;
+    }
+
     public Path getStorageLocation(int partition) {
-        return Paths.get(storageConfigurations.getStorageDrive() + partition + File.separator
+        return Paths.get(deviceService.getDevicePath(partition) + partition + File.separator
                                 + storageConfigurations.getStorageDir()).toAbsolutePath().normalize();
     }
 
+    public DirectoryLayout getDirectoryLayout() {
+        return directoryLayout;
+    }
+
+    /**
+     * Location of the file in the configured directory layout.
+     */
+    public Path getFileLocation(String fileName) {
+        return directoryLayout.resolve(getStorageLocation(partitioningService.getPartition(fileName)), fileName);
+    }
+
+    /**
+     * Current location of an existing file, which is the flat one for files not moved yet by the layout migration.
+     */
+    public Path findFileLocation(String fileName) {
+        Path location = getFileLocation(fileName);
+        int partition = partitioningService.getPartition(fileName);
+        if (layoutMigrationService.isPending(partition) && Files.notExists(location)) {
+            Path flatLocation = getStorageLocation(partition).resolve(fileName);
+            if (Files.exists(flatLocation)) {
+                return flatLocation;
+            }
+        }
+        return location;
+    }
+
+    /**
+     * Visits every stored file of the partition, whatever directory level it is on.
+     */
+    public void walkPartitionFiles(int partition, final BiConsumer<Path, BasicFileAttributes> visitor) throws IOException {
+        Path partitionPath = getStorageLocation(partition);
+        if (!Files.isDirectory(partitionPath)) {
+            return;
+        }
+        Files.walkFileTree(partitionPath, EnumSet.noneOf(FileVisitOption.class), directoryLayout.getLevels() + 1,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        // skips uploads in progress, or left over by a crash
+                        if (attributes.isRegularFile() && !file.getFileName().toString().endsWith(UPLOAD_SUFFIX)) {
+                            visitor.accept(file, attributes);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                        if (e instanceof NoSuchFileException) {
+                            // deleted while walking
+                            return FileVisitResult.CONTINUE;
+                        }
+                        throw e;
+                    }
+                });
+    }
+
+    public List<String> listFileNames(int partition) throws IOException {
+        List<String> fileNames = new ArrayList<>();
+        walkPartitionFiles(partition, (file, attributes) -> fileNames.add(file.getFileName().toString()));
+        return fileNames;
+    }
+
+    /**
+     * Writes the content to a temporary sibling of the target, then renames it over the target.
+     * A broken upload leaves the previous content (or no file) in place, never a truncated one.
+     *
+     * @param stored true when the content is already in its stored form (shipped by the primary)
+     */
+    private StoredFile copyToLocation(InputStreamSource content, String contentType, Path targetLocation, int partition,
+                                      boolean stored) throws IOException {
+        DeviceIoScheduler scheduler = acquireDevice(partition, IoClass.WRITE);
+        // the write slot is only held while writing, not while waiting for the upload
+        ThrottledUploadStream in;
+        try {
+            in = new ThrottledUploadStream(content.getInputStream(), scheduler);
+        } catch (IOException | RuntimeException e) {
+            scheduler.release(IoClass.WRITE, 0L);
+            throw e;
+        }
+        Path uploadLocation = targetLocation.resolveSibling(targetLocation.getFileName() + UPLOAD_SUFFIX);
+        long storedSize = 0L;
+        try {
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(uploadLocation, UPLOAD_OPTIONS);
+            } catch (NoSuchFileException e) {
+                // sub-directories of the nested layout are created on first use. The target is opened
+                // before anything is read, so the stream can be copied again.
+                Files.createDirectories(uploadLocation.getParent());
+                channel = FileChannel.open(uploadLocation, UPLOAD_OPTIONS);
+            }
+            StoredFile storedFile;
+            try {
+                storedFile = stored ? compressionService.writeStored(in, channel)
+                        : compressionService.write(partition, contentType, in, channel);
+            } finally {
+                channel.close();
+            }
+            storedSize = storedFile.getStoredSize();
+            // the attribute and the modification time move along with the file
+            storedFile.setContentType(ContentTypeAttribute.write(uploadLocation, contentType));
+            Files.move(uploadLocation, targetLocation, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            storedFile.setLastModified(Files.getLastModifiedTime(targetLocation).toMillis());
+            return storedFile;
+        } catch (IOException e) {
+            Files.deleteIfExists(uploadLocation);
+            throw e;
+        } finally {
+            in.release(storedSize);
+            in.close();
+        }
+    }
+
+    private void deleteFromLocation(Path targetLocation, int partition) throws IOException {
+        DeviceIoScheduler scheduler = acquireDevice(partition, IoClass.WRITE);
+        try {
+            Files.delete(targetLocation);
+        } finally {
+            scheduler.release(IoClass.WRITE, 0L);
+        }
+    }
+
+    private DeviceIoScheduler acquireDevice(int partition, IoClass ioClass) throws IOException {
+        DeviceIoScheduler scheduler = deviceService.getScheduler(partition);
+        try {
+            scheduler.acquire(ioClass);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an I/O slot on " + scheduler.getPath());
+        }
+        return scheduler;
+    }
+
     public Path getIndexLocation(int partition) {
-        return Paths.get(storageConfigurations.getStorageDrive() + partition + File.separator
+        return Paths.get(deviceService.getDevicePath(partition) + partition + File.separator
                 + storageConfigurations.getIndexDir()).toAbsolutePath().normalize();
     }
 
+    public Path getRegexIndexLocation(int partition) {
+        return Paths.get(deviceService.getDevicePath(partition) + partition + File.separator
+                + storageConfigurations.getRegexIndexDir()).toAbsolutePath().normalize();
+    }
+
+    public Path getWalLocation(int partition) {
+        return Paths.get(deviceService.getDevicePath(partition) + partition + File.separator
+                + storageConfigurations.getWalDir()).toAbsolutePath().normalize();
+    }
+
+    public Path getChangesLocation(int partition) {
+        return Paths.get(deviceService.getDevicePath(partition) + partition + File.separator
+                + storageConfigurations.getChangesDir()).toAbsolutePath().normalize();
+    }
+
     public String getDownloadUri(String fileName) {
         String fileDownloadUri = ServletUriComponentsBuilder.fromCurrentContextPath()
                 .path("/file/")
@@ -216,13 +635,16 @@ public class FileStorageService {
         return fileDownloadUri;
     }
 
-    public long count() {
-        ReentrantLock counterLock = counterService.getCounterLock();
-        try {
-            counterLock.lock();
-            return counterService.getFileCounter();
-        } finally {
-            counterLock.unlock();
+    public long count(List<Integer> partitions) {
+        Map<Integer, List<Integer>> assignment = clusterService.assignPartitions(partitions);
+        List<Integer> localPartitions = clusterService.getLocalPartitions(assignment);
+        // a count missing the files of a warming up partition would look exact
+        warmUpService.checkReady(localPartitions);
+        CompletableFuture<List<Long>> remote = clusterService.scatter("/count", Collections.emptyMap(), assignment, Long.class);
+        long count = statsService.getFileCount(localPartitions);
+        for (Long remoteCount : clusterService.gather(remote)) {
+            count += remoteCount;
         }
+        return count;
     }
 }
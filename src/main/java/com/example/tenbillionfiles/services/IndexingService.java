@@ -0,0 +1,157 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.exception.FileStorageException;
+import com.example.tenbillionfiles.exception.IndexNotReadyException;
+import com.example.tenbillionfiles.payload.IndexingStatus;
+import com.example.tenbillionfiles.services.indexing.IndexBatchHandler;
+import com.example.tenbillionfiles.services.indexing.IndexUpdate;
+import com.example.tenbillionfiles.services.indexing.PartitionIndexer;
+import com.example.tenbillionfiles.services.wal.WalOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
+
+/**
+ * Keeps the regex & lucene indexes up to date outside of the request path.
+ *
+ * Each partition has its own bounded queue drained by a background thread, so an upload only pays for the file
+ * copy and the WAL append. Searches are eventually consistent unless they ask to wait for the queues.
+ */
+@Service
+public class IndexingService implements IndexBatchHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexingService.class);
+
+    public static final String STRONG_CONSISTENCY = "strong";
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private RegexIndexService regexIndexService;
+
+    @Autowired
+    private LuceneIndexService luceneIndexService;
+
+    private List<PartitionIndexer> indexers;
+
+    // null until the partition is warmed up
+    private final Thread[] indexerThreads = new Thread[PARTITIONS_NUMBER];
+
+    @PostConstruct
+    public void initIndexers() {
+        indexers = new ArrayList<>(PARTITIONS_NUMBER);
+        for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+            indexers.add(new PartitionIndexer(partition, storageConfigurations.getIndexerQueueCapacity(),
+                    storageConfigurations.getIndexerBatchSize(), this));
+        }
+    }
+
+    /**
+     * Starts draining the queue of the partition, must be called once its indexes are loaded. Writes are queued
+     * meanwhile, until the queue is full.
+     */
+    public void startIndexer(int partition) {
+        PartitionIndexer indexer = indexers.get(partition);
+        Thread thread = new Thread(indexer, storageConfigurations.getIndexerThreadNamePrefix() + partition);
+        thread.setDaemon(true);
+        thread.start();
+        indexerThreads[partition] = thread;
+        logger.debug("Started background indexer of partition {}.", partition);
+    }
+
+    /**
+     * Queues the index update matching a logged write.
+     */
+    public long enqueue(int partition, long walSequence, WalOperation operation, String fileName) {
+        try {
+            return indexers.get(partition).enqueue(walSequence, operation, fileName);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileStorageException("Interrupted while queuing index update for " + fileName, e);
+        }
+    }
+
+    /**
+     * Hands the index update of a logged write that changed the disk but could not be queued to the indexer, which
+     * completes its WAL record once applied.
+     */
+    public void repair(int partition, long walSequence, WalOperation operation, String fileName) {
+        indexers.get(partition).repair(walSequence, operation, fileName);
+    }
+
+    /**
+     * Waits until every write acknowledged before this call is visible to searches.
+     */
+    public void awaitConsistency(String consistency) {
+        if (!STRONG_CONSISTENCY.equalsIgnoreCase(consistency)) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + storageConfigurations.getIndexerConsistencyTimeoutMillis();
+        try {
+            for (PartitionIndexer indexer : indexers) {
+                if (indexerThreads[indexer.getPartition()] == null) {
+                    // not warmed up, searches skip the partition
+                    continue;
+                }
+                long remaining = Math.max(0L, deadline - System.currentTimeMillis());
+                if (!indexer.awaitApplied(indexer.getEnqueuedTicket(), remaining)) {
+                    throw new IndexNotReadyException("Indexes of partition " + indexer.getPartition() + " did not catch up in time.");
+                }
+                // applied lucene updates are only seen by the searchers refreshed after them
+                luceneIndexService.refresh(indexer.getPartition());
+            }
+        } catch (IOException e) {
+            throw new FileStorageException("Could not refresh the lucene searchers.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IndexNotReadyException("Interrupted while waiting for indexes to catch up.", e);
+        }
+    }
+
+    public List<IndexingStatus> getStatus() {
+        return indexers.stream().map(PartitionIndexer::getStatus).collect(Collectors.toList());
+    }
+
+    @Override
+    public void apply(int partition, Collection<IndexUpdate> updates) throws IOException {
+        for (IndexUpdate update : updates) {
+            if (update.isDelete()) {
+                regexIndexService.removeDocFromIndex(update.getFileName());
+            } else {
+                regexIndexService.indexDoc(update.getFileName());
+            }
+        }
+        regexIndexService.flush(partition);
+        luceneIndexService.applyUpdates(partition, updates);
+    }
+
+    @Override
+    public void applied(int partition, List<IndexUpdate> batch) {
+        // the regex index is durable already, the WAL records are completed by the lucene commit
+        luceneIndexService.applied(partition, batch);
+    }
+
+    @PreDestroy
+    public void stopIndexers() throws InterruptedException {
+        indexers.forEach(PartitionIndexer::stop);
+        for (Thread thread : indexerThreads) {
+            if (thread != null) {
+                thread.join(storageConfigurations.getIndexerConsistencyTimeoutMillis());
+            }
+        }
+    }
+
+}
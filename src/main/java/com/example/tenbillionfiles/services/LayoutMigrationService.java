@@ -0,0 +1,164 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.exception.FileStorageException;
+import com.example.tenbillionfiles.payload.LayoutMigrationStatus;
+import com.example.tenbillionfiles.services.partioning.PartitioningService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
+
+/**
+ * Online conversion of flat partitions to the nested directory layout.
+ *
+ * Until a partition is migrated, lookups of {@link FileStorageService#findFileLocation(String)} fall back to the
+ * flat location. Each file is moved under the write lock of its name, so the service keeps serving requests.
+ */
+@Service
+public class LayoutMigrationService {
+
+    private static final Logger logger = LoggerFactory.getLogger(LayoutMigrationService.class);
+
+    @Autowired
+    private FileStorageService fileStorageService;
+
+    @Autowired
+    private PartitioningService partitioningService;
+
+    private final Set<Integer> pendingPartitions = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong migratedFiles = new AtomicLong();
+    private final AtomicLong failedFiles = new AtomicLong();
+
+    /**
+     * Flags the partition when it still holds files in its root directory.
+     */
+    public void detectPendingMigration(int partition) {
+        if (fileStorageService.getDirectoryLayout().isFlat()) {
+            return;
+        }
+        try {
+            if (hasFlatFiles(fileStorageService.getStorageLocation(partition))) {
+                pendingPartitions.add(partition);
+                logger.warn("Partition {} has files outside of the nested layout, POST /layout/migration to move them.", partition);
+            }
+        } catch (IOException e) {
+            throw new FileStorageException("Could not inspect layout of partition " + partition, e);
+        }
+    }
+
+    public boolean isPending(int partition) {
+        return pendingPartitions.contains(partition);
+    }
+
+    /**
+     * Starts the migration of every pending partition in background.
+     * @return false when a migration is already running
+     */
+    public boolean startMigration() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread thread = new Thread(this::migrate, "LayoutMigration");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    public LayoutMigrationStatus getStatus() {
+        List<Integer> pending = new ArrayList<>(new TreeSet<>(pendingPartitions));
+        return new LayoutMigrationStatus(running.get(), pending, migratedFiles.get(), failedFiles.get());
+    }
+
+    private void migrate() {
+        try {
+            for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+                if (pendingPartitions.contains(partition)) {
+                    migratePartition(partition);
+                }
+            }
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void migratePartition(int partition) {
+        logger.info("Start layout migration of partition {}.", partition);
+        Path partitionRoot = fileStorageService.getStorageLocation(partition);
+        long failedBefore = failedFiles.get();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(partitionRoot)) {
+            for (Path flatLocation : stream) {
+                if (Files.isRegularFile(flatLocation, LinkOption.NOFOLLOW_LINKS)) {
+                    migrateFile(flatLocation);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Could not list partition " + partition + " for layout migration.", e);
+            return;
+        }
+        if (failedFiles.get() == failedBefore) {
+            pendingPartitions.remove(partition);
+        }
+        logger.info("End layout migration of partition {}.", partition);
+    }
+
+    private void migrateFile(Path flatLocation) {
+        String fileName = flatLocation.getFileName().toString();
+        Lock nameLock = partitioningService.getNameLock(fileName).writeLock();
+        try {
+            nameLock.lock();
+            if (Files.notExists(flatLocation)) {
+                // deleted since the directory was listed
+                return;
+            }
+            Path target = fileStorageService.getFileLocation(fileName);
+            Files.createDirectories(target.getParent());
+            if (Files.exists(target)) {
+                // the nested copy was written after the flat one
+                Files.delete(flatLocation);
+            } else {
+                Files.move(flatLocation, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            migratedFiles.incrementAndGet();
+        } catch (IOException e) {
+            failedFiles.incrementAndGet();
+            logger.error("Could not migrate " + flatLocation, e);
+        } finally {
+            nameLock.unlock();
+        }
+    }
+
+    private boolean hasFlatFiles(Path partitionRoot) throws IOException {
+        if (!Files.isDirectory(partitionRoot)) {
+            return false;
+        }
+        // with the nested layout the root only holds the first level directories, so this stays cheap
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(partitionRoot)) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
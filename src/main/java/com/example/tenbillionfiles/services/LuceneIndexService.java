@@ -1,9 +1,15 @@
 package com.example.tenbillionfiles.services;
 
+import com.example.tenbillionfiles.config.StorageConfigurations;
 import com.example.tenbillionfiles.exception.FileStorageException;
+import com.example.tenbillionfiles.payload.LuceneIndexStatus;
+import com.example.tenbillionfiles.services.indexing.IndexUpdate;
+import com.example.tenbillionfiles.services.lucene.MeteredMergeScheduler;
+import com.example.tenbillionfiles.services.lucene.PartitionLuceneIndex;
 import com.example.tenbillionfiles.services.partioning.PartitioningService;
 import com.example.tenbillionfiles.services.partioning.results.SearchResults;
 import com.example.tenbillionfiles.services.partioning.tasks.LuceneTask;
+import com.example.tenbillionfiles.services.wal.WalRecord;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
@@ -14,8 +20,10 @@ import org.apache.lucene.index.*;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
@@ -24,19 +32,34 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
 
+/**
+ * Lucene index of the file names, one per partition.
+ *
+ * The writer of a partition stays open: the indexer batches are applied to it, searches see them once the searchers
+ * are refreshed (every file.lucene-refresh-interval-millis, or right away for consistency=strong) and they are
+ * committed together every file.lucene-commit-interval-millis or file.lucene-commit-max-updates. The merge policy
+ * keeps the number of segments in check, and a partition with too many left is force merged within the off-peak
+ * window.
+ */
 @Service
 public class LuceneIndexService {
 
@@ -48,6 +71,12 @@ public class LuceneIndexService {
 
     private static final int MAX_HITS = 10;
 
+    public static final String TIERED_MERGE_POLICY = "tiered";
+    public static final String LOG_BYTE_SIZE_MERGE_POLICY = "log-byte-size";
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
     @Autowired
     private FileStorageService fileStorageService;
 
@@ -60,58 +89,122 @@ public class LuceneIndexService {
     @Autowired
     private LuceneIndexService luceneIndexService;
 
-    public void initIndexes() {
+    @Autowired
+    private WriteAheadLogService writeAheadLogService;
 
-        try {
-            Date start = new Date();
-            logger.info("Start lucene-indexes initialization.");
-            for (int partition = 0; partition< PARTITIONS_NUMBER; partition++) {
-                logger.debug("Indexing partition {}", partition);
-                Path partitionPath = fileStorageService.getStorageLocation(partition);
-                logger.debug("Partition path for partition {} is: '{}'", partition, partitionPath.toAbsolutePath());
-                if (!Files.isReadable(partitionPath)) {
-                    logger.error("Document directory '" + partitionPath.toAbsolutePath()+ "' does not exist or is not readable, please check the path");
-                    System.exit(1);
-                }
-                Path indexPath = fileStorageService.getIndexLocation(partition);
-                logger.debug("Indexing to directory '" + indexPath + "'...");
-                Directory dir = FSDirectory.open(indexPath);
-                Analyzer analyzer = new StandardAnalyzer();
-                IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+    // null until the partition is warmed up
+    private final PartitionLuceneIndex[] indexes = new PartitionLuceneIndex[PARTITIONS_NUMBER];
 
-                // Create a new index in the directory, removing any
-                // previously indexed documents:
-                iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    // off-peak window of the force merges, null when there is none
+    private LocalTime forceMergeStart;
+    private LocalTime forceMergeEnd;
 
-                // Optional: for better indexing performance, if you
-                // are indexing many documents, increase the RAM
-                // buffer.  But if you do this, increase the max heap
-                // size to the JVM (eg add -Xmx512m or -Xmx1g):
-                //
-                // iwc.setRAMBufferSizeMB(256.0);
+    private Thread maintainer;
 
-                IndexWriter writer = new IndexWriter(dir, iwc);
+    /**
+     * Starts the background refresh, commit and force merge of the partitions loaded.
+     */
+    public void startMaintenance() {
+        parseForceMergeWindow(storageConfigurations.getLuceneForceMergeWindow());
+        maintainer = new Thread(this::maintenanceLoop, "LuceneIndex-Maintainer");
+        maintainer.setDaemon(true);
+        maintainer.start();
+    }
 
-                indexDocs(writer, partitionPath);
+    /**
+     * Commits the pending updates and closes the writers, once the indexers are stopped.
+     */
+    @PreDestroy
+    public void closeIndexes() throws InterruptedException {
+        if (maintainer != null) {
+            maintainer.interrupt();
+            maintainer.join();
+        }
+        for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+            PartitionLuceneIndex index = indexes[partition];
+            if (index == null) {
+                continue;
+            }
+            try {
+                commit(index);
+                index.close();
+            } catch (IOException | RuntimeException e) {
+                logger.error("Could not close lucene index of partition " + partition, e);
+            }
+            indexes[partition] = null;
+        }
+    }
 
-                writer.close();
+    /**
+     * Loads the index of a partition: the WAL tail is replayed on a checkpointed index, any other is rebuilt.
+     * An unreadable partition fails alone, it is quarantined by the warm-up.
+     */
+    public void initIndex(int partition) {
+        try {
+            Date start = new Date();
+            logger.debug("Indexing partition {}", partition);
+            Path partitionPath = fileStorageService.getStorageLocation(partition);
+            logger.debug("Partition path for partition {} is: '{}'", partition, partitionPath.toAbsolutePath());
+            if (!Files.isReadable(partitionPath)) {
+                throw new FileStorageException("Document directory '" + partitionPath.toAbsolutePath()
+                        + "' does not exist or is not readable, please check the path");
+            }
+            Path indexPath = fileStorageService.getIndexLocation(partition);
+            logger.debug("Indexing to directory '" + indexPath + "'...");
+            Directory dir = FSDirectory.open(indexPath);
+
+            MeteredMergeScheduler mergeScheduler = new MeteredMergeScheduler();
+            IndexWriter writer;
+            if (writeAheadLogService.isRecoverable(partition) && DirectoryReader.indexExists(dir)) {
+                // The persisted index is consistent up to the WAL checkpoint, only the tail is replayed
+                writer = new IndexWriter(dir, newWriterConfig(IndexWriterConfig.OpenMode.CREATE_OR_APPEND, mergeScheduler));
+                replayLog(writer, partition);
+            } else {
+                // Create a new index in the directory, removing any
+                // previously indexed documents:
+                IndexWriter creator = new IndexWriter(dir, newWriterConfig(IndexWriterConfig.OpenMode.CREATE, new MeteredMergeScheduler()));
+                indexDocs(creator, partition);
+                creator.close();
+                // updates from now on replace the documents already there
+                writer = new IndexWriter(dir, newWriterConfig(IndexWriterConfig.OpenMode.CREATE_OR_APPEND, mergeScheduler));
             }
-            logger.info("End lucene-indexes initialization.");
+            SearcherFactory searcherFactory = new SearcherFactory() {
+                @Override
+                public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+                    // leaf slices (segments) of the index are searched in parallel on the work-stealing pool
+                    return new IndexSearcher(reader, partitioningService.getSearchPool());
+                }
+            };
+            indexes[partition] = new PartitionLuceneIndex(partition, dir, writer, mergeScheduler, searcherFactory);
             Date end = new Date();
-            logger.debug(end.getTime() - start.getTime() + " total milliseconds");
+            logger.debug("Lucene index of partition {} loaded in {} milliseconds", partition, end.getTime() - start.getTime());
         } catch (IOException e) {
-            throw new FileStorageException("Could not create lucene indexes.", e);
+            throw new FileStorageException("Could not create lucene index of partition " + partition, e);
         }
     }
 
-    public void indexDocs(final IndexWriter writer, Path docDir) throws IOException {
-        if (Files.isDirectory(docDir)) {
-            Stream<Path> walk = Files.walk(docDir);
-            List<String> allFileNames = walk.filter(Files::isRegularFile)
-                        .map(x -> x.getFileName().toString()).collect(Collectors.toList());
+    public void indexDocs(final IndexWriter writer, int partition) throws IOException {
+        List<String> allFileNames = fileStorageService.listFileNames(partition);
+        for (String fileName : allFileNames) {
+            indexDoc(writer, fileName);
+        }
+    }
 
-            for (String fileName : allFileNames) {
+    /**
+     * Brings the index in line with the disk for every file touched by the WAL tail. Records are only used to
+     * know which names to look at, so replaying a record twice or out of order is harmless.
+     */
+    public void replayLog(final IndexWriter writer, int partition) throws IOException {
+        Set<String> touchedFileNames = new LinkedHashSet<>();
+        for (WalRecord record : writeAheadLogService.readTail(partition)) {
+            touchedFileNames.add(record.getFileName());
+        }
+        logger.debug("Replaying {} WAL entries on lucene index of partition {}", touchedFileNames.size(), partition);
+        for (String fileName : touchedFileNames) {
+            if (Files.isRegularFile(fileStorageService.findFileLocation(fileName))) {
                 indexDoc(writer, fileName);
+            } else {
+                writer.deleteDocuments(new Term(ID, fileName));
             }
         }
     }
@@ -132,33 +225,64 @@ public class LuceneIndexService {
             // we use updateDocument instead to replace the old one matching the exact
             // path, if present:
             logger.debug("updating " + fileName);
-            writer.updateDocument(new Term("fileName", fileName), doc);
+            writer.updateDocument(new Term(ID, fileName), doc);
         }
     }
 
-    public void indexDoc(String fileName, IndexWriterConfig.OpenMode mode) throws IOException {
-        Path indexPath = fileStorageService.getIndexLocation(partitioningService.getPartition(fileName));
-        logger.debug("Indexing to directory '" + indexPath + "'...");
-        Directory dir = FSDirectory.open(indexPath);
-        Analyzer analyzer = new StandardAnalyzer();
-        IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-        iwc.setOpenMode(mode);
-        IndexWriter writer = new IndexWriter(dir, iwc);
-        indexDoc(writer, fileName);
-        writer.close();
+    /**
+     * Applies a batch of coalesced updates to the writer of the partition, they are committed later.
+     */
+    public void applyUpdates(int partition, Collection<IndexUpdate> updates) throws IOException {
+        IndexWriter writer = getIndex(partition).getWriter();
+        for (IndexUpdate update : updates) {
+            if (update.isDelete()) {
+                writer.deleteDocuments(new Term(ID, update.getFileName()));
+            } else {
+                indexDoc(writer, update.getFileName());
+            }
+        }
+    }
+
+    /**
+     * Completes the WAL records of an applied batch once committed, right away when enough updates are pending.
+     */
+    public void applied(int partition, List<IndexUpdate> batch) {
+        PartitionLuceneIndex index = getIndex(partition);
+        index.addPending(batch.stream().map(IndexUpdate::getWalSequence).collect(Collectors.toList()));
+        if (index.getPendingCount() < storageConfigurations.getLuceneCommitMaxUpdates()) {
+            return;
+        }
+        try {
+            commit(index);
+        } catch (IOException | RuntimeException e) {
+            // retried by the maintenance, the WAL records stay incomplete meanwhile
+            logger.error("Could not commit lucene index of partition " + partition, e);
+        }
     }
 
-    public void removeDocFromIndex(String fileName) throws IOException {
-        Path indexPath = fileStorageService.getIndexLocation(partitioningService.getPartition(fileName));
-        Directory dir = FSDirectory.open(indexPath);
-        Analyzer analyzer = new StandardAnalyzer();
-        IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-        IndexWriter writer = new IndexWriter(dir, iwc);
+    /**
+     * Makes the updates applied so far visible to the searches of the partition.
+     */
+    public void refresh(int partition) throws IOException {
+        PartitionLuceneIndex index = indexes[partition];
+        if (index != null) {
+            index.refresh();
+        }
+    }
 
-        Term term = new Term(ID, fileName);
-        writer.deleteDocuments(term);
-        writer.flush();
-        writer.close();
+    public List<LuceneIndexStatus> getStatus() {
+        List<LuceneIndexStatus> status = new ArrayList<>(PARTITIONS_NUMBER);
+        for (PartitionLuceneIndex index : indexes) {
+            if (index == null) {
+                continue;
+            }
+            try {
+                status.add(index.getStatus());
+            } catch (IOException e) {
+                throw new FileStorageException("Could not read status of lucene index of partition " + index.getPartition(), e);
+            }
+        }
+        return status;
     }
 
     /**
@@ -181,31 +305,175 @@ public class LuceneIndexService {
     public List<String> multiThreadSearch(String query) throws CloneNotSupportedException {
         SearchResults searchResults = new SearchResults();
         partitioningService.runOnAllPartitions(query, new LuceneTask(this), searchResults, 60, TimeUnit.SECONDS);
+        if (searchResults.getFailedPartitions() > 0) {
+            throw new FileStorageException("Could not search the lucene index of " + searchResults.getFailedPartitions() + " partitions.");
+        }
+        return searchResults.getResults();
+    }
+
+    public List<String> multiThreadSearch(String query, List<Integer> partitions) throws CloneNotSupportedException {
+        SearchResults searchResults = new SearchResults();
+        partitioningService.runOnPartitions(partitions, query, new LuceneTask(this), searchResults, 60, TimeUnit.SECONDS);
+        if (searchResults.getFailedPartitions() > 0) {
+            throw new FileStorageException("Could not search the lucene index of " + searchResults.getFailedPartitions() + " partitions.");
+        }
         return searchResults.getResults();
     }
 
     public List<String> searchInPartition(String queryString, int partition) throws IOException, ParseException {
-        Path indexPath = fileStorageService.getIndexLocation(partition);
-        IndexReader reader = DirectoryReader.open(FSDirectory.open(indexPath));
-        IndexSearcher searcher = new IndexSearcher(reader);
-        Analyzer analyzer = new StandardAnalyzer();
-        QueryParser parser = new QueryParser(INDEXED_FIELD, analyzer);
-
-        // with performance drawback
-        parser.setAllowLeadingWildcard(true);
-        Query query = parser.parse(queryString.trim());
-
-        TopDocs searchResults = searcher.search(query, MAX_HITS);
-        ScoreDoc[] hits = searchResults.scoreDocs;
-        int start = 0;
-        int end = Math.min(hits.length, MAX_HITS);
-        List<String> resultList = new ArrayList<>(end);
-        for (int i = start; i < end; i++) {
-            Document doc = searcher.doc(hits[i].doc);
-            String fileName = doc.get(INDEXED_FIELD);
-            resultList.add(fileName);
-        }
-        return resultList;
+        PartitionLuceneIndex index = getIndex(partition);
+        IndexSearcher searcher = index.acquire();
+        try {
+            Analyzer analyzer = new StandardAnalyzer();
+            QueryParser parser = new QueryParser(INDEXED_FIELD, analyzer);
+
+            // with performance drawback
+            parser.setAllowLeadingWildcard(true);
+            Query query = parser.parse(queryString.trim());
+
+            TopDocs searchResults = searcher.search(query, MAX_HITS);
+            ScoreDoc[] hits = searchResults.scoreDocs;
+            int start = 0;
+            int end = Math.min(hits.length, MAX_HITS);
+            List<String> resultList = new ArrayList<>(end);
+            for (int i = start; i < end; i++) {
+                Document doc = searcher.doc(hits[i].doc);
+                String fileName = doc.get(INDEXED_FIELD);
+                resultList.add(fileName);
+            }
+            return resultList;
+        } finally {
+            index.release(searcher);
+        }
+    }
+
+    /**
+     * Exact number of names of the partition starting with the prefix, no document is loaded.
+     */
+    public long countPrefixInPartition(String prefix, int partition) throws IOException {
+        PartitionLuceneIndex index = getIndex(partition);
+        IndexSearcher searcher = index.acquire();
+        try {
+            return searcher.count(new PrefixQuery(new Term(ID, prefix)));
+        } finally {
+            index.release(searcher);
+        }
+    }
+
+    private PartitionLuceneIndex getIndex(int partition) {
+        PartitionLuceneIndex index = indexes[partition];
+        if (index == null) {
+            throw new FileStorageException("Lucene index of partition " + partition + " is not loaded");
+        }
+        return index;
+    }
+
+    private IndexWriterConfig newWriterConfig(IndexWriterConfig.OpenMode mode, MeteredMergeScheduler mergeScheduler) {
+        IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+        iwc.setOpenMode(mode);
+        // documents are buffered in memory up to this size before a segment is flushed, count it in the heap
+        iwc.setRAMBufferSizeMB(storageConfigurations.getLuceneRamBufferSizeMb());
+        iwc.setMergePolicy(newMergePolicy());
+        if (storageConfigurations.getLuceneMergeThreads() > 0) {
+            mergeScheduler.setMaxMergesAndThreads(Math.max(storageConfigurations.getLuceneMaxMerges(),
+                    storageConfigurations.getLuceneMergeThreads()), storageConfigurations.getLuceneMergeThreads());
+        }
+        iwc.setMergeScheduler(mergeScheduler);
+        return iwc;
+    }
+
+    private MergePolicy newMergePolicy() {
+        String mergePolicy = storageConfigurations.getLuceneMergePolicy();
+        if (LOG_BYTE_SIZE_MERGE_POLICY.equalsIgnoreCase(mergePolicy)) {
+            LogByteSizeMergePolicy logPolicy = new LogByteSizeMergePolicy();
+            logPolicy.setMergeFactor((int) Math.round(storageConfigurations.getLuceneSegmentsPerTier()));
+            logPolicy.setMaxMergeMB(storageConfigurations.getLuceneMaxMergedSegmentMb());
+            return logPolicy;
+        }
+        if (!TIERED_MERGE_POLICY.equalsIgnoreCase(mergePolicy)) {
+            throw new FileStorageException("Unknown lucene merge policy '" + mergePolicy + "', expected "
+                    + TIERED_MERGE_POLICY + " or " + LOG_BYTE_SIZE_MERGE_POLICY);
+        }
+        TieredMergePolicy tieredPolicy = new TieredMergePolicy();
+        tieredPolicy.setSegmentsPerTier(storageConfigurations.getLuceneSegmentsPerTier());
+        tieredPolicy.setMaxMergedSegmentMB(storageConfigurations.getLuceneMaxMergedSegmentMb());
+        return tieredPolicy;
+    }
+
+    private void commit(PartitionLuceneIndex index) throws IOException {
+        for (long sequence : index.commit()) {
+            writeAheadLogService.complete(index.getPartition(), sequence);
+        }
+    }
+
+    private void maintenanceLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(storageConfigurations.getLuceneRefreshIntervalMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            boolean offPeak = isOffPeak(LocalTime.now());
+            for (PartitionLuceneIndex index : indexes) {
+                if (index == null) {
+                    continue;
+                }
+                try {
+                    maintain(index, offPeak);
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Maintenance of lucene index of partition " + index.getPartition() + " failed", e);
+                }
+            }
+        }
+    }
+
+    private void maintain(PartitionLuceneIndex index, boolean offPeak) throws IOException {
+        index.maybeRefresh();
+        if (index.getPendingCount() > 0 && index.getOldestPendingMillis() >= storageConfigurations.getLuceneCommitIntervalMillis()) {
+            commit(index);
+        }
+        if (offPeak && !index.isMerging()
+                && System.currentTimeMillis() - index.getLastForceMergeTime() >= forceMergeWindowMillis()
+                && index.getSegmentCount() > storageConfigurations.getLuceneForceMergeMinSegments()) {
+            // at most once per window, the merges themselves run on the merge threads
+            logger.info("Force merging lucene index of partition {} from {} segments.", index.getPartition(), index.getSegmentCount());
+            index.forceMerge(storageConfigurations.getLuceneForceMergeMaxSegments());
+        }
+    }
+
+    /**
+     * @param window "HH:mm-HH:mm" in local time, may span midnight
+     */
+    private void parseForceMergeWindow(String window) {
+        if (window == null || window.trim().isEmpty()) {
+            return;
+        }
+        String[] bounds = window.trim().split("-");
+        try {
+            if (bounds.length != 2) {
+                throw new DateTimeParseException("Expected HH:mm-HH:mm", window, 0);
+            }
+            forceMergeStart = LocalTime.parse(bounds[0].trim());
+            forceMergeEnd = LocalTime.parse(bounds[1].trim());
+        } catch (DateTimeParseException e) {
+            throw new FileStorageException("Invalid lucene force merge window '" + window + "'", e);
+        }
+    }
+
+    private boolean isOffPeak(LocalTime now) {
+        if (forceMergeStart == null) {
+            return false;
+        }
+        if (!forceMergeStart.isAfter(forceMergeEnd)) {
+            return !now.isBefore(forceMergeStart) && now.isBefore(forceMergeEnd);
+        }
+        return !now.isBefore(forceMergeStart) || now.isBefore(forceMergeEnd);
+    }
+
+    private long forceMergeWindowMillis() {
+        Duration window = Duration.between(forceMergeStart, forceMergeEnd);
+        return (window.isNegative() ? window.plusDays(1) : window).toMillis();
     }
 
 }
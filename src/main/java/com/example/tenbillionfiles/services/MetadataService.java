@@ -0,0 +1,176 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.exception.FileStorageException;
+import com.example.tenbillionfiles.services.compression.StoredFile;
+import com.example.tenbillionfiles.services.compression.StoredHeader;
+import com.example.tenbillionfiles.services.metadata.BloomFilter;
+import com.example.tenbillionfiles.services.metadata.ContentTypeAttribute;
+import com.example.tenbillionfiles.services.metadata.FileMetadata;
+import com.example.tenbillionfiles.services.metadata.PartitionMetadata;
+import com.example.tenbillionfiles.services.partioning.PartitioningService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
+
+/**
+ * In-memory view of which files exist and of their attributes, so most requests don't stat the file system.
+ *
+ * Kept up to date by the write path of {@link FileStorageService} (under the name lock) and loaded by the warm-up
+ * of each partition.
+ */
+@Service
+public class MetadataService {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetadataService.class);
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private FileStorageService fileStorageService;
+
+    @Autowired
+    private PartitioningService partitioningService;
+
+    private final PartitionMetadata[] partitionMetadata = new PartitionMetadata[PARTITIONS_NUMBER];
+
+    /**
+     * Starts every partition cold: lookups read the file system until {@link #warmUp(int)} loads its names.
+     */
+    public void initMetadata() {
+        for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+            partitionMetadata[partition] = new PartitionMetadata(storageConfigurations.getMetadataBloomExpectedNames(),
+                    storageConfigurations.getMetadataBloomFalsePositiveProbability(),
+                    storageConfigurations.getMetadataCacheSize());
+        }
+    }
+
+    /**
+     * Loads the names and the attributes of the files of the partition, while it is read and written.
+     */
+    public void warmUp(int partition) {
+        try {
+            List<FileMetadata> cached = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            // the walk already reads the attributes of every file, the header of a compressed file is only
+            // read for the ones cached
+            fileStorageService.walkPartitionFiles(partition, (file, attributes) -> {
+                try {
+                    if (cached.size() < storageConfigurations.getMetadataCacheSize()) {
+                        cached.add(toMetadata(file.getFileName().toString(), file, attributes));
+                    } else {
+                        names.add(file.getFileName().toString());
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            // leave room for growth, the Bloom filter can't be resized until next startup
+            long expectedNames = Math.max(storageConfigurations.getMetadataBloomExpectedNames(),
+                    2L * (cached.size() + names.size()));
+            partitionMetadata[partition].load(cached, names,
+                    new BloomFilter(expectedNames, storageConfigurations.getMetadataBloomFalsePositiveProbability()));
+            logger.debug("Loaded {} names ({} with attributes) for partition {}", cached.size() + names.size(),
+                    cached.size(), partition);
+        } catch (IOException | UncheckedIOException e) {
+            throw new FileStorageException("Could not load files metadata of partition " + partition, e);
+        }
+    }
+
+    /**
+     * @return the metadata of the file or null when it doesn't exist
+     */
+    public FileMetadata getMetadata(String fileName) {
+        int partition = partitioningService.getPartition(fileName);
+        PartitionMetadata metadata = partitionMetadata[partition];
+        if (metadata.isDefinitelyAbsent(fileName)) {
+            return null;
+        }
+        FileMetadata cached = metadata.get(fileName);
+        if (cached != null) {
+            return cached == PartitionMetadata.DELETED ? null : cached;
+        }
+
+        // not cached, fall back to the file system. The read lock keeps a concurrent write from being
+        // overwritten by what we read here.
+        Lock nameLock = partitioningService.getNameLock(fileName).readLock();
+        try {
+            nameLock.lock();
+            Path path = fileStorageService.findFileLocation(fileName);
+            FileMetadata loaded = readMetadata(path, fileName);
+            if (loaded == null) {
+                metadata.markDeleted(fileName);
+            } else {
+                metadata.put(loaded);
+            }
+            return loaded;
+        } catch (IOException e) {
+            throw new FileStorageException("Could not read attributes of " + fileName, e);
+        } finally {
+            nameLock.unlock();
+        }
+    }
+
+    public boolean exists(String fileName) {
+        return getMetadata(fileName) != null;
+    }
+
+    /**
+     * Must be called while holding the write lock of the name. The attributes are the ones read back from the
+     * file system after an eviction or a restart, so the ETag of the file doesn't depend on the cache.
+     */
+    public FileMetadata fileWritten(String fileName, StoredFile stored) {
+        FileMetadata metadata = new FileMetadata(fileName, stored.getSize(), stored.getStoredSize(),
+                stored.getLastModified(), stored.getContentType(), stored.getCodec());
+        partitionMetadata[partitioningService.getPartition(fileName)].put(metadata);
+        return metadata;
+    }
+
+    /**
+     * Must be called while holding the write lock of the name.
+     */
+    public void fileDeleted(String fileName) {
+        partitionMetadata[partitioningService.getPartition(fileName)].markDeleted(fileName);
+    }
+
+    /**
+     * Forgets what is known about the name, next lookup reads the file system.
+     */
+    public void evict(String fileName) {
+        partitionMetadata[partitioningService.getPartition(fileName)].remove(fileName);
+    }
+
+    private FileMetadata readMetadata(Path path, String fileName) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            return toMetadata(fileName, path, attributes);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private FileMetadata toMetadata(String fileName, Path path, BasicFileAttributes attributes) throws IOException {
+        StoredHeader header = attributes.size() >= StoredHeader.LENGTH ? StoredHeader.read(path) : null;
+        return new FileMetadata(fileName, header != null ? header.getSize() : attributes.size(), attributes.size(),
+                attributes.lastModifiedTime().toMillis(), ContentTypeAttribute.read(path), header != null ? header.getCodec() : null);
+    }
+
+}
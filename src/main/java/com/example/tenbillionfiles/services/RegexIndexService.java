@@ -1,69 +1,224 @@
 package com.example.tenbillionfiles.services;
 
+import com.example.tenbillionfiles.config.StorageConfigurations;
 import com.example.tenbillionfiles.exception.FileStorageException;
+import com.example.tenbillionfiles.exception.RegexRejectedException;
+import com.example.tenbillionfiles.exception.SearchTimeoutException;
 import com.example.tenbillionfiles.services.partioning.PartitioningService;
+import com.example.tenbillionfiles.services.partioning.results.ConsolidatedResult;
+import com.example.tenbillionfiles.services.partioning.results.CountResults;
 import com.example.tenbillionfiles.services.partioning.results.SearchResults;
+import com.example.tenbillionfiles.services.partioning.tasks.PartitionTask;
+import com.example.tenbillionfiles.services.partioning.tasks.RegexCountTask;
 import com.example.tenbillionfiles.services.partioning.tasks.RegexSearchTask;
+import com.example.tenbillionfiles.services.regex.MatchBudget;
+import com.example.tenbillionfiles.services.regex.NameCountTask;
+import com.example.tenbillionfiles.services.regex.NameIndexFile;
+import com.example.tenbillionfiles.services.regex.NameMatcher;
+import com.example.tenbillionfiles.services.regex.NameSearchTask;
+import com.example.tenbillionfiles.services.regex.RegexQuery;
+import com.example.tenbillionfiles.services.regex.RegexQueryPlanner;
+import com.example.tenbillionfiles.services.wal.WalRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.PatternSyntaxException;
 
 import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
 
+/**
+ * Regex searches over the file names of every partition, kept in memory mapped {@link NameIndexFile}s.
+ *
+ * The names live in the page cache instead of the heap and survive restarts: a partition checkpointed in the WAL
+ * only replays the log tail when it warms up, the others are rebuilt from the disk. Removed names are dropped by a background
+ * compaction once they make up file.regex-index-compaction-dead-ratio of a partition.
+ *
+ * Queries are planned by {@link RegexQueryPlanner}: literals and simple classes are matched on the mapped bytes,
+ * only the other regexes decode every name. These run on java.util.regex, bounded by file.regex-match-step-budget
+ * steps per name, or on a linear time automaton with engine=linear. Either way a query gives up after
+ * file.regex-timeout-millis.
+ */
 @Service
 public class RegexIndexService {
 
     private static final Logger logger = LoggerFactory.getLogger(RegexIndexService.class);
 
+    private static final String COMPACTION_SUFFIX = ".compact";
+    private static final String OLD_SUFFIX = ".old";
+
+    public static final String ENGINE_BACKTRACKING = "backtracking";
+    public static final String ENGINE_LINEAR = "linear";
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
     @Autowired
     private FileStorageService fileStorageService;
 
     @Autowired
     private PartitioningService partitioningService;
 
-    private List<List<String>> regexIndexes;
+    @Autowired
+    private WriteAheadLogService writeAheadLogService;
+
+    private NameIndexFile[] regexIndexes;
+
+    // searches share a partition, appends, removals and the compaction swap are exclusive
+    private ReentrantReadWriteLock[] regexIndexLocks;
+
+    // changes of each partition, tells the compaction whether it raced with a writer
+    private long[] modifications;
+
+    private volatile boolean running;
+
+    private Thread compactor;
 
     public void initIndexes() {
+        int segmentSize = storageConfigurations.getRegexIndexSegmentSize();
+        if (Integer.bitCount(segmentSize) != 1 || segmentSize < (1 << 20) || segmentSize > (1 << 30)) {
+            throw new IllegalStateException("file.regex-index-segment-size must be a power of 2 between 1MB and 1GB, got " + segmentSize);
+        }
+        // the indexes themselves are opened by the warm-up of each partition
+        regexIndexes = new NameIndexFile[PARTITIONS_NUMBER];
+        regexIndexLocks = new ReentrantReadWriteLock[PARTITIONS_NUMBER];
+        modifications = new long[PARTITIONS_NUMBER];
+        for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+            regexIndexLocks[partition] = new ReentrantReadWriteLock();
+        }
+
+        running = true;
+        compactor = new Thread(this::compactionLoop, "RegexIndex-Compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    public void initIndex(int partition) {
         try {
-            logger.info("Start regex-indexes initialization.");
-            regexIndexes = new ArrayList<>(PARTITIONS_NUMBER);
-            for (int partition = 0; partition< PARTITIONS_NUMBER; partition++) {
-                logger.debug("Indexing partition {}", partition);
-                LinkedList<String> regexIndex = new LinkedList<>();
-                Path partitionPath = fileStorageService.getStorageLocation(partition);
-                logger.debug("Partition path for partition {} is: '{}'", partition, partitionPath.toAbsolutePath());
-                indexDocs(regexIndex, partitionPath);
-                regexIndexes.add(regexIndex);
+            logger.debug("Indexing partition {}", partition);
+            Path indexPath = fileStorageService.getRegexIndexLocation(partition);
+            // left over by a compaction interrupted by a crash
+            deleteIndex(sibling(indexPath, COMPACTION_SUFFIX));
+            deleteIndex(sibling(indexPath, OLD_SUFFIX));
+
+            NameIndexFile regexIndex = null;
+            if (writeAheadLogService.isRecoverable(partition)) {
+                regexIndex = NameIndexFile.open(indexPath, storageConfigurations.getRegexIndexSegmentSize());
+            }
+            if (regexIndex != null) {
+                replayLog(regexIndex, partition);
+            } else {
+                regexIndex = NameIndexFile.create(indexPath, storageConfigurations.getRegexIndexSegmentSize());
+                indexDocs(regexIndex, partition);
+            }
+            regexIndex.force();
+            logger.debug("Partition {} has {} names in its regex index", partition, regexIndex.getLiveEntries());
+
+            Lock lock = regexIndexLocks[partition].writeLock();
+            try {
+                lock.lock();
+                regexIndexes[partition] = regexIndex;
+            } finally {
+                lock.unlock();
             }
-            logger.info("End regex-indexes initialization.");
         } catch (IOException e) {
-            throw new FileStorageException("Could not create regex indexes.", e);
+            throw new FileStorageException("Could not create regex index of partition " + partition, e);
         }
     }
 
-    public void indexDoc(String fileName) {
-        List<String> regexIndex = regexIndexes.get(partitioningService.getPartition(fileName));
-        if (!regexIndex.contains(fileName)) {
-            regexIndex.add(fileName);
+    @PreDestroy
+    public void closeIndexes() throws IOException {
+        running = false;
+        if (compactor != null) {
+            compactor.interrupt();
+        }
+        if (regexIndexes == null) {
+            return;
+        }
+        for (int partition = 0; partition< PARTITIONS_NUMBER; partition++) {
+            Lock lock = regexIndexLocks[partition].writeLock();
+            try {
+                lock.lock();
+                if (regexIndexes[partition] != null) {
+                    regexIndexes[partition].force();
+                    regexIndexes[partition].close();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public void indexDoc(String fileName) throws IOException {
+        int partition = partitioningService.getPartition(fileName);
+        Lock lock = regexIndexLocks[partition].writeLock();
+        try {
+            lock.lock();
+            NameIndexFile regexIndex = regexIndexes[partition];
+            if (!regexIndex.contains(fileName)) {
+                regexIndex.append(fileName);
+                modifications[partition]++;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     public void removeDocFromIndex(String fileName) {
-        List<String> regexIndex = regexIndexes.get(partitioningService.getPartition(fileName));
-        if (regexIndex.contains(fileName)) {
-            regexIndex.remove(fileName);
+        int partition = partitioningService.getPartition(fileName);
+        Lock lock = regexIndexLocks[partition].writeLock();
+        try {
+            lock.lock();
+            if (regexIndexes[partition].remove(fileName)) {
+                modifications[partition]++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the changes of the partition to the device, before the WAL records are completed.
+     */
+    public void flush(int partition) {
+        Lock lock = regexIndexLocks[partition].readLock();
+        try {
+            lock.lock();
+            regexIndexes[partition].force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Plans the regex once for all the partitions, with the engine asked for or file.regex-engine.
+     * The budget of the query starts now.
+     */
+    public RegexQuery plan(String regex, String engine) {
+        String selected = engine != null ? engine : storageConfigurations.getRegexEngine();
+        if (!ENGINE_BACKTRACKING.equals(selected) && !ENGINE_LINEAR.equals(selected)) {
+            throw new RegexRejectedException("Unknown regex engine '" + selected + "', expected "
+                    + ENGINE_BACKTRACKING + " or " + ENGINE_LINEAR);
+        }
+        MatchBudget budget = new MatchBudget(storageConfigurations.getRegexMatchStepBudget(), storageConfigurations.getRegexTimeoutMillis());
+        try {
+            NameMatcher matcher = RegexQueryPlanner.plan(regex, ENGINE_LINEAR.equals(selected), budget,
+                    storageConfigurations.getRegexMaxDeterminizedStates());
+            return new RegexQuery(regex, matcher, budget);
+        } catch (PatternSyntaxException e) {
+            throw new RegexRejectedException("Invalid regex: " + e.getMessage(), e);
         }
     }
 
@@ -71,10 +226,10 @@ public class RegexIndexService {
      * single threaded
      */
     public List<String> search(String regex) {
+        RegexQuery query = plan(regex, null);
         List<String> findings = new LinkedList<>();
-        Pattern pattern = Pattern.compile(regex);
-        for (List<String> index : regexIndexes) {
-            findings.addAll(searchInIndex(index, pattern));
+        for (int partition = 0; partition< PARTITIONS_NUMBER; partition++) {
+            findings.addAll(searchInPartition(query, partition));
         }
         return findings;
     }
@@ -87,35 +242,179 @@ public class RegexIndexService {
      */
 
     public List<String> multiThreadSearch(String regex) throws CloneNotSupportedException {
+        return multiThreadSearch(plan(regex, null), partitioningService.getLocalPartitions());
+    }
+
+    public List<String> multiThreadSearch(RegexQuery query, List<Integer> partitions) throws CloneNotSupportedException {
         SearchResults searchResults = new SearchResults();
-        partitioningService.runOnAllPartitions(regex, new RegexSearchTask(this), searchResults, 60, TimeUnit.SECONDS);
+        runOnPartitions(query, partitions, new RegexSearchTask(this), searchResults);
+        if (searchResults.getFailedPartitions() > 0) {
+            throw new FileStorageException("Could not search the regex index of " + searchResults.getFailedPartitions() + " partitions.");
+        }
         return searchResults.getResults();
     }
 
-    public void indexDocs(final List<String> regexIndex, Path path) throws IOException {
-        if (Files.isDirectory(path)) {
-            List<String> allFileNames = Files.walk(path).filter(Files::isRegularFile)
-                    .map(x -> x.getFileName().toString()).collect(Collectors.toList());
-            allFileNames.forEach(file -> logger.debug(file));
-            regexIndex.addAll(allFileNames);
+    /**
+     * Exact number of names of the partitions matching the regex.
+     */
+    public long multiThreadCount(RegexQuery query, List<Integer> partitions) throws CloneNotSupportedException {
+        CountResults countResults = new CountResults();
+        runOnPartitions(query, partitions, new RegexCountTask(this), countResults);
+        if (countResults.getFailedPartitions() > 0) {
+            // a partial count would look exact
+            throw new FileStorageException("Could not count files of " + countResults.getFailedPartitions() + " partitions.");
         }
+        return countResults.getCount();
     }
 
-    public List<String> searchInIndex(List<String> index, Pattern pattern) {
-        List<String> findings = new LinkedList<>();
-        for(String fileName : index) {
-            Matcher matcher = pattern.matcher(fileName);
-            if (matcher.find()){
-                findings.add(fileName);
+    /**
+     * Partitions failing on the budget of the query fail the whole query with the budget error, the other
+     * partitions stop at their next chunk.
+     */
+    private <T> void runOnPartitions(RegexQuery query, List<Integer> partitions, PartitionTask<T, RegexQuery> task,
+                                     ConsolidatedResult<T> results) throws CloneNotSupportedException {
+        try {
+            partitioningService.runOnPartitions(partitions, query, task, results,
+                    query.getBudget().getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (SearchTimeoutException e) {
+            query.getBudget().cancel();
+            throw e;
+        }
+        query.getBudget().throwIfFailed();
+    }
+
+    public void indexDocs(final NameIndexFile regexIndex, int partition) throws IOException {
+        // names on disk are unique, no need to look them up before appending
+        for (String fileName : fileStorageService.listFileNames(partition)) {
+            logger.debug(fileName);
+            regexIndex.append(fileName);
+        }
+    }
+
+    /**
+     * Brings the index in line with the disk for every file touched by the WAL tail, like the lucene replay.
+     */
+    public void replayLog(final NameIndexFile regexIndex, int partition) throws IOException {
+        Set<String> touchedFileNames = new LinkedHashSet<>();
+        for (WalRecord record : writeAheadLogService.readTail(partition)) {
+            touchedFileNames.add(record.getFileName());
+        }
+        logger.debug("Replaying {} WAL entries on regex index of partition {}", touchedFileNames.size(), partition);
+        for (String fileName : touchedFileNames) {
+            if (Files.isRegularFile(fileStorageService.findFileLocation(fileName))) {
+                if (!regexIndex.contains(fileName)) {
+                    regexIndex.append(fileName);
+                }
+            } else {
+                regexIndex.remove(fileName);
             }
         }
+    }
 
-        return findings;
+    public List<String> searchInPartition(RegexQuery query, int partition) {
+        Lock lock = regexIndexLocks[partition].readLock();
+        try {
+            lock.lock();
+            // the workers scan under the read lock held here
+            NameIndexFile regexIndex = regexIndexes[partition];
+            return partitioningService.getSearchPool().invoke(new NameSearchTask(regexIndex, query.getMatcher(),
+                    query.getBudget(), 0, regexIndex.getEntries(), storageConfigurations.getSearchChunkSize()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of names of the partition matching the regex, without collecting them.
+     */
+    public long countInPartition(RegexQuery query, int partition) {
+        Lock lock = regexIndexLocks[partition].readLock();
+        try {
+            lock.lock();
+            NameIndexFile regexIndex = regexIndexes[partition];
+            return partitioningService.getSearchPool().invoke(new NameCountTask(regexIndex, query.getMatcher(),
+                    query.getBudget(), 0, regexIndex.getEntries(), storageConfigurations.getSearchChunkSize()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void compactionLoop() {
+        while (running) {
+            try {
+                Thread.sleep(storageConfigurations.getRegexIndexCompactionIntervalMillis());
+                for (int partition : partitioningService.getLocalPartitions()) {
+                    compact(partition);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                logger.error("Regex index compaction failed", e);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the live names of the partition in a sibling directory, then swaps the directories, when enough
+     * names were removed. Searches go on while the copy is written, the index writers of the partition wait.
+     */
+    private void compact(int partition) throws IOException {
+        Path indexPath = fileStorageService.getRegexIndexLocation(partition);
+        Path compactionPath = sibling(indexPath, COMPACTION_SUFFIX);
+        Path oldPath = sibling(indexPath, OLD_SUFFIX);
+
+        NameIndexFile compacted;
+        long modificationsAtStart;
+        Lock readLock = regexIndexLocks[partition].readLock();
+        try {
+            readLock.lock();
+            NameIndexFile regexIndex = regexIndexes[partition];
+            // not warmed up yet
+            if (regexIndex == null || regexIndex.getDeadEntries() == 0 || regexIndex.getDeadEntries()
+                    < storageConfigurations.getRegexIndexCompactionDeadRatio() * regexIndex.getEntries()) {
+                return;
+            }
+            modificationsAtStart = modifications[partition];
+            compacted = regexIndex.compactTo(compactionPath);
+        } finally {
+            readLock.unlock();
+        }
+
+        Lock writeLock = regexIndexLocks[partition].writeLock();
+        try {
+            writeLock.lock();
+            if (modifications[partition] != modificationsAtStart) {
+                // a writer got in between the 2 locks, next round will try again
+                compacted.close();
+                deleteIndex(compactionPath);
+                return;
+            }
+            NameIndexFile previous = regexIndexes[partition];
+            // the mappings follow the files, they stay valid across the renames.
+            // A crash between the 2 moves leaves no index, which is rebuilt at startup.
+            Files.move(indexPath, oldPath);
+            Files.move(compactionPath, indexPath);
+            regexIndexes[partition] = compacted;
+            previous.close();
+            logger.info("Compacted regex index of partition {}, dropped {} removed names",
+                    partition, previous.getDeadEntries());
+        } finally {
+            writeLock.unlock();
+        }
+        deleteIndex(oldPath);
     }
 
-    public List<String> searchInPartition(String regex, int partition) {
-        Pattern pattern = Pattern.compile(regex);
-        return searchInIndex(regexIndexes.get(partition), pattern);
+    private static Path sibling(Path indexPath, String suffix) {
+        return indexPath.resolveSibling(indexPath.getFileName() + suffix);
+    }
+
+    private static void deleteIndex(Path indexPath) throws IOException {
+        if (!Files.isDirectory(indexPath)) {
+            return;
+        }
+        Files.deleteIfExists(indexPath.resolve(NameIndexFile.DATA_FILE));
+        Files.deleteIfExists(indexPath.resolve(NameIndexFile.TABLE_FILE));
+        Files.delete(indexPath);
     }
 
 }
@@ -0,0 +1,534 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.exception.FileStorageException;
+import com.example.tenbillionfiles.exception.RemoteNodeException;
+import com.example.tenbillionfiles.exception.ReplicationRejectedException;
+import com.example.tenbillionfiles.payload.ReplicaStatus;
+import com.example.tenbillionfiles.payload.ReplicationNodeState;
+import com.example.tenbillionfiles.services.metadata.FileMetadata;
+import com.example.tenbillionfiles.services.partioning.PartitioningService;
+import com.example.tenbillionfiles.services.replication.PartitionReplica;
+import com.example.tenbillionfiles.services.replication.ReplicaShipper;
+import com.example.tenbillionfiles.services.replication.ReplicationLog;
+import com.example.tenbillionfiles.services.replication.ReplicationTransport;
+import com.example.tenbillionfiles.services.wal.WalOperation;
+import com.example.tenbillionfiles.services.wal.WalRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
+
+/**
+ * Keeps file.replication-factor copies of every partition on distinct nodes.
+ *
+ * One copy is the primary: it takes the writes and ships them asynchronously, in order, to the other copies
+ * ({@link ReplicaShipper}). Nodes poll each other's roles every heartbeat; when the primary of a partition stops
+ * answering, the first alive synced copy in preference order takes over. A copy that comes back while another node
+ * is primary is out of sync until the primary has resynced it. Reads go round-robin to the synced copies.
+ *
+ * Replication is asynchronous: the writes not shipped yet when a primary dies are lost by the new primary.
+ *
+ * The changes are shipped on authenticated cluster requests (see {@link ClusterService#nodeHeaders()}), and a copy
+ * only takes them from the node it knows as the current primary of the partition.
+ */
+@Service
+public class ReplicationService implements ReplicationTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplicationService.class);
+
+    public static final String CONTENT_TYPE_HEADER = "X-Replicated-Content-Type";
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private PartitioningService partitioningService;
+
+    @Autowired
+    private FileStorageService fileStorageService;
+
+    @Autowired
+    private MetadataService metadataService;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    private final PartitionReplica[] replicas = new PartitionReplica[PARTITIONS_NUMBER];
+
+    private AtomicReferenceArray<ReplicationNodeState> nodeStates;
+    // time the last heartbeat answered by the node was sent
+    private AtomicLongArray nodeSeenMillis;
+
+    private final AtomicInteger readRoundRobin = new AtomicInteger();
+
+    // a primary of the partition has been seen since startup, so this isn't a cold start of the cluster
+    private final boolean[] primarySeen = new boolean[PARTITIONS_NUMBER];
+
+    private RestTemplate restTemplate;
+    private RestTemplate heartbeatTemplate;
+
+    private volatile boolean running;
+    private Thread heartbeatThread;
+    private long startedMillis;
+
+    @PostConstruct
+    public void initReplicas() {
+        int nodes = storageConfigurations.getClusterNodes().size();
+        nodeStates = new AtomicReferenceArray<>(Math.max(1, nodes));
+        nodeSeenMillis = new AtomicLongArray(Math.max(1, nodes));
+        for (int partition : partitioningService.getLocalPartitions()) {
+            PartitionReplica replica = new PartitionReplica(partition);
+            if (!isReplicated()) {
+                // single copy, always primary of what it holds
+                replica.setPrimary(true);
+                replica.setSynced(true);
+            }
+            replicas[partition] = replica;
+        }
+
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(storageConfigurations.getClusterConnectTimeoutMillis());
+        requestFactory.setReadTimeout(storageConfigurations.getClusterReadTimeoutMillis());
+        requestFactory.setBufferRequestBody(false);
+        restTemplate = new RestTemplate(requestFactory);
+
+        // a hung node must not delay the heartbeats of the others for long
+        SimpleClientHttpRequestFactory heartbeatFactory = new SimpleClientHttpRequestFactory();
+        heartbeatFactory.setConnectTimeout(storageConfigurations.getReplicationHeartbeatMillis().intValue());
+        heartbeatFactory.setReadTimeout(storageConfigurations.getReplicationHeartbeatMillis().intValue());
+        heartbeatTemplate = new RestTemplate(heartbeatFactory);
+    }
+
+    public boolean isReplicated() {
+        return storageConfigurations.getReplicationFactor() > 1;
+    }
+
+    public void startReplication() {
+        if (!isReplicated()) {
+            return;
+        }
+        startedMillis = System.currentTimeMillis();
+        running = true;
+        heartbeatThread = new Thread(this::heartbeatLoop, "Replication-Heartbeat");
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+    }
+
+    @PreDestroy
+    public void stopReplication() {
+        running = false;
+        if (heartbeatThread != null) {
+            heartbeatThread.interrupt();
+        }
+        for (PartitionReplica replica : replicas) {
+            if (replica != null) {
+                stopShippers(replica);
+            }
+        }
+    }
+
+    /**
+     * Node the writes of the partition go to, -1 when no primary is known right now.
+     */
+    public int getWriteNode(int partition) {
+        if (!isReplicated()) {
+            return partitioningService.getOwnerNode(partition);
+        }
+        PartitionReplica local = replicas[partition];
+        if (local != null && local.isPrimary()) {
+            return getSelf();
+        }
+        return findPrimaryClaimant(partition);
+    }
+
+    /**
+     * Node serving the next read of the partition, picked round-robin among the alive synced copies.
+     * -1 when there is none.
+     */
+    public int getReadNode(int partition) {
+        if (!isReplicated()) {
+            return partitioningService.getOwnerNode(partition);
+        }
+        List<Integer> candidates = new ArrayList<>();
+        for (int node : partitioningService.getReplicaNodes(partition)) {
+            if (isAlive(node) && isSynced(node, partition)) {
+                candidates.add(node);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return -1;
+        }
+        return candidates.get(Math.floorMod(readRoundRobin.getAndIncrement(), candidates.size()));
+    }
+
+    /**
+     * Rejects a write reaching a copy which is not the primary, it would never be shipped to the others.
+     */
+    public void checkPrimary(int partition) {
+        PartitionReplica replica = replicas[partition];
+        if (isReplicated() && (replica == null || !replica.isPrimary())) {
+            throw new RemoteNodeException("Node " + getSelf() + " is not the primary of partition " + partition);
+        }
+    }
+
+    /**
+     * Queues a change of the primary for the replicas. Called under the name lock, so the changes of one name
+     * are logged in the order they were applied.
+     */
+    public void recordWrite(int partition, WalOperation operation, String fileName) {
+        PartitionReplica replica = replicas[partition];
+        if (!isReplicated() || replica == null) {
+            return;
+        }
+        ReplicationLog log = replica.getLog();
+        if (replica.isPrimary() && log != null) {
+            log.append(operation, fileName);
+        }
+    }
+
+    /**
+     * Rejects a shipped change unless this node holds a copy of the partition which is not the primary, and the
+     * current primary sent it: replicas are only written by their primary, never by a client.
+     */
+    public void checkShippedByPrimary(int partition) {
+        PartitionReplica replica = replicas[partition];
+        if (!isReplicated() || replica == null || replica.isPrimary()) {
+            throw new ReplicationRejectedException("Node " + getSelf() + " holds no replica of partition " + partition);
+        }
+        int sender = clusterService.getForwardingNode();
+        if (sender < 0 || sender != findPrimaryClaimant(partition)) {
+            throw new ReplicationRejectedException("Changes of partition " + partition + " are only taken from its primary");
+        }
+    }
+
+    public void resyncStarted(int partition) {
+        checkShippedByPrimary(partition);
+        PartitionReplica replica = getReplica(partition);
+        logger.info("Resync of partition {} started by the primary", partition);
+        replica.setSynced(false);
+    }
+
+    /**
+     * End of a resync: drops the local files the primary doesn't have.
+     */
+    public void resyncCompleted(int partition, Set<String> primaryFileNames) {
+        checkShippedByPrimary(partition);
+        PartitionReplica replica = getReplica(partition);
+        try {
+            int deleted = 0;
+            for (String fileName : fileStorageService.listFileNames(partition)) {
+                if (!primaryFileNames.contains(fileName)) {
+                    fileStorageService.deleteReplicatedFile(fileName);
+                    deleted++;
+                }
+            }
+            replica.setSynced(true);
+            logger.info("Resync of partition {} completed, {} files, {} stale files deleted", partition, primaryFileNames.size(), deleted);
+        } catch (IOException e) {
+            throw new FileStorageException("Could not complete resync of partition " + partition, e);
+        }
+    }
+
+    public ReplicationNodeState getState() {
+        List<Integer> primaries = new ArrayList<>();
+        List<Integer> synced = new ArrayList<>();
+        for (PartitionReplica replica : replicas) {
+            if (replica != null) {
+                if (replica.isPrimary()) {
+                    primaries.add(replica.getPartition());
+                }
+                if (replica.isSynced()) {
+                    synced.add(replica.getPartition());
+                }
+            }
+        }
+        return new ReplicationNodeState(getSelf(), primaries, synced);
+    }
+
+    public List<ReplicaStatus> getStatus() {
+        List<ReplicaStatus> statuses = new ArrayList<>();
+        for (PartitionReplica replica : replicas) {
+            if (replica == null) {
+                continue;
+            }
+            statuses.add(new ReplicaStatus(replica.getPartition(), getNodeUrl(getSelf()), replica.isPrimary(), true,
+                    replica.isSynced(), 0L, 0L));
+            ReplicationLog log = replica.getLog();
+            if (!replica.isPrimary() || log == null) {
+                continue;
+            }
+            for (ReplicaShipper shipper : replica.getShippers().values()) {
+                long next = shipper.getNextSequence();
+                statuses.add(new ReplicaStatus(replica.getPartition(), getNodeUrl(shipper.getNode()), false,
+                        isAlive(shipper.getNode()), !shipper.isResyncing() && isSynced(shipper.getNode(), replica.getPartition()),
+                        log.getNextSequence() - next, log.getAgeMillis(next)));
+            }
+        }
+        return statuses;
+    }
+
+    @Override
+    public boolean isAlive(int node) {
+        if (node == getSelf()) {
+            return true;
+        }
+        long seen = nodeSeenMillis.get(node);
+        return seen > 0 && System.currentTimeMillis() - seen <= storageConfigurations.getReplicationFailureTimeoutMillis();
+    }
+
+    @Override
+    public boolean needsResync(int node, int partition, long sinceMillis) {
+        ReplicationNodeState state = nodeStates.get(node);
+        return state != null && nodeSeenMillis.get(node) > sinceMillis && !state.getSyncedPartitions().contains(partition);
+    }
+
+    @Override
+    public void ship(int node, int partition, WalRecord record) throws IOException {
+        if (record.getOperation() == WalOperation.DELETE) {
+            restTemplate.exchange(replicationUri(node, "/replication/file/{fileName}", record.getFileName()),
+                    HttpMethod.DELETE, new HttpEntity<>(clusterService.nodeHeaders()), Void.class);
+        } else {
+            shipFile(node, record.getFileName());
+        }
+    }
+
+    @Override
+    public void resync(int node, int partition) throws IOException {
+        restTemplate.exchange(replicationUri(node, "/replication/{partition}/resync", partition), HttpMethod.POST,
+                new HttpEntity<>(clusterService.nodeHeaders()), Void.class);
+        List<String> shipped = new ArrayList<>();
+        for (String fileName : fileStorageService.listFileNames(partition)) {
+            if (shipFile(node, fileName)) {
+                shipped.add(fileName);
+            }
+        }
+        restTemplate.execute(replicationUri(node, "/replication/{partition}/resync/complete", partition), HttpMethod.POST,
+                request -> {
+                    request.getHeaders().putAll(clusterService.nodeHeaders());
+                    request.getHeaders().setContentType(MediaType.TEXT_PLAIN);
+                    Writer writer = new OutputStreamWriter(request.getBody(), StandardCharsets.UTF_8);
+                    for (String fileName : shipped) {
+                        writer.write(fileName);
+                        writer.write('\n');
+                    }
+                    writer.flush();
+                }, null);
+    }
+
+    /**
+     * Streams the current content of the file to the node, false when it has been deleted meanwhile
+     * (the delete is in the log and follows). Compressed files are shipped as stored, the replica keeps them so.
+     */
+    private boolean shipFile(int node, String fileName) throws IOException {
+        InputStream in;
+        try {
+            in = Files.newInputStream(fileStorageService.findFileLocation(fileName));
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        FileMetadata metadata = metadataService.getMetadata(fileName);
+        String contentType = metadata != null && metadata.getContentType() != null
+                ? metadata.getContentType() : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        try (InputStream content = in) {
+            restTemplate.execute(replicationUri(node, "/replication/file/{fileName}", fileName),
+                    HttpMethod.PUT, request -> {
+                        request.getHeaders().putAll(clusterService.nodeHeaders());
+                        // the real type travels apart, a form content type would make the container parse the body
+                        request.getHeaders().setContentType(MediaType.APPLICATION_OCTET_STREAM);
+                        request.getHeaders().set(CONTENT_TYPE_HEADER, contentType);
+                        StreamUtils.copy(content, request.getBody());
+                    }, null);
+        }
+        return true;
+    }
+
+    private void heartbeatLoop() {
+        while (running) {
+            try {
+                pollNodes();
+                evaluateRoles();
+                Thread.sleep(storageConfigurations.getReplicationHeartbeatMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Replication heartbeat failed", e);
+            }
+        }
+    }
+
+    private void pollNodes() {
+        List<String> nodes = storageConfigurations.getClusterNodes();
+        for (int node = 0; node < nodes.size(); node++) {
+            if (node == getSelf()) {
+                continue;
+            }
+            long sentMillis = System.currentTimeMillis();
+            try {
+                ReplicationNodeState state = heartbeatTemplate.getForObject(nodes.get(node) + "/replication/state", ReplicationNodeState.class);
+                nodeStates.set(node, state);
+                nodeSeenMillis.set(node, sentMillis);
+            } catch (RestClientException e) {
+                logger.debug("No heartbeat from node {}: {}", node, e.toString());
+            }
+        }
+    }
+
+    private void evaluateRoles() {
+        boolean graceOver = System.currentTimeMillis() - startedMillis > storageConfigurations.getReplicationFailureTimeoutMillis();
+        for (PartitionReplica replica : replicas) {
+            if (replica == null) {
+                continue;
+            }
+            int partition = replica.getPartition();
+            List<Integer> copies = partitioningService.getReplicaNodes(partition);
+            int claimant = findPrimaryClaimant(partition);
+            if (claimant >= 0 || replica.isPrimary()) {
+                primarySeen[partition] = true;
+            }
+
+            if (replica.isPrimary()) {
+                if (claimant >= 0 && copies.indexOf(claimant) < copies.indexOf(getSelf())) {
+                    // both took over during a partition of the network, the preferred one wins
+                    logger.warn("Node {} is also primary of partition {}, stepping down", claimant, partition);
+                    stepDown(replica);
+                }
+                continue;
+            }
+            if (claimant >= 0) {
+                continue;
+            }
+            // let every node answer once before deciding nobody is primary
+            if (!graceOver) {
+                continue;
+            }
+            if (!replica.isSynced() && !primarySeen[partition] && nobodySynced(partition)) {
+                // cold start of the whole cluster: the copies are as good as each other. After that an
+                // unsynced copy (e.g. half resynced) never takes over, the partition waits for a synced one.
+                replica.setSynced(true);
+            }
+            if (replica.isSynced() && firstAliveSynced(partition) == getSelf()) {
+                promote(replica);
+            }
+        }
+    }
+
+    private void promote(PartitionReplica replica) {
+        int partition = replica.getPartition();
+        logger.info("Taking over as primary of partition {}", partition);
+        ReplicationLog log = new ReplicationLog(storageConfigurations.getReplicationBufferSize());
+        replica.setLog(log);
+        for (int node : partitioningService.getReplicaNodes(partition)) {
+            if (node == getSelf()) {
+                continue;
+            }
+            ReplicaShipper shipper = new ReplicaShipper(partition, node, log, this, storageConfigurations.getReplicationRetryMillis());
+            replica.getShippers().put(node, shipper);
+            Thread thread = new Thread(shipper, "Replication-" + partition + "-" + node);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        replica.setPrimary(true);
+    }
+
+    private void stepDown(PartitionReplica replica) {
+        replica.setPrimary(false);
+        // the other primary will resync this copy
+        replica.setSynced(false);
+        stopShippers(replica);
+        replica.setLog(null);
+    }
+
+    private void stopShippers(PartitionReplica replica) {
+        replica.getShippers().values().forEach(ReplicaShipper::stop);
+        replica.getShippers().clear();
+    }
+
+    /**
+     * Alive other node claiming to be primary of the partition, the preferred one if several do. -1 if none.
+     */
+    private int findPrimaryClaimant(int partition) {
+        for (int node : partitioningService.getReplicaNodes(partition)) {
+            if (node == getSelf() || !isAlive(node)) {
+                continue;
+            }
+            ReplicationNodeState state = nodeStates.get(node);
+            if (state != null && state.getPrimaryPartitions().contains(partition)) {
+                return node;
+            }
+        }
+        return -1;
+    }
+
+    private int firstAliveSynced(int partition) {
+        for (int node : partitioningService.getReplicaNodes(partition)) {
+            if (isAlive(node) && isSynced(node, partition)) {
+                return node;
+            }
+        }
+        return -1;
+    }
+
+    private boolean nobodySynced(int partition) {
+        return firstAliveSynced(partition) < 0;
+    }
+
+    private boolean isSynced(int node, int partition) {
+        if (node == getSelf()) {
+            PartitionReplica replica = replicas[partition];
+            return replica != null && replica.isSynced();
+        }
+        ReplicationNodeState state = nodeStates.get(node);
+        return state != null && state.getSyncedPartitions().contains(partition);
+    }
+
+    private PartitionReplica getReplica(int partition) {
+        PartitionReplica replica = replicas[partition];
+        if (replica == null) {
+            throw new FileStorageException("Partition " + partition + " has no copy on node " + getSelf());
+        }
+        return replica;
+    }
+
+    private URI replicationUri(int node, String path, Object... variables) {
+        return UriComponentsBuilder.fromHttpUrl(getNodeUrl(node)).path(path).encode().buildAndExpand(variables).toUri();
+    }
+
+    private String getNodeUrl(int node) {
+        List<String> nodes = storageConfigurations.getClusterNodes();
+        return nodes.isEmpty() ? "local" : nodes.get(node);
+    }
+
+    private int getSelf() {
+        return storageConfigurations.getClusterNodeIndex();
+    }
+
+}
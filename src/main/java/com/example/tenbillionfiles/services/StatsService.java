@@ -0,0 +1,314 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.exception.FileStorageException;
+import com.example.tenbillionfiles.payload.FileStats;
+import com.example.tenbillionfiles.payload.HistogramBucket;
+import com.example.tenbillionfiles.services.admission.Admission;
+import com.example.tenbillionfiles.services.admission.QueryCost;
+import com.example.tenbillionfiles.services.metadata.FileMetadata;
+import com.example.tenbillionfiles.services.partioning.PartitioningService;
+import com.example.tenbillionfiles.services.partioning.results.CountResults;
+import com.example.tenbillionfiles.services.partioning.tasks.PrefixCountTask;
+import com.example.tenbillionfiles.services.regex.RegexQuery;
+import com.example.tenbillionfiles.services.stats.PartitionStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
+
+/**
+ * Exact count and aggregates of the stored files, per partition.
+ *
+ * Maintained by the write path of {@link FileStorageService} (under the name lock) and periodically reconciled
+ * with a walk of the partitions, which repairs any drift, e.g. files removed behind the application's back.
+ * Sizes are the bytes on disk, which the walk gets without opening the compressed files.
+ */
+@Service
+public class StatsService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatsService.class);
+
+    // upper bounds of the size histogram buckets, the last one is unbounded
+    private static final long[] SIZE_BOUNDS = {1L, 1L << 10, 1L << 16, 1L << 20, 1L << 24, 1L << 28, 1L << 30, Long.MAX_VALUE};
+
+    // upper bounds of the age histogram buckets, in days since the last modification
+    private static final long[] AGE_BOUNDS = {1L, 7L, 30L, 90L, 365L, Long.MAX_VALUE};
+
+    // walks racing with writers before the stats of a warming up partition are taken as they are
+    private static final int WARM_UP_ATTEMPTS = 3;
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private FileStorageService fileStorageService;
+
+    @Autowired
+    private PartitioningService partitioningService;
+
+    @Autowired
+    private LuceneIndexService luceneIndexService;
+
+    @Autowired
+    private RegexIndexService regexIndexService;
+
+    @Autowired
+    private IndexingService indexingService;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    @Autowired
+    private AdmissionService admissionService;
+
+    @Autowired
+    private WarmUpService warmUpService;
+
+    private final PartitionStats[] partitionStats = new PartitionStats[PARTITIONS_NUMBER];
+
+    private volatile boolean running;
+
+    private Thread reconciler;
+
+    /**
+     * Starts every partition empty, the writes are counted from now on and {@link #warmUp(int)} adds the files
+     * already stored.
+     */
+    public void initStats() {
+        for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+            partitionStats[partition] = new PartitionStats();
+        }
+
+        running = true;
+        reconciler = new Thread(this::reconcileLoop, "Stats-Reconciler");
+        reconciler.setDaemon(true);
+        reconciler.start();
+    }
+
+    /**
+     * Replaces the stats of the partition with a walk of its files, while it is written.
+     */
+    public void warmUp(int partition) {
+        // org.hyperic.sigar.Sigar().getDirStat(dir).getTotal() from http://support.hyperic.com
+        // could be faster using JNI but is system dependent (Win/Linux ..32/64..)
+        for (int attempt = 1; attempt <= WARM_UP_ATTEMPTS; attempt++) {
+            if (reconcile(partition)) {
+                return;
+            }
+        }
+        // a steady write load, take the last walk anyway: it may be off by the writes it raced with,
+        // the reconciliation repairs them later
+        PartitionStats stats = partitionStats[partition];
+        stats.reconcile(walkPartition(partition), stats.getVersion());
+    }
+
+    @PreDestroy
+    public void stopReconciler() {
+        running = false;
+        if (reconciler != null) {
+            reconciler.interrupt();
+        }
+    }
+
+    /**
+     * Must be called while holding the write lock of the name.
+     *
+     * @param previous the file before the write, null when it is created
+     */
+    public void fileWritten(int partition, FileMetadata previous, FileMetadata current) {
+        PartitionStats stats = partitionStats[partition];
+        if (previous != null) {
+            stats.remove(previous.getStoredSize(), previous.getLastModified());
+        }
+        stats.add(current.getStoredSize(), current.getLastModified());
+    }
+
+    /**
+     * Must be called while holding the write lock of the name.
+     */
+    public void fileDeleted(int partition, FileMetadata previous) {
+        partitionStats[partition].remove(previous.getStoredSize(), previous.getLastModified());
+    }
+
+    public long getFileCount(List<Integer> partitions) {
+        long count = 0L;
+        for (int partition : partitions) {
+            count += partitionStats[partition].getCount();
+        }
+        return count;
+    }
+
+    /**
+     * @param partitions partitions to aggregate, all of them when null (only set by the other cluster nodes)
+     */
+    public FileStats getStats(List<Integer> partitions) {
+        Map<Integer, List<Integer>> assignment = clusterService.assignPartitions(partitions);
+        List<Integer> localPartitions = clusterService.getLocalPartitions(assignment);
+        warmUpService.checkReady(localPartitions);
+        CompletableFuture<List<FileStats>> remote = clusterService.scatter("/stats", Collections.emptyMap(), assignment, FileStats.class);
+
+        PartitionStats total = new PartitionStats();
+        for (int partition : localPartitions) {
+            partitionStats[partition].addTo(total);
+        }
+        FileStats stats = toFileStats(total);
+        for (FileStats remoteStats : clusterService.gather(remote)) {
+            merge(stats, remoteStats);
+        }
+        return stats;
+    }
+
+    /**
+     * Exact number of files whose name starts with the prefix (lucene index) or matches the regex (regex index).
+     * Partitions are counted in parallel and nothing but the count is collected.
+     */
+    public long countMatching(String prefix, String regex, String engine, String consistency, List<Integer> partitions) {
+        if ((prefix == null) == (regex == null)) {
+            throw new FileStorageException("Exactly one of prefix or regex must be given");
+        }
+        RegexQuery query = regex != null ? regexIndexService.plan(regex, engine) : null;
+        QueryCost cost = prefix != null ? admissionService.estimatePrefixCount() : admissionService.estimateRegex(query, partitions);
+        try (Admission admission = admissionService.admit(cost)) {
+            Map<Integer, List<Integer>> assignment = clusterService.assignPartitions(partitions);
+            List<Integer> localPartitions = clusterService.getLocalPartitions(assignment);
+            warmUpService.checkReady(localPartitions);
+            Map<String, String> parameters = new HashMap<>();
+            parameters.put("prefix", prefix);
+            parameters.put("regex", regex);
+            parameters.put("engine", engine);
+            parameters.put("consistency", consistency);
+            CompletableFuture<List<Long>> remote = clusterService.scatter("/stats/count", parameters, assignment, Long.class);
+
+            indexingService.awaitConsistency(consistency);
+            long count;
+            try {
+                count = prefix != null ? countPrefix(prefix, localPartitions) : regexIndexService.multiThreadCount(query, localPartitions);
+            } catch (CloneNotSupportedException e) {
+                throw new FileStorageException("Could not count files.", e);
+            }
+            for (Long remoteCount : clusterService.gather(remote)) {
+                count += remoteCount;
+            }
+            return count;
+        }
+    }
+
+    private long countPrefix(String prefix, List<Integer> partitions) throws CloneNotSupportedException {
+        CountResults countResults = new CountResults();
+        partitioningService.runOnPartitions(partitions, prefix, new PrefixCountTask(luceneIndexService), countResults, 60, TimeUnit.SECONDS);
+        if (countResults.getFailedPartitions() > 0) {
+            // a partial count would look exact
+            throw new FileStorageException("Could not count files of " + countResults.getFailedPartitions() + " partitions.");
+        }
+        return countResults.getCount();
+    }
+
+    private void reconcileLoop() {
+        while (running) {
+            try {
+                Thread.sleep(storageConfigurations.getStatsReconcileIntervalMillis());
+                for (int partition : partitioningService.getLocalPartitions()) {
+                    // a warming up partition is walked by the warm-up itself
+                    if (warmUpService.isReady(partition)) {
+                        reconcile(partition);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Stats reconciliation failed", e);
+            }
+        }
+    }
+
+    /**
+     * @return false when the partition was written during the walk and its stats were kept
+     */
+    private boolean reconcile(int partition) {
+        PartitionStats stats = partitionStats[partition];
+        long version = stats.getVersion();
+        PartitionStats walked = walkPartition(partition);
+        long drift = walked.getCount() - stats.getCount();
+        if (!stats.reconcile(walked, version)) {
+            // written during the walk, the walk may have seen half of a change. Next round will tell.
+            logger.debug("Partition {} changed while reconciling its stats, skipped", partition);
+            return false;
+        }
+        if (drift != 0 && warmUpService.isReady(partition)) {
+            logger.warn("Stats of partition {} drifted by {} files, reconciled", partition, drift);
+        }
+        return true;
+    }
+
+    private PartitionStats walkPartition(int partition) {
+        PartitionStats stats = new PartitionStats();
+        try {
+            fileStorageService.walkPartitionFiles(partition,
+                    (file, attributes) -> stats.add(attributes.size(), attributes.lastModifiedTime().toMillis()));
+        } catch (IOException e) {
+            throw new FileStorageException("Could not count files from partition " + partition, e);
+        }
+        return stats;
+    }
+
+    private FileStats toFileStats(PartitionStats total) {
+        List<HistogramBucket> sizeHistogram = new ArrayList<>(SIZE_BOUNDS.length);
+        long from = 0L;
+        int bucket = 0;
+        for (long to : SIZE_BOUNDS) {
+            // the power of 2 buckets nest in the histogram ones, which are powers of 2 as well
+            long count = 0L;
+            while (bucket < PartitionStats.SIZE_BUCKETS && (bucket == 0 ? 0L : 1L << (bucket - 1)) < to) {
+                count += total.getSizeBucket(bucket++);
+            }
+            sizeHistogram.add(new HistogramBucket(from, to, count));
+            from = to;
+        }
+
+        long[] ageCounts = new long[AGE_BOUNDS.length];
+        long today = PartitionStats.toDay(System.currentTimeMillis());
+        total.getModifiedDays().forEach((day, files) -> {
+            long age = Math.max(0L, today - day);
+            int ageBucket = 0;
+            while (age >= AGE_BOUNDS[ageBucket]) {
+                ageBucket++;
+            }
+            ageCounts[ageBucket] += files;
+        });
+        List<HistogramBucket> ageHistogram = new ArrayList<>(AGE_BOUNDS.length);
+        from = 0L;
+        for (int i = 0; i < AGE_BOUNDS.length; i++) {
+            ageHistogram.add(new HistogramBucket(from, AGE_BOUNDS[i], ageCounts[i]));
+            from = AGE_BOUNDS[i];
+        }
+        return new FileStats(total.getCount(), total.getTotalBytes(), sizeHistogram, ageHistogram);
+    }
+
+    private void merge(FileStats stats, FileStats other) {
+        stats.setCount(stats.getCount() + other.getCount());
+        stats.setTotalBytes(stats.getTotalBytes() + other.getTotalBytes());
+        // every node uses the same bounds
+        for (int i = 0; i < stats.getSizeHistogram().size(); i++) {
+            HistogramBucket bucket = stats.getSizeHistogram().get(i);
+            bucket.setCount(bucket.getCount() + other.getSizeHistogram().get(i).getCount());
+        }
+        for (int i = 0; i < stats.getAgeHistogram().size(); i++) {
+            HistogramBucket bucket = stats.getAgeHistogram().get(i);
+            bucket.setCount(bucket.getCount() + other.getAgeHistogram().get(i).getCount());
+        }
+    }
+
+}
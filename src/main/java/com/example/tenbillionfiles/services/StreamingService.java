@@ -0,0 +1,192 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.exception.FileStorageException;
+import com.example.tenbillionfiles.services.admission.Admission;
+import com.example.tenbillionfiles.services.metadata.FileMetadata;
+import com.example.tenbillionfiles.services.partioning.PartitioningService;
+import com.example.tenbillionfiles.services.regex.RegexQuery;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Streaming variants of the storage operations.
+ *
+ * Uploads are read straight from the request stream into the partition (no spooling to a servlet temp file) on a
+ * bounded ingest pool, so the container threads are released while the bytes flow. Search results are published
+ * partition by partition as soon as each one is done.
+ */
+@Service
+public class StreamingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingService.class);
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private MultipartProperties multipartProperties;
+
+    @Autowired
+    private FileStorageService fileStorageService;
+
+    @Autowired
+    private PartitioningService partitioningService;
+
+    @Autowired
+    private RegexIndexService regexIndexService;
+
+    @Autowired
+    private LuceneIndexService luceneIndexService;
+
+    @Autowired
+    private IndexingService indexingService;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    @Autowired
+    private AdmissionService admissionService;
+
+    @Autowired
+    private WarmUpService warmUpService;
+
+    private ThreadPoolTaskExecutor ingestExecutor;
+
+    private Scheduler searchScheduler;
+
+    @PostConstruct
+    public void initExecutors() {
+        ThreadPoolTaskExecutor threadPoolTaskExecutor = new ThreadPoolTaskExecutor();
+        threadPoolTaskExecutor.setCorePoolSize(storageConfigurations.getIngestCorePoolSize());
+        threadPoolTaskExecutor.setMaxPoolSize(storageConfigurations.getIngestMaxPoolSize());
+        // when the queue is full new uploads are rejected instead of piling up
+        threadPoolTaskExecutor.setQueueCapacity(storageConfigurations.getIngestQueueCapacity());
+        threadPoolTaskExecutor.setThreadNamePrefix(storageConfigurations.getIngestThreadNamePrefix());
+        threadPoolTaskExecutor.initialize();
+        ingestExecutor = threadPoolTaskExecutor;
+
+        searchScheduler = Schedulers.fromExecutor(partitioningService.getExecutor());
+    }
+
+    public AsyncTaskExecutor getIngestExecutor() {
+        return ingestExecutor;
+    }
+
+    public FileMetadata ingest(String fileName, String contentType, InputStream content, boolean replace) {
+        if (replace) {
+            return fileStorageService.modifyFile(fileName, contentType, () -> content);
+        }
+        return fileStorageService.addFile(fileName, contentType, () -> content);
+    }
+
+    /**
+     * Stores every file part of a multipart request while it is being received.
+     */
+    public List<FileMetadata> ingestMultipart(HttpServletRequest request) {
+        ServletFileUpload upload = new ServletFileUpload();
+        upload.setFileSizeMax(multipartProperties.getMaxFileSize().toBytes());
+        upload.setSizeMax(multipartProperties.getMaxRequestSize().toBytes());
+
+        List<FileMetadata> stored = new ArrayList<>();
+        try {
+            FileItemIterator items = upload.getItemIterator(request);
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                if (item.isFormField()) {
+                    continue;
+                }
+                logger.debug("Streaming part '{}' of {}", item.getName(), request.getRequestURI());
+                // the part stream must be consumed before moving to the next one
+                stored.add(ingest(item.getName(), item.getContentType(), item.openStream(), false));
+            }
+        } catch (FileUploadException | IOException e) {
+            throw new FileStorageException("Could not read multipart upload.", e);
+        }
+        return stored;
+    }
+
+    public Flux<String> regexSearch(String regex, String engine, String consistency) {
+        RegexQuery query = regexIndexService.plan(regex, engine);
+        // admitted on the request thread, the slot is held until the stream ends
+        Admission admission = admissionService.admit(admissionService.estimateRegex(query, null));
+        try {
+            Map<Integer, List<Integer>> assignment = clusterService.assignPartitions(null);
+            // on the request thread, the headers are sent with the first result
+            return searchAllPartitions(consistency, warmUpService.readyPartitions(clusterService.getLocalPartitions(assignment)),
+                    partition -> regexIndexService.searchInPartition(query, partition),
+                    clusterService.scatterSearch("/regex", FileStorageService.regexParameters(regex, engine, consistency), assignment))
+                    .doFinally(signal -> admission.close());
+        } catch (RuntimeException e) {
+            admission.close();
+            throw e;
+        }
+    }
+
+    public Flux<String> luceneSearch(String query, String consistency) {
+        Admission admission = admissionService.admit(admissionService.estimateLucene(query, null));
+        try {
+            Map<Integer, List<Integer>> assignment = clusterService.assignPartitions(null);
+            return searchAllPartitions(consistency, warmUpService.readyPartitions(clusterService.getLocalPartitions(assignment)), partition -> {
+                try {
+                    return luceneIndexService.searchInPartition(query, partition);
+                } catch (IOException | ParseException e) {
+                    throw new FileStorageException("Exception searching '" + query + "' in partition [" + partition + "] .", e);
+                }
+            }, clusterService.scatterSearch("/search", "query", query, consistency, assignment))
+                    .doFinally(signal -> admission.close());
+        } catch (RuntimeException e) {
+            admission.close();
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void shutdownExecutors() {
+        ingestExecutor.shutdown();
+        searchScheduler.dispose();
+    }
+
+    /**
+     * Local partitions are published one by one, the other nodes answer with all of their results at once.
+     */
+    private Flux<String> searchAllPartitions(String consistency, List<Integer> partitions, PartitionSearch search,
+                                             CompletableFuture<List<String>> remote) {
+        return Mono.fromRunnable(() -> indexingService.awaitConsistency(consistency))
+                .subscribeOn(searchScheduler)
+                .thenMany(Flux.fromIterable(partitions)
+                        .flatMap(partition -> Mono.fromCallable(() -> search.searchInPartition(partition))
+                                .subscribeOn(searchScheduler)))
+                .mergeWith(Mono.fromFuture(remote))
+                .flatMapIterable(results -> results);
+    }
+
+    private interface PartitionSearch {
+        List<String> searchInPartition(int partition);
+    }
+
+}
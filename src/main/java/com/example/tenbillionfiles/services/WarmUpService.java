@@ -0,0 +1,308 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.exception.IndexNotReadyException;
+import com.example.tenbillionfiles.exception.PartitionUnavailableException;
+import com.example.tenbillionfiles.payload.WarmUpStatus;
+import com.example.tenbillionfiles.services.warmup.PartitionState;
+import com.example.tenbillionfiles.startup.StartupProfiler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Collectors;
+
+import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
+
+/**
+ * Brings the partitions online one by one, so the node serves requests right after startup.
+ *
+ * Storage, WAL and change log are opened before serving, metadata, indexes and stats are loaded in background.
+ * Searches skip the cold partitions and list them in the {@link #NOT_READY_HEADER}. A partition failing to open or
+ * to warm up is quarantined.
+ */
+@Service
+public class WarmUpService {
+
+    private static final Logger logger = LoggerFactory.getLogger(WarmUpService.class);
+
+    public static final String NOT_READY_HEADER = "X-Partitions-Not-Ready";
+
+    // partitions of the other nodes not ready for the current request, gathered by the scatter threads
+    private static final String REMOTE_NOT_READY_ATTRIBUTE = WarmUpService.class.getName() + ".remoteNotReady";
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private FileStorageService fileStorageService;
+
+    @Autowired
+    private LayoutMigrationService layoutMigrationService;
+
+    @Autowired
+    private WriteAheadLogService writeAheadLogService;
+
+    @Autowired
+    private ChangeFeedService changeFeedService;
+
+    @Autowired
+    private MetadataService metadataService;
+
+    @Autowired
+    private RegexIndexService regexIndexService;
+
+    @Autowired
+    private LuceneIndexService luceneIndexService;
+
+    @Autowired
+    private IndexingService indexingService;
+
+    @Autowired
+    private StatsService statsService;
+
+    @Autowired
+    private StartupProfiler startupProfiler;
+
+    private final AtomicReferenceArray<PartitionState> states = new AtomicReferenceArray<>(PARTITIONS_NUMBER);
+    private final AtomicLongArray demand = new AtomicLongArray(PARTITIONS_NUMBER);
+    private final long[] warmUpMillis = new long[PARTITIONS_NUMBER];
+    private final String[] errors = new String[PARTITIONS_NUMBER];
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    /**
+     * Opens what the partitions need to serve files, then starts warming them up in background.
+     */
+    public void start() {
+        logger.info("Start opening partitions.");
+        for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+            states.set(partition, PartitionState.COLD);
+            try {
+                long step = System.nanoTime();
+                fileStorageService.initStorage(partition);
+                layoutMigrationService.detectPendingMigration(partition);
+                startupProfiler.record(StartupProfiler.INIT_STORAGE, step);
+                step = System.nanoTime();
+                writeAheadLogService.openLog(partition);
+                startupProfiler.record(StartupProfiler.WAL, step);
+                step = System.nanoTime();
+                changeFeedService.openLog(partition);
+                startupProfiler.record(StartupProfiler.CHANGE_LOG, step);
+            } catch (IOException | RuntimeException e) {
+                quarantine(partition, e);
+            }
+        }
+        logger.info("End opening partitions, warming them up in background.");
+        checkAllWarmedUp();
+
+        for (int i = 0; i < storageConfigurations.getWarmupThreads(); i++) {
+            Thread worker = new Thread(this::warmUpLoop, "Partition-WarmUp-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    @PreDestroy
+    public void stopWorkers() {
+        workers.forEach(Thread::interrupt);
+    }
+
+    public boolean isReady(int partition) {
+        return states.get(partition) == PartitionState.READY;
+    }
+
+    /**
+     * @return the ready partitions among the given ones, the others are listed in the response header
+     */
+    public List<Integer> readyPartitions(List<Integer> partitions) {
+        List<Integer> ready = new ArrayList<>(partitions.size());
+        List<Integer> notReady = new ArrayList<>();
+        for (int partition : partitions) {
+            if (isReady(partition)) {
+                ready.add(partition);
+            } else {
+                demand.incrementAndGet(partition);
+                notReady.add(partition);
+            }
+        }
+        if (!notReady.isEmpty()) {
+            addNotReadyHeader(notReady);
+        }
+        return ready;
+    }
+
+    /**
+     * Refuses a query whose answer would look exact while missing cold partitions.
+     */
+    public void checkReady(List<Integer> partitions) {
+        List<Integer> notReady = new ArrayList<>();
+        for (int partition : partitions) {
+            if (!isReady(partition)) {
+                demand.incrementAndGet(partition);
+                notReady.add(partition);
+            }
+        }
+        if (!notReady.isEmpty()) {
+            throw new IndexNotReadyException("Partitions " + notReady + " are not ready yet, see /warmup.");
+        }
+    }
+
+    /**
+     * Refuses the writes on a quarantined partition, its indexer isn't running.
+     */
+    public void checkWritable(int partition) {
+        if (states.get(partition) == PartitionState.QUARANTINED) {
+            throw new PartitionUnavailableException("Partition " + partition + " is quarantined: " + errors[partition]);
+        }
+    }
+
+    /**
+     * Records the partitions another node answered without, called by the scatter threads of the request.
+     */
+    @SuppressWarnings("unchecked")
+    public void recordRemoteNotReady(RequestAttributes attributes, List<String> headerValues) {
+        if (attributes == null || headerValues == null) {
+            return;
+        }
+        Set<Integer> remoteNotReady;
+        synchronized (attributes) {
+            remoteNotReady = (Set<Integer>) attributes.getAttribute(REMOTE_NOT_READY_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+            if (remoteNotReady == null) {
+                remoteNotReady = new ConcurrentSkipListSet<>();
+                attributes.setAttribute(REMOTE_NOT_READY_ATTRIBUTE, remoteNotReady, RequestAttributes.SCOPE_REQUEST);
+            }
+        }
+        for (String value : headerValues) {
+            for (String partition : value.split(",")) {
+                if (!partition.trim().isEmpty()) {
+                    remoteNotReady.add(Integer.valueOf(partition.trim()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the partitions recorded from the other nodes to the response header, on the request thread.
+     */
+    @SuppressWarnings("unchecked")
+    public void reportRemoteNotReady() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes == null) {
+            return;
+        }
+        Set<Integer> remoteNotReady = (Set<Integer>) attributes.getAttribute(REMOTE_NOT_READY_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if (remoteNotReady != null && !remoteNotReady.isEmpty()) {
+            addNotReadyHeader(remoteNotReady);
+        }
+    }
+
+    public List<WarmUpStatus> getStatus() {
+        List<WarmUpStatus> status = new ArrayList<>(PARTITIONS_NUMBER);
+        for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+            status.add(new WarmUpStatus(partition, states.get(partition), demand.get(partition),
+                    warmUpMillis[partition], errors[partition]));
+        }
+        return status;
+    }
+
+    private void warmUpLoop() {
+        int partition;
+        while (!Thread.currentThread().isInterrupted() && (partition = nextPartition()) >= 0) {
+            warmUp(partition);
+            checkAllWarmedUp();
+        }
+    }
+
+    private void checkAllWarmedUp() {
+        for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+            PartitionState state = states.get(partition);
+            if (state == PartitionState.COLD || state == PartitionState.WARMING) {
+                return;
+            }
+        }
+        startupProfiler.partitionsReady();
+    }
+
+    /**
+     * Picks the cold partition to warm up next: the configured priorities in order, then the most asked for.
+     *
+     * @return -1 when every partition is taken
+     */
+    private synchronized int nextPartition() {
+        for (int partition : storageConfigurations.getWarmupPriorityPartitions()) {
+            if (partition >= 0 && partition < PARTITIONS_NUMBER
+                    && states.compareAndSet(partition, PartitionState.COLD, PartitionState.WARMING)) {
+                return partition;
+            }
+        }
+        int next = -1;
+        for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+            if (states.get(partition) == PartitionState.COLD && (next < 0 || demand.get(partition) > demand.get(next))) {
+                next = partition;
+            }
+        }
+        if (next >= 0) {
+            states.set(next, PartitionState.WARMING);
+        }
+        return next;
+    }
+
+    private void warmUp(int partition) {
+        long start = System.nanoTime();
+        logger.info("Start warm-up of partition {}.", partition);
+        try {
+            long step = System.nanoTime();
+            metadataService.warmUp(partition);
+            startupProfiler.record(StartupProfiler.METADATA, step);
+            // the writes logged from here are applied by the indexer
+            long recoveredSequence = writeAheadLogService.getLastSequence(partition);
+            step = System.nanoTime();
+            regexIndexService.initIndex(partition);
+            startupProfiler.record(StartupProfiler.REGEX_INDEX, step);
+            step = System.nanoTime();
+            luceneIndexService.initIndex(partition);
+            startupProfiler.record(StartupProfiler.LUCENE_INDEX, step);
+            writeAheadLogService.recovered(partition, recoveredSequence);
+            indexingService.startIndexer(partition);
+            step = System.nanoTime();
+            statsService.warmUp(partition);
+            startupProfiler.record(StartupProfiler.STATS, step);
+            warmUpMillis[partition] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            states.set(partition, PartitionState.READY);
+            logger.info("End warm-up of partition {} in {} ms.", partition, warmUpMillis[partition]);
+        } catch (IOException | RuntimeException e) {
+            quarantine(partition, e);
+        }
+    }
+
+    private void quarantine(int partition, Exception e) {
+        errors[partition] = e.toString();
+        states.set(partition, PartitionState.QUARANTINED);
+        logger.error("Partition " + partition + " is quarantined, it won't be searched nor written until the next restart", e);
+    }
+
+    private void addNotReadyHeader(Collection<Integer> partitions) {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (!(attributes instanceof ServletRequestAttributes) || ((ServletRequestAttributes) attributes).getResponse() == null) {
+            return;
+        }
+        String partitionList = partitions.stream().map(String::valueOf).collect(Collectors.joining(","));
+        ((ServletRequestAttributes) attributes).getResponse().addHeader(NOT_READY_HEADER, partitionList);
+    }
+}
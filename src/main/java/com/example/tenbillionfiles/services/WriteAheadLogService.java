@@ -0,0 +1,194 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.services.wal.PartitionWal;
+import com.example.tenbillionfiles.services.wal.WalOperation;
+import com.example.tenbillionfiles.services.wal.WalRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
+
+/**
+ * Per partition write-ahead logs of add / modify / delete operations.
+ *
+ * Every write is logged (and fsync-ed through group commit) before the file system and the indexes are touched.
+ * At startup only the records after the last checkpoint have to be replayed against the indexes, a partition
+ * is not checkpointed again before its warm-up replayed them. Checkpoints are written by the checkpointer thread.
+ */
+@Service
+public class WriteAheadLogService {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLogService.class);
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private FileStorageService fileStorageService;
+
+    @Autowired
+    private ChangeFeedService changeFeedService;
+
+    // null for a partition whose log could not be opened
+    private final PartitionWal[] partitionWals = new PartitionWal[PARTITIONS_NUMBER];
+
+    // partitions whose indexes may miss the log tail, not checkpointed until they are warmed up
+    private final boolean[] recovering = new boolean[PARTITIONS_NUMBER];
+
+    private final AtomicLong completedSinceCheckpoint = new AtomicLong();
+
+    // set by the writers, the checkpointer waits on it
+    private final Object checkpointMonitor = new Object();
+    private boolean checkpointRequested;
+
+    private volatile boolean running;
+    private Thread checkpointer;
+
+    @PostConstruct
+    public void initCheckpointer() {
+        running = true;
+        // never interrupted, an fsync interrupted would close the log
+        checkpointer = new Thread(this::checkpointLoop, "Wal-Checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    public void openLog(int partition) throws IOException {
+        PartitionWal wal = new PartitionWal(partition, fileStorageService.getWalLocation(partition),
+                storageConfigurations.getWalMaxSize());
+        logger.debug("WAL of partition {} recovered at sequence {} (checkpoint {})",
+                partition, wal.getLastSequence(), wal.getCheckpointSequence());
+        synchronized (partitionWals) {
+            recovering[partition] = true;
+            partitionWals[partition] = wal;
+        }
+    }
+
+    /**
+     * Logs an operation and waits until it is durable.
+     * @return sequence number to pass to {@link #complete(int, long)} once the operation is applied
+     */
+    public long append(int partition, WalOperation operation, String fileName) {
+        return partitionWals[partition].append(operation, fileName);
+    }
+
+    /**
+     * Marks a logged operation as applied (or abandoned) so the checkpoint can move past it.
+     */
+    public void complete(int partition, long sequence) {
+        partitionWals[partition].complete(sequence);
+        if (completedSinceCheckpoint.incrementAndGet() >= storageConfigurations.getWalCheckpointInterval()) {
+            completedSinceCheckpoint.set(0);
+            synchronized (checkpointMonitor) {
+                checkpointRequested = true;
+                checkpointMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * True when the partition was checkpointed before, so its persisted index only misses the log tail.
+     */
+    public boolean isRecoverable(int partition) {
+        return partitionWals[partition].hasCheckpoint();
+    }
+
+    public List<WalRecord> readTail(int partition) throws IOException {
+        return partitionWals[partition].readTail();
+    }
+
+    public long getLastSequence(int partition) {
+        return partitionWals[partition].getLastSequence();
+    }
+
+    /**
+     * Declares the indexes of the partition recovered up to the sequence. It is checkpointed there, or before the
+     * records still queued, and from then on along with the other partitions.
+     */
+    public void recovered(int partition, long recoveredSequence) throws IOException {
+        PartitionWal wal = partitionWals[partition];
+        synchronized (partitionWals) {
+            long appliedSequence = Math.min(recoveredSequence, wal.getAppliedSequence());
+            changeFeedService.syncLog(partition);
+            wal.checkpoint(appliedSequence);
+            recovering[partition] = false;
+        }
+    }
+
+    public void checkpointAll() {
+        synchronized (partitionWals) {
+            for (int partition = 0; partition < PARTITIONS_NUMBER; partition++) {
+                PartitionWal wal = partitionWals[partition];
+                if (wal == null || recovering[partition]) {
+                    continue;
+                }
+                try {
+                    long appliedSequence = wal.getAppliedSequence();
+                    // the changes of the applied records are durable before the checkpoint moves past them
+                    changeFeedService.syncLog(partition);
+                    wal.checkpoint(appliedSequence);
+                } catch (IOException e) {
+                    logger.error("Could not checkpoint WAL of partition " + partition, e);
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void closeLogs() {
+        running = false;
+        synchronized (checkpointMonitor) {
+            checkpointMonitor.notifyAll();
+        }
+        if (checkpointer != null) {
+            try {
+                checkpointer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        checkpointAll();
+        for (PartitionWal wal : partitionWals) {
+            if (wal == null) {
+                continue;
+            }
+            try {
+                wal.close();
+            } catch (IOException e) {
+                logger.error("Could not close WAL of partition " + wal.getPartition(), e);
+            }
+        }
+    }
+
+    private void checkpointLoop() {
+        while (running) {
+            synchronized (checkpointMonitor) {
+                if (running && !checkpointRequested) {
+                    try {
+                        checkpointMonitor.wait(storageConfigurations.getWalCheckpointIntervalMillis());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                checkpointRequested = false;
+            }
+            if (!running) {
+                return;
+            }
+            try {
+                checkpointAll();
+            } catch (RuntimeException e) {
+                logger.error("WAL checkpoint failed", e);
+            }
+        }
+    }
+}
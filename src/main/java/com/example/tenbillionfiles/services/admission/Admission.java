@@ -0,0 +1,27 @@
+package com.example.tenbillionfiles.services.admission;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A running admitted query, closing it frees its concurrency slot.
+ */
+public class Admission implements AutoCloseable {
+
+    public static final Admission UNLIMITED = new Admission(null);
+
+    private final Semaphore slots;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public Admission(Semaphore slots) {
+        this.slots = slots;
+    }
+
+    @Override
+    public void close() {
+        if (slots != null && closed.compareAndSet(false, true)) {
+            slots.release();
+        }
+    }
+}
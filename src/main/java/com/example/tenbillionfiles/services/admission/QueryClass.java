@@ -0,0 +1,13 @@
+package com.example.tenbillionfiles.services.admission;
+
+/**
+ * Cost class of a search, from its estimated number of names to examine.
+ */
+public enum QueryClass {
+    // term lookups and small scans, never limited
+    CHEAP,
+    // scans of the indexes with a byte matcher or a lucene prefix / wildcard
+    MODERATE,
+    // large scans with the regex engine, leading wildcards, queries returning every name
+    EXPENSIVE
+}
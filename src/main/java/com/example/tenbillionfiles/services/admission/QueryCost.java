@@ -0,0 +1,22 @@
+package com.example.tenbillionfiles.services.admission;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class QueryCost {
+
+    private final QueryClass queryClass;
+
+    // names expected to be examined, times the relative cost of examining one
+    private final long cost;
+
+    // what made the query cost that much, reported when it is rejected
+    private final String reason;
+
+    @Override
+    public String toString() {
+        return queryClass + " (" + reason + ", cost " + cost + ")";
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.tenbillionfiles.services.admission;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refills at a fixed rate up to its capacity. A token not available yet can be reserved, the caller then waits
+ * for it, which queues the callers in reservation order.
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double tokensPerNano;
+
+    private double tokens;
+    private long refilledNanos;
+
+    public TokenBucket(double tokensPerSecond, double capacity) {
+        this.capacity = Math.max(1.0, capacity);
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.tokens = this.capacity;
+        this.refilledNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes a token, or reserves the next one when it comes within maxWaitNanos.
+     *
+     * @return nanoseconds to wait before using the token, -1 when none can be had in time (nothing is taken)
+     */
+    public synchronized long reserve(long maxWaitNanos) {
+        refill();
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return 0L;
+        }
+        if (tokensPerNano <= 0.0) {
+            return -1L;
+        }
+        long waitNanos = (long) Math.ceil((1.0 - tokens) / tokensPerNano);
+        if (waitNanos > maxWaitNanos) {
+            return -1L;
+        }
+        // goes below 0, the following callers wait behind this one
+        tokens -= 1.0;
+        return waitNanos;
+    }
+
+    /**
+     * Gives back a token taken by reserve, when the query is finally not run.
+     */
+    public synchronized void cancel() {
+        tokens = Math.min(capacity, tokens + 1.0);
+    }
+
+    /**
+     * True when the bucket is full, i.e. its client was idle long enough for the bucket to be forgotten.
+     */
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledNanos) * tokensPerNano);
+        refilledNanos = now;
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.tenbillionfiles.services.cache;
+
+/**
+ * Content of one file held in the pages of the cache. Guarded by the lock of {@link ContentCache}.
+ *
+ * The pages are only given back once the entry is removed and no response is streaming it anymore.
+ */
+public class CachedContent {
+
+    enum Region {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private final String fileName;
+    // ETag of the metadata the content was read with
+    private final String version;
+    private final int[] pages;
+    private final int length;
+    private final long weight;
+
+    Region region = Region.WINDOW;
+    int readers;
+    boolean removed;
+
+    CachedContent(String fileName, String version, int[] pages, int length, long weight) {
+        this.fileName = fileName;
+        this.version = version;
+        this.pages = pages;
+        this.length = length;
+        this.weight = weight;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    int[] getPages() {
+        return pages;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    long getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.tenbillionfiles.services.cache;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * File served from the content cache, or from the disk resource when it was evicted before being streamed.
+ */
+public class CachedResource extends AbstractResource {
+
+    private final ContentCache cache;
+    private final CachedContent content;
+    private final Resource diskResource;
+    private final boolean hit;
+
+    public CachedResource(ContentCache cache, CachedContent content, Resource diskResource, boolean hit) {
+        this.cache = cache;
+        this.content = content;
+        this.diskResource = diskResource;
+        this.hit = hit;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        InputStream cached = cache.open(content, hit);
+        return cached != null ? cached : diskResource.getInputStream();
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return content.getLength();
+    }
+
+    @Override
+    public String getFilename() {
+        return content.getFileName();
+    }
+
+    @Override
+    public String getDescription() {
+        return "Cached content of " + content.getFileName();
+    }
+}
@@ -0,0 +1,300 @@
+package com.example.tenbillionfiles.services.cache;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded off-heap cache of file contents with a size aware W-TinyLFU policy.
+ *
+ * New contents always enter a small LRU window. What falls out of the window is a candidate for the main space
+ * (a probation LRU and a protected LRU for the entries hit again while in probation): it is only admitted when
+ * the {@link FrequencySketch} saw its name more often than each probation victim that has to leave to make room,
+ * otherwise the candidate itself is dropped. A burst of one-time reads therefore only churns the window, the
+ * frequently read files stay. Weights are the pages taken, so the budget is the off-heap memory really used.
+ */
+public class ContentCache {
+
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final SlabPages pages;
+    private final FrequencySketch sketch;
+
+    private final Map<String, CachedContent> entries = new HashMap<>();
+    // insertion ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, CachedContent> window = new LinkedHashMap<>();
+    private final LinkedHashMap<String, CachedContent> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, CachedContent> protectedRegion = new LinkedHashMap<>();
+
+    private final long windowMaxWeight;
+    private final long mainMaxWeight;
+    private final long protectedMaxWeight;
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    @Getter
+    private final AtomicLong hits = new AtomicLong();
+    @Getter
+    private final AtomicLong misses = new AtomicLong();
+    @Getter
+    private final AtomicLong evictions = new AtomicLong();
+    @Getter
+    private final AtomicLong rejections = new AtomicLong();
+    @Getter
+    private final AtomicLong invalidations = new AtomicLong();
+    @Getter
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public ContentCache(SlabPages pages, double windowRatio, long maxContentLength) {
+        this.pages = pages;
+        long maxWeight = (long) pages.getTotalPages() * pages.getPageSize();
+        long largestWeight = (long) pages.pagesFor(maxContentLength) * pages.getPageSize();
+        // the window must hold the largest content, or it could never be cached
+        this.windowMaxWeight = Math.min(maxWeight, Math.max(largestWeight, (long) (maxWeight * windowRatio)));
+        this.mainMaxWeight = maxWeight - windowMaxWeight;
+        this.protectedMaxWeight = (long) (mainMaxWeight * PROTECTED_RATIO);
+        this.sketch = new FrequencySketch(pages.getTotalPages());
+    }
+
+    /**
+     * Records the access and returns the content when cached with the same version.
+     */
+    public synchronized CachedContent get(String fileName, String version) {
+        sketch.increment(fileName.hashCode());
+        CachedContent content = entries.get(fileName);
+        if (content == null || !content.getVersion().equals(version)) {
+            if (content != null) {
+                // written since, the write path normally invalidates it first
+                remove(content);
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        switch (content.region) {
+            case WINDOW:
+                touch(window, content);
+                break;
+            case PROBATION:
+                // hit again, promoted to the protected region
+                probation.remove(fileName);
+                probationWeight -= content.getWeight();
+                content.region = CachedContent.Region.PROTECTED;
+                protectedRegion.put(fileName, content);
+                protectedWeight += content.getWeight();
+                demoteProtected();
+                break;
+            default:
+                touch(protectedRegion, content);
+        }
+        return content;
+    }
+
+    /**
+     * Stores the content in the window, making room by pushing the eldest window entries to the main space.
+     *
+     * @return the cached content, null when it is larger than the window
+     */
+    public synchronized CachedContent put(String fileName, String version, byte[] content, int length) {
+        int pageCount = pages.pagesFor(length);
+        long weight = (long) pageCount * pages.getPageSize();
+        if (weight > windowMaxWeight) {
+            rejections.incrementAndGet();
+            return null;
+        }
+        CachedContent existing = entries.get(fileName);
+        if (existing != null) {
+            remove(existing);
+        }
+        // room is made before the pages are taken, the resident weights never exceed the pages of the budget
+        windowWeight += weight;
+        while (windowWeight > windowMaxWeight && !window.isEmpty()) {
+            CachedContent candidate = removeEldest(window);
+            windowWeight -= candidate.getWeight();
+            admitToMain(candidate);
+        }
+        int[] allocated = pages.allocate(pageCount);
+        if (allocated == null) {
+            // the pages of removed entries still streamed aren't back yet
+            windowWeight -= weight;
+            rejections.incrementAndGet();
+            return null;
+        }
+        pages.write(allocated, content, length);
+        CachedContent cached = new CachedContent(fileName, version, allocated, length, weight);
+        entries.put(fileName, cached);
+        window.put(fileName, cached);
+        return cached;
+    }
+
+    public synchronized void invalidate(String fileName) {
+        CachedContent content = entries.get(fileName);
+        if (content != null) {
+            remove(content);
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Opens the content for reading, the pages stay allocated until the stream is closed.
+     *
+     * @param hit false when the content was just read from the disk to be cached
+     * @return null when the content was removed since it was returned by get or put
+     */
+    public InputStream open(CachedContent content, boolean hit) {
+        synchronized (this) {
+            if (content.removed) {
+                return null;
+            }
+            content.readers++;
+        }
+        if (hit) {
+            bytesSaved.addAndGet(content.getLength());
+        }
+        return new PagesInputStream(content);
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getUsedBytes() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    public long getMaxBytes() {
+        return windowMaxWeight + mainMaxWeight;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return pages.getAllocatedBytes();
+    }
+
+    private void admitToMain(CachedContent candidate) {
+        int candidateFrequency = sketch.frequency(candidate.getFileName().hashCode());
+        while (probationWeight + protectedWeight + candidate.getWeight() > mainMaxWeight) {
+            LinkedHashMap<String, CachedContent> victims = probation.isEmpty() ? protectedRegion : probation;
+            CachedContent victim = victims.isEmpty() ? null : victims.values().iterator().next();
+            if (victim != null && candidateFrequency > sketch.frequency(victim.getFileName().hashCode())) {
+                remove(victim);
+                evictions.incrementAndGet();
+            } else {
+                candidate.region = null;
+                remove(candidate);
+                rejections.incrementAndGet();
+                return;
+            }
+        }
+        candidate.region = CachedContent.Region.PROBATION;
+        probation.put(candidate.getFileName(), candidate);
+        probationWeight += candidate.getWeight();
+    }
+
+    private void demoteProtected() {
+        while (protectedWeight > protectedMaxWeight) {
+            CachedContent demoted = removeEldest(protectedRegion);
+            protectedWeight -= demoted.getWeight();
+            demoted.region = CachedContent.Region.PROBATION;
+            probation.put(demoted.getFileName(), demoted);
+            probationWeight += demoted.getWeight();
+        }
+    }
+
+    private void remove(CachedContent content) {
+        entries.remove(content.getFileName());
+        if (content.region != null) {
+            switch (content.region) {
+                case WINDOW:
+                    window.remove(content.getFileName());
+                    windowWeight -= content.getWeight();
+                    break;
+                case PROBATION:
+                    probation.remove(content.getFileName());
+                    probationWeight -= content.getWeight();
+                    break;
+                default:
+                    protectedRegion.remove(content.getFileName());
+                    protectedWeight -= content.getWeight();
+            }
+        }
+        content.removed = true;
+        if (content.readers == 0) {
+            pages.free(content.getPages());
+        }
+    }
+
+    private synchronized void release(CachedContent content) {
+        if (--content.readers == 0 && content.removed) {
+            pages.free(content.getPages());
+        }
+    }
+
+    private static void touch(LinkedHashMap<String, CachedContent> region, CachedContent content) {
+        region.remove(content.getFileName());
+        region.put(content.getFileName(), content);
+    }
+
+    private static CachedContent removeEldest(LinkedHashMap<String, CachedContent> region) {
+        Iterator<CachedContent> eldest = region.values().iterator();
+        CachedContent content = eldest.next();
+        eldest.remove();
+        return content;
+    }
+
+    private final class PagesInputStream extends InputStream {
+
+        private final CachedContent content;
+        private int position;
+        private ByteBuffer page;
+        private boolean closed;
+
+        private PagesInputStream(CachedContent content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            int remaining = content.getLength() - position;
+            if (remaining <= 0) {
+                return -1;
+            }
+            if (page == null || !page.hasRemaining()) {
+                page = pages.page(content.getPages()[position / pages.getPageSize()]);
+            }
+            int count = Math.min(length, Math.min(remaining, page.remaining()));
+            page.get(buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return content.getLength() - position;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(content);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.tenbillionfiles.services.cache;
+
+/**
+ * Approximate access counts of the file names, seen or not by the cache: a count-min sketch of 4-bit counters.
+ *
+ * Each name updates one counter in 4 of the longs of the table (16 counters per long), its frequency is the
+ * smallest of them. Once sampleSize increments were recorded every counter is halved, so the counts follow
+ * the recent popularity instead of growing forever. Not thread-safe, {@link ContentCache} locks it.
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    public FrequencySketch(long expectedEntries) {
+        int length = Integer.highestOneBit((int) Math.min(1 << 28, Math.max(16L, expectedEntries)) * 2 - 1);
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = 10 * length;
+    }
+
+    public int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long indexHash = indexHash(hash, i);
+            int shift = counterShift(indexHash);
+            frequency = Math.min(frequency, (int) ((table[index(indexHash)] >>> shift) & 0xFL));
+        }
+        return frequency;
+    }
+
+    public void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long indexHash = indexHash(hash, i);
+            int index = index(indexHash);
+            int shift = counterShift(indexHash);
+            if (((table[index] >>> shift) & 0xFL) < MAX_COUNT) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private long indexHash(int hash, int i) {
+        long indexHash = (hash + SEEDS[i]) * SEEDS[i];
+        return indexHash ^ (indexHash >>> 32);
+    }
+
+    private int index(long indexHash) {
+        return (int) (indexHash >>> 4) & tableMask;
+    }
+
+    private int counterShift(long indexHash) {
+        return (int) (indexHash & 15) << 2;
+    }
+}
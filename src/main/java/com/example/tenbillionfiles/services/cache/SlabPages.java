@@ -0,0 +1,104 @@
+package com.example.tenbillionfiles.services.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed size pages carved out of direct (off-heap) slabs, allocated on first use.
+ *
+ * A cached file takes ceil(size / pageSize) pages that don't need to be contiguous, so freed space is always
+ * reusable and the only waste is the end of the last page. Not thread-safe, {@link ContentCache} locks it.
+ */
+public class SlabPages {
+
+    private final int pageSize;
+    private final int pagesPerSlab;
+    private final int totalPages;
+    private final ByteBuffer[] slabs;
+
+    // pages given back, reused before the never used ones
+    private final int[] freePages;
+    private int freeCount;
+    private int nextUnusedPage;
+
+    public SlabPages(long maxBytes, int pageSize, int slabSize) {
+        if (slabSize % pageSize != 0) {
+            throw new IllegalStateException("The slab size must be a multiple of the page size, got " + slabSize + " and " + pageSize);
+        }
+        this.pageSize = pageSize;
+        this.pagesPerSlab = slabSize / pageSize;
+        this.totalPages = (int) Math.min(Integer.MAX_VALUE - 8, maxBytes / pageSize);
+        this.slabs = new ByteBuffer[(totalPages + pagesPerSlab - 1) / pagesPerSlab];
+        this.freePages = new int[totalPages];
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getTotalPages() {
+        return totalPages;
+    }
+
+    public int pagesFor(long bytes) {
+        return (int) ((bytes + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * @return the pages, or null when fewer than count are free
+     */
+    public int[] allocate(int count) {
+        if (count > freeCount + totalPages - nextUnusedPage) {
+            return null;
+        }
+        int[] pages = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (freeCount > 0) {
+                pages[i] = freePages[--freeCount];
+            } else {
+                int page = nextUnusedPage++;
+                int slab = page / pagesPerSlab;
+                if (slabs[slab] == null) {
+                    // the last slab only holds the pages left in the budget
+                    int slabPages = Math.min(pagesPerSlab, totalPages - slab * pagesPerSlab);
+                    slabs[slab] = ByteBuffer.allocateDirect(slabPages * pageSize);
+                }
+                pages[i] = page;
+            }
+        }
+        return pages;
+    }
+
+    public void free(int[] pages) {
+        for (int page : pages) {
+            freePages[freeCount++] = page;
+        }
+    }
+
+    public void write(int[] pages, byte[] content, int length) {
+        for (int i = 0; i < pages.length; i++) {
+            int offset = i * pageSize;
+            page(pages[i]).put(content, offset, Math.min(pageSize, length - offset));
+        }
+    }
+
+    /**
+     * @return a buffer over the page, positioned at its start, for the calling thread only
+     */
+    public ByteBuffer page(int page) {
+        ByteBuffer buffer = slabs[page / pagesPerSlab].duplicate();
+        int start = (page % pagesPerSlab) * pageSize;
+        buffer.limit(start + pageSize);
+        buffer.position(start);
+        return buffer;
+    }
+
+    public long getAllocatedBytes() {
+        long bytes = 0L;
+        for (ByteBuffer slab : slabs) {
+            if (slab != null) {
+                bytes += slab.capacity();
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.tenbillionfiles.services.changes;
+
+import com.example.tenbillionfiles.exception.FileStorageException;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Position of a consumer in the change feed: the epoch of the log and the next sequence, per partition.
+ *
+ * Sent as "partition:epoch:sequence" entries separated by ',', epoch and sequence in hex. A partition missing
+ * from the cursor is read from its current end.
+ */
+public class ChangeCursor {
+
+    private final Map<Integer, long[]> positions = new TreeMap<>();
+
+    public static ChangeCursor parse(String token) {
+        ChangeCursor cursor = new ChangeCursor();
+        if (token == null || token.trim().isEmpty()) {
+            return cursor;
+        }
+        try {
+            for (String entry : token.split(",")) {
+                String[] fields = entry.trim().split(":");
+                if (fields.length != 3) {
+                    throw new NumberFormatException(entry);
+                }
+                cursor.put(Integer.parseInt(fields[0]), Long.parseLong(fields[1], 16), Long.parseLong(fields[2], 16));
+            }
+        } catch (NumberFormatException e) {
+            throw new FileStorageException("Invalid change feed position '" + token + "'", e);
+        }
+        return cursor;
+    }
+
+    public boolean contains(int partition) {
+        return positions.containsKey(partition);
+    }
+
+    public long getEpoch(int partition) {
+        return positions.get(partition)[0];
+    }
+
+    public long getSequence(int partition) {
+        return positions.get(partition)[1];
+    }
+
+    public void put(int partition, long epoch, long sequence) {
+        positions.put(partition, new long[]{epoch, sequence});
+    }
+
+    public void putAll(ChangeCursor other) {
+        positions.putAll(other.positions);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder token = new StringBuilder();
+        positions.forEach((partition, position) -> {
+            if (token.length() > 0) {
+                token.append(',');
+            }
+            token.append(partition).append(':').append(Long.toHexString(position[0]))
+                    .append(':').append(Long.toHexString(position[1]));
+        });
+        return token.toString();
+    }
+}
@@ -0,0 +1,358 @@
+package com.example.tenbillionfiles.services.changes;
+
+import com.example.tenbillionfiles.services.wal.WalOperation;
+import com.example.tenbillionfiles.services.wal.WalRecord;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Change feed of one partition: the files added, modified and deleted, numbered from 0 in the order they were
+ * written.
+ *
+ * The last {capacity} changes are kept in memory, the older ones are read back from the log on disk, in the
+ * {@link WalRecord} format. The log is rolled over once at max size, so up to twice that much history is kept.
+ * Appends are not fsync-ed, {@link #sync()} makes everything appended so far durable in a single fsync, and only
+ * the synced changes are read: a crash can lose changes, never one a consumer has seen. A log not closed cleanly
+ * keeps its epoch and its synced prefix, the lost tail is appended again from the WAL by the caller. A log that
+ * failed is restarted under a new epoch, which tells the consumers positioned in the previous one to resync.
+ */
+public class ChangeLog implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeLog.class);
+
+    private static final String LOG_FILE = "changes.log";
+    private static final String ROLLED_FILE = "changes.log.1";
+    private static final String EPOCH_FILE = "changes.epoch";
+    // written at close with the next sequence, removed while the log is open
+    private static final String CLEAN_FILE = "changes.clean";
+
+    private static final SecureRandom EPOCHS = new SecureRandom();
+
+    @Getter
+    private final int partition;
+
+    @Getter
+    private final long epoch;
+
+    // false when the changes not synced before the last stop may be lost
+    @Getter
+    private final boolean closedCleanly;
+
+    private final Path logFile;
+    private final Path rolledFile;
+    private final Path epochFile;
+    private final Path cleanFile;
+    private final long maxLogSize;
+
+    private final WalRecord[] records;
+
+    private FileChannel channel;
+
+    // sequence the next appended change gets
+    private long nextSequence;
+    // the changes before it are durable, and readable
+    private long syncedSequence;
+    // oldest sequence of the current log file, the older ones are in the rolled one
+    private long logFirstSequence;
+    // oldest sequence held in memory
+    private long memoryFirstSequence;
+
+    private boolean failed;
+
+    public ChangeLog(int partition, Path logDir, int capacity, long maxLogSize) throws IOException {
+        this.partition = partition;
+        this.logFile = logDir.resolve(LOG_FILE);
+        this.rolledFile = logDir.resolve(ROLLED_FILE);
+        this.epochFile = logDir.resolve(EPOCH_FILE);
+        this.cleanFile = logDir.resolve(CLEAN_FILE);
+        this.maxLogSize = maxLogSize;
+        this.records = new WalRecord[capacity];
+
+        Files.createDirectories(logDir);
+        Long cleanSequence = readLong(cleanFile);
+        Long previousEpoch = readLong(epochFile);
+        if (previousEpoch != null) {
+            epoch = previousEpoch;
+            nextSequence = cleanSequence != null ? cleanSequence : 0L;
+            closedCleanly = cleanSequence != null;
+        } else {
+            // first start, or the log failed and some changes were never recorded
+            epoch = EPOCHS.nextLong() & Long.MAX_VALUE;
+            nextSequence = 0L;
+            closedCleanly = true;
+            boolean previousLog = Files.deleteIfExists(logFile) | Files.deleteIfExists(rolledFile);
+            writeLong(epochFile, epoch);
+            if (previousLog) {
+                logger.warn("Change log of partition {} failed before its last stop, restarted as epoch {}", partition, Long.toHexString(epoch));
+            }
+        }
+
+        long validLength = recover();
+        // whatever survived was synced or written at close
+        syncedSequence = nextSequence;
+        channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > validLength) {
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+        Files.deleteIfExists(cleanFile);
+    }
+
+    /**
+     * Must be called under the write lock of the name, so the changes of a name are numbered in order.
+     *
+     * @return the sequence of the change, -1 when the log is broken
+     */
+    public synchronized long append(WalOperation operation, String fileName) {
+        if (failed) {
+            return -1L;
+        }
+        WalRecord record = new WalRecord(nextSequence, operation, fileName);
+        ByteBuffer buffer = ByteBuffer.allocate(record.encodedLength());
+        record.writeTo(buffer);
+        buffer.flip();
+        boolean full;
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            full = channel.position() > maxLogSize;
+        } catch (IOException e) {
+            // the change is applied but missing from the log, its consumers have to resync
+            fail("Change log of partition " + partition + " is not writable anymore", e);
+            return -1L;
+        }
+        remember(record);
+        nextSequence++;
+        if (full) {
+            roll();
+        }
+        return record.getSequence();
+    }
+
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * The changes before it survive a crash, the ones after may be lost and numbered again.
+     */
+    public synchronized long getSyncedSequence() {
+        return syncedSequence;
+    }
+
+    /**
+     * Makes the changes appended so far durable, and readable. The caller appending concurrently is not held up
+     * by the fsync.
+     */
+    public void sync() {
+        long sequence;
+        FileChannel current;
+        synchronized (this) {
+            if (failed || syncedSequence == nextSequence) {
+                return;
+            }
+            sequence = nextSequence;
+            current = channel;
+        }
+        try {
+            current.force(false);
+        } catch (ClosedByInterruptException e) {
+            // the channel is closed, unsynced
+            synchronized (this) {
+                fail("Interrupted syncing change log of partition " + partition, e);
+            }
+            return;
+        } catch (ClosedChannelException e) {
+            // rolled over or closed meanwhile, after the same fsync
+        } catch (IOException e) {
+            synchronized (this) {
+                fail("Could not sync change log of partition " + partition, e);
+            }
+            return;
+        }
+        synchronized (this) {
+            syncedSequence = Math.max(syncedSequence, sequence);
+        }
+    }
+
+    /**
+     * Up to max changes starting at the sequence, empty when there is none yet, null when it is not kept anymore
+     * (or never was).
+     */
+    public List<WalRecord> read(long fromSequence, int max) throws IOException {
+        long next;
+        long firstInLog;
+        synchronized (this) {
+            if (failed || fromSequence > nextSequence) {
+                return null;
+            }
+            if (fromSequence >= syncedSequence) {
+                // the changes not synced yet are read once they are
+                return new ArrayList<>();
+            }
+            next = syncedSequence;
+            firstInLog = logFirstSequence;
+            if (fromSequence >= memoryFirstSequence) {
+                int count = (int) Math.min(max, next - fromSequence);
+                List<WalRecord> batch = new ArrayList<>(count);
+                for (long sequence = fromSequence; sequence < fromSequence + count; sequence++) {
+                    batch.add(records[(int) (sequence % records.length)]);
+                }
+                return batch;
+            }
+        }
+
+        // older than what is in memory, read from the disk without holding up the writers
+        List<WalRecord> batch = new ArrayList<>();
+        if (fromSequence < firstInLog) {
+            readFile(rolledFile, fromSequence, next, max, batch);
+        }
+        readFile(logFile, fromSequence, next, max, batch);
+        // a roll over during the read may have dropped the sequence
+        return batch.isEmpty() || batch.get(0).getSequence() != fromSequence ? null : batch;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+        if (!failed) {
+            writeLong(cleanFile, nextSequence);
+        }
+    }
+
+    private void remember(WalRecord record) {
+        records[(int) (record.getSequence() % records.length)] = record;
+        memoryFirstSequence = Math.max(memoryFirstSequence, record.getSequence() + 1 - records.length);
+    }
+
+    private void roll() {
+        try {
+            channel.force(false);
+            channel.close();
+            Files.move(logFile, rolledFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            logFirstSequence = nextSequence;
+            syncedSequence = nextSequence;
+            logger.debug("Rolled over change log of partition {} at sequence {}", partition, nextSequence);
+        } catch (IOException e) {
+            fail("Could not roll over change log of partition " + partition, e);
+        }
+    }
+
+    /**
+     * Changes are missing from the log from now on, the consumers have to resync after the next start too.
+     */
+    private void fail(String message, IOException e) {
+        failed = true;
+        logger.error(message, e);
+        try {
+            Files.deleteIfExists(epochFile);
+        } catch (IOException deleteFailure) {
+            logger.error("Could not drop the epoch of change log of partition " + partition, deleteFailure);
+        }
+    }
+
+    /**
+     * Scans the current log, keeps its last records in memory.
+     * @return length in bytes of the valid prefix of the log
+     */
+    private long recover() throws IOException {
+        long validLength = 0L;
+        if (!closedCleanly) {
+            // the current log may have been rolled over just before the crash
+            nextSequence = Math.max(nextSequence, lastSequence(rolledFile) + 1);
+        }
+        logFirstSequence = nextSequence;
+        memoryFirstSequence = nextSequence;
+        if (Files.notExists(logFile)) {
+            return validLength;
+        }
+        boolean first = true;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            WalRecord record;
+            while ((record = WalRecord.readFrom(in)) != null) {
+                if (first) {
+                    logFirstSequence = record.getSequence();
+                    memoryFirstSequence = record.getSequence();
+                    first = false;
+                }
+                validLength += record.encodedLength();
+                remember(record);
+                nextSequence = Math.max(nextSequence, record.getSequence() + 1);
+            }
+        }
+        return validLength;
+    }
+
+    private static long lastSequence(Path file) throws IOException {
+        long sequence = -1L;
+        if (Files.notExists(file)) {
+            return sequence;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            WalRecord record;
+            while ((record = WalRecord.readFrom(in)) != null) {
+                sequence = record.getSequence();
+            }
+        }
+        return sequence;
+    }
+
+    private static void readFile(Path file, long fromSequence, long toSequence, int max, List<WalRecord> batch) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            WalRecord record;
+            while (batch.size() < max && (record = WalRecord.readFrom(in)) != null && record.getSequence() < toSequence) {
+                if (record.getSequence() >= fromSequence
+                        && (batch.isEmpty() || record.getSequence() == batch.get(batch.size() - 1).getSequence() + 1)) {
+                    batch.add(record);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // rolled over meanwhile, the caller checks what was found
+        }
+    }
+
+    private static Long readLong(Path file) throws IOException {
+        if (Files.notExists(file)) {
+            return null;
+        }
+        String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+        try {
+            return Long.parseLong(content, 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void writeLong(Path file, long value) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.write(ByteBuffer.wrap(Long.toHexString(value).getBytes(StandardCharsets.UTF_8)));
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.tenbillionfiles.services.compression;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encoding of the content of a stored file, named after its HTTP content coding.
+ */
+public enum Codec {
+    // header only, the content follows as is: plain files starting like a header
+    STORED(0, null),
+    // fast, for the small and middle sized files
+    LZ4(1, "lz4"),
+    // better ratio, for the large files
+    ZSTD(2, "zstd");
+
+    private final int id;
+    private final String encoding;
+
+    Codec(int id, String encoding) {
+        this.id = id;
+        this.encoding = encoding;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the Content-Encoding of the stored bytes, null when they are sent as they are
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return the codec with this id, null when the id is unknown
+     */
+    public static Codec ofId(int id) {
+        for (Codec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closing the returned stream ends the encoded content and closes out.
+     */
+    public OutputStream encode(OutputStream out, int level) throws IOException {
+        switch (this) {
+            case LZ4:
+                // the default 4MB blocks would be allocated by every upload
+                return new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB);
+            case ZSTD:
+                return new ZstdOutputStream(out, level);
+            default:
+                return new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] buffer, int offset, int length) throws IOException {
+                        out.write(buffer, offset, length);
+                    }
+                };
+        }
+    }
+
+    public InputStream decode(InputStream in) throws IOException {
+        switch (this) {
+            case LZ4:
+                return new LZ4FrameInputStream(in);
+            case ZSTD:
+                return new ZstdInputStream(in);
+            default:
+                return in;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.tenbillionfiles.services.compression;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compression counters of one partition since startup. CPU times exclude the file and network I/O.
+ */
+@Getter
+public class CompressionStats {
+
+    private final AtomicLong compressedFiles = new AtomicLong();
+    private final AtomicLong plainFiles = new AtomicLong();
+    // content and stored bytes of the compressed files
+    private final AtomicLong originalBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressedBytes = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+    // compressed bytes sent as they are to the clients accepting their encoding
+    private final AtomicLong encodedBytesServed = new AtomicLong();
+
+    public void compressed(long size, long storedSize, long nanos) {
+        compressedFiles.incrementAndGet();
+        originalBytes.addAndGet(size);
+        compressedBytes.addAndGet(storedSize);
+        compressNanos.addAndGet(nanos);
+    }
+
+    public void decompressed(long size, long nanos) {
+        decompressedBytes.addAndGet(size);
+        decompressNanos.addAndGet(nanos);
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.tenbillionfiles.services.compression;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written through the stream and the time spent writing them.
+ *
+ * Closing it only flushes, the underlying stream stays open.
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+
+    private long bytes;
+    private long nanos;
+
+    public MeteredOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long start = System.nanoTime();
+        out.write(b);
+        nanos += System.nanoTime() - start;
+        bytes++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        out.write(buffer, offset, length);
+        nanos += System.nanoTime() - start;
+        bytes += length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long start = System.nanoTime();
+        out.flush();
+        nanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.tenbillionfiles.services.compression;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Outcome of writing a file to its partition.
+ */
+@Getter
+@RequiredArgsConstructor
+public class StoredFile {
+
+    // bytes of the content, as uploaded and downloaded
+    private final long size;
+
+    // bytes taken on disk, header included
+    private final long storedSize;
+
+    // null for the plain files
+    private final Codec codec;
+
+    // modification time of the file once in place
+    @Setter
+    private long lastModified;
+
+    // content type kept with the file, null when it can't be kept
+    @Setter
+    private String contentType;
+}
@@ -0,0 +1,82 @@
+package com.example.tenbillionfiles.services.compression;
+
+import com.example.tenbillionfiles.services.devices.DeviceIoScheduler;
+import com.example.tenbillionfiles.services.devices.ThrottledResource;
+import com.example.tenbillionfiles.services.metadata.FileMetadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.MalformedURLException;
+import java.nio.file.Path;
+
+/**
+ * Stored file streamed decoded, or as stored (header skipped) to the clients accepting its encoding. The file opened
+ * must still be the one described by the metadata the response headers were built from.
+ */
+public class StoredFileResource extends ThrottledResource {
+
+    private final FileMetadata metadata;
+    private final boolean encoded;
+    private final CompressionStats stats;
+
+    public StoredFileResource(Path path, DeviceIoScheduler scheduler, FileMetadata metadata, boolean encoded,
+                              CompressionStats stats) throws MalformedURLException {
+        super(path, scheduler);
+        this.metadata = metadata;
+        this.encoded = encoded;
+        this.stats = stats;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        ThrottledInputStream raw = open();
+        try {
+            byte[] prefix = new byte[StoredHeader.LENGTH];
+            int length = StoredHeader.readPrefix(raw, prefix);
+            StoredHeader header = StoredHeader.decode(prefix, length);
+            // rewritten since the metadata was read: its length, codec or ETag would not match the bytes sent
+            if (raw.getFileSize() != metadata.getStoredSize()
+                    || (header != null ? header.getCodec() : null) != metadata.getCodec()
+                    || (header != null && header.getSize() != metadata.getSize())) {
+                throw new IOException("File " + metadata.getFileName() + " changed since its metadata was read");
+            }
+            if (header == null) {
+                return new SequenceInputStream(new ByteArrayInputStream(prefix, 0, length), raw);
+            }
+            if (header.getCodec() == Codec.STORED) {
+                return raw;
+            }
+            if (encoded) {
+                stats.getEncodedBytesServed().addAndGet(metadata.getStoredSize() - StoredHeader.LENGTH);
+                return raw;
+            }
+            MeteredInputStream stored = new MeteredInputStream(raw);
+            return new MeteredInputStream(header.getCodec().decode(stored)) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        stats.decompressed(getBytes(), getNanos() - stored.getNanos());
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public long contentLength() {
+        return encoded ? metadata.getStoredSize() - StoredHeader.LENGTH : metadata.getSize();
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.tenbillionfiles.services.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Header of the files stored encoded: magic, codec id and size of the decoded content.
+ *
+ * Files without it are plain. The size lets the metadata be read without decoding the whole file.
+ */
+public class StoredHeader {
+
+    public static final int LENGTH = 13;
+
+    private static final byte[] MAGIC = {'T', 'B', 'F', 'Z'};
+
+    private final Codec codec;
+    private final long size;
+
+    public StoredHeader(Codec codec, long size) {
+        this.codec = codec;
+        this.size = size;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+        buffer.put(MAGIC).put((byte) codec.getId()).putLong(size);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return the header at the start of the bytes, null when they don't start with one
+     */
+    public static StoredHeader decode(byte[] bytes, int length) {
+        if (length < LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return null;
+            }
+        }
+        Codec codec = Codec.ofId(bytes[MAGIC.length]);
+        long size = ByteBuffer.wrap(bytes, MAGIC.length + 1, Long.BYTES).getLong();
+        return codec == null || size < 0 ? null : new StoredHeader(codec, size);
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends.
+     *
+     * @return the bytes read
+     */
+    public static int readPrefix(InputStream in, byte[] buffer) throws IOException {
+        return readPrefix(in, buffer, 0);
+    }
+
+    /**
+     * @param length bytes of the buffer already read
+     */
+    public static int readPrefix(InputStream in, byte[] buffer, int length) throws IOException {
+        int count = 0;
+        while (length < buffer.length && count >= 0) {
+            count = in.read(buffer, length, buffer.length - length);
+            length += Math.max(count, 0);
+        }
+        return length;
+    }
+
+    /**
+     * @return the header of the file, null when it is plain
+     */
+    public static StoredHeader read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+            int count = 0;
+            while (buffer.hasRemaining() && count >= 0) {
+                count = channel.read(buffer);
+            }
+            return decode(buffer.array(), buffer.position());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.tenbillionfiles.services.devices;
+
+import com.example.tenbillionfiles.payload.DeviceStatus;
+import lombok.Getter;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps the concurrent I/O operations on one physical device.
+ *
+ * At most maxConcurrentIo operations run at once and writes may only take maxConcurrentWrites of these slots,
+ * so a burst of uploads can't starve downloads. When a slot frees up, waiting reads go before waiting writes,
+ * until maxReadsPerWrite reads went first or the writes waited writeMaxWaitMillis: then the next slot goes to a
+ * write, so a steady read load can't starve uploads either.
+ */
+public class DeviceIoScheduler {
+
+    @Getter
+    private final String path;
+
+    @Getter
+    private final List<Integer> partitions;
+
+    private final int maxConcurrentIo;
+    private final int maxConcurrentWrites;
+    private final int maxReadsPerWrite;
+    private final long writeMaxWaitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readSlot = lock.newCondition();
+    private final Condition writeSlot = lock.newCondition();
+
+    private int activeReads;
+    private int activeWrites;
+    private int waitingReads;
+    private int waitingWrites;
+    // reads that went first since writes are waiting, and since when they wait
+    private int readsSinceWrite;
+    private long writesWaitingSinceNanos;
+
+    private final long startNanos = System.nanoTime();
+    private long busyNanos;
+    private long busySinceNanos;
+
+    private final AtomicLong completedReads = new AtomicLong();
+    private final AtomicLong completedWrites = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    public DeviceIoScheduler(String path, List<Integer> partitions, int maxConcurrentIo, int maxConcurrentWrites,
+                             int maxReadsPerWrite, long writeMaxWaitMillis) {
+        this.path = path;
+        this.partitions = partitions;
+        this.maxConcurrentIo = maxConcurrentIo;
+        this.maxConcurrentWrites = Math.min(maxConcurrentWrites, maxConcurrentIo);
+        this.maxReadsPerWrite = maxReadsPerWrite;
+        this.writeMaxWaitNanos = TimeUnit.MILLISECONDS.toNanos(writeMaxWaitMillis);
+    }
+
+    public void acquire(IoClass ioClass) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (ioClass == IoClass.READ) {
+                waitingReads++;
+                try {
+                    while (activeReads + activeWrites >= maxConcurrentIo
+                            || (activeWrites < maxConcurrentWrites && writesDue())) {
+                        if (activeReads + activeWrites < maxConcurrentIo) {
+                            // the free slot is left to a due write
+                            writeSlot.signalAll();
+                        }
+                        readSlot.await();
+                    }
+                } finally {
+                    waitingReads--;
+                }
+                activeReads++;
+                if (waitingWrites > 0) {
+                    readsSinceWrite++;
+                }
+            } else {
+                if (waitingWrites++ == 0) {
+                    readsSinceWrite = 0;
+                    writesWaitingSinceNanos = System.nanoTime();
+                }
+                try {
+                    while (activeReads + activeWrites >= maxConcurrentIo || activeWrites >= maxConcurrentWrites
+                            || (waitingReads > 0 && !writesDue())) {
+                        writeSlot.await();
+                    }
+                } finally {
+                    waitingWrites--;
+                    if (waitingReads > 0) {
+                        readSlot.signalAll();
+                    }
+                }
+                activeWrites++;
+                readsSinceWrite = 0;
+                writesWaitingSinceNanos = System.nanoTime();
+            }
+            if (activeReads + activeWrites == 1) {
+                busySinceNanos = System.nanoTime();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(IoClass ioClass, long bytes) {
+        lock.lock();
+        try {
+            if (ioClass == IoClass.READ) {
+                activeReads--;
+                completedReads.incrementAndGet();
+                bytesRead.addAndGet(bytes);
+            } else {
+                activeWrites--;
+                completedWrites.incrementAndGet();
+                bytesWritten.addAndGet(bytes);
+            }
+            if (activeReads + activeWrites == 0) {
+                busyNanos += System.nanoTime() - busySinceNanos;
+            }
+            // waiters re-check their own condition, a write woken while reads are waiting goes back to sleep unless due
+            if (waitingReads > 0) {
+                readSlot.signalAll();
+            }
+            if (waitingWrites > 0) {
+                writeSlot.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean writesDue() {
+        return waitingWrites > 0 && (readsSinceWrite >= maxReadsPerWrite
+                || System.nanoTime() - writesWaitingSinceNanos >= writeMaxWaitNanos);
+    }
+
+    public DeviceStatus getStatus() {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            long busy = busyNanos + (activeReads + activeWrites > 0 ? now - busySinceNanos : 0L);
+            double utilization = (double) busy / Math.max(1L, now - startNanos);
+            return new DeviceStatus(path, partitions, activeReads, activeWrites, waitingReads, waitingWrites,
+                    completedReads.get(), completedWrites.get(), bytesRead.get(), bytesWritten.get(), utilization, 0L, 0L);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
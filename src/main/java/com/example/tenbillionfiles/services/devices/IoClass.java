@@ -0,0 +1,11 @@
+package com.example.tenbillionfiles.services.devices;
+
+/**
+ * Priority class of a file system operation.
+ */
+public enum IoClass {
+    // interactive downloads, served first
+    READ,
+    // uploads, modifications and deletes, capped below the device limit
+    WRITE
+}
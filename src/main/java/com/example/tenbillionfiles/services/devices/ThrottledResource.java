@@ -0,0 +1,112 @@
+package com.example.tenbillionfiles.services.devices;
+
+import org.springframework.core.io.UrlResource;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File resource whose content stream takes a read slot of the device for every read of the file, never while the
+ * caller sends the bytes to a slow client.
+ */
+public class ThrottledResource extends UrlResource {
+
+    private final Path path;
+    private final DeviceIoScheduler scheduler;
+
+    public ThrottledResource(Path path, DeviceIoScheduler scheduler) throws MalformedURLException {
+        super(path.toUri());
+        this.path = path;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return open();
+    }
+
+    /**
+     * Opens the content, along with the size of the file opened rather than of the one the path names by then.
+     */
+    protected ThrottledInputStream open() throws IOException {
+        acquire();
+        FileChannel channel = null;
+        long fileSize;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            fileSize = channel.size();
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            throw e;
+        } finally {
+            scheduler.release(IoClass.READ, 0L);
+        }
+        return new ThrottledInputStream(Channels.newInputStream(channel), fileSize);
+    }
+
+    private void acquire() throws InterruptedIOException {
+        try {
+            scheduler.acquire(IoClass.READ);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a read slot on " + scheduler.getPath());
+        }
+    }
+
+    protected class ThrottledInputStream extends FilterInputStream {
+
+        private final long fileSize;
+
+        private ThrottledInputStream(InputStream in, long fileSize) {
+            super(in);
+            this.fileSize = fileSize;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            acquire();
+            int b = -1;
+            try {
+                b = super.read();
+            } finally {
+                scheduler.release(IoClass.READ, b >= 0 ? 1L : 0L);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            acquire();
+            int count = -1;
+            try {
+                count = super.read(buffer, offset, length);
+            } finally {
+                scheduler.release(IoClass.READ, Math.max(0, count));
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            acquire();
+            try {
+                return super.skip(n);
+            } finally {
+                scheduler.release(IoClass.READ, 0L);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.tenbillionfiles.services.devices;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Upload content written to a device under its write slot, taken by the caller before the first read.
+ *
+ * The slot is given back for every read that may wait on the client and taken again before the bytes are handed over
+ * to be written, so a slow upload doesn't keep the device from serving other requests.
+ */
+public class ThrottledUploadStream extends FilterInputStream {
+
+    private final DeviceIoScheduler scheduler;
+
+    private boolean held = true;
+
+    public ThrottledUploadStream(InputStream in, DeviceIoScheduler scheduler) {
+        super(in);
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (super.available() > 0) {
+            return super.read();
+        }
+        pause();
+        try {
+            return super.read();
+        } finally {
+            resume();
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (super.available() > 0) {
+            return super.read(buffer, offset, length);
+        }
+        pause();
+        try {
+            return super.read(buffer, offset, length);
+        } finally {
+            resume();
+        }
+    }
+
+    /**
+     * Gives the slot back once the content is written, counting the bytes stored on the device.
+     */
+    public void release(long storedBytes) {
+        if (held) {
+            held = false;
+            scheduler.release(IoClass.WRITE, storedBytes);
+        }
+    }
+
+    private void pause() {
+        held = false;
+        scheduler.release(IoClass.WRITE, 0L);
+    }
+
+    private void resume() throws InterruptedIOException {
+        try {
+            scheduler.acquire(IoClass.WRITE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a write slot on " + scheduler.getPath());
+        }
+        held = true;
+    }
+}
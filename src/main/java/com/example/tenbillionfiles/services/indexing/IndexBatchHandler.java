@@ -0,0 +1,22 @@
+package com.example.tenbillionfiles.services.indexing;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Applies the batches drained by a {@link PartitionIndexer}.
+ */
+public interface IndexBatchHandler {
+
+    /**
+     * @param updates the batch after coalescing, at most one update per file name
+     */
+    void apply(int partition, Collection<IndexUpdate> updates) throws IOException;
+
+    /**
+     * Called once the batch was applied successfully.
+     * @param batch every drained update, including the ones dropped by coalescing
+     */
+    void applied(int partition, List<IndexUpdate> batch);
+}
@@ -0,0 +1,39 @@
+package com.example.tenbillionfiles.services.indexing;
+
+import com.example.tenbillionfiles.services.wal.WalOperation;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Pending change of the regex & lucene indexes of one partition.
+ */
+@Getter
+@AllArgsConstructor
+public class IndexUpdate {
+
+    // position in the partition queue, used to wait for the indexer to catch up
+    private final long ticket;
+
+    // sequence of the matching write-ahead log record
+    private final long walSequence;
+
+    private final WalOperation operation;
+
+    private final String fileName;
+
+    private final long enqueuedAtNanos;
+
+    public boolean isDelete() {
+        return operation == WalOperation.DELETE;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexUpdate{" +
+                "ticket=" + ticket +
+                ", walSequence=" + walSequence +
+                ", operation=" + operation +
+                ", fileName='" + fileName + '\'' +
+                '}';
+    }
+}
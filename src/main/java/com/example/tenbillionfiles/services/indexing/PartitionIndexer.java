@@ -0,0 +1,246 @@
+package com.example.tenbillionfiles.services.indexing;
+
+import com.example.tenbillionfiles.exception.IndexNotReadyException;
+import com.example.tenbillionfiles.payload.IndexingStatus;
+import com.example.tenbillionfiles.services.wal.WalOperation;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Background indexer of one partition.
+ *
+ * Writers put updates in a bounded queue (blocking when it is full); the indexer thread drains them in batches,
+ * keeps only the last update of every file name and hands the batch to the {@link IndexBatchHandler}.
+ * A batch failing every attempt is kept and applied again with the next batch, or on its own once the queue is idle
+ * for a while. Until then its WAL records stay incomplete, so a restart repairs the indexes by replay, and waiting for
+ * its updates fails.
+ */
+public class PartitionIndexer implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionIndexer.class);
+
+    private static final long POLL_MILLIS = 100;
+
+    private static final int APPLY_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+    private static final long RETRY_FAILED_MILLIS = 1000;
+
+    @Getter
+    private final int partition;
+
+    private final BlockingQueue<IndexUpdate> queue;
+    private final Queue<IndexUpdate> repairs = new ConcurrentLinkedQueue<>();
+    private final int batchSize;
+    private final IndexBatchHandler handler;
+
+    // keeps tickets in queue order
+    private final ReentrantLock enqueueLock = new ReentrantLock();
+
+    private final Object appliedMonitor = new Object();
+
+    private volatile boolean running = true;
+
+    private volatile long enqueuedTicket;
+    private volatile long appliedTicket;
+    // first ticket of the updates that could not be applied yet, 0 when none
+    private volatile long firstFailedTicket;
+    // these updates, in queue order, only touched by the indexer thread
+    private final List<IndexUpdate> failedUpdates = new ArrayList<>();
+    private long retryFailedAtMillis;
+    private volatile long appliedTotal;
+    private volatile long coalescedTotal;
+    private volatile long failedBatches;
+    private volatile int lastBatchSize;
+    private volatile long lastBatchMillis;
+
+    public PartitionIndexer(int partition, int queueCapacity, int batchSize, IndexBatchHandler handler) {
+        this.partition = partition;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.handler = handler;
+    }
+
+    /**
+     * Queues an update, waiting for room when the indexer is behind.
+     * @return ticket that can be passed to {@link #awaitApplied(long, long)}
+     */
+    public long enqueue(long walSequence, WalOperation operation, String fileName) throws InterruptedException {
+        enqueueLock.lockInterruptibly();
+        try {
+            long ticket = enqueuedTicket + 1;
+            queue.put(new IndexUpdate(ticket, walSequence, operation, fileName, System.nanoTime()));
+            enqueuedTicket = ticket;
+            return ticket;
+        } finally {
+            enqueueLock.unlock();
+        }
+    }
+
+    /**
+     * Adds the update of a write that could not be queued, without waiting for room. It is applied with the next
+     * batch and gets no ticket of its own: waits for the updates queued from now on also cover it.
+     */
+    public void repair(long walSequence, WalOperation operation, String fileName) {
+        repairs.add(new IndexUpdate(enqueuedTicket, walSequence, operation, fileName, System.nanoTime()));
+    }
+
+    public long getEnqueuedTicket() {
+        return enqueuedTicket;
+    }
+
+    /**
+     * Waits until every update up to the ticket is visible in the indexes.
+     * @return false on timeout
+     * @throws IndexNotReadyException when one of these updates could not be applied
+     */
+    public boolean awaitApplied(long ticket, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (appliedMonitor) {
+            while (appliedTicket < ticket) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                appliedMonitor.wait(remaining);
+            }
+        }
+        long failed = firstFailedTicket;
+        if (failed > 0 && failed <= ticket) {
+            throw new IndexNotReadyException("Index updates of partition " + partition
+                    + " failed, they are applied again with the next updates or by WAL replay on next startup.");
+        }
+        return true;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        logger.debug("Indexer of partition {} started.", partition);
+        while (running || !queue.isEmpty()) {
+            try {
+                IndexUpdate first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                List<IndexUpdate> batch = new ArrayList<>(batchSize);
+                IndexUpdate repair;
+                while ((repair = repairs.poll()) != null) {
+                    batch.add(repair);
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                }
+                if (!batch.isEmpty() || (!failedUpdates.isEmpty() && System.currentTimeMillis() >= retryFailedAtMillis)) {
+                    processBatch(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        logger.debug("Indexer of partition {} stopped.", partition);
+    }
+
+    private void processBatch(List<IndexUpdate> drained) {
+        long start = System.nanoTime();
+        List<IndexUpdate> batch = drained;
+        if (!failedUpdates.isEmpty()) {
+            batch = new ArrayList<>(failedUpdates);
+            batch.addAll(drained);
+        }
+
+        // last update of a name wins (the writes of a name are logged in order, repairs are not queued in order),
+        // re-inserting keeps the map in apply order
+        Map<String, IndexUpdate> coalesced = new LinkedHashMap<>();
+        for (IndexUpdate update : batch) {
+            IndexUpdate previous = coalesced.get(update.getFileName());
+            if (previous == null || previous.getWalSequence() < update.getWalSequence()) {
+                coalesced.remove(update.getFileName());
+                coalesced.put(update.getFileName(), update);
+            }
+        }
+
+        if (applyWithRetries(coalesced.values())) {
+            if (!failedUpdates.isEmpty()) {
+                logger.info("Applied {} index updates of partition {} that failed before", failedUpdates.size(), partition);
+                failedUpdates.clear();
+                firstFailedTicket = 0;
+            }
+            try {
+                handler.applied(partition, batch);
+            } catch (RuntimeException e) {
+                // applied but not completed, the WAL records are replayed on next startup
+                logger.error("Could not complete " + batch.size() + " index updates on partition " + partition, e);
+            }
+        } else {
+            if (failedUpdates.isEmpty()) {
+                firstFailedTicket = Math.max(1L, batch.get(0).getTicket());
+            }
+            failedUpdates.addAll(drained);
+            retryFailedAtMillis = System.currentTimeMillis() + RETRY_FAILED_MILLIS;
+        }
+
+        appliedTotal += coalesced.size();
+        coalescedTotal += batch.size() - coalesced.size();
+        lastBatchSize = batch.size();
+        lastBatchMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        synchronized (appliedMonitor) {
+            appliedTicket = Math.max(appliedTicket, batch.get(batch.size() - 1).getTicket());
+            appliedMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Applying an update again is harmless, a batch partly applied before failing is simply retried.
+     */
+    private boolean applyWithRetries(Collection<IndexUpdate> updates) {
+        long backoff = RETRY_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                handler.apply(partition, updates);
+                return true;
+            } catch (Exception e) {
+                if (attempt >= APPLY_ATTEMPTS) {
+                    failedBatches++;
+                    logger.error("Could not apply " + updates.size() + " index updates on partition " + partition, e);
+                    return false;
+                }
+                logger.warn("Could not apply {} index updates on partition {}, retrying: {}", updates.size(), partition, e.toString());
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                // stopping, the updates are left to WAL replay
+                Thread.currentThread().interrupt();
+                failedBatches++;
+                return false;
+            }
+            backoff *= 2;
+        }
+    }
+
+    public IndexingStatus getStatus() {
+        IndexUpdate oldest = queue.peek();
+        long oldestPendingMillis = oldest == null ? 0L
+                : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.getEnqueuedAtNanos());
+        long enqueued = enqueuedTicket;
+        long applied = appliedTicket;
+        return new IndexingStatus(partition, queue.size(), enqueued, applied, enqueued - applied,
+                oldestPendingMillis, appliedTotal, coalescedTotal, failedBatches, firstFailedTicket, lastBatchSize, lastBatchMillis);
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.tenbillionfiles.services.lucene;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges segments in background threads like {@link ConcurrentMergeScheduler}, counting the merges, the bytes they
+ * read and the time they took.
+ */
+public class MeteredMergeScheduler extends ConcurrentMergeScheduler {
+
+    private final AtomicInteger runningMerges = new AtomicInteger();
+    private final AtomicLong merges = new AtomicLong();
+    private final AtomicLong mergedBytes = new AtomicLong();
+    private final AtomicLong mergeNanos = new AtomicLong();
+
+    @Override
+    protected void doMerge(IndexWriter writer, MergePolicy.OneMerge merge) throws IOException {
+        long start = System.nanoTime();
+        runningMerges.incrementAndGet();
+        try {
+            super.doMerge(writer, merge);
+        } finally {
+            runningMerges.decrementAndGet();
+        }
+        merges.incrementAndGet();
+        mergedBytes.addAndGet(merge.totalBytesSize());
+        mergeNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    public int getRunningMerges() {
+        return runningMerges.get();
+    }
+
+    public long getMerges() {
+        return merges.get();
+    }
+
+    public long getMergedBytes() {
+        return mergedBytes.get();
+    }
+
+    public long getMergeNanos() {
+        return mergeNanos.get();
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.tenbillionfiles.services.lucene;
+
+import com.example.tenbillionfiles.payload.LuceneIndexStatus;
+import lombok.Getter;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lucene index of one partition kept open: a single writer, and searchers reopened from it without a commit.
+ * The WAL sequences of the applied updates are completed by the commit covering them.
+ */
+public class PartitionLuceneIndex implements Closeable {
+
+    @Getter
+    private final int partition;
+
+    private final Directory directory;
+    @Getter
+    private final IndexWriter writer;
+    private final MeteredMergeScheduler mergeScheduler;
+    private final SearcherManager searcherManager;
+
+    // one commit at a time
+    private final Object commitLock = new Object();
+
+    // guarded by this
+    private List<Long> pendingSequences = new ArrayList<>();
+    private long oldestPendingNanos;
+
+    private volatile long commits;
+    private volatile long lastCommitMillis;
+    private volatile long forceMerges;
+    @Getter
+    private volatile long lastForceMergeTime;
+
+    /**
+     * Commits what the writer holds and opens the searchers on it.
+     */
+    public PartitionLuceneIndex(int partition, Directory directory, IndexWriter writer,
+                                MeteredMergeScheduler mergeScheduler, SearcherFactory searcherFactory) throws IOException {
+        this.partition = partition;
+        this.directory = directory;
+        this.writer = writer;
+        this.mergeScheduler = mergeScheduler;
+        writer.commit();
+        this.searcherManager = new SearcherManager(writer, searcherFactory);
+    }
+
+    /**
+     * Records the WAL sequences of updates applied to the writer.
+     */
+    public synchronized void addPending(List<Long> sequences) {
+        if (pendingSequences.isEmpty()) {
+            oldestPendingNanos = System.nanoTime();
+        }
+        pendingSequences.addAll(sequences);
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingSequences.size();
+    }
+
+    public synchronized long getOldestPendingMillis() {
+        return pendingSequences.isEmpty() ? 0L : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldestPendingNanos);
+    }
+
+    /**
+     * Makes every update applied so far durable.
+     * @return the WAL sequences that can be completed now
+     */
+    public List<Long> commit() throws IOException {
+        synchronized (commitLock) {
+            List<Long> committed;
+            long oldest;
+            synchronized (this) {
+                committed = pendingSequences;
+                oldest = oldestPendingNanos;
+                pendingSequences = new ArrayList<>();
+            }
+            long start = System.nanoTime();
+            try {
+                writer.commit();
+            } catch (IOException | RuntimeException e) {
+                // completed by the next commit that succeeds
+                synchronized (this) {
+                    committed.addAll(pendingSequences);
+                    pendingSequences = committed;
+                    oldestPendingNanos = oldest;
+                }
+                throw e;
+            }
+            lastCommitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            commits++;
+            return committed;
+        }
+    }
+
+    /**
+     * Makes the applied updates visible to the searches.
+     */
+    public void refresh() throws IOException {
+        searcherManager.maybeRefreshBlocking();
+    }
+
+    public void maybeRefresh() throws IOException {
+        searcherManager.maybeRefresh();
+    }
+
+    public IndexSearcher acquire() throws IOException {
+        return searcherManager.acquire();
+    }
+
+    public void release(IndexSearcher searcher) throws IOException {
+        searcherManager.release(searcher);
+    }
+
+    public int getSegmentCount() throws IOException {
+        IndexSearcher searcher = acquire();
+        try {
+            return searcher.getIndexReader().leaves().size();
+        } finally {
+            release(searcher);
+        }
+    }
+
+    public boolean isMerging() {
+        return writer.hasPendingMerges() || mergeScheduler.getRunningMerges() > 0;
+    }
+
+    /**
+     * Starts merging the index down to maxSegments, in background.
+     */
+    public void forceMerge(int maxSegments) throws IOException {
+        lastForceMergeTime = System.currentTimeMillis();
+        forceMerges++;
+        writer.forceMerge(maxSegments, false);
+    }
+
+    public LuceneIndexStatus getStatus() throws IOException {
+        IndexSearcher searcher = acquire();
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            long mergeNanos = mergeScheduler.getMergeNanos();
+            long mergedBytes = mergeScheduler.getMergedBytes();
+            double mergeMegabytesPerSecond = mergeNanos == 0L ? 0.0
+                    : mergedBytes / (1024.0 * 1024.0) / (mergeNanos / (double) TimeUnit.SECONDS.toNanos(1));
+            return new LuceneIndexStatus(partition, reader.leaves().size(), reader.numDocs(), reader.numDeletedDocs(),
+                    getPendingCount(), getOldestPendingMillis(), commits, lastCommitMillis,
+                    mergeScheduler.getMerges(), mergeScheduler.getRunningMerges(), mergedBytes,
+                    TimeUnit.NANOSECONDS.toMillis(mergeNanos), mergeMegabytesPerSecond, forceMerges, lastForceMergeTime);
+        } finally {
+            release(searcher);
+        }
+    }
+
+    /**
+     * The caller commits first.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            searcherManager.close();
+            writer.close();
+        } finally {
+            directory.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.tenbillionfiles.services.metadata;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe Bloom filter of file names.
+ *
+ * Answers "definitely not present" without false negatives. Names are never removed (a deleted name keeps
+ * answering "maybe"), so the filter is sized at startup from the number of files found on disk.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+
+    public BloomFilter(long expectedInsertions, double falsePositiveProbability) {
+        long n = Math.max(1L, expectedInsertions);
+        long m = (long) (-n * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        // round up to whole words
+        int words = (int) Math.min(Integer.MAX_VALUE, Math.max(1L, (m + 63) >>> 6));
+        this.bits = new AtomicLongArray(words);
+        this.numBits = (long) words << 6;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+    }
+
+    public void put(String fileName) {
+        long hash1 = hash1(fileName);
+        long hash2 = hash2(fileName);
+        for (int i = 0; i < numHashes; i++) {
+            setBit(index(hash1, hash2, i));
+        }
+    }
+
+    public boolean mightContain(String fileName) {
+        long hash1 = hash1(fileName);
+        long hash2 = hash2(fileName);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = index(hash1, hash2, i);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    // double hashing, see Kirsch & Mitzenmacher "Less Hashing, Same Performance"
+    private long index(long hash1, long hash2, int i) {
+        long combined = hash1 + i * hash2;
+        return (combined & Long.MAX_VALUE) % numBits;
+    }
+
+    private void setBit(long bit) {
+        int word = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        long current;
+        do {
+            current = bits.get(word);
+            if ((current & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(word, current, current | mask));
+    }
+
+    private static long hash1(String value) {
+        // FNV-1a 64 bits over the chars
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long hash2(String value) {
+        // murmur3 finalizer of String.hashCode, odd so all the bits are reachable
+        long hash = value.hashCode();
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash | 1L;
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.tenbillionfiles.services.metadata;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+/**
+ * Content type given at upload time, kept in a user extended attribute of the stored file so it survives a restart,
+ * a cache eviction and the renames of the file.
+ *
+ * On a file system without extended attributes nothing is kept: the content type is then never exposed, rather than
+ * exposed until the metadata is reloaded.
+ */
+public final class ContentTypeAttribute {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentTypeAttribute.class);
+
+    private static final String NAME = "tbf.content-type";
+
+    private ContentTypeAttribute() {
+    }
+
+    /**
+     * @return the content type when it is kept with the file, null otherwise
+     */
+    public static String write(Path file, String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return null;
+        }
+        try {
+            view.write(NAME, StandardCharsets.UTF_8.encode(contentType));
+            return contentType;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Content type of {} not kept: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @return the content type kept with the file, null when there is none
+     */
+    public static String read(Path file) {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return null;
+        }
+        try {
+            ByteBuffer value = ByteBuffer.allocate(view.size(NAME));
+            view.read(NAME, value);
+            value.flip();
+            return StandardCharsets.UTF_8.decode(value).toString();
+        } catch (IOException | UnsupportedOperationException e) {
+            // not set, or not supported
+            return null;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.tenbillionfiles.services.metadata;
+
+import com.example.tenbillionfiles.services.compression.Codec;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Cached attributes of a stored file.
+ */
+@Getter
+@AllArgsConstructor
+public class FileMetadata {
+
+    private final String fileName;
+
+    private final long size;
+
+    // bytes on disk, smaller than size when the file is compressed
+    private final long storedSize;
+
+    private final long lastModified;
+
+    // content type given at upload time, null when unknown or not kept by the file system
+    private final String contentType;
+
+    // null for the plain files
+    private final Codec codec;
+
+    public String getETag() {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * @return the Content-Encoding the stored bytes can be sent with, null when they must be decoded
+     */
+    public String getEncoding() {
+        return codec != null ? codec.getEncoding() : null;
+    }
+
+    /**
+     * ETag of the stored bytes sent encoded, a different representation than the decoded content.
+     */
+    public String getEncodedETag() {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "-" + getEncoding() + "\"";
+    }
+
+    @Override
+    public String toString() {
+        return "FileMetadata{" +
+                "fileName='" + fileName + '\'' +
+                ", size=" + size +
+                ", storedSize=" + storedSize +
+                ", lastModified=" + lastModified +
+                ", contentType='" + contentType + '\'' +
+                ", codec=" + codec +
+                '}';
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.tenbillionfiles.services.metadata;
+
+import lombok.Getter;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Existence & metadata cache of one partition.
+ *
+ * The Bloom filter holds every name of the partition and answers most "not found" lookups. The metadata map is
+ * a bounded LRU in front of the file system; deleted names are kept in it as tombstones because the Bloom
+ * filter keeps answering "maybe" for them. Until the names on disk are loaded, the partition is cold and every
+ * lookup goes past the filter.
+ */
+public class PartitionMetadata {
+
+    public static final FileMetadata DELETED = new FileMetadata("", -1L, -1L, -1L, null, null);
+
+    // replaced once, when the names on disk are loaded
+    private volatile BloomFilter bloomFilter;
+
+    private volatile boolean warm;
+
+    // names written or deleted while cold, the LRU may drop them before the load
+    private final Set<String> touchedWhileCold = new HashSet<>();
+
+    private final Map<String, FileMetadata> entries;
+
+    @Getter
+    private final AtomicLong bloomNegatives = new AtomicLong();
+    @Getter
+    private final AtomicLong hits = new AtomicLong();
+    @Getter
+    private final AtomicLong misses = new AtomicLong();
+
+    public PartitionMetadata(long expectedNames, double falsePositiveProbability, final int maxEntries) {
+        this.bloomFilter = new BloomFilter(expectedNames, falsePositiveProbability);
+        this.entries = new LinkedHashMap<String, FileMetadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FileMetadata> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return true when the name is known not to exist, without touching the cache or the disk
+     */
+    public boolean isDefinitelyAbsent(String fileName) {
+        if (warm && !bloomFilter.mightContain(fileName)) {
+            bloomNegatives.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the cached metadata, {@link #DELETED} for a known deleted name or null when not cached
+     */
+    public FileMetadata get(String fileName) {
+        FileMetadata metadata;
+        synchronized (entries) {
+            metadata = entries.get(fileName);
+        }
+        if (metadata == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return metadata;
+    }
+
+    public void put(FileMetadata metadata) {
+        // under the lock, so the name can't be lost by a concurrent load
+        synchronized (entries) {
+            bloomFilter.put(metadata.getFileName());
+            touched(metadata.getFileName());
+            entries.put(metadata.getFileName(), metadata);
+        }
+    }
+
+    /**
+     * Swaps in the filter holding the names walked on disk and caches the walked attributes. The names written
+     * or deleted during the walk are carried over to the new filter, their walked attributes are dropped.
+     *
+     * @param names names walked without caching their attributes
+     */
+    public void load(List<FileMetadata> cached, List<String> names, BloomFilter loadedFilter) {
+        for (String fileName : names) {
+            loadedFilter.put(fileName);
+        }
+        synchronized (entries) {
+            for (String fileName : touchedWhileCold) {
+                loadedFilter.put(fileName);
+            }
+            for (FileMetadata metadata : cached) {
+                loadedFilter.put(metadata.getFileName());
+                if (!touchedWhileCold.contains(metadata.getFileName())) {
+                    entries.put(metadata.getFileName(), metadata);
+                }
+            }
+            touchedWhileCold.clear();
+            bloomFilter = loadedFilter;
+            warm = true;
+        }
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    public void markDeleted(String fileName) {
+        synchronized (entries) {
+            touched(fileName);
+            entries.put(fileName, DELETED);
+        }
+    }
+
+    public void remove(String fileName) {
+        synchronized (entries) {
+            touched(fileName);
+            entries.remove(fileName);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void touched(String fileName) {
+        if (!warm) {
+            touchedWhileCold.add(fileName);
+        }
+    }
+}
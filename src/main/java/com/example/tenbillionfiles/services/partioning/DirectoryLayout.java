@@ -0,0 +1,74 @@
+package com.example.tenbillionfiles.services.partioning;
+
+import lombok.Getter;
+
+import java.nio.file.Path;
+
+/**
+ * Fan-out of the files of a partition over nested sub-directories, so no directory grows unbounded.
+ *
+ * With 2 levels of 256 a file is stored as {partition root}/3f/a0/{file name}, the sub-directory names being
+ * taken from a hash of the file name. With 0 levels files are stored flat in the partition root.
+ */
+public class DirectoryLayout {
+
+    @Getter
+    private final int levels;
+
+    @Getter
+    private final int fanout;
+
+    private final int bitsPerLevel;
+    private final int hexDigits;
+
+    public DirectoryLayout(int levels, int fanout) {
+        if (levels < 0 || levels * Integer.numberOfTrailingZeros(Math.max(fanout, 1)) > 32) {
+            throw new IllegalArgumentException("Unsupported directory layout levels " + levels);
+        }
+        if (levels > 0 && (fanout < 2 || Integer.bitCount(fanout) != 1)) {
+            throw new IllegalArgumentException("Directory layout fanout must be a power of 2, got " + fanout);
+        }
+        this.levels = levels;
+        this.fanout = fanout;
+        this.bitsPerLevel = Integer.numberOfTrailingZeros(fanout);
+        this.hexDigits = (bitsPerLevel + 3) / 4;
+    }
+
+    public boolean isFlat() {
+        return levels == 0;
+    }
+
+    /**
+     * Location of a file inside its partition root.
+     */
+    public Path resolve(Path partitionRoot, String fileName) {
+        Path directory = partitionRoot;
+        int hash = hash(fileName);
+        for (int level = 0; level < levels; level++) {
+            int bucket = (hash >>> (level * bitsPerLevel)) & (fanout - 1);
+            directory = directory.resolve(toHex(bucket));
+        }
+        return directory.resolve(fileName);
+    }
+
+    private String toHex(int bucket) {
+        char[] digits = new char[hexDigits];
+        for (int i = hexDigits - 1; i >= 0; i--) {
+            digits[i] = Character.forDigit(bucket & 0xf, 16);
+            bucket >>>= 4;
+        }
+        return new String(digits);
+    }
+
+    private static int hash(String fileName) {
+        // murmur3 finalizer: the low bits of String.hashCode already pick the partition,
+        // so they have to be mixed before being used again
+        int hash = fileName.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.tenbillionfiles.services.partioning;
 
 import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.exception.SearchTimeoutException;
 import com.example.tenbillionfiles.services.partioning.results.ConsolidatedResult;
 import com.example.tenbillionfiles.services.partioning.tasks.PartitionTask;
 import org.apache.commons.logging.Log;
@@ -12,9 +13,10 @@ import org.springframework.stereotype.Service;
 import javax.annotation.PostConstruct;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 import static com.example.tenbillionfiles.config.StorageConfigurations.PARTITIONS_NUMBER;
@@ -27,10 +29,22 @@ public class PartitioningService {
     @Autowired
     private StorageConfigurations storageConfigurations;
 
-    private static List<ReentrantLock> partitionLocks;
+    // striped by file name hash, writers of different names rarely share a lock
+    private static ReentrantReadWriteLock[] nameLocks;
+
+    private static int nameLockMask;
 
     private static Executor executor;
 
+    // chunks of the partitions are scanned there, idle workers steal the chunks of busy ones
+    private static ForkJoinPool searchPool;
+
+    // partitions with a copy on this node, all of them unless running in a cluster
+    private static List<Integer> localPartitions;
+
+    // nodes holding a copy of each partition, in primary preference order
+    private static List<List<Integer>> partitionReplicas;
+
     @PostConstruct
     public void initExecutor() {
         ThreadPoolTaskExecutor threadPoolTaskExecutor = new ThreadPoolTaskExecutor();
@@ -40,33 +54,86 @@ public class PartitioningService {
         threadPoolTaskExecutor.setThreadNamePrefix(storageConfigurations.getExecutorThreadNamePrefix());
         threadPoolTaskExecutor.initialize();
         executor = threadPoolTaskExecutor;
+
+        int parallelism = storageConfigurations.getSearchParallelism();
+        searchPool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
     }
 
     @PostConstruct
-    public void initPartitionLocks() {
-        partitionLocks = new ArrayList<>(PARTITIONS_NUMBER);
+    public void initNameLocks() {
+        int stripes = storageConfigurations.getLockStripes();
+        if (Integer.bitCount(stripes) != 1) {
+            throw new IllegalStateException("file.lock-stripes must be a power of 2, got " + stripes);
+        }
+        nameLocks = new ReentrantReadWriteLock[stripes];
+        for (int stripe=0; stripe<stripes; stripe++) {
+            nameLocks[stripe] = new ReentrantReadWriteLock();
+        }
+        nameLockMask = stripes - 1;
+    }
+
+    @PostConstruct
+    public void initOwnership() {
+        int nodes = storageConfigurations.getClusterNodes().size();
+        int nodeIndex = storageConfigurations.getClusterNodeIndex();
+        int copies = storageConfigurations.getReplicationFactor();
+        if (nodes > PARTITIONS_NUMBER) {
+            throw new IllegalStateException("A cluster can't have more nodes than the " + PARTITIONS_NUMBER + " partitions, got " + nodes);
+        }
+        if (nodes > 0 && (nodeIndex < 0 || nodeIndex >= nodes)) {
+            throw new IllegalStateException("file.cluster-node-index must point in file.cluster-nodes, got " + nodeIndex);
+        }
+        if (copies < 1 || copies > Math.max(1, nodes)) {
+            throw new IllegalStateException("file.replication-factor must be between 1 and the number of nodes, got " + copies);
+        }
+        List<Integer> held = new ArrayList<>(PARTITIONS_NUMBER);
+        List<List<Integer>> replicas = new ArrayList<>(PARTITIONS_NUMBER);
         for (int partition=0; partition<PARTITIONS_NUMBER; partition++) {
-            partitionLocks.add(new ReentrantLock());
+            List<Integer> partitionNodes = new ArrayList<>(copies);
+            for (int copy=0; copy<copies; copy++) {
+                partitionNodes.add(nodes == 0 ? nodeIndex : (partition + copy) % nodes);
+            }
+            if (partitionNodes.contains(nodeIndex)) {
+                held.add(partition);
+            }
+            replicas.add(Collections.unmodifiableList(partitionNodes));
         }
+        localPartitions = Collections.unmodifiableList(held);
+        partitionReplicas = Collections.unmodifiableList(replicas);
+        logger.info("Partitions held by this node: " + localPartitions);
     }
 
+    /**
+     * Runs the task on the partitions held by this node, see ClusterService for the other nodes.
+     */
     public <S, R extends PartitionTask, T> void runOnAllPartitions(final S partitionTaskInput, final R task, final ConsolidatedResult<T> consolidatedResult, final long timeOut, final TimeUnit timeUnit) throws CloneNotSupportedException {
-        Collection<PartitionTask<T, S>> tasks = new ArrayList<>(PARTITIONS_NUMBER);
-        for (int partition=0; partition<PARTITIONS_NUMBER; partition++) {
+        runOnPartitions(localPartitions, partitionTaskInput, task, consolidatedResult, timeOut, timeUnit);
+    }
+
+    /**
+     * Runs the task on every partition in parallel and adds the results of all of them, a failed task adds null.
+     *
+     * @throws SearchTimeoutException when the tasks don't all complete within the timeout, the late ones keep running
+     * until they notice it themselves (see MatchBudget)
+     */
+    public <S, R extends PartitionTask, T> void runOnPartitions(final List<Integer> partitions, final S partitionTaskInput, final R task, final ConsolidatedResult<T> consolidatedResult, final long timeOut, final TimeUnit timeUnit) throws CloneNotSupportedException {
+        Collection<PartitionTask<T, S>> tasks = new ArrayList<>(partitions.size());
+        for (int partition : partitions) {
             PartitionTask<T, S> agentTask = task.clone();
             agentTask.setPartition(partition);
             tasks.add(agentTask);
         }
-        final CountDownLatch latch = new CountDownLatch(PARTITIONS_NUMBER);
+        final CountDownLatch latch = new CountDownLatch(partitions.size());
         final List<CompletableFuture<T>> theFutures = tasks.stream()
                 .map(partitionTask -> CompletableFuture.supplyAsync(() -> processPartitionTask(partitionTask, partitionTaskInput, latch), executor))
                 .collect(Collectors.<CompletableFuture<T>>toList());
 
         final CompletableFuture<List<T>> allDone = collectPartitionTasks(theFutures);
         try {
-//            latch.await(timeOut, timeUnit);
-            logger.debug("complete... adding results");
-            allDone.get().forEach(consolidatedResult::addResult);
+            allDone.get(timeOut, timeUnit).forEach(consolidatedResult::addResult);
+            logger.debug("complete... added results");
+        } catch (final TimeoutException e) {
+            throw new SearchTimeoutException("Partition tasks did not complete within " + timeUnit.toMillis(timeOut) + " ms");
         } catch (final InterruptedException | ExecutionException e) {
             logger.error("Thread Error", e);
             throw new RuntimeException("Thread Error, could not complete processing", e);
@@ -87,11 +154,19 @@ public class PartitioningService {
         try {
             searchResults = partitionTask.process(searchTerm, latch);
         } catch (final Exception e) {
-            e.printStackTrace();
+            logger.warn("Failed: " + partitionTask, e);
         }
         return searchResults;
     }
 
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public ForkJoinPool getSearchPool() {
+        return searchPool;
+    }
+
     public int getPartition(String fileName) {
 
         // simple way to find modulo of 2^i numbers using bitwise.
@@ -100,8 +175,44 @@ public class PartitioningService {
         return fileName.hashCode() & (PARTITIONS_NUMBER - 1);
     }
 
-    public ReentrantLock getPartitionLock(int partition) {
-        return partitionLocks.get(partition);
+    public List<Integer> getLocalPartitions() {
+        return localPartitions;
+    }
+
+    public boolean isLocalPartition(int partition) {
+        return partitionReplicas.get(partition).contains(storageConfigurations.getClusterNodeIndex());
+    }
+
+    /**
+     * Index in file.cluster-nodes of the preferred primary of the partition.
+     */
+    public int getOwnerNode(int partition) {
+        return partitionReplicas.get(partition).get(0);
+    }
+
+    /**
+     * Indexes in file.cluster-nodes of the nodes holding a copy of the partition, preferred primary first.
+     */
+    public List<Integer> getReplicaNodes(int partition) {
+        return partitionReplicas.get(partition);
+    }
+
+    /**
+     * Lock guarding create / modify / delete of one file name.
+     * Names colliding on the same stripe share the lock, which is safe but serializes them.
+     */
+    public ReentrantReadWriteLock getNameLock(String fileName) {
+        return nameLocks[getStripe(fileName)];
+    }
+
+    private int getStripe(String fileName) {
+        // the low bits of the hash already pick the partition, so mix the high bits in
+        // to spread the names of one partition over all the stripes
+        int hash = fileName.hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return hash & nameLockMask;
     }
 
 }
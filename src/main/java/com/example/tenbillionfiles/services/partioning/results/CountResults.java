@@ -0,0 +1,29 @@
+package com.example.tenbillionfiles.services.partioning.results;
+
+/**
+ * Sum of the counts of all the partitions.
+ */
+public class CountResults implements ConsolidatedResult<Long> {
+
+    private long count;
+
+    // a failed partition task yields no result, the sum is not exact then
+    private int failedPartitions;
+
+    @Override
+    public synchronized void addResult(final Long result) {
+        if (result == null) {
+            failedPartitions++;
+        } else {
+            count += result;
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized int getFailedPartitions() {
+        return failedPartitions;
+    }
+}
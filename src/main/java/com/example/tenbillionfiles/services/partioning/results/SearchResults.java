@@ -11,11 +11,22 @@ public class SearchResults implements ConsolidatedResult<List<String>> {
 
     private final List<String> consolidatedResult = new LinkedList<>();
 
+    private int failedPartitions;
+
     @Override
     public void addResult(final List<String> results) {
+        if (results == null) {
+            // the task of the partition failed
+            failedPartitions++;
+            return;
+        }
         consolidatedResult.addAll(results);
     }
 
+    public int getFailedPartitions() {
+        return failedPartitions;
+    }
+
     public List<String> getResults() {
         return Collections.unmodifiableList(consolidatedResult);
     }
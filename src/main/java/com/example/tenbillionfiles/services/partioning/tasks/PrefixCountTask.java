@@ -0,0 +1,44 @@
+package com.example.tenbillionfiles.services.partioning.tasks;
+
+import com.example.tenbillionfiles.exception.FileStorageException;
+import com.example.tenbillionfiles.services.LuceneIndexService;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+public class PrefixCountTask implements PartitionTask<Long, String> {
+
+    @Getter @Setter
+    private LuceneIndexService luceneIndexService;
+
+    @Getter @Setter
+    private int partition;
+
+    public PrefixCountTask(LuceneIndexService luceneIndexService) {
+        this.luceneIndexService = luceneIndexService;
+    }
+
+    @Override
+    public Long process(String prefix, CountDownLatch latch) {
+        try {
+            return luceneIndexService.countPrefixInPartition(prefix, getPartition());
+        } catch (IOException e) {
+            throw new FileStorageException("Exception counting '" + prefix + "' in partition [" + getPartition() + "] .", e);
+        }
+    }
+
+    @Override
+    public PrefixCountTask clone() throws CloneNotSupportedException {
+        PrefixCountTask newOne = new PrefixCountTask(luceneIndexService);
+        newOne.setPartition(partition);
+        return newOne;
+    }
+
+    @Override
+    public String toString() {
+        return "PrefixCountTask{partition=" + partition + '}';
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.example.tenbillionfiles.services.partioning.tasks;
+
+import com.example.tenbillionfiles.services.RegexIndexService;
+import com.example.tenbillionfiles.services.regex.RegexQuery;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.concurrent.CountDownLatch;
+
+public class RegexCountTask implements PartitionTask<Long, RegexQuery> {
+
+    @Getter @Setter
+    private RegexIndexService regexIndexService;
+
+    @Getter @Setter
+    private int partition;
+
+    public RegexCountTask(RegexIndexService regexIndexService) {
+        this.regexIndexService = regexIndexService;
+    }
+
+    @Override
+    public Long process(RegexQuery query, CountDownLatch latch) {
+        return regexIndexService.countInPartition(query, getPartition());
+    }
+
+    @Override
+    public RegexCountTask clone() throws CloneNotSupportedException {
+        RegexCountTask newOne = new RegexCountTask(regexIndexService);
+        newOne.setPartition(partition);
+        return newOne;
+    }
+
+    @Override
+    public String toString() {
+        return "RegexCountTask{partition=" + partition + '}';
+    }
+
+}
@@ -1,13 +1,14 @@
 package com.example.tenbillionfiles.services.partioning.tasks;
 
 import com.example.tenbillionfiles.services.RegexIndexService;
+import com.example.tenbillionfiles.services.regex.RegexQuery;
 import lombok.Getter;
 import lombok.Setter;
 
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
-public class RegexSearchTask implements PartitionTask<List<String>, String> {
+public class RegexSearchTask implements PartitionTask<List<String>, RegexQuery> {
 
     @Getter @Setter
     private RegexIndexService regexIndexService;
@@ -30,8 +31,8 @@ public class RegexSearchTask implements PartitionTask<List<String>, String> {
     }
 
     @Override
-    public List<String> process(String regex, CountDownLatch latch) {
-        return regexIndexService.searchInPartition(regex, getPartition());
+    public List<String> process(RegexQuery query, CountDownLatch latch) {
+        return regexIndexService.searchInPartition(query, getPartition());
     }
 
     @Override
@@ -0,0 +1,43 @@
+package com.example.tenbillionfiles.services.regex;
+
+import org.apache.lucene.util.automaton.ByteRunAutomaton;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Linear time engine: a deterministic automaton over the UTF-8 bytes, one table lookup per byte and no backtracking.
+ * The automaton is built by {@link RegexQueryPlanner} and already includes the unanchored .* around the regex.
+ */
+public class AutomatonNameMatcher implements NameMatcher {
+
+    private final ByteRunAutomaton automaton;
+    // without a $ the automaton accepts any extension of an accepted prefix, the rest of the name can be skipped
+    private final boolean anchoredEnd;
+    private final String regex;
+
+    public AutomatonNameMatcher(ByteRunAutomaton automaton, boolean anchoredEnd, String regex) {
+        this.automaton = automaton;
+        this.anchoredEnd = anchoredEnd;
+        this.regex = regex;
+    }
+
+    @Override
+    public boolean matches(ByteBuffer names, int offset, int length) {
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            state = automaton.step(state, names.get(offset + i) & 0xFF);
+            if (state < 0) {
+                return false;
+            }
+            if (!anchoredEnd && automaton.isAccept(state)) {
+                return true;
+            }
+        }
+        return automaton.isAccept(state);
+    }
+
+    @Override
+    public String toString() {
+        return "AutomatonNameMatcher{" + regex + '}';
+    }
+}
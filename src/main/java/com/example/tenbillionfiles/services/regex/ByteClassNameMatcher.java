@@ -0,0 +1,73 @@
+package com.example.tenbillionfiles.services.regex;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed length sequence of byte sets (ASCII character classes and literal bytes), possibly anchored.
+ *
+ * Exact on UTF-8 names because the classes only hold ASCII bytes, which never occur inside a multi-byte character.
+ */
+public class ByteClassNameMatcher implements NameMatcher {
+
+    // 128 bits per position, one per ASCII byte value
+    private final long[] lowBits;
+    private final long[] highBits;
+    private final boolean anchoredStart;
+    private final boolean anchoredEnd;
+
+    private final NameMatcher lineTerminatorFallback;
+
+    public ByteClassNameMatcher(long[] lowBits, long[] highBits, boolean anchoredStart, boolean anchoredEnd,
+                                NameMatcher lineTerminatorFallback) {
+        this.lowBits = lowBits;
+        this.highBits = highBits;
+        this.anchoredStart = anchoredStart;
+        this.anchoredEnd = anchoredEnd;
+        this.lineTerminatorFallback = lineTerminatorFallback;
+    }
+
+    @Override
+    public boolean matches(ByteBuffer names, int offset, int length) {
+        if (anchoredEnd && LiteralNameMatcher.endsWithLineTerminator(names, offset, length)) {
+            return lineTerminatorFallback.matches(names, offset, length);
+        }
+        int size = lowBits.length;
+        if (length < size) {
+            return false;
+        }
+        if (anchoredStart && anchoredEnd) {
+            return length == size && matchesAt(names, offset);
+        }
+        if (anchoredStart) {
+            return matchesAt(names, offset);
+        }
+        if (anchoredEnd) {
+            return matchesAt(names, offset + length - size);
+        }
+        for (int candidate = 0; candidate <= length - size; candidate++) {
+            if (matchesAt(names, offset + candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesAt(ByteBuffer names, int position) {
+        for (int i = 0; i < lowBits.length; i++) {
+            int value = names.get(position + i);
+            if (value < 0) {
+                return false;
+            }
+            long bits = value < 64 ? lowBits[i] : highBits[i];
+            if ((bits & (1L << value)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "ByteClassNameMatcher{" + lowBits.length + " positions}";
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.tenbillionfiles.services.regex;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A literal, possibly anchored to the start and / or the end of the name, compared byte by byte.
+ *
+ * The unanchored search is SWAR (SIMD within a register): 8 candidate positions are tested at once by comparing
+ * the first and last byte of the literal against 2 words of the name, only the positions where both hit are
+ * verified.
+ */
+public class LiteralNameMatcher implements NameMatcher {
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private final byte[] literal;
+    private final boolean anchoredStart;
+    private final boolean anchoredEnd;
+
+    // first and last byte of the literal repeated in every byte of a word
+    private final long firstBytes;
+    private final long lastBytes;
+
+    // '$' also matches before a final line terminator, these names are left to the regex
+    private final NameMatcher lineTerminatorFallback;
+
+    public LiteralNameMatcher(byte[] literal, boolean anchoredStart, boolean anchoredEnd, NameMatcher lineTerminatorFallback) {
+        this.literal = literal;
+        this.anchoredStart = anchoredStart;
+        this.anchoredEnd = anchoredEnd;
+        this.lineTerminatorFallback = lineTerminatorFallback;
+        this.firstBytes = literal.length == 0 ? 0L : ONES * (literal[0] & 0xFF);
+        this.lastBytes = literal.length == 0 ? 0L : ONES * (literal[literal.length - 1] & 0xFF);
+    }
+
+    @Override
+    public boolean matches(ByteBuffer names, int offset, int length) {
+        if (anchoredEnd && endsWithLineTerminator(names, offset, length)) {
+            return lineTerminatorFallback.matches(names, offset, length);
+        }
+        if (length < literal.length) {
+            return false;
+        }
+        if (anchoredStart && anchoredEnd) {
+            return length == literal.length && equalsAt(names, offset);
+        }
+        if (anchoredStart) {
+            return equalsAt(names, offset);
+        }
+        if (anchoredEnd) {
+            return equalsAt(names, offset + length - literal.length);
+        }
+        return indexOf(names, offset, length) >= 0;
+    }
+
+    /**
+     * True for the empty literal, e.g. ".*" or "^": every name is returned.
+     */
+    public boolean matchesEverything() {
+        return literal.length == 0 && !(anchoredStart && anchoredEnd);
+    }
+
+    private int indexOf(ByteBuffer names, int offset, int length) {
+        if (literal.length == 0) {
+            return 0;
+        }
+        int lastCandidate = length - literal.length;
+        int candidate = 0;
+        // words are read past the end of the name as long as they stay in the buffer, the extra positions are ignored
+        for (; candidate <= lastCandidate && offset + candidate + literal.length - 1 + Long.BYTES <= names.limit(); candidate += Long.BYTES) {
+            int position = offset + candidate;
+            long hits = zeroBytes(names.getLong(position) ^ firstBytes)
+                    & zeroBytes(names.getLong(position + literal.length - 1) ^ lastBytes);
+            while (hits != 0) {
+                // big endian words, the first byte of the name is the most significant one
+                int hit = Long.numberOfLeadingZeros(hits) >>> 3;
+                if (candidate + hit > lastCandidate) {
+                    break;
+                }
+                if (equalsAt(names, position + hit)) {
+                    return candidate + hit;
+                }
+                hits &= ~(Long.MIN_VALUE >>> (hit << 3));
+            }
+        }
+        for (; candidate <= lastCandidate; candidate++) {
+            if (equalsAt(names, offset + candidate)) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * High bit set in the zero bytes of the word. A byte just before a zero one may be flagged as well
+     * (borrow), which only costs a verification.
+     */
+    private static long zeroBytes(long word) {
+        return (word - ONES) & ~word & HIGHS;
+    }
+
+    private boolean equalsAt(ByteBuffer names, int position) {
+        for (int i = 0; i < literal.length; i++) {
+            if (names.get(position + i) != literal[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean endsWithLineTerminator(ByteBuffer names, int offset, int length) {
+        if (length == 0) {
+            return false;
+        }
+        // \n, \r and the last byte of the UTF-8 encoded NEL, LINE SEPARATOR and PARAGRAPH SEPARATOR
+        int last = names.get(offset + length - 1) & 0xFF;
+        return last == '\n' || last == '\r' || last == 0x85 || last == 0xA8 || last == 0xA9;
+    }
+
+    @Override
+    public String toString() {
+        return "LiteralNameMatcher{" + (anchoredStart ? "^" : "") + Arrays.toString(literal) + (anchoredEnd ? "$" : "") + '}';
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.tenbillionfiles.services.regex;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file mapped in memory as fixed size segments, a single mapping can't exceed 2GB.
+ *
+ * The file grows one segment at a time. Callers lay their data out so that nothing crosses a segment boundary.
+ */
+class MappedSegments implements Closeable {
+
+    private final FileChannel channel;
+
+    private final int segmentShift;
+
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+    MappedSegments(Path file, int segmentSize) throws IOException {
+        this.segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        for (long start = 0; start < size; start += segmentSize) {
+            map();
+        }
+    }
+
+    int getSegmentSize() {
+        return 1 << segmentShift;
+    }
+
+    long getCapacity() {
+        return (long) segments.size() << segmentShift;
+    }
+
+    /**
+     * Maps enough segments for the file to hold the given number of bytes.
+     */
+    void ensureCapacity(long bytes) throws IOException {
+        while (getCapacity() < bytes) {
+            map();
+        }
+    }
+
+    /**
+     * Shared buffer of the segment holding the position, only absolute accessors may be used on it.
+     */
+    MappedByteBuffer segment(long position) {
+        return segments.get((int) (position >>> segmentShift));
+    }
+
+    int offsetInSegment(long position) {
+        return (int) (position & ((1 << segmentShift) - 1));
+    }
+
+    /**
+     * Writes the dirty pages of every segment to the device.
+     */
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    private void map() throws IOException {
+        // mapping past the end of the file grows it
+        segments.add(channel.map(FileChannel.MapMode.READ_WRITE, getCapacity(), getSegmentSize()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mappings stay valid until garbage collected, there is no supported way to unmap them on Java 8
+        segments.clear();
+        channel.close();
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.tenbillionfiles.services.regex;
+
+import com.example.tenbillionfiles.exception.RegexRejectedException;
+import com.example.tenbillionfiles.exception.SearchTimeoutException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the work of one regex query: steps of the regex engine on a single name, wall clock time of the whole
+ * query, and cancellation. The first failure is kept and thrown to every worker still scanning, so they all stop.
+ */
+public class MatchBudget {
+
+    private final long maxStepsPerName;
+    private final long timeoutMillis;
+    private final long startNanos = System.nanoTime();
+
+    private volatile RuntimeException failure;
+
+    public MatchBudget(long maxStepsPerName, long timeoutMillis) {
+        this.maxStepsPerName = maxStepsPerName;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public long getMaxStepsPerName() {
+        return maxStepsPerName;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @throws RuntimeException the failure of the query, when another worker failed, it was cancelled or its time is up
+     */
+    public void check() {
+        RuntimeException failed = failure;
+        if (failed != null) {
+            throw failed;
+        }
+        if (System.nanoTime() - startNanos > TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+            throw fail(new SearchTimeoutException("Regex search did not complete within " + timeoutMillis + " ms"));
+        }
+    }
+
+    public RuntimeException stepsExceeded(long steps) {
+        return fail(new RegexRejectedException("Regex took more than " + maxStepsPerName + " steps on a single name ("
+                + steps + "), it backtracks too much, try engine=linear"));
+    }
+
+    public void cancel() {
+        fail(new SearchTimeoutException("Regex search cancelled"));
+    }
+
+    public void throwIfFailed() {
+        RuntimeException failed = failure;
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    private synchronized RuntimeException fail(RuntimeException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        return failure;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.tenbillionfiles.services.regex;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Number of matching names of a range of entries, split like {@link NameSearchTask}.
+ */
+public class NameCountTask extends RecursiveTask<Long> {
+
+    private final NameIndexFile index;
+    private final NameMatcher matcher;
+    private final MatchBudget budget;
+    private final long from;
+    private final long to;
+    private final long chunkSize;
+
+    public NameCountTask(NameIndexFile index, NameMatcher matcher, MatchBudget budget, long from, long to, long chunkSize) {
+        this.index = index;
+        this.matcher = matcher;
+        this.budget = budget;
+        this.from = from;
+        this.to = to;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected Long compute() {
+        if (to - from <= chunkSize) {
+            budget.check();
+            long[] count = new long[1];
+            index.forEachMatch(from, to, matcher, fileName -> count[0]++);
+            return count[0];
+        }
+        long middle = from + (to - from) / 2;
+        NameCountTask head = new NameCountTask(index, matcher, budget, from, middle, chunkSize);
+        head.fork();
+        long tail = new NameCountTask(index, matcher, budget, middle, to, chunkSize).compute();
+        return head.join() + tail;
+    }
+}
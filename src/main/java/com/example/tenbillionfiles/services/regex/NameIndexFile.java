@@ -0,0 +1,313 @@
+package com.example.tenbillionfiles.services.regex;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Persistent list of the file names of one partition, memory mapped so it lives in the page cache, not on the heap.
+ *
+ * Two files:
+ * <ul>
+ *     <li>names.dat: length-prefixed UTF-8 records, appended</li>
+ *     <li>names.idx: a header (magic, format, entries, data end, dead entries) and one 16 bytes entry per
+ *     record (offset, name hash, length), in insertion order. A removed name keeps its entry with length -1
+ *     until the file is compacted.</li>
+ * </ul>
+ * Not thread-safe, RegexIndexService guards every partition with a read/write lock.
+ */
+public class NameIndexFile implements Closeable {
+
+    public static final String DATA_FILE = "names.dat";
+    public static final String TABLE_FILE = "names.idx";
+
+    private static final int MAGIC = 0x52474958;
+    private static final int FORMAT = 1;
+
+    private static final int ENTRIES_POSITION = 8;
+    private static final int DATA_END_POSITION = 16;
+    private static final int DEAD_ENTRIES_POSITION = 24;
+    private static final int HEADER_SIZE = 32;
+
+    private static final int ENTRY_SIZE = 16;
+    private static final int DELETED = -1;
+
+    private static final int LENGTH_PREFIX = 4;
+
+    private final Path directory;
+
+    private final MappedSegments data;
+    private final MappedSegments table;
+
+    private long entries;
+    private long dataEnd;
+    private long deadEntries;
+
+    private NameIndexFile(Path directory, MappedSegments data, MappedSegments table) {
+        this.directory = directory;
+        this.data = data;
+        this.table = table;
+    }
+
+    /**
+     * Opens the index persisted in the directory.
+     *
+     * @return null when there is none, or when it isn't in a usable state
+     */
+    public static NameIndexFile open(Path directory, int segmentSize) throws IOException {
+        if (!Files.isRegularFile(directory.resolve(DATA_FILE)) || !Files.isRegularFile(directory.resolve(TABLE_FILE))
+                || Files.size(directory.resolve(TABLE_FILE)) < HEADER_SIZE
+                || Files.size(directory.resolve(TABLE_FILE)) % segmentSize != 0
+                || Files.size(directory.resolve(DATA_FILE)) % segmentSize != 0) {
+            return null;
+        }
+        NameIndexFile index = new NameIndexFile(directory, new MappedSegments(directory.resolve(DATA_FILE), segmentSize),
+                new MappedSegments(directory.resolve(TABLE_FILE), segmentSize));
+        MappedByteBuffer header = index.table.segment(0);
+        index.entries = header.getLong(ENTRIES_POSITION);
+        index.dataEnd = header.getLong(DATA_END_POSITION);
+        index.deadEntries = header.getLong(DEAD_ENTRIES_POSITION);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT
+                || index.entries < 0 || index.deadEntries < 0 || index.deadEntries > index.entries
+                || index.dataEnd < 0 || index.dataEnd > index.data.getCapacity()
+                || entryPosition(index.entries) > index.table.getCapacity()) {
+            index.close();
+            return null;
+        }
+        return index;
+    }
+
+    /**
+     * Creates an empty index in the directory, replacing any previous one.
+     */
+    public static NameIndexFile create(Path directory, int segmentSize) throws IOException {
+        Files.createDirectories(directory);
+        Files.deleteIfExists(directory.resolve(DATA_FILE));
+        Files.deleteIfExists(directory.resolve(TABLE_FILE));
+        NameIndexFile index = new NameIndexFile(directory, new MappedSegments(directory.resolve(DATA_FILE), segmentSize),
+                new MappedSegments(directory.resolve(TABLE_FILE), segmentSize));
+        index.table.ensureCapacity(HEADER_SIZE);
+        MappedByteBuffer header = index.table.segment(0);
+        header.putInt(0, MAGIC);
+        header.putInt(4, FORMAT);
+        index.writeHeader();
+        return index;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Entries of the table, removed names included. Entry indexes are stable until the next compaction.
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    public long getLiveEntries() {
+        return entries - deadEntries;
+    }
+
+    public long getDeadEntries() {
+        return deadEntries;
+    }
+
+    /**
+     * Appends the name, the caller makes sure it isn't already there.
+     */
+    public void append(String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int recordSize = LENGTH_PREFIX + bytes.length;
+        long offset = dataEnd;
+        if (data.offsetInSegment(offset) + recordSize > data.getSegmentSize()) {
+            // records never cross a segment boundary
+            offset += data.getSegmentSize() - data.offsetInSegment(offset);
+        }
+        data.ensureCapacity(offset + recordSize);
+        ByteBuffer record = data.segment(offset).duplicate();
+        record.position(data.offsetInSegment(offset));
+        record.putInt(bytes.length);
+        record.put(bytes);
+
+        long entry = entryPosition(entries);
+        table.ensureCapacity(entry + ENTRY_SIZE);
+        MappedByteBuffer segment = table.segment(entry);
+        int position = table.offsetInSegment(entry);
+        segment.putLong(position, offset);
+        segment.putInt(position + 8, name.hashCode());
+        segment.putInt(position + 12, bytes.length);
+
+        // the header goes last, a torn append is simply not part of the index
+        entries++;
+        dataEnd = offset + recordSize;
+        writeHeader();
+    }
+
+    /**
+     * @return false when the name wasn't there
+     */
+    public boolean remove(String name) {
+        long entry = find(name);
+        if (entry < 0) {
+            return false;
+        }
+        long position = entryPosition(entry);
+        table.segment(position).putInt(table.offsetInSegment(position) + 12, DELETED);
+        deadEntries++;
+        writeHeader();
+        return true;
+    }
+
+    public boolean contains(String name) {
+        return find(name) >= 0;
+    }
+
+    /**
+     * Sequential scan of the table, the hash of the entries is compared before the name bytes.
+     *
+     * @return the entry index of the name, -1 when it isn't there
+     */
+    private long find(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int hash = name.hashCode();
+        for (long entry = 0; entry < entries; entry++) {
+            long position = entryPosition(entry);
+            MappedByteBuffer segment = table.segment(position);
+            int offset = table.offsetInSegment(position);
+            if (segment.getInt(offset + 8) == hash && segment.getInt(offset + 12) == bytes.length
+                    && sameBytes(segment.getLong(offset), bytes)) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private boolean sameBytes(long recordOffset, byte[] bytes) {
+        MappedByteBuffer segment = data.segment(recordOffset);
+        int start = data.offsetInSegment(recordOffset) + LENGTH_PREFIX;
+        for (int i = 0; i < bytes.length; i++) {
+            if (segment.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits the live names of the entries [from, to), decoded one at a time.
+     */
+    public void forEach(long from, long to, Consumer<String> action) {
+        byte[] buffer = new byte[256];
+        ByteBuffer segment = null;
+        MappedByteBuffer mappedSegment = null;
+        for (long entry = from; entry < to; entry++) {
+            long position = entryPosition(entry);
+            MappedByteBuffer tableSegment = table.segment(position);
+            int offset = table.offsetInSegment(position);
+            int length = tableSegment.getInt(offset + 12);
+            if (length == DELETED) {
+                continue;
+            }
+            long recordOffset = tableSegment.getLong(offset);
+            if (mappedSegment != data.segment(recordOffset)) {
+                // a private view, so its position can be moved without affecting the other scans
+                mappedSegment = data.segment(recordOffset);
+                segment = mappedSegment.duplicate();
+            }
+            if (buffer.length < length) {
+                buffer = new byte[length];
+            }
+            segment.position(data.offsetInSegment(recordOffset) + LENGTH_PREFIX);
+            segment.get(buffer, 0, length);
+            action.accept(new String(buffer, 0, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    public void forEach(Consumer<String> action) {
+        forEach(0, entries, action);
+    }
+
+    /**
+     * Visits the live names of the entries [from, to) accepted by the matcher, which runs on the mapped bytes.
+     * Only these names are decoded.
+     */
+    public void forEachMatch(long from, long to, NameMatcher matcher, Consumer<String> action) {
+        for (long entry = from; entry < to; entry++) {
+            long position = entryPosition(entry);
+            MappedByteBuffer tableSegment = table.segment(position);
+            int offset = table.offsetInSegment(position);
+            int length = tableSegment.getInt(offset + 12);
+            if (length == DELETED) {
+                continue;
+            }
+            long recordOffset = tableSegment.getLong(offset);
+            MappedByteBuffer segment = data.segment(recordOffset);
+            int start = data.offsetInSegment(recordOffset) + LENGTH_PREFIX;
+            if (matcher.matches(segment, start, length)) {
+                byte[] bytes = new byte[length];
+                ByteBuffer name = segment.duplicate();
+                name.position(start);
+                name.get(bytes);
+                action.accept(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    public void forEachMatch(NameMatcher matcher, Consumer<String> action) {
+        forEachMatch(0, entries, matcher, action);
+    }
+
+    /**
+     * Writes the live names to a new index in the directory, in the same order.
+     */
+    public NameIndexFile compactTo(Path targetDirectory) throws IOException {
+        NameIndexFile compacted = create(targetDirectory, data.getSegmentSize());
+        IOException[] failure = new IOException[1];
+        forEach(name -> {
+            if (failure[0] == null) {
+                try {
+                    compacted.append(name);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            compacted.close();
+            throw failure[0];
+        }
+        compacted.force();
+        return compacted;
+    }
+
+    /**
+     * Writes the changes to the device.
+     */
+    public void force() {
+        data.force();
+        table.force();
+    }
+
+    private void writeHeader() {
+        MappedByteBuffer header = table.segment(0);
+        header.putLong(ENTRIES_POSITION, entries);
+        header.putLong(DATA_END_POSITION, dataEnd);
+        header.putLong(DEAD_ENTRIES_POSITION, deadEntries);
+    }
+
+    private static long entryPosition(long entry) {
+        return HEADER_SIZE + entry * ENTRY_SIZE;
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+        table.close();
+    }
+}
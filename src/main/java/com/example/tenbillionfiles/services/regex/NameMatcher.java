@@ -0,0 +1,15 @@
+package com.example.tenbillionfiles.services.regex;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tells whether a name stored as UTF-8 bytes matches a query, without decoding it.
+ *
+ * Implementations only use the absolute accessors of the buffer, so one matcher can scan shared mapped segments
+ * from several threads.
+ */
+public interface NameMatcher {
+
+    boolean matches(ByteBuffer names, int offset, int length);
+
+}
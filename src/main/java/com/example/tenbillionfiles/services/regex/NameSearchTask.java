@@ -0,0 +1,46 @@
+package com.example.tenbillionfiles.services.regex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Matching names of a range of entries, split in halves down to chunkSize entries so idle workers steal the rest.
+ * Results keep the index order. The caller holds the read lock of the partition for the whole scan.
+ * Every chunk first checks the budget of the query, a failed, cancelled or late query stops at the next chunk.
+ */
+public class NameSearchTask extends RecursiveTask<List<String>> {
+
+    private final NameIndexFile index;
+    private final NameMatcher matcher;
+    private final MatchBudget budget;
+    private final long from;
+    private final long to;
+    private final long chunkSize;
+
+    public NameSearchTask(NameIndexFile index, NameMatcher matcher, MatchBudget budget, long from, long to, long chunkSize) {
+        this.index = index;
+        this.matcher = matcher;
+        this.budget = budget;
+        this.from = from;
+        this.to = to;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected List<String> compute() {
+        if (to - from <= chunkSize) {
+            budget.check();
+            List<String> findings = new ArrayList<>();
+            index.forEachMatch(from, to, matcher, findings::add);
+            return findings;
+        }
+        long middle = from + (to - from) / 2;
+        NameSearchTask head = new NameSearchTask(index, matcher, budget, from, middle, chunkSize);
+        head.fork();
+        List<String> tail = new NameSearchTask(index, matcher, budget, middle, to, chunkSize).compute();
+        List<String> findings = head.join();
+        findings.addAll(tail);
+        return findings;
+    }
+}
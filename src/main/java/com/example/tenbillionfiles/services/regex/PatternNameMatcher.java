@@ -0,0 +1,76 @@
+package com.example.tenbillionfiles.services.regex;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * Any regex: decodes the name and runs java.util.regex on it.
+ *
+ * The backtracking engine reads the name one character at a time, each read counts as a step of the budget so a
+ * catastrophic pattern gives up on the first name it explodes on instead of burning a worker for hours.
+ */
+public class PatternNameMatcher implements NameMatcher {
+
+    // steps between two looks at the deadline and the other workers
+    private static final int CHECK_INTERVAL = 4096;
+
+    private final Pattern pattern;
+    private final MatchBudget budget;
+
+    public PatternNameMatcher(Pattern pattern, MatchBudget budget) {
+        this.pattern = pattern;
+        this.budget = budget;
+    }
+
+    @Override
+    public boolean matches(ByteBuffer names, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer name = names.duplicate();
+        name.position(offset);
+        name.get(bytes);
+        return pattern.matcher(new StepCountingName(new String(bytes, StandardCharsets.UTF_8))).find();
+    }
+
+    @Override
+    public String toString() {
+        return "PatternNameMatcher{" + pattern + '}';
+    }
+
+    private final class StepCountingName implements CharSequence {
+
+        private final String name;
+        private long steps;
+
+        private StepCountingName(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public int length() {
+            return name.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if ((++steps & (CHECK_INTERVAL - 1)) == 0) {
+                if (steps > budget.getMaxStepsPerName()) {
+                    throw budget.stepsExceeded(steps);
+                }
+                budget.check();
+            }
+            return name.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            // only used to extract groups, once matched
+            return name.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
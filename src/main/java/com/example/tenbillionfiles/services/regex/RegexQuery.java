@@ -0,0 +1,15 @@
+package com.example.tenbillionfiles.services.regex;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A regex planned once for all the partitions it runs on, with the budget they share.
+ */
+@Getter
+@AllArgsConstructor
+public class RegexQuery {
+    private final String regex;
+    private final NameMatcher matcher;
+    private final MatchBudget budget;
+}
@@ -0,0 +1,462 @@
+package com.example.tenbillionfiles.services.regex;
+
+import com.example.tenbillionfiles.exception.RegexRejectedException;
+import org.apache.lucene.util.automaton.Automata;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.ByteRunAutomaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.RegExp;
+import org.apache.lucene.util.automaton.TooComplexToDeterminizeException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Picks the cheapest exact way to run a regex over UTF-8 names.
+ *
+ * <ul>
+ *     <li>literals, optionally anchored with ^ and $ or surrounded by .*, run on the bytes with {@link LiteralNameMatcher}</li>
+ *     <li>fixed length sequences of literals and ASCII classes ([a-z0-9_], \d, \w, \s) run with {@link ByteClassNameMatcher}</li>
+ *     <li>anything else (quantifiers, groups, alternations, negated classes, flags...) goes to java.util.regex,
+ *     or to a deterministic automaton with the linear engine</li>
+ * </ul>
+ *
+ * The linear engine translates the java syntax to a lucene {@link RegExp}, the constructs without a finite automaton
+ * (backreferences, lookarounds, possessive quantifiers, flags) and the automata over maxDeterminizedStates states are
+ * rejected rather than run with different semantics.
+ */
+public final class RegexQueryPlanner {
+
+    // characters with a meaning outside of a class, anything not planned here falls back to the regex engine
+    private static final String META_CHARACTERS = ".*+?{}()|^$[]\\";
+
+    // what $ may skip at the end of the name, and what . doesn't match, like java.util.regex without flags
+    private static final List<String> LINE_TERMINATORS = Arrays.asList("\n", "\r\n", "\r", "\u0085", "\u2028", "\u2029");
+    private static final String NOT_LINE_TERMINATOR = "[^\n\r\u0085\u2028\u2029]";
+
+    private RegexQueryPlanner() {
+    }
+
+    /**
+     * @param linear run the regexes without a byte level plan on an automaton instead of java.util.regex
+     * @throws java.util.regex.PatternSyntaxException like Pattern.compile
+     * @throws RegexRejectedException when the linear engine can't run the regex
+     */
+    public static NameMatcher plan(String regex, boolean linear, MatchBudget budget, int maxDeterminizedStates) {
+        Pattern pattern = Pattern.compile(regex);
+        // also checks the names ending with a line terminator for the byte level plans, which can't backtrack
+        NameMatcher fallback = new PatternNameMatcher(pattern, budget);
+
+        String body = regex;
+        boolean anchoredStart = false;
+        boolean anchoredEnd = false;
+        if (body.startsWith("^")) {
+            anchoredStart = true;
+            body = body.substring(1);
+        } else if (body.startsWith(".*")) {
+            // can match nothing, so a find doesn't depend on it
+            body = body.substring(2);
+        }
+        if (endsWithUnescaped(body, "$")) {
+            anchoredEnd = true;
+            body = body.substring(0, body.length() - 1);
+        } else if (endsWithUnescaped(body, ".*")) {
+            body = body.substring(0, body.length() - 2);
+        }
+
+        List<long[]> classes = parse(body);
+        if (classes == null) {
+            return linear ? automaton(regex, maxDeterminizedStates) : fallback;
+        }
+        boolean literal = true;
+        for (long[] byteClass : classes) {
+            literal &= byteClass.length == 1;
+        }
+        if (literal) {
+            byte[] bytes = new byte[classes.size()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) classes.get(i)[0];
+            }
+            return new LiteralNameMatcher(bytes, anchoredStart, anchoredEnd, fallback);
+        }
+        long[] lowBits = new long[classes.size()];
+        long[] highBits = new long[classes.size()];
+        for (int i = 0; i < classes.size(); i++) {
+            long[] byteClass = classes.get(i);
+            if (byteClass.length == 1) {
+                // a literal byte of a multi-byte character can't be in an ASCII set, such sequences go to the regex
+                if (byteClass[0] < 0 || byteClass[0] > 127) {
+                    return linear ? automaton(regex, maxDeterminizedStates) : fallback;
+                }
+                byteClass = singleton((int) byteClass[0]);
+            }
+            lowBits[i] = byteClass[0];
+            highBits[i] = byteClass[1];
+        }
+        return new ByteClassNameMatcher(lowBits, highBits, anchoredStart, anchoredEnd, fallback);
+    }
+
+    private static NameMatcher automaton(String regex, int maxDeterminizedStates) {
+        String body = regex;
+        boolean anchoredStart = body.startsWith("^");
+        if (anchoredStart) {
+            body = body.substring(1);
+        }
+        boolean anchoredEnd = endsWithUnescaped(body, "$");
+        if (anchoredEnd) {
+            body = body.substring(0, body.length() - 1);
+        }
+        String translated = toAutomatonSyntax(body, anchoredStart || anchoredEnd);
+        try {
+            Automaton matched = new RegExp(translated, RegExp.NONE).toAutomaton(maxDeterminizedStates);
+            if (!anchoredStart) {
+                matched = Operations.concatenate(Automata.makeAnyString(), matched);
+            }
+            Automaton language;
+            if (anchoredEnd) {
+                List<Automaton> endings = new ArrayList<>();
+                endings.add(matched);
+                for (String terminator : LINE_TERMINATORS) {
+                    Automaton terminated = Operations.concatenate(matched, Automata.makeString(terminator));
+                    if (terminator.equals("\n")) {
+                        // $ doesn't match between the \r and the \n of a final \r\n, "a\r$" doesn't find "a\r\n"
+                        terminated = Operations.minus(terminated, Operations.concatenate(Automata.makeAnyString(),
+                                Automata.makeString("\r\n")), maxDeterminizedStates);
+                    }
+                    endings.add(terminated);
+                }
+                language = Operations.union(endings);
+            } else {
+                language = Operations.concatenate(matched, Automata.makeAnyString());
+            }
+            // the characters are converted to UTF-8 bytes and the automaton determinized once more
+            ByteRunAutomaton runAutomaton = new ByteRunAutomaton(language, false, maxDeterminizedStates);
+            return new AutomatonNameMatcher(runAutomaton, anchoredEnd, regex);
+        } catch (TooComplexToDeterminizeException e) {
+            throw new RegexRejectedException("Regex '" + regex + "' needs more than " + maxDeterminizedStates
+                    + " automaton states for engine=linear", e);
+        } catch (IllegalArgumentException e) {
+            throw new RegexRejectedException("engine=linear can't run regex '" + regex + "': " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Rewrites a java regex (anchors already removed) in the lucene RegExp syntax, with the same language.
+     *
+     * @throws RegexRejectedException for the constructs an automaton can't run
+     */
+    private static String toAutomatonSyntax(String body, boolean anchored) {
+        StringBuilder translated = new StringBuilder(body.length() * 2);
+        int depth = 0;
+        int i = 0;
+        while (i < body.length()) {
+            char c = body.charAt(i);
+            boolean quantifier = false;
+            if (c == '\\') {
+                char escaped = escapedAt(body, i);
+                String shorthand = shorthandRanges(escaped);
+                if (shorthand != null) {
+                    translated.append('[').append(shorthand).append(']');
+                } else if (escaped == 'D' || escaped == 'W' || escaped == 'S') {
+                    translated.append("[^").append(shorthandRanges(Character.toLowerCase(escaped))).append(']');
+                } else {
+                    appendEscaped(translated, control(body, i, escaped));
+                }
+                i += 2;
+            } else if (c == '[') {
+                i = translateClass(body, i + 1, translated) + 1;
+            } else if (c == '(') {
+                if (body.startsWith("(?:", i)) {
+                    i += 2;
+                } else if (body.startsWith("(?", i)) {
+                    throw unsupported(body, i);
+                }
+                translated.append('(');
+                depth++;
+                i++;
+            } else if (c == ')') {
+                translated.append(')');
+                depth--;
+                i++;
+            } else if (c == '|') {
+                if (anchored && depth == 0) {
+                    // ^a|b only anchors the first alternative
+                    throw unsupported(body, i);
+                }
+                translated.append('|');
+                i++;
+            } else if (c == '.') {
+                translated.append(NOT_LINE_TERMINATOR);
+                i++;
+            } else if (c == '*' || c == '+' || c == '?') {
+                translated.append(c);
+                quantifier = true;
+                i++;
+            } else if (c == '{') {
+                int end = body.indexOf('}', i);
+                translated.append(body, i, end + 1);
+                quantifier = true;
+                i = end + 1;
+            } else if (c == '^' || c == '$') {
+                throw unsupported(body, i);
+            } else {
+                appendEscaped(translated, c);
+                i++;
+            }
+            if (quantifier && i < body.length()) {
+                if (body.charAt(i) == '?') {
+                    // a reluctant quantifier matches the same names
+                    i++;
+                } else if (body.charAt(i) == '+') {
+                    // a possessive one doesn't, it never gives back what it matched
+                    throw unsupported(body, i);
+                }
+            }
+        }
+        return translated.toString();
+    }
+
+    /**
+     * @return the index of the closing ']'
+     */
+    private static int translateClass(String body, int start, StringBuilder translated) {
+        translated.append('[');
+        int i = start;
+        if (i < body.length() && body.charAt(i) == '^') {
+            translated.append('^');
+            i++;
+        }
+        if (i < body.length() && body.charAt(i) == ']') {
+            throw unsupported(body, i);
+        }
+        while (i < body.length() && body.charAt(i) != ']') {
+            char c = body.charAt(i);
+            if (c == '\\') {
+                char escaped = escapedAt(body, i);
+                String shorthand = shorthandRanges(escaped);
+                if (shorthand != null) {
+                    translated.append(shorthand);
+                } else {
+                    appendEscaped(translated, control(body, i, escaped));
+                }
+                i += 2;
+            } else if (c == '[' || body.startsWith("&&", i)) {
+                // unions and intersections
+                throw unsupported(body, i);
+            } else if (c == '-' && i > start && i + 1 < body.length() && body.charAt(i + 1) != ']') {
+                translated.append('-');
+                i++;
+            } else {
+                appendEscaped(translated, c);
+                i++;
+            }
+        }
+        translated.append(']');
+        return i;
+    }
+
+    private static char escapedAt(String body, int i) {
+        if (i + 1 >= body.length()) {
+            throw unsupported(body, i);
+        }
+        return body.charAt(i + 1);
+    }
+
+    /**
+     * @return the character of a \t, \n, \r, \f or escaped punctuation
+     */
+    private static char control(String body, int i, char escaped) {
+        switch (escaped) {
+            case 't':
+                return '\t';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            default:
+                if (isEscapablePunctuation(escaped)) {
+                    return escaped;
+                }
+                // backreferences, boundaries, unicode properties, quoting...
+                throw unsupported(body, i);
+        }
+    }
+
+    private static String shorthandRanges(char escaped) {
+        switch (escaped) {
+            case 'd':
+                return "0-9";
+            case 'w':
+                return "a-zA-Z0-9_";
+            case 's':
+                return " \t\n\u000B\f\r";
+            default:
+                return null;
+        }
+    }
+
+    private static void appendEscaped(StringBuilder translated, char c) {
+        if (c < 128 && !Character.isLetterOrDigit(c)) {
+            // every punctuation is a literal once escaped, in and out of classes
+            translated.append('\\');
+        }
+        translated.append(c);
+    }
+
+    private static RegexRejectedException unsupported(String body, int index) {
+        return new RegexRejectedException("engine=linear doesn't support '" + body.substring(index)
+                + "', use engine=backtracking");
+    }
+
+    /**
+     * One entry per byte to match: {byte} for a literal byte, {low 64 bits, high 64 bits} for an ASCII set.
+     *
+     * @return null when the regex uses anything else
+     */
+    private static List<long[]> parse(String body) {
+        List<long[]> classes = new ArrayList<>();
+        int i = 0;
+        while (i < body.length()) {
+            char c = body.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= body.length()) {
+                    return null;
+                }
+                char escaped = body.charAt(i + 1);
+                long[] shorthand = shorthandClass(escaped);
+                if (shorthand != null) {
+                    classes.add(shorthand);
+                } else if (isEscapablePunctuation(escaped)) {
+                    classes.add(new long[]{escaped});
+                } else {
+                    return null;
+                }
+                i += 2;
+            } else if (c == '[') {
+                int end = parseClass(body, i + 1, classes);
+                if (end < 0) {
+                    return null;
+                }
+                i = end + 1;
+            } else if (META_CHARACTERS.indexOf(c) >= 0) {
+                return null;
+            } else {
+                int codePoint = body.codePointAt(i);
+                for (byte b : new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8)) {
+                    classes.add(new long[]{b & 0xFF});
+                }
+                i += Character.charCount(codePoint);
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Parses a [...] class of ASCII characters, ranges and shorthands starting after the '['.
+     *
+     * @return the index of the closing ']', -1 when the class isn't supported
+     */
+    private static int parseClass(String body, int start, List<long[]> classes) {
+        long[] bits = new long[2];
+        int i = start;
+        if (i < body.length() && (body.charAt(i) == '^' || body.charAt(i) == ']')) {
+            // negated classes match non-ASCII characters, which are several bytes long
+            return -1;
+        }
+        while (i < body.length() && body.charAt(i) != ']') {
+            char c = body.charAt(i);
+            int from;
+            if (c == '\\') {
+                if (i + 1 >= body.length()) {
+                    return -1;
+                }
+                char escaped = body.charAt(i + 1);
+                long[] shorthand = shorthandClass(escaped);
+                if (shorthand != null) {
+                    bits[0] |= shorthand[0];
+                    bits[1] |= shorthand[1];
+                    i += 2;
+                    continue;
+                }
+                if (!isEscapablePunctuation(escaped)) {
+                    return -1;
+                }
+                from = escaped;
+                i += 2;
+            } else if (c == '[' || c == '&' || c > 127) {
+                // unions, intersections and non-ASCII characters
+                return -1;
+            } else {
+                from = c;
+                i++;
+            }
+            int to = from;
+            if (i + 1 < body.length() && body.charAt(i) == '-' && body.charAt(i + 1) != ']') {
+                char end = body.charAt(i + 1);
+                if (end == '\\' || end == '[' || end > 127 || end < from) {
+                    return -1;
+                }
+                to = end;
+                i += 2;
+            }
+            for (int value = from; value <= to; value++) {
+                bits[value >>> 6] |= 1L << value;
+            }
+        }
+        if (i >= body.length() || (bits[0] == 0 && bits[1] == 0)) {
+            return -1;
+        }
+        classes.add(bits);
+        return i;
+    }
+
+    private static long[] shorthandClass(char escaped) {
+        switch (escaped) {
+            case 'd':
+                return range(new long[2], '0', '9');
+            case 'w':
+                long[] word = range(new long[2], 'a', 'z');
+                range(word, 'A', 'Z');
+                range(word, '0', '9');
+                return range(word, '_', '_');
+            case 's':
+                long[] space = range(new long[2], '\t', '\r');
+                return range(space, ' ', ' ');
+            default:
+                return null;
+        }
+    }
+
+    private static long[] range(long[] bits, char from, char to) {
+        for (int value = from; value <= to; value++) {
+            bits[value >>> 6] |= 1L << value;
+        }
+        return bits;
+    }
+
+    private static long[] singleton(int value) {
+        long[] bits = new long[2];
+        bits[value >>> 6] |= 1L << value;
+        return bits;
+    }
+
+    private static boolean isEscapablePunctuation(char c) {
+        return c < 128 && !Character.isLetterOrDigit(c) && c > ' ';
+    }
+
+    private static boolean endsWithUnescaped(String body, String suffix) {
+        if (!body.endsWith(suffix)) {
+            return false;
+        }
+        int backslashes = 0;
+        for (int i = body.length() - suffix.length() - 1; i >= 0 && body.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 0;
+    }
+}
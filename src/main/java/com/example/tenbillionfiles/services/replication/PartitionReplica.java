@@ -0,0 +1,32 @@
+package com.example.tenbillionfiles.services.replication;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replication role of the copy of a partition held by this node.
+ */
+@Getter
+@Setter
+public class PartitionReplica {
+
+    private final int partition;
+
+    private volatile boolean primary;
+
+    // the copy is complete, it may serve reads and be promoted
+    private volatile boolean synced;
+
+    // changes to ship, only while primary
+    private volatile ReplicationLog log;
+
+    // by node index, only while primary
+    private final Map<Integer, ReplicaShipper> shippers = new ConcurrentHashMap<>();
+
+    public PartitionReplica(int partition) {
+        this.partition = partition;
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.tenbillionfiles.services.replication;
+
+import com.example.tenbillionfiles.services.wal.WalRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Ships the changes of a primary partition to one replica node, in log order.
+ *
+ * A replica starts with a full resync, then only gets the new records. It is resynced again when it falls out of
+ * the log buffer or reports itself out of sync (e.g. after a restart).
+ */
+public class ReplicaShipper implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaShipper.class);
+
+    private static final int BATCH_SIZE = 256;
+
+    private final int partition;
+    private final int node;
+    private final ReplicationLog log;
+    private final ReplicationTransport transport;
+    private final long retryMillis;
+
+    private volatile boolean running = true;
+    private volatile boolean resyncing;
+
+    // next record the replica has to get
+    private volatile long nextSequence;
+
+    public ReplicaShipper(int partition, int node, ReplicationLog log, ReplicationTransport transport, long retryMillis) {
+        this.partition = partition;
+        this.node = node;
+        this.log = log;
+        this.transport = transport;
+        this.retryMillis = retryMillis;
+    }
+
+    @Override
+    public void run() {
+        boolean resync = true;
+        long lastResyncMillis = 0L;
+        while (running) {
+            try {
+                if (!transport.isAlive(node)) {
+                    Thread.sleep(retryMillis);
+                    continue;
+                }
+                if (resync || transport.needsResync(node, partition, lastResyncMillis)) {
+                    // changes made while copying are shipped again afterwards, applying them twice is harmless
+                    long from = log.getNextSequence();
+                    resyncing = true;
+                    logger.info("Resyncing partition {} to node {}", partition, node);
+                    transport.resync(node, partition);
+                    lastResyncMillis = System.currentTimeMillis();
+                    nextSequence = from;
+                    resync = false;
+                    resyncing = false;
+                    continue;
+                }
+                List<WalRecord> batch = log.read(nextSequence, BATCH_SIZE);
+                if (batch == null) {
+                    logger.warn("Node {} fell behind the replication log of partition {}", node, partition);
+                    resync = true;
+                    continue;
+                }
+                if (batch.isEmpty()) {
+                    log.awaitSequence(nextSequence, retryMillis);
+                    continue;
+                }
+                for (WalRecord record : batch) {
+                    transport.ship(node, partition, record);
+                    nextSequence = record.getSequence() + 1;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not replicate partition {} to node {}: {}", partition, node, e.toString());
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    public boolean isResyncing() {
+        return resyncing;
+    }
+
+    public int getNode() {
+        return node;
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.tenbillionfiles.services.replication;
+
+import com.example.tenbillionfiles.services.wal.WalOperation;
+import com.example.tenbillionfiles.services.wal.WalRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory log of the changes applied by the primary of a partition, read by the replica shippers.
+ *
+ * Sequences are local to this log (the WAL sequences of concurrent writers are not appended in order).
+ * Only the last {capacity} records are kept, a shipper asking for an older one gets null and has to resync.
+ */
+public class ReplicationLog {
+
+    private final WalRecord[] records;
+    private final long[] appendedAtNanos;
+
+    // sequence the next appended record gets
+    private long nextSequence;
+
+    public ReplicationLog(int capacity) {
+        this.records = new WalRecord[capacity];
+        this.appendedAtNanos = new long[capacity];
+    }
+
+    public synchronized long append(WalOperation operation, String fileName) {
+        long sequence = nextSequence++;
+        int slot = (int) (sequence % records.length);
+        records[slot] = new WalRecord(sequence, operation, fileName);
+        appendedAtNanos[slot] = System.nanoTime();
+        notifyAll();
+        return sequence;
+    }
+
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Up to max records starting at the sequence, empty when there is none yet, null when it's not kept anymore.
+     */
+    public synchronized List<WalRecord> read(long fromSequence, int max) {
+        if (fromSequence < nextSequence - records.length) {
+            return null;
+        }
+        int count = (int) Math.min(max, nextSequence - fromSequence);
+        List<WalRecord> batch = new ArrayList<>(Math.max(0, count));
+        for (long sequence = fromSequence; sequence < fromSequence + count; sequence++) {
+            batch.add(records[(int) (sequence % records.length)]);
+        }
+        return batch;
+    }
+
+    /**
+     * Waits until a record with the sequence is appended, or the timeout.
+     */
+    public synchronized void awaitSequence(long sequence, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long remaining;
+        while (nextSequence <= sequence && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    /**
+     * Age of the record, 0 when it is not appended yet or not kept anymore.
+     */
+    public synchronized long getAgeMillis(long sequence) {
+        if (sequence >= nextSequence || sequence < nextSequence - records.length) {
+            return 0L;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - appendedAtNanos[(int) (sequence % records.length)]);
+    }
+}
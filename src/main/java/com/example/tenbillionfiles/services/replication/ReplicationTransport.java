@@ -0,0 +1,28 @@
+package com.example.tenbillionfiles.services.replication;
+
+import com.example.tenbillionfiles.services.wal.WalRecord;
+
+import java.io.IOException;
+
+/**
+ * What a {@link ReplicaShipper} needs from the cluster.
+ */
+public interface ReplicationTransport {
+
+    boolean isAlive(int node);
+
+    /**
+     * True when a heartbeat received after the given time reported the copy of the node as not synced.
+     */
+    boolean needsResync(int node, int partition, long sinceMillis);
+
+    /**
+     * Applies the change on the node, returns once the node stored it.
+     */
+    void ship(int node, int partition, WalRecord record) throws IOException;
+
+    /**
+     * Copies the whole partition to the node and drops the files it has in excess.
+     */
+    void resync(int node, int partition) throws IOException;
+}
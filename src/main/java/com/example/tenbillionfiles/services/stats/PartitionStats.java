@@ -0,0 +1,102 @@
+package com.example.tenbillionfiles.services.stats;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregates of the files of one partition: count, bytes, sizes by power of 2 and modification times by day.
+ *
+ * Updated by the writers under the name lock, so every change is counted exactly once. The version lets the
+ * reconciliation tell whether the partition changed while it was walking it.
+ */
+public class PartitionStats {
+
+    // bucket 0 holds the empty files, bucket i the sizes in [2^(i-1), 2^i)
+    public static final int SIZE_BUCKETS = 64;
+
+    private long count;
+    private long totalBytes;
+    private final long[] sizeBuckets = new long[SIZE_BUCKETS];
+    // epoch day of the modification -> files
+    private final Map<Long, Long> modifiedDays = new HashMap<>();
+
+    private long version;
+
+    public static int sizeBucket(long size) {
+        return size <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(size);
+    }
+
+    public synchronized void add(long size, long lastModified) {
+        count++;
+        totalBytes += size;
+        sizeBuckets[sizeBucket(size)]++;
+        modifiedDays.merge(toDay(lastModified), 1L, Long::sum);
+        version++;
+    }
+
+    public synchronized void remove(long size, long lastModified) {
+        count--;
+        totalBytes -= size;
+        sizeBuckets[sizeBucket(size)]--;
+        modifiedDays.computeIfPresent(toDay(lastModified), (day, files) -> files == 1L ? null : files - 1L);
+        version++;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Replaces the aggregates by the ones computed by a walk, unless the partition changed since the walk started.
+     *
+     * @return false when the partition changed, the walk result may then be stale
+     */
+    public synchronized boolean reconcile(PartitionStats walked, long versionAtWalkStart) {
+        if (version != versionAtWalkStart) {
+            return false;
+        }
+        synchronized (walked) {
+            count = walked.count;
+            totalBytes = walked.totalBytes;
+            System.arraycopy(walked.sizeBuckets, 0, sizeBuckets, 0, SIZE_BUCKETS);
+            modifiedDays.clear();
+            modifiedDays.putAll(walked.modifiedDays);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the aggregates of this partition to the total.
+     */
+    public synchronized void addTo(PartitionStats total) {
+        synchronized (total) {
+            total.count += count;
+            total.totalBytes += totalBytes;
+            for (int bucket = 0; bucket < SIZE_BUCKETS; bucket++) {
+                total.sizeBuckets[bucket] += sizeBuckets[bucket];
+            }
+            modifiedDays.forEach((day, files) -> total.modifiedDays.merge(day, files, Long::sum));
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long getSizeBucket(int bucket) {
+        return sizeBuckets[bucket];
+    }
+
+    public synchronized Map<Long, Long> getModifiedDays() {
+        return new HashMap<>(modifiedDays);
+    }
+
+    public static long toDay(long millis) {
+        return TimeUnit.MILLISECONDS.toDays(millis);
+    }
+}
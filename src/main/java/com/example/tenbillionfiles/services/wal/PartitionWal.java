@@ -0,0 +1,275 @@
+package com.example.tenbillionfiles.services.wal;
+
+import com.example.tenbillionfiles.exception.FileStorageException;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only write-ahead log of one partition, with group commit: the first writer finding no sync in progress
+ * writes and fsyncs every pending record at once. The checkpoint keeps the highest sequence applied to the indexes.
+ */
+public class PartitionWal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionWal.class);
+
+    private static final String LOG_FILE = "wal.log";
+    private static final String CHECKPOINT_FILE = "wal.checkpoint";
+
+    @Getter
+    private final int partition;
+
+    private final Path logFile;
+    private final Path checkpointFile;
+    private final long maxLogSize;
+
+    private final FileChannel channel;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+
+    private List<WalRecord> pending = new ArrayList<>();
+    private boolean syncing;
+    private IOException failure;
+
+    @Getter
+    private long lastSequence;
+    @Getter
+    private long durableSequence;
+    @Getter
+    private long checkpointSequence;
+
+    // records appended but not yet applied to the indexes
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+
+    public PartitionWal(int partition, Path walDir, long maxLogSize) throws IOException {
+        this.partition = partition;
+        this.logFile = walDir.resolve(LOG_FILE);
+        this.checkpointFile = walDir.resolve(CHECKPOINT_FILE);
+        this.maxLogSize = maxLogSize;
+
+        Files.createDirectories(walDir);
+        checkpointSequence = readCheckpoint();
+        long validLength = recover();
+
+        channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > validLength) {
+            logger.warn("Truncating torn tail of WAL for partition {} from {} to {} bytes", partition, channel.size(), validLength);
+            channel.truncate(validLength);
+            channel.force(true);
+        }
+        channel.position(validLength);
+        durableSequence = lastSequence;
+    }
+
+    public boolean hasCheckpoint() {
+        return Files.exists(checkpointFile);
+    }
+
+    /**
+     * Appends a record and returns once it is durable on disk.
+     * @return the sequence number assigned to the record
+     */
+    public long append(WalOperation operation, String fileName) {
+        lock.lock();
+        try {
+            checkFailure();
+            long sequence = ++lastSequence;
+            pending.add(new WalRecord(sequence, operation, fileName));
+            inFlight.add(sequence);
+
+            while (durableSequence < sequence) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    checkFailure();
+                    continue;
+                }
+                syncing = true;
+                List<WalRecord> batch = pending;
+                pending = new ArrayList<>();
+                lock.unlock();
+                IOException batchFailure = null;
+                try {
+                    writeBatch(batch);
+                } catch (IOException e) {
+                    batchFailure = e;
+                } finally {
+                    lock.lock();
+                    syncing = false;
+                }
+                if (batchFailure != null) {
+                    // the log is in an unknown state
+                    failure = batchFailure;
+                } else {
+                    durableSequence = batch.get(batch.size() - 1).getSequence();
+                }
+                synced.signalAll();
+                checkFailure();
+            }
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a record as applied to every index.
+     */
+    public void complete(long sequence) {
+        inFlight.remove(sequence);
+    }
+
+    /**
+     * Highest sequence for which all the records up to it were applied.
+     */
+    public long getAppliedSequence() {
+        lock.lock();
+        try {
+            Long oldest = inFlight.isEmpty() ? null : inFlight.first();
+            return oldest == null ? durableSequence : Math.min(durableSequence, oldest - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Persists the applied sequence, and truncates the log once it is all applied and over its max size.
+     */
+    public void checkpoint() throws IOException {
+        checkpoint(getAppliedSequence());
+    }
+
+    public synchronized void checkpoint(long appliedSequence) throws IOException {
+        if (appliedSequence < checkpointSequence) {
+            return;
+        }
+        writeCheckpoint(appliedSequence);
+        checkpointSequence = appliedSequence;
+
+        lock.lock();
+        try {
+            if (!syncing && pending.isEmpty() && inFlight.isEmpty()
+                    && appliedSequence == lastSequence && channel.size() > maxLogSize) {
+                logger.debug("Truncating WAL for partition {} at sequence {}", partition, appliedSequence);
+                channel.truncate(0);
+                channel.position(0);
+                channel.force(true);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records logged after the last checkpoint, in log order.
+     */
+    public List<WalRecord> readTail() throws IOException {
+        List<WalRecord> tail = new LinkedList<>();
+        if (Files.notExists(logFile)) {
+            return tail;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            WalRecord record;
+            while ((record = WalRecord.readFrom(in)) != null) {
+                if (record.getSequence() > checkpointSequence) {
+                    tail.add(record);
+                }
+            }
+        }
+        return tail;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeBatch(List<WalRecord> batch) throws IOException {
+        int size = 0;
+        for (WalRecord record : batch) {
+            size += record.encodedLength();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (WalRecord record : batch) {
+            record.writeTo(buffer);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        logger.trace("Group commit of {} records on partition {}", batch.size(), partition);
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new FileStorageException("Write-ahead log of partition " + partition + " is not writable.", failure);
+        }
+    }
+
+    /**
+     * Scans the existing log to find the last valid record.
+     * @return length in bytes of the valid prefix of the log
+     */
+    private long recover() throws IOException {
+        long validLength = 0;
+        lastSequence = checkpointSequence;
+        if (Files.notExists(logFile)) {
+            return validLength;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            WalRecord record;
+            while ((record = WalRecord.readFrom(in)) != null) {
+                validLength += record.encodedLength();
+                lastSequence = Math.max(lastSequence, record.getSequence());
+            }
+        }
+        return validLength;
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (Files.notExists(checkpointFile)) {
+            return 0L;
+        }
+        String content = new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim();
+        try {
+            return Long.parseLong(content);
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring unreadable WAL checkpoint '{}' of partition {}", content, partition);
+            return 0L;
+        }
+    }
+
+    private void writeCheckpoint(long sequence) throws IOException {
+        Path tmp = checkpointFile.resolveSibling(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.write(ByteBuffer.wrap(Long.toString(sequence).getBytes(StandardCharsets.UTF_8)));
+            out.force(true);
+        }
+        Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
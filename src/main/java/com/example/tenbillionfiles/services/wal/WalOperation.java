@@ -0,0 +1,22 @@
+package com.example.tenbillionfiles.services.wal;
+
+/**
+ * Kind of change recorded in a partition write-ahead log.
+ */
+public enum WalOperation {
+    ADD,
+    MODIFY,
+    DELETE;
+
+    public static WalOperation fromCode(byte code) {
+        WalOperation[] operations = values();
+        if (code < 0 || code >= operations.length) {
+            throw new IllegalArgumentException("Unknown WAL operation code " + code);
+        }
+        return operations[code];
+    }
+
+    public byte getCode() {
+        return (byte) ordinal();
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.tenbillionfiles.services.wal;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * One entry of a partition write-ahead log.
+ *
+ * On disk a record is laid out as: payload length (int), payload (sequence long, operation byte,
+ * UTF-8 file name) and a CRC32 of the payload (int). The checksum lets recovery detect a torn tail.
+ */
+@Getter
+@AllArgsConstructor
+public class WalRecord {
+
+    // a file name can't be longer than this on any file system we support
+    private static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+    private static final int HEADER_LENGTH = Long.BYTES + Byte.BYTES;
+
+    private final long sequence;
+    private final WalOperation operation;
+    private final String fileName;
+
+    public int encodedLength() {
+        return Integer.BYTES + HEADER_LENGTH + fileName.getBytes(StandardCharsets.UTF_8).length + Integer.BYTES;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = HEADER_LENGTH + name.length;
+        buffer.putInt(payloadLength);
+        int payloadStart = buffer.position();
+        buffer.putLong(sequence);
+        buffer.put(operation.getCode());
+        buffer.put(name);
+
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(payloadStart);
+        payload.limit(payloadStart + payloadLength);
+        crc.update(payload);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    /**
+     * Reads the next record.
+     * @return the record or null when the end of the log or a torn / corrupted record is reached
+     */
+    public static WalRecord readFrom(DataInputStream in) throws IOException {
+        try {
+            int payloadLength = in.readInt();
+            if (payloadLength < HEADER_LENGTH || payloadLength > MAX_PAYLOAD_LENGTH) {
+                return null;
+            }
+            byte[] payload = new byte[payloadLength];
+            in.readFully(payload);
+            int storedCrc = in.readInt();
+
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payloadLength);
+            if ((int) crc.getValue() != storedCrc) {
+                return null;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            long sequence = buffer.getLong();
+            WalOperation operation = WalOperation.fromCode(buffer.get());
+            String fileName = new String(payload, HEADER_LENGTH, payloadLength - HEADER_LENGTH, StandardCharsets.UTF_8);
+            return new WalRecord(sequence, operation, fileName);
+        } catch (EOFException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WalRecord{" +
+                "sequence=" + sequence +
+                ", operation=" + operation +
+                ", fileName='" + fileName + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.tenbillionfiles.services.warmup;
+
+/**
+ * Startup state of a partition, see {@link com.example.tenbillionfiles.services.WarmUpService}.
+ */
+public enum PartitionState {
+    // files can be read and written, the indexes are not loaded yet
+    COLD,
+    // indexes, metadata and stats being loaded
+    WARMING,
+    // searched and counted like any partition
+    READY,
+    // failed to open or to warm up, writes are refused until the next restart
+    QUARANTINED
+}
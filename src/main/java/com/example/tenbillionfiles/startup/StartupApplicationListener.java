@@ -1,9 +1,11 @@
 package com.example.tenbillionfiles.startup;
 
-import com.example.tenbillionfiles.services.CounterService;
-import com.example.tenbillionfiles.services.FileStorageService;
 import com.example.tenbillionfiles.services.LuceneIndexService;
+import com.example.tenbillionfiles.services.MetadataService;
 import com.example.tenbillionfiles.services.RegexIndexService;
+import com.example.tenbillionfiles.services.ReplicationService;
+import com.example.tenbillionfiles.services.StatsService;
+import com.example.tenbillionfiles.services.WarmUpService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ContextRefreshedEvent;
@@ -12,9 +14,6 @@ import org.springframework.stereotype.Component;
 @Component
 public class StartupApplicationListener implements ApplicationListener<ContextRefreshedEvent> {
 
-    @Autowired
-    private FileStorageService fileStorageService;
-
     @Autowired
     private RegexIndexService regexIndexService;
 
@@ -22,16 +21,31 @@ public class StartupApplicationListener implements ApplicationListener<ContextRe
     private LuceneIndexService luceneIndexService;
 
     @Autowired
-    private CounterService counterService;
+    private StatsService statsService;
+
+    @Autowired
+    private MetadataService metadataService;
+
+    @Autowired
+    private WarmUpService warmUpService;
+
+    @Autowired
+    private ReplicationService replicationService;
+
+    @Autowired
+    private StartupProfiler startupProfiler;
 
     @Override
     public void onApplicationEvent(ContextRefreshedEvent contextRefreshedEvent) {
-        fileStorageService.initStorage();
-
+        startupProfiler.contextRefreshed();
+        // only what every partition needs to serve files, the web server starts once this returns
+        metadataService.initMetadata();
         regexIndexService.initIndexes();
-        luceneIndexService.initIndexes();
+        luceneIndexService.startMaintenance();
+        statsService.initStats();
+        warmUpService.start();
 
-        counterService.initFileCounter();
+        replicationService.startReplication();
     }
 
 }
@@ -0,0 +1,141 @@
+package com.example.tenbillionfiles.startup;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.payload.StartupPhase;
+import com.example.tenbillionfiles.payload.StartupReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Times the startup steps, the per partition ones summed up, and logs the report once every partition is warmed up
+ * and the application is ready, whichever comes last: on an empty storage the warm-up may end before the web server
+ * starts.
+ *
+ * With file.startup-exit-when-ready the application sends itself the {@link StartupWorkload} then stops: that's the
+ * training run recording the class data sharing archive, and the cold start benchmark (see the appcds maven profile).
+ */
+@Component
+public class StartupProfiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupProfiler.class);
+
+    public static final String INIT_STORAGE = "init-storage";
+    public static final String WAL = "wal";
+    public static final String CHANGE_LOG = "change-log";
+    public static final String METADATA = "metadata";
+    public static final String REGEX_INDEX = "regex-index";
+    public static final String LUCENE_INDEX = "lucene-index";
+    public static final String STATS = "stats";
+
+    private static volatile long mainMillis;
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    @Autowired
+    private ConfigurableApplicationContext applicationContext;
+
+    @Autowired
+    private StartupWorkload startupWorkload;
+
+    // runs, total and max nanos of each phase, in the order they first ran
+    private final Map<String, long[]> phases = new LinkedHashMap<>();
+
+    private volatile long contextRefreshedMillis;
+    private volatile long servingMillis;
+    private volatile long readyMillis;
+
+    private final AtomicBoolean reported = new AtomicBoolean();
+
+    /**
+     * Called first thing in main.
+     */
+    public static void mainStarted() {
+        mainMillis = uptimeMillis();
+    }
+
+    public void contextRefreshed() {
+        contextRefreshedMillis = uptimeMillis();
+    }
+
+    @EventListener
+    public void serving(ApplicationReadyEvent event) {
+        servingMillis = uptimeMillis();
+        reportOnceReady();
+    }
+
+    /**
+     * Adds the time since startNanos to the phase.
+     */
+    public void record(String phase, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        synchronized (phases) {
+            long[] timing = phases.computeIfAbsent(phase, name -> new long[3]);
+            timing[0]++;
+            timing[1] += nanos;
+            timing[2] = Math.max(timing[2], nanos);
+        }
+    }
+
+    /**
+     * Called once no partition is left to warm up.
+     */
+    public synchronized void partitionsReady() {
+        if (readyMillis == 0L) {
+            readyMillis = uptimeMillis();
+        }
+        reportOnceReady();
+    }
+
+    public StartupReport getReport() {
+        List<StartupPhase> timings = new ArrayList<>();
+        synchronized (phases) {
+            phases.forEach((name, timing) -> timings.add(new StartupPhase(name, (int) timing[0],
+                    TimeUnit.NANOSECONDS.toMillis(timing[1]), TimeUnit.NANOSECONDS.toMillis(timing[2]))));
+        }
+        return new StartupReport(mainMillis, contextRefreshedMillis, servingMillis, readyMillis, timings);
+    }
+
+    /**
+     * Logs the report the first time both the partitions and the application are ready.
+     */
+    private void reportOnceReady() {
+        if (servingMillis == 0L || readyMillis == 0L || !reported.compareAndSet(false, true)) {
+            return;
+        }
+        StartupReport report = getReport();
+        logger.info("Startup: main after {} ms, context refreshed after {} ms, serving after {} ms, ready after {} ms.",
+                report.getMainMillis(), report.getContextRefreshedMillis(), report.getServingMillis(), report.getReadyMillis());
+        for (StartupPhase phase : report.getPhases()) {
+            logger.info("Startup phase {}: {} ms over {} runs, slowest {} ms.",
+                    phase.getName(), phase.getTotalMillis(), phase.getRuns(), phase.getMaxMillis());
+        }
+
+        if (storageConfigurations.getStartupExitWhenReady()) {
+            // not on the warm-up thread, closing the context stops it
+            Thread exit = new Thread(() -> {
+                startupWorkload.run();
+                System.exit(SpringApplication.exit(applicationContext));
+            }, "Startup-Exit");
+            exit.start();
+        }
+    }
+
+    private static long uptimeMillis() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+}
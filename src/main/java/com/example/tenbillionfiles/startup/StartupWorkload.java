@@ -0,0 +1,184 @@
+package com.example.tenbillionfiles.startup;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.servlet.context.ServletWebServerInitializedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Requests the application sends to itself before a startup run stops (file.startup-exit-when-ready): the
+ * file.startup-seed-files seed files missing are uploaded, then one request of each kind is sent. The class data
+ * sharing archive records the classes serving them, and the benchmark run on the same storage times them.
+ */
+@Component
+public class StartupWorkload {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupWorkload.class);
+
+    private static final String SEED_PREFIX = "startup-seed-";
+    // written, read and deleted by every run
+    private static final String CHECK_PREFIX = "startup-check-";
+
+    @Autowired
+    private StorageConfigurations storageConfigurations;
+
+    private final RestTemplate restTemplate = new RestTemplate();
+
+    private volatile String baseUrl;
+
+    private int requests;
+    private int failures;
+
+    @EventListener
+    public void webServerStarted(ServletWebServerInitializedEvent event) {
+        baseUrl = "http://localhost:" + event.getWebServer().getPort();
+    }
+
+    /**
+     * Must be called once the application is ready and every partition warmed up.
+     */
+    public void run() {
+        if (baseUrl == null) {
+            logger.warn("No web server, startup workload skipped.");
+            return;
+        }
+        long start = System.nanoTime();
+        seed();
+
+        String check = CHECK_PREFIX + "0.txt";
+        upload(HttpMethod.POST, "/file", "file", check, MediaType.TEXT_PLAIN);
+        upload(HttpMethod.POST, "/files", "files", CHECK_PREFIX + "1.bin", MediaType.APPLICATION_OCTET_STREAM);
+        upload(HttpMethod.PUT, "/file", "file", check, MediaType.TEXT_PLAIN);
+        send(HttpMethod.POST, "/stream/file/" + CHECK_PREFIX + "2.txt", content(CHECK_PREFIX + "2.txt"), MediaType.TEXT_PLAIN);
+        send(HttpMethod.PUT, "/stream/file/" + CHECK_PREFIX + "2.txt", content(CHECK_PREFIX + "2.txt"), MediaType.TEXT_PLAIN);
+
+        get("/file/" + check);
+        HttpHeaders encoded = new HttpHeaders();
+        encoded.set(HttpHeaders.ACCEPT_ENCODING, "lz4, zstd");
+        getAs("/file/" + check, encoded, byte[].class);
+        get("/search?query={query}", "startup*");
+        get("/search?query={query}&consistency=strong", "startup*");
+        get("/regex?regex={regex}", "startup-check-\\d\\.txt");
+        get("/regex?regex={regex}&engine=linear", "startup-(seed|check)-.*");
+        get("/stream/search?query={query}", "startup*");
+        get("/stream/regex?regex={regex}", "startup-.*");
+        get("/count");
+        get("/stats");
+        get("/stats/count?prefix={prefix}", SEED_PREFIX);
+        get("/stats/count?regex={regex}", "startup-seed-1.*");
+        Map<?, ?> feed = getAs("/changes", new HttpHeaders(), Map.class);
+        if (feed != null && feed.get("next") != null) {
+            get("/changes?since={since}&waitMillis=0", feed.get("next"));
+        }
+        for (String status : new String[]{"/indexing", "/lucene", "/layout/migration", "/devices", "/cache",
+                "/compression", "/warmup", "/startup", "/admission", "/replication/state"}) {
+            get(status);
+        }
+
+        for (int i = 0; i < 3; i++) {
+            send(HttpMethod.DELETE, "/file/" + CHECK_PREFIX + i + (i == 1 ? ".bin" : ".txt"), null, null);
+        }
+        logger.info("Startup workload: {} requests in {} ms, {} failed.", requests,
+                (System.nanoTime() - start) / 1_000_000L, failures);
+    }
+
+    /**
+     * Uploads the seed files missing, the first run on an empty storage creates them all.
+     */
+    private void seed() {
+        int created = 0;
+        for (int i = 0; i < storageConfigurations.getStartupSeedFiles(); i++) {
+            String fileName = SEED_PREFIX + i + (i % 4 == 0 ? ".bin" : ".txt");
+            try {
+                restTemplate.headForHeaders(baseUrl + "/file/" + fileName);
+                continue;
+            } catch (HttpClientErrorException e) {
+                if (e.getStatusCode() != HttpStatus.NOT_FOUND) {
+                    logger.warn("Could not check seed file {}: {}", fileName, e.getMessage());
+                    continue;
+                }
+            } catch (RestClientException e) {
+                logger.warn("Could not check seed file {}: {}", fileName, e.getMessage());
+                continue;
+            }
+            upload(HttpMethod.POST, "/file", "file", fileName,
+                    i % 4 == 0 ? MediaType.APPLICATION_OCTET_STREAM : MediaType.TEXT_PLAIN);
+            created++;
+        }
+        if (created > 0) {
+            logger.info("Startup workload: {} seed files uploaded.", created);
+        }
+    }
+
+    private void upload(HttpMethod method, String path, String part, String fileName, MediaType contentType) {
+        HttpHeaders partHeaders = new HttpHeaders();
+        partHeaders.setContentType(contentType);
+        ByteArrayResource resource = new ByteArrayResource(content(fileName)) {
+            @Override
+            public String getFilename() {
+                return fileName;
+            }
+        };
+        MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
+        body.add(part, new HttpEntity<>(resource, partHeaders));
+        send(method, path, body, MediaType.MULTIPART_FORM_DATA);
+    }
+
+    private void send(HttpMethod method, String path, Object body, MediaType contentType) {
+        HttpHeaders headers = new HttpHeaders();
+        if (contentType != null) {
+            headers.setContentType(contentType);
+        }
+        requests++;
+        try {
+            restTemplate.exchange(baseUrl + path, method, new HttpEntity<>(body, headers), String.class);
+        } catch (RestClientException e) {
+            failures++;
+            logger.warn("Startup workload {} {} failed: {}", method, path, e.getMessage());
+        }
+    }
+
+    private void get(String path, Object... variables) {
+        getAs(path, new HttpHeaders(), byte[].class, variables);
+    }
+
+    private <T> T getAs(String path, HttpHeaders headers, Class<T> responseType, Object... variables) {
+        requests++;
+        try {
+            return restTemplate.exchange(baseUrl + path, HttpMethod.GET, new HttpEntity<>(headers), responseType, variables).getBody();
+        } catch (RestClientException e) {
+            failures++;
+            logger.warn("Startup workload GET {} failed: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Text repeating the name, of a size varying with it, so some files are compressed and some are not.
+     */
+    private static byte[] content(String fileName) {
+        StringBuilder content = new StringBuilder();
+        int lines = 1 + Math.abs(fileName.hashCode() % 512);
+        for (int i = 0; i < lines; i++) {
+            content.append(fileName).append(' ').append(i).append('\n');
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
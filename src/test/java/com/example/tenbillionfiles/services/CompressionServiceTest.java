@@ -0,0 +1,156 @@
+package com.example.tenbillionfiles.services;
+
+import com.example.tenbillionfiles.config.StorageConfigurations;
+import com.example.tenbillionfiles.services.compression.Codec;
+import com.example.tenbillionfiles.services.compression.StoredFile;
+import com.example.tenbillionfiles.services.compression.StoredFileResource;
+import com.example.tenbillionfiles.services.compression.StoredHeader;
+import com.example.tenbillionfiles.services.devices.DeviceIoScheduler;
+import com.example.tenbillionfiles.services.metadata.FileMetadata;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionServiceTest {
+
+    private static final int MIN_SIZE = 4096;
+    private static final int ZSTD_MIN_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final StorageConfigurations storageConfigurations = new StorageConfigurations();
+    private final CompressionService compressionService = new CompressionService();
+    private final DeviceIoScheduler scheduler = new DeviceIoScheduler("disk", Collections.singletonList(0), 1, 1, 32, 500L);
+
+    @Before
+    public void setUp() {
+        storageConfigurations.setCompressionEnabled(true);
+        storageConfigurations.setCompressionContentTypes(Arrays.asList("text/*", "application/json"));
+        storageConfigurations.setCompressionMinSize(MIN_SIZE);
+        storageConfigurations.setCompressionZstdMinSize(ZSTD_MIN_SIZE);
+        storageConfigurations.setCompressionZstdLevel(3);
+        ReflectionTestUtils.setField(compressionService, "storageConfigurations", storageConfigurations);
+        compressionService.initCompression();
+    }
+
+    @Test
+    public void middleSizedTextIsLz4() throws Exception {
+        byte[] content = text(MIN_SIZE * 4);
+        StoredFile stored = write("a.txt", "text/plain", content);
+
+        assertEquals(Codec.LZ4, stored.getCodec());
+        assertEquals(content.length, stored.getSize());
+        assertTrue(stored.getStoredSize() < content.length);
+        assertArrayEquals(content, read("a.txt", stored));
+        assertEquals(1L, compressionService.getStats(0).getCompressedFiles().get());
+    }
+
+    @Test
+    public void largeTextIsZstd() throws Exception {
+        byte[] content = text(ZSTD_MIN_SIZE * 3);
+        StoredFile stored = write("a.json", "application/json; charset=UTF-8", content);
+
+        assertEquals(Codec.ZSTD, stored.getCodec());
+        assertTrue(stored.getStoredSize() < content.length);
+        assertArrayEquals(content, read("a.json", stored));
+    }
+
+    @Test
+    public void smallOrBinaryContentStaysPlain() throws Exception {
+        byte[] small = text(MIN_SIZE - 1);
+        StoredFile stored = write("small.txt", "text/plain", small);
+        assertNull(stored.getCodec());
+        assertArrayEquals(small, Files.readAllBytes(path("small.txt")));
+
+        byte[] binary = new byte[MIN_SIZE * 4];
+        new Random(42).nextBytes(binary);
+        stored = write("a.bin", "application/octet-stream", binary);
+        assertNull(stored.getCodec());
+        assertArrayEquals(binary, read("a.bin", stored));
+        assertEquals(2L, compressionService.getStats(0).getPlainFiles().get());
+    }
+
+    @Test
+    public void contentOfExactlyTheCodecSizesIsComplete() throws Exception {
+        int[] sizes = {MIN_SIZE - 1, MIN_SIZE, ZSTD_MIN_SIZE - 1, ZSTD_MIN_SIZE, ZSTD_MIN_SIZE + 1};
+        Codec[] codecs = {null, Codec.LZ4, Codec.LZ4, Codec.ZSTD, Codec.ZSTD};
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] content = text(sizes[i]);
+            StoredFile stored = write(i + ".txt", "text/plain", content);
+            assertEquals("size " + sizes[i], codecs[i], stored.getCodec());
+            assertEquals(content.length, stored.getSize());
+            assertArrayEquals(content, read(i + ".txt", stored));
+        }
+    }
+
+    @Test
+    public void plainFileStartingWithTheMagicIsStored() throws Exception {
+        byte[] header = new StoredHeader(Codec.LZ4, 3L).encode().array();
+        byte[] content = Arrays.copyOf(header, header.length + 3);
+        StoredFile stored = write("a.bin", "application/octet-stream", content);
+
+        assertEquals(Codec.STORED, stored.getCodec());
+        assertEquals(content.length, stored.getSize());
+        assertEquals(StoredHeader.LENGTH + content.length, stored.getStoredSize());
+        assertArrayEquals(content, read("a.bin", stored));
+    }
+
+    @Test
+    public void disabledCompressionKeepsTextPlain() throws Exception {
+        storageConfigurations.setCompressionEnabled(false);
+        byte[] content = text(MIN_SIZE * 4);
+        StoredFile stored = write("a.txt", "text/plain", content);
+
+        assertNull(stored.getCodec());
+        assertArrayEquals(content, Files.readAllBytes(path("a.txt")));
+    }
+
+    private StoredFile write(String fileName, String contentType, byte[] content) throws IOException {
+        try (FileChannel channel = FileChannel.open(path(fileName), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            return compressionService.write(0, contentType, new ByteArrayInputStream(content), channel);
+        }
+    }
+
+    private byte[] read(String fileName, StoredFile stored) throws IOException {
+        assertEquals(stored.getStoredSize(), Files.size(path(fileName)));
+        FileMetadata metadata = new FileMetadata(fileName, stored.getSize(), stored.getStoredSize(), 0L, null,
+                stored.getCodec());
+        try (InputStream in = new StoredFileResource(path(fileName), scheduler, metadata, false,
+                compressionService.getStats(0)).getInputStream()) {
+            return StreamUtils.copyToByteArray(in);
+        }
+    }
+
+    private Path path(String fileName) {
+        return folder.getRoot().toPath().resolve(fileName);
+    }
+
+    private static byte[] text(int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int line = 0; text.length() < length; line++) {
+            text.append("line ").append(line).append(" of a compressible text file\n");
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+    }
+}
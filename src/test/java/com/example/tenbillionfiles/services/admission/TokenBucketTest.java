@@ -0,0 +1,71 @@
+package com.example.tenbillionfiles.services.admission;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void burstUpToTheCapacity() {
+        TokenBucket bucket = new TokenBucket(1.0, 3.0);
+        assertTrue(bucket.isFull());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0L, bucket.reserve(0L));
+        }
+        assertEquals(-1L, bucket.reserve(0L));
+        assertFalse(bucket.isFull());
+    }
+
+    @Test
+    public void reservationsQueueBehindEachOther() {
+        TokenBucket bucket = new TokenBucket(1.0, 1.0);
+        assertEquals(0L, bucket.reserve(0L));
+        long first = bucket.reserve(10 * SECOND);
+        long second = bucket.reserve(10 * SECOND);
+        assertTrue(first > SECOND / 2 && first <= SECOND);
+        assertTrue(second > first + SECOND / 2 && second <= 2 * SECOND);
+        // too far for this caller, nothing is taken
+        assertEquals(-1L, bucket.reserve(SECOND));
+        assertTrue(bucket.reserve(3 * SECOND) > 2 * SECOND);
+    }
+
+    @Test
+    public void cancelGivesTheTokenBack() {
+        TokenBucket bucket = new TokenBucket(1.0, 1.0);
+        assertEquals(0L, bucket.reserve(0L));
+        assertEquals(-1L, bucket.reserve(0L));
+        bucket.cancel();
+        assertEquals(0L, bucket.reserve(0L));
+    }
+
+    @Test
+    public void cancelNeverGoesOverTheCapacity() {
+        TokenBucket bucket = new TokenBucket(1.0, 2.0);
+        bucket.cancel();
+        assertEquals(0L, bucket.reserve(0L));
+        assertEquals(0L, bucket.reserve(0L));
+        assertEquals(-1L, bucket.reserve(0L));
+    }
+
+    @Test
+    public void refillsAtItsRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100.0, 1.0);
+        assertEquals(0L, bucket.reserve(0L));
+        Thread.sleep(50);
+        assertEquals(0L, bucket.reserve(0L));
+    }
+
+    @Test
+    public void zeroRateNeverRefills() {
+        TokenBucket bucket = new TokenBucket(0.0, 1.0);
+        assertEquals(0L, bucket.reserve(0L));
+        assertEquals(-1L, bucket.reserve(Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.tenbillionfiles.services.cache;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContentCacheTest {
+
+    private static final int PAGE_SIZE = 1024;
+
+    @Test
+    public void servesTheCachedVersionOnly() throws IOException {
+        ContentCache cache = cache(16);
+        byte[] content = content("a", 3000);
+        assertNotNull(cache.put("a", "v1", content, content.length));
+
+        CachedContent cached = cache.get("a", "v1");
+        assertNotNull(cached);
+        assertArrayEquals(content, read(cache.open(cached, true)));
+        assertEquals(3000L, cache.getBytesSaved().get());
+
+        // written since: dropped
+        assertNull(cache.get("a", "v2"));
+        assertNull(cache.get("a", "v1"));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void invalidatedContentIsGone() {
+        ContentCache cache = cache(16);
+        byte[] content = content("a", 10);
+        CachedContent cached = cache.put("a", "v1", content, content.length);
+        cache.invalidate("a");
+        assertNull(cache.get("a", "v1"));
+        assertNull(cache.open(cached, true));
+        assertEquals(1L, cache.getInvalidations().get());
+        assertEquals(0L, cache.getUsedBytes());
+    }
+
+    @Test
+    public void contentLargerThanTheWindowIsNotCached() {
+        ContentCache cache = cache(16);
+        byte[] content = content("big", 5 * PAGE_SIZE);
+        assertNull(cache.put("big", "v1", content, content.length));
+        assertEquals(1L, cache.getRejections().get());
+    }
+
+    @Test
+    public void streamedPagesAreKeptUntilClosed() throws IOException {
+        ContentCache cache = cache(16);
+        byte[] content = content("a", 2 * PAGE_SIZE);
+        CachedContent cached = cache.put("a", "v1", content, content.length);
+        InputStream stream = cache.open(cached, false);
+        cache.invalidate("a");
+        // the other contents can't take the pages still streamed
+        for (int i = 0; i < 20; i++) {
+            byte[] other = content("other-" + i, PAGE_SIZE);
+            cache.get("other-" + i, "v1");
+            cache.put("other-" + i, "v1", other, other.length);
+        }
+        assertArrayEquals(content, read(stream));
+        assertTrue(cache.getUsedBytes() <= cache.getMaxBytes());
+    }
+
+    @Test
+    public void oneTimeReadsDontEvictThePopularContents() {
+        // 16 pages: a window of 4, 12 in the main space
+        ContentCache cache = cache(16);
+        for (int i = 0; i < 8; i++) {
+            String name = "popular-" + i;
+            cache.get(name, "v1");
+            byte[] content = content(name, PAGE_SIZE);
+            cache.put(name, "v1", content, content.length);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 8; i++) {
+                assertNotNull(cache.get("popular-" + i, "v1"));
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            String name = "scan-" + i;
+            cache.get(name, "v1");
+            byte[] content = content(name, PAGE_SIZE);
+            cache.put(name, "v1", content, content.length);
+        }
+        for (int i = 0; i < 8; i++) {
+            assertNotNull("popular-" + i, cache.get("popular-" + i, "v1"));
+        }
+        assertTrue(cache.getRejections().get() > 0);
+        assertTrue(cache.getUsedBytes() <= cache.getMaxBytes());
+    }
+
+    private static ContentCache cache(int pages) {
+        return new ContentCache(new SlabPages((long) pages * PAGE_SIZE, PAGE_SIZE, 4 * PAGE_SIZE), 0.25, PAGE_SIZE);
+    }
+
+    private static byte[] content(String name, int length) {
+        byte[] seed = name.getBytes(StandardCharsets.UTF_8);
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (seed[i % seed.length] + i);
+        }
+        return content;
+    }
+
+    private static byte[] read(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = stream) {
+            byte[] buffer = new byte[700];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+        }
+        return out.toByteArray();
+    }
+}
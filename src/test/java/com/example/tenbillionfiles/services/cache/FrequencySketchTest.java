@@ -0,0 +1,55 @@
+package com.example.tenbillionfiles.services.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void countsTheIncrementsUpTo15() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        int hash = "popular".hashCode();
+        assertEquals(0, sketch.frequency(hash));
+        for (int i = 1; i <= 20; i++) {
+            sketch.increment(hash);
+            assertEquals(Math.min(i, 15), sketch.frequency(hash));
+        }
+    }
+
+    @Test
+    public void neverUndercounts() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int name = 0; name < 500; name++) {
+            for (int i = 0; i < name % 10; i++) {
+                sketch.increment(("file-" + name).hashCode());
+            }
+        }
+        int exact = 0;
+        for (int name = 0; name < 500; name++) {
+            int frequency = sketch.frequency(("file-" + name).hashCode());
+            assertTrue(frequency >= name % 10);
+            if (frequency == name % 10) {
+                exact++;
+            }
+        }
+        // a few collisions at most, with 4 counters per name
+        assertTrue("exact counts: " + exact, exact > 450);
+    }
+
+    @Test
+    public void countsAreHalvedAfterTheSample() {
+        // 16 longs, the counters are halved every 160 increments
+        FrequencySketch sketch = new FrequencySketch(16);
+        int hash = "popular".hashCode();
+        for (int i = 0; i < 15; i++) {
+            sketch.increment(hash);
+        }
+        for (int name = 0; name < 145; name++) {
+            sketch.increment(("once-" + name).hashCode());
+        }
+        int frequency = sketch.frequency(hash);
+        assertTrue("frequency: " + frequency, frequency >= 7 && frequency < 15);
+    }
+}
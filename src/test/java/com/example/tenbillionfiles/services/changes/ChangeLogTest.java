@@ -0,0 +1,183 @@
+package com.example.tenbillionfiles.services.changes;
+
+import com.example.tenbillionfiles.services.wal.WalOperation;
+import com.example.tenbillionfiles.services.wal.WalRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeLogTest {
+
+    private static final int CAPACITY = 4;
+    private static final long MAX_LOG_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void changesAreReadOnceSynced() throws Exception {
+        ChangeLog changeLog = open(MAX_LOG_SIZE);
+        assertEquals(0L, changeLog.append(WalOperation.ADD, "a"));
+        assertEquals(1L, changeLog.append(WalOperation.MODIFY, "a"));
+        assertEquals(2L, changeLog.getNextSequence());
+        assertTrue(changeLog.read(0L, 10).isEmpty());
+
+        changeLog.sync();
+        List<WalRecord> changes = changeLog.read(0L, 10);
+        assertEquals(2, changes.size());
+        assertEquals(WalOperation.MODIFY, changes.get(1).getOperation());
+        assertEquals(1, changeLog.read(1L, 10).size());
+        assertTrue(changeLog.read(2L, 10).isEmpty());
+        // never handed out
+        assertNull(changeLog.read(3L, 10));
+        changeLog.close();
+    }
+
+    @Test
+    public void olderChangesAreReadFromTheDisk() throws Exception {
+        ChangeLog changeLog = open(MAX_LOG_SIZE);
+        for (int i = 0; i < 3 * CAPACITY; i++) {
+            changeLog.append(WalOperation.ADD, "file" + i);
+        }
+        changeLog.sync();
+        List<WalRecord> changes = changeLog.read(1L, 5);
+        assertEquals(5, changes.size());
+        for (int i = 0; i < changes.size(); i++) {
+            assertEquals(1L + i, changes.get(i).getSequence());
+            assertEquals("file" + (1 + i), changes.get(i).getFileName());
+        }
+        changeLog.close();
+    }
+
+    @Test
+    public void cleanCloseKeepsEpochAndSequence() throws Exception {
+        ChangeLog changeLog = open(MAX_LOG_SIZE);
+        changeLog.append(WalOperation.ADD, "a");
+        changeLog.append(WalOperation.DELETE, "a");
+        changeLog.close();
+
+        ChangeLog reopened = open(MAX_LOG_SIZE);
+        assertTrue(reopened.isClosedCleanly());
+        assertEquals(changeLog.getEpoch(), reopened.getEpoch());
+        assertEquals(2L, reopened.getNextSequence());
+        assertEquals(2, reopened.read(0L, 10).size());
+        assertEquals(2L, reopened.append(WalOperation.ADD, "b"));
+        reopened.close();
+    }
+
+    @Test
+    public void crashKeepsEpochAndSyncedChanges() throws Exception {
+        ChangeLog changeLog = open(MAX_LOG_SIZE);
+        changeLog.append(WalOperation.ADD, "a");
+        changeLog.append(WalOperation.ADD, "b");
+        changeLog.sync();
+        Path logFile = folder.getRoot().toPath().resolve("changes.log");
+        Path synced = folder.newFile("synced").toPath();
+        Files.copy(logFile, synced, StandardCopyOption.REPLACE_EXISTING);
+        changeLog.append(WalOperation.ADD, "c");
+        // crash: not closed, the change not synced is lost with the page cache
+        Files.copy(synced, logFile, StandardCopyOption.REPLACE_EXISTING);
+
+        ChangeLog reopened = open(MAX_LOG_SIZE);
+        assertFalse(reopened.isClosedCleanly());
+        assertEquals(changeLog.getEpoch(), reopened.getEpoch());
+        assertEquals(2L, reopened.getNextSequence());
+        List<WalRecord> changes = reopened.read(0L, 10);
+        assertEquals(2, changes.size());
+        assertEquals("b", changes.get(1).getFileName());
+        // appended again by the caller, from the WAL
+        assertEquals(2L, reopened.append(WalOperation.ADD, "c"));
+        reopened.close();
+    }
+
+    @Test
+    public void syncedSequenceIsKeptByACrash() throws Exception {
+        ChangeLog changeLog = open(MAX_LOG_SIZE);
+        changeLog.append(WalOperation.ADD, "a");
+        changeLog.sync();
+        Path logFile = folder.getRoot().toPath().resolve("changes.log");
+        Path synced = folder.newFile("synced").toPath();
+        Files.copy(logFile, synced, StandardCopyOption.REPLACE_EXISTING);
+        changeLog.append(WalOperation.ADD, "b");
+        assertEquals(1L, changeLog.getSyncedSequence());
+        assertEquals(2L, changeLog.getNextSequence());
+        Files.copy(synced, logFile, StandardCopyOption.REPLACE_EXISTING);
+
+        ChangeLog reopened = open(MAX_LOG_SIZE);
+        assertEquals(1L, reopened.getSyncedSequence());
+        // a consumer started at the synced sequence reads the lost change once appended again from the WAL
+        reopened.append(WalOperation.ADD, "b");
+        reopened.sync();
+        List<WalRecord> changes = reopened.read(changeLog.getSyncedSequence(), 10);
+        assertEquals(1, changes.size());
+        assertEquals("b", changes.get(0).getFileName());
+        reopened.close();
+    }
+
+    @Test
+    public void tornTailIsDropped() throws Exception {
+        ChangeLog changeLog = open(MAX_LOG_SIZE);
+        changeLog.append(WalOperation.ADD, "a");
+        changeLog.append(WalOperation.ADD, "b");
+        changeLog.sync();
+        Path logFile = folder.getRoot().toPath().resolve("changes.log");
+        byte[] content = Files.readAllBytes(logFile);
+        Files.write(logFile, Arrays.copyOf(content, content.length - 3));
+
+        ChangeLog reopened = open(MAX_LOG_SIZE);
+        assertEquals(1L, reopened.getNextSequence());
+        assertEquals(1L, reopened.append(WalOperation.ADD, "b"));
+        reopened.sync();
+        assertEquals(2, reopened.read(0L, 10).size());
+        reopened.close();
+    }
+
+    @Test
+    public void crashRightAfterRollOverKeepsTheSequence() throws Exception {
+        // every change rolls the log over, the current one is always empty
+        ChangeLog changeLog = open(1L);
+        for (int i = 0; i < 3; i++) {
+            changeLog.append(WalOperation.ADD, "file" + i);
+        }
+
+        ChangeLog reopened = open(1L);
+        assertFalse(reopened.isClosedCleanly());
+        assertEquals(3L, reopened.getNextSequence());
+        assertEquals(3L, reopened.append(WalOperation.ADD, "file3"));
+        reopened.sync();
+        // the previous ones were dropped by the roll overs
+        assertNull(reopened.read(1L, 10));
+        reopened.close();
+    }
+
+    @Test
+    public void missingEpochRestartsTheLog() throws Exception {
+        ChangeLog changeLog = open(MAX_LOG_SIZE);
+        changeLog.append(WalOperation.ADD, "a");
+        changeLog.close();
+        // what a failed log leaves behind
+        Files.delete(folder.getRoot().toPath().resolve("changes.epoch"));
+
+        ChangeLog reopened = open(MAX_LOG_SIZE);
+        assertNotEquals(changeLog.getEpoch(), reopened.getEpoch());
+        assertEquals(0L, reopened.getNextSequence());
+        assertTrue(reopened.read(0L, 10).isEmpty());
+        reopened.close();
+    }
+
+    private ChangeLog open(long maxLogSize) throws Exception {
+        return new ChangeLog(0, folder.getRoot().toPath(), CAPACITY, maxLogSize);
+    }
+}
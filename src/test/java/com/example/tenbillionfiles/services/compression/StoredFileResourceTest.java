@@ -0,0 +1,104 @@
+package com.example.tenbillionfiles.services.compression;
+
+import com.example.tenbillionfiles.services.devices.DeviceIoScheduler;
+import com.example.tenbillionfiles.services.metadata.FileMetadata;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class StoredFileResourceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DeviceIoScheduler scheduler = new DeviceIoScheduler("disk", Collections.singletonList(0), 1, 1, 32, 500L);
+
+    @Test
+    public void plainFileIsStreamed() throws Exception {
+        Path path = write("a.txt", "hello".getBytes(StandardCharsets.US_ASCII));
+        FileMetadata metadata = new FileMetadata("a.txt", 5L, 5L, 0L, null, null);
+
+        assertArrayEquals("hello".getBytes(StandardCharsets.US_ASCII), readAll(resource(path, metadata, false)));
+        // the read slot is free again
+        assertEquals(0, scheduler.getStatus().getActiveReads());
+    }
+
+    @Test
+    public void encodedFileIsStreamedWithoutItsHeader() throws Exception {
+        Path path = write("a.txt", stored(Codec.LZ4, 40L, new byte[]{1, 2, 3}));
+        FileMetadata metadata = new FileMetadata("a.txt", 40L, StoredHeader.LENGTH + 3L, 0L, null, Codec.LZ4);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, readAll(resource(path, metadata, true)));
+    }
+
+    @Test
+    public void rewrittenFileIsRefused() throws Exception {
+        Path path = write("a.txt", "hello!".getBytes(StandardCharsets.US_ASCII));
+        assertRefused(resource(path, new FileMetadata("a.txt", 5L, 5L, 0L, null, null), false));
+    }
+
+    @Test
+    public void otherCodecIsRefused() throws Exception {
+        byte[] content = stored(Codec.ZSTD, 40L, new byte[]{1, 2, 3});
+        Path path = write("a.txt", content);
+        assertRefused(resource(path, new FileMetadata("a.txt", 40L, content.length, 0L, null, Codec.LZ4), true));
+        // same length, once plain
+        assertRefused(resource(path, new FileMetadata("a.txt", content.length, content.length, 0L, null, null), false));
+    }
+
+    @Test
+    public void otherDecodedSizeIsRefused() throws Exception {
+        byte[] content = stored(Codec.LZ4, 41L, new byte[]{1, 2, 3});
+        Path path = write("a.txt", content);
+        assertRefused(resource(path, new FileMetadata("a.txt", 40L, content.length, 0L, null, Codec.LZ4), true));
+    }
+
+    private StoredFileResource resource(Path path, FileMetadata metadata, boolean encoded) throws IOException {
+        return new StoredFileResource(path, scheduler, metadata, encoded, new CompressionStats());
+    }
+
+    private Path write(String fileName, byte[] content) throws IOException {
+        return Files.write(folder.getRoot().toPath().resolve(fileName), content);
+    }
+
+    private static byte[] stored(Codec codec, long size, byte[] content) {
+        byte[] stored = new byte[StoredHeader.LENGTH + content.length];
+        new StoredHeader(codec, size).encode().get(stored, 0, StoredHeader.LENGTH);
+        System.arraycopy(content, 0, stored, StoredHeader.LENGTH, content.length);
+        return stored;
+    }
+
+    private static byte[] readAll(StoredFileResource resource) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = resource.getInputStream()) {
+            byte[] buffer = new byte[4];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void assertRefused(StoredFileResource resource) {
+        try {
+            resource.getInputStream().close();
+            fail("content differing from its metadata streamed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, scheduler.getStatus().getActiveReads());
+    }
+}
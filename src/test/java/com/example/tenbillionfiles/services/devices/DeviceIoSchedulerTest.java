@@ -0,0 +1,126 @@
+package com.example.tenbillionfiles.services.devices;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceIoSchedulerTest {
+
+    @Test
+    public void writesOnlyTakeTheirShareOfTheSlots() throws Exception {
+        DeviceIoScheduler scheduler = new DeviceIoScheduler("disk", Collections.singletonList(0), 2, 1, 32, 60_000L);
+        scheduler.acquire(IoClass.WRITE);
+
+        CompletableFuture<Void> write = acquireAsync(scheduler, IoClass.WRITE);
+        await(() -> scheduler.getStatus().getWaitingWrites() == 1);
+        // the other slot is left to the reads
+        scheduler.acquire(IoClass.READ);
+        assertFalse(write.isDone());
+
+        scheduler.release(IoClass.READ, 0L);
+        scheduler.release(IoClass.WRITE, 0L);
+        write.get(10, TimeUnit.SECONDS);
+        assertEquals(1, scheduler.getStatus().getActiveWrites());
+    }
+
+    @Test
+    public void waitingReadsGoFirst() throws Exception {
+        DeviceIoScheduler scheduler = new DeviceIoScheduler("disk", Collections.singletonList(0), 1, 1, 32, 60_000L);
+        scheduler.acquire(IoClass.READ);
+
+        CompletableFuture<Void> write = acquireAsync(scheduler, IoClass.WRITE);
+        await(() -> scheduler.getStatus().getWaitingWrites() == 1);
+        CompletableFuture<Void> read = acquireAsync(scheduler, IoClass.READ);
+        await(() -> scheduler.getStatus().getWaitingReads() == 1);
+
+        scheduler.release(IoClass.READ, 0L);
+        read.get(10, TimeUnit.SECONDS);
+        assertFalse(write.isDone());
+
+        scheduler.release(IoClass.READ, 0L);
+        write.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void writeGoesThroughAfterMaxReads() throws Exception {
+        DeviceIoScheduler scheduler = new DeviceIoScheduler("disk", Collections.singletonList(0), 1, 1, 2, 60_000L);
+        scheduler.acquire(IoClass.READ);
+        CompletableFuture<Void> write = acquireAsync(scheduler, IoClass.WRITE);
+        await(() -> scheduler.getStatus().getWaitingWrites() == 1);
+
+        for (int i = 0; i < 2; i++) {
+            CompletableFuture<Void> read = acquireAsync(scheduler, IoClass.READ);
+            await(() -> scheduler.getStatus().getWaitingReads() == 1);
+            scheduler.release(IoClass.READ, 0L);
+            read.get(10, TimeUnit.SECONDS);
+            assertFalse(write.isDone());
+        }
+
+        CompletableFuture<Void> read = acquireAsync(scheduler, IoClass.READ);
+        await(() -> scheduler.getStatus().getWaitingReads() == 1);
+        scheduler.release(IoClass.READ, 0L);
+        write.get(10, TimeUnit.SECONDS);
+        assertFalse(read.isDone());
+
+        scheduler.release(IoClass.WRITE, 0L);
+        read.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void writeGoesThroughAfterMaxWait() throws Exception {
+        DeviceIoScheduler scheduler = new DeviceIoScheduler("disk", Collections.singletonList(0), 1, 1, 1000, 50L);
+        scheduler.acquire(IoClass.READ);
+        CompletableFuture<Void> write = acquireAsync(scheduler, IoClass.WRITE);
+        await(() -> scheduler.getStatus().getWaitingWrites() == 1);
+        CompletableFuture<Void> read = acquireAsync(scheduler, IoClass.READ);
+        await(() -> scheduler.getStatus().getWaitingReads() == 1);
+
+        Thread.sleep(100L);
+        scheduler.release(IoClass.READ, 0L);
+        write.get(10, TimeUnit.SECONDS);
+        assertFalse(read.isDone());
+
+        scheduler.release(IoClass.WRITE, 0L);
+        read.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void completedOperationsAreCounted() throws Exception {
+        DeviceIoScheduler scheduler = new DeviceIoScheduler("disk", Collections.singletonList(0), 4, 2, 32, 60_000L);
+        scheduler.acquire(IoClass.READ);
+        scheduler.release(IoClass.READ, 10L);
+        scheduler.acquire(IoClass.WRITE);
+        scheduler.release(IoClass.WRITE, 20L);
+
+        assertEquals(1L, scheduler.getStatus().getCompletedReads());
+        assertEquals(10L, scheduler.getStatus().getBytesRead());
+        assertEquals(1L, scheduler.getStatus().getCompletedWrites());
+        assertEquals(20L, scheduler.getStatus().getBytesWritten());
+        assertTrue(scheduler.getStatus().getUtilization() <= 1.0);
+    }
+
+    private static CompletableFuture<Void> acquireAsync(DeviceIoScheduler scheduler, IoClass ioClass) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                scheduler.acquire(ioClass);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue("condition not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(5L);
+        }
+    }
+}
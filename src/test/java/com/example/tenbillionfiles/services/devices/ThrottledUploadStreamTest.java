@@ -0,0 +1,63 @@
+package com.example.tenbillionfiles.services.devices;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ThrottledUploadStreamTest {
+
+    @Test
+    public void slotIsFreeWhileWaitingForTheClient() throws Exception {
+        DeviceIoScheduler scheduler = new DeviceIoScheduler("disk", Collections.singletonList(0), 1, 1, 32, 500L);
+        PipedOutputStream client = new PipedOutputStream();
+        scheduler.acquire(IoClass.WRITE);
+        ThrottledUploadStream upload = new ThrottledUploadStream(new PipedInputStream(client), scheduler);
+
+        byte[] buffer = new byte[16];
+        CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+            try {
+                return upload.read(buffer, 0, buffer.length);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        // the only slot of the device is usable by a download meanwhile
+        scheduler.acquire(IoClass.READ);
+        assertFalse(read.isDone());
+        scheduler.release(IoClass.READ, 0L);
+
+        client.write(new byte[]{1, 2, 3});
+        assertEquals(3, (int) read.get(10, TimeUnit.SECONDS));
+        // taken again to write the bytes read
+        assertEquals(1, scheduler.getStatus().getActiveWrites());
+
+        upload.release(3L);
+        upload.release(3L);
+        assertEquals(0, scheduler.getStatus().getActiveWrites());
+        assertEquals(3L, scheduler.getStatus().getBytesWritten());
+    }
+
+    @Test
+    public void bufferedBytesAreReadUnderTheSlot() throws Exception {
+        DeviceIoScheduler scheduler = new DeviceIoScheduler("disk", Collections.singletonList(0), 1, 1, 32, 500L);
+        PipedOutputStream client = new PipedOutputStream();
+        PipedInputStream network = new PipedInputStream(client);
+        client.write(new byte[]{1, 2, 3});
+        scheduler.acquire(IoClass.WRITE);
+        ThrottledUploadStream upload = new ThrottledUploadStream(network, scheduler);
+
+        assertEquals(3, upload.read(new byte[16], 0, 16));
+        assertEquals(1, scheduler.getStatus().getActiveWrites());
+        // never released in between
+        assertEquals(0L, scheduler.getStatus().getCompletedWrites());
+        upload.release(3L);
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.tenbillionfiles.services.indexing;
+
+import com.example.tenbillionfiles.exception.IndexNotReadyException;
+import com.example.tenbillionfiles.services.wal.WalOperation;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PartitionIndexerTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private Thread thread;
+    private PartitionIndexer indexer;
+
+    @After
+    public void stop() throws InterruptedException {
+        if (indexer != null) {
+            indexer.stop();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void failedBatchIsRetried() throws Exception {
+        RecordingHandler handler = new RecordingHandler(2);
+        start(handler);
+
+        long ticket = indexer.enqueue(1, WalOperation.ADD, "a");
+        assertTrue(indexer.awaitApplied(ticket, TIMEOUT_MILLIS));
+        assertEquals(3, handler.attempts.get());
+        assertEquals(1, handler.completed.size());
+        assertEquals(0L, indexer.getStatus().getFailedBatches());
+    }
+
+    @Test
+    public void waitingForAFailedBatchFails() throws Exception {
+        RecordingHandler handler = new RecordingHandler(Integer.MAX_VALUE);
+        start(handler);
+
+        long ticket = indexer.enqueue(1, WalOperation.ADD, "a");
+        try {
+            indexer.awaitApplied(ticket, TIMEOUT_MILLIS);
+            fail("the update never reached the indexes");
+        } catch (IndexNotReadyException expected) {
+            // left to WAL replay
+        }
+        assertTrue(handler.completed.isEmpty());
+        assertEquals(1L, indexer.getStatus().getFailedBatches());
+        assertEquals(ticket, indexer.getStatus().getFirstFailedTicket());
+
+        // applied again with the next batch, which clears the failure
+        handler.failures.set(0);
+        long next = indexer.enqueue(2, WalOperation.ADD, "b");
+        assertTrue(indexer.awaitApplied(next, TIMEOUT_MILLIS));
+        assertTrue(indexer.awaitApplied(ticket, TIMEOUT_MILLIS));
+        assertEquals(0L, indexer.getStatus().getFirstFailedTicket());
+        assertEquals(2, handler.applied.size());
+        assertEquals(Arrays.asList(1L, 2L), handler.completed);
+    }
+
+    @Test
+    public void failedBatchIsRetriedOnceIdle() throws Exception {
+        // fails every attempt of the first batch only
+        RecordingHandler handler = new RecordingHandler(3);
+        start(handler);
+
+        long ticket = indexer.enqueue(1, WalOperation.ADD, "a");
+        try {
+            indexer.awaitApplied(ticket, TIMEOUT_MILLIS);
+            fail("the update never reached the indexes");
+        } catch (IndexNotReadyException expected) {
+            // retried later
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (indexer.getStatus().getFirstFailedTicket() != 0) {
+            assertTrue("failed batch not retried in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10L);
+        }
+        assertTrue(indexer.awaitApplied(ticket, TIMEOUT_MILLIS));
+        assertEquals(Collections.singletonList(1L), handler.completed);
+    }
+
+    @Test
+    public void lastUpdateOfANameWins() throws Exception {
+        RecordingHandler handler = new RecordingHandler(0);
+        indexer = new PartitionIndexer(0, 16, 16, handler);
+        indexer.enqueue(1, WalOperation.ADD, "a");
+        indexer.enqueue(2, WalOperation.ADD, "b");
+        long ticket = indexer.enqueue(3, WalOperation.DELETE, "a");
+        // queued before the thread starts, so drained as one batch
+        start(handler, indexer);
+
+        assertTrue(indexer.awaitApplied(ticket, TIMEOUT_MILLIS));
+        assertEquals(2, handler.applied.size());
+        assertEquals("b", handler.applied.get(0).getFileName());
+        assertTrue(handler.applied.get(1).isDelete());
+        // the dropped update is completed too
+        assertEquals(3, handler.completed.size());
+    }
+
+    @Test
+    public void repairIsAppliedInLogOrder() throws Exception {
+        RecordingHandler handler = new RecordingHandler(0);
+        indexer = new PartitionIndexer(0, 16, 16, handler);
+        long ticket = indexer.enqueue(1, WalOperation.ADD, "a");
+        // a later write of the name that could not be queued
+        indexer.repair(2, WalOperation.DELETE, "a");
+        start(handler, indexer);
+
+        assertTrue(indexer.awaitApplied(ticket, TIMEOUT_MILLIS));
+        assertEquals(1, handler.applied.size());
+        assertTrue(handler.applied.get(0).isDelete());
+        assertEquals(2, handler.completed.size());
+        assertTrue(handler.completed.contains(2L));
+    }
+
+    private void start(RecordingHandler handler) {
+        start(handler, new PartitionIndexer(0, 16, 16, handler));
+    }
+
+    private void start(RecordingHandler handler, PartitionIndexer partitionIndexer) {
+        indexer = partitionIndexer;
+        thread = new Thread(indexer);
+        thread.start();
+    }
+
+    private static class RecordingHandler implements IndexBatchHandler {
+
+        private final AtomicInteger failures;
+        private final AtomicInteger attempts = new AtomicInteger();
+        private final List<IndexUpdate> applied = new ArrayList<>();
+        private final List<Long> completed = new ArrayList<>();
+
+        RecordingHandler(int failures) {
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        public void apply(int partition, Collection<IndexUpdate> updates) throws IOException {
+            attempts.incrementAndGet();
+            if (failures.getAndDecrement() > 0) {
+                throw new IOException("disk full");
+            }
+            applied.addAll(updates);
+        }
+
+        @Override
+        public void applied(int partition, List<IndexUpdate> batch) {
+            for (IndexUpdate update : batch) {
+                completed.add(update.getWalSequence());
+            }
+        }
+    }
+}
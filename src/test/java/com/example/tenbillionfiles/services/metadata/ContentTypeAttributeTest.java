@@ -0,0 +1,36 @@
+package com.example.tenbillionfiles.services.metadata;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ContentTypeAttributeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void contentTypeFollowsTheRename() throws IOException {
+        Path upload = folder.newFile("a.upload").toPath();
+        String kept = ContentTypeAttribute.write(upload, "text/plain");
+        Path target = upload.resolveSibling("a");
+        Files.move(upload, target, StandardCopyOption.ATOMIC_MOVE);
+        // null on a file system without user attributes, never a value that is lost later
+        assertEquals(kept, ContentTypeAttribute.read(target));
+    }
+
+    @Test
+    public void fileWithoutContentTypeHasNone() throws IOException {
+        Path file = folder.newFile("b").toPath();
+        assertNull(ContentTypeAttribute.write(file, null));
+        assertNull(ContentTypeAttribute.read(file));
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.tenbillionfiles.services.regex;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LiteralNameMatcherTest {
+
+    // the regex is only reached by the names ending with a line terminator
+    private static final NameMatcher NO_FALLBACK = (names, offset, length) -> {
+        throw new AssertionError("unexpected fallback");
+    };
+
+    @Test
+    public void borrowFalsePositivesAreVerified() {
+        // '`' is 'a' ^ 1: before an 'a' the borrow of the zero byte flags it as a first byte. Same for the last byte.
+        LiteralNameMatcher matcher = unanchored("a`");
+        assertTrue(matches(matcher, "`a`"));
+        assertFalse(matches(matcher, "`a"));
+        assertFalse(matches(matcher, "``aabbaa"));
+        assertTrue(matches(matcher, "``aabbaa`"));
+        // a literal whose first and last bytes differ by the borrowing bit, over 2 words
+        assertTrue(matches(unanchored("ab"), "`````````ab"));
+        assertFalse(matches(unanchored("ab"), "`a`a`a`a`a`a`a`ac"));
+    }
+
+    @Test
+    public void wordsReadNearTheEndOfTheBufferStayInside() {
+        LiteralNameMatcher matcher = unanchored("ab");
+        for (int length = 2; length <= 20; length++) {
+            String name = repeat('x', length - 2) + "ab";
+            // the name ends the buffer: the tail is compared byte by byte
+            ByteBuffer names = ByteBuffer.wrap(name.getBytes(StandardCharsets.UTF_8));
+            assertTrue(name, matcher.matches(names, 0, length));
+            assertFalse(name, matcher.matches(names, 0, length - 1));
+        }
+    }
+
+    @Test
+    public void bytesPastTheNameAreIgnored() {
+        // the next name completes the literal in the words read past the end of the first one
+        ByteBuffer names = ByteBuffer.wrap(bytes("xxxabcdefghijkxb"));
+        assertFalse(unanchored("ab").matches(names, 0, 4));
+        assertFalse(unanchored("abcdefghij").matches(names, 0, 12));
+        assertTrue(unanchored("abcdefghij").matches(names, 0, 13));
+        assertTrue(unanchored("xb").matches(names, 14, 2));
+        assertFalse(unanchored("kx").matches(names, 0, 14));
+    }
+
+    @Test
+    public void singleByteLiteral() {
+        LiteralNameMatcher matcher = unanchored("q");
+        assertFalse(matches(matcher, ""));
+        assertTrue(matches(matcher, "q"));
+        assertTrue(matches(matcher, "abcdefghijklmnopq"));
+        assertFalse(matches(matcher, "abcdefghijklmnopr"));
+        assertTrue(matches(unanchored("\u0000"), "ab\u0000cd"));
+        assertTrue(matches(unanchored("\u00ff"), "ab\u00ffcd"));
+    }
+
+    @Test
+    public void literalsOfAWordAndLonger() {
+        for (String literal : new String[]{"abcdefgh", "abcdefghi", "abcdefghijklmnopq"}) {
+            LiteralNameMatcher matcher = unanchored(literal);
+            assertTrue(matches(matcher, literal));
+            assertTrue(matches(matcher, "0123456789" + literal));
+            assertTrue(matches(matcher, "0123456" + literal + "0123456789"));
+            assertFalse(matches(matcher, literal.substring(1)));
+            assertFalse(matches(matcher, "0123456" + literal.substring(0, literal.length() - 1) + "_0123456789"));
+        }
+    }
+
+    @Test
+    public void anchors() {
+        assertTrue(matches(new LiteralNameMatcher(bytes("ab"), true, false, NO_FALLBACK), "abc"));
+        assertFalse(matches(new LiteralNameMatcher(bytes("ab"), true, false, NO_FALLBACK), "cab"));
+        assertTrue(matches(new LiteralNameMatcher(bytes("ab"), false, true, NO_FALLBACK), "cab"));
+        assertFalse(matches(new LiteralNameMatcher(bytes("ab"), false, true, NO_FALLBACK), "abc"));
+        assertTrue(matches(new LiteralNameMatcher(bytes("ab"), true, true, NO_FALLBACK), "ab"));
+        assertFalse(matches(new LiteralNameMatcher(bytes("ab"), true, true, NO_FALLBACK), "abab"));
+    }
+
+    @Test
+    public void randomNamesAgreeWithIndexOf() {
+        // bytes next to each other and to the borrowing values, to hit the false positives often
+        String alphabet = "`ab\u0000\u0001\u00ff";
+        Random random = new Random(37);
+        for (int iteration = 0; iteration < 20000; iteration++) {
+            String literal = randomString(random, alphabet, 1 + random.nextInt(10));
+            String name = randomString(random, alphabet, random.nextInt(40));
+            String next = randomString(random, alphabet, random.nextInt(12));
+            byte[] literalBytes = literal.getBytes(StandardCharsets.ISO_8859_1);
+            int offset = random.nextInt(9);
+            ByteBuffer names = ByteBuffer.wrap((repeat('a', offset) + name + next).getBytes(StandardCharsets.ISO_8859_1));
+            boolean expected = name.contains(literal);
+            assertEquals(literal + " in " + name, expected,
+                    new LiteralNameMatcher(literalBytes, false, false, NO_FALLBACK).matches(names, offset, name.length()));
+        }
+    }
+
+    @Test
+    public void nameEndingWithALineTerminatorGoesToTheRegex() {
+        Pattern pattern = Pattern.compile("ab$");
+        LiteralNameMatcher matcher = new LiteralNameMatcher(bytes("ab"), false, true,
+                new PatternNameMatcher(pattern, new MatchBudget(1_000_000L, 60_000L)));
+        assertTrue(matches(matcher, "ab\n"));
+        assertFalse(matches(matcher, "ab\n\n"));
+        assertFalse(matches(matcher, "a\n"));
+    }
+
+    private static LiteralNameMatcher unanchored(String literal) {
+        return new LiteralNameMatcher(bytes(literal), false, false, NO_FALLBACK);
+    }
+
+    private static boolean matches(NameMatcher matcher, String name) {
+        byte[] bytes = bytes(name);
+        // a name of a segment, between two others
+        ByteBuffer names = ByteBuffer.allocate(bytes.length + 32);
+        names.put(bytes("zzzzzzz")).put(bytes).put(bytes("zzzzzzzzzzzzzzzzzzzzzzzzz"));
+        return matcher.matches(names, 7, bytes.length);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.tenbillionfiles.services.regex;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Times the planned matchers against Pattern.find on heap strings over generated names, and checks that they count
+ * the same names. Not part of the test suite (no Test suffix), run it with
+ * {@code mvn test -Dtest=RegexMatchBenchmark -Dbenchmark.names=1200000}.
+ */
+public class RegexMatchBenchmark {
+
+    private static final List<String> REGEXES = Arrays.asList("x\\.", "[0-9]$", ".*abc.*", "qzqz", "^report-",
+            "\\d\\d\\.csv$", "(ab|cd)[-_]e");
+
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void plannedMatchersAgainstPatternFind() {
+        int count = Integer.getInteger("benchmark.names", 200_000);
+        List<String> names = generateNames(count);
+        ByteBuffer segment = ByteBuffer.allocateDirect(names.stream().mapToInt(name -> name.length() * 3).sum());
+        int[] offsets = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = segment.position();
+            segment.put(names.get(i).getBytes(StandardCharsets.UTF_8));
+        }
+        offsets[count] = segment.position();
+
+        for (String regex : REGEXES) {
+            NameMatcher matcher = RegexQueryPlanner.plan(regex, false, new MatchBudget(1_000_000L, 600_000L), 10_000);
+            Pattern pattern = Pattern.compile(regex);
+            long planned = 0L;
+            long found = 0L;
+            long plannedNanos = Long.MAX_VALUE;
+            long patternNanos = Long.MAX_VALUE;
+            // best of the rounds, the first ones warm the JIT up
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                planned = 0L;
+                for (int i = 0; i < count; i++) {
+                    if (matcher.matches(segment, offsets[i], offsets[i + 1] - offsets[i])) {
+                        planned++;
+                    }
+                }
+                plannedNanos = Math.min(plannedNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                found = 0L;
+                for (String name : names) {
+                    if (pattern.matcher(name).find()) {
+                        found++;
+                    }
+                }
+                patternNanos = Math.min(patternNanos, System.nanoTime() - start);
+            }
+            assertEquals(regex, found, planned);
+            System.out.printf("%-12s %-22s %8d matches  planned %6d ms  Pattern.find %6d ms%n", regex,
+                    matcher.getClass().getSimpleName(), planned, TimeUnit.NANOSECONDS.toMillis(plannedNanos),
+                    TimeUnit.NANOSECONDS.toMillis(patternNanos));
+        }
+    }
+
+    private static List<String> generateNames(int count) {
+        Random random = new Random(42);
+        String[] words = {"report", "x", "abc", "data", "img", "caf\u00e9", "\u6587\u4ef6", "ab", "cd", "e"};
+        String[] extensions = {".txt", ".csv", ".png", "", ".x.", "\n"};
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder name = new StringBuilder();
+            int parts = 1 + random.nextInt(4);
+            for (int part = 0; part < parts; part++) {
+                name.append(words[random.nextInt(words.length)]);
+                name.append(random.nextBoolean() ? '-' : '_');
+            }
+            name.append(random.nextInt(100_000));
+            name.append(extensions[random.nextInt(extensions.length)]);
+            names.add(name.toString());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.tenbillionfiles.services.regex;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RegexQueryPlannerTest {
+
+    static final List<String> NAMES = Arrays.asList("", "a", "x.txt", "x.", "xy", "abc", "zabcz", "ab", "abab",
+            "report-2019.csv", "report-2019.csv\n", "report-2019.csv\r\n", "file7", "file7\n", "file7\n\n", "7",
+            "a_b-c", "A_B", "tab\there", "\u00e9t\u00e9.txt", "caf\u00e9", "\u6587\u4ef6.txt", "\ud83d\ude00.png",
+            "abcdefghijklmnopqrstuvwxyz", "xxxxxxxxxxxxxxxxxxxxxxxxabc", "abc\r", "abc\u2028", "abc\u0085", "name\r\n",
+            "a\r\n", "a\r", "line\nbreak");
+
+    static final List<String> REGEXES = Arrays.asList("x\\.", "[0-9]$", ".*abc.*", "^abc$", "^ab", "abc$", "\\d",
+            "\\w\\.txt", "[a-z]_[a-z]", "t\\sh", "\u00e9t", "\u6587", "caf\u00e9$", "^$", ".*", "^",
+            "(ab)+", "a|z", "[^a-z]", "a.c", "\\.csv$", "report-\\d{4}", "abcdefghij", "z$");
+
+    @Test
+    public void plansAgreeWithPatternFind() {
+        for (String regex : REGEXES) {
+            NameMatcher matcher = RegexQueryPlanner.plan(regex, false, budget(), 10_000);
+            Pattern pattern = Pattern.compile(regex);
+            for (String name : NAMES) {
+                assertEquals(regex + " on " + escape(name), pattern.matcher(name).find(), matches(matcher, name));
+            }
+        }
+    }
+
+    // none of them has a byte level plan, they all run on the automaton
+    static final List<String> LINEAR_REGEXES = Arrays.asList("a\\r$", "\\r$", "c\\r?$", "(ab)+", "^(ab)+$", "a.c",
+            "a|z", "[^a-z]", "report-\\d{4}", "\\.csv\\n?$", ".$", "[^a]$", "^.*$", "(file|name)\\d*$", "x+\\.?",
+            "\\w+\\.txt$", "caf.$", "\u6587.\\.txt", "^a\\r?\\n?$");
+
+    @Test
+    public void linearEngineAgreesWithPatternFind() {
+        for (String regex : LINEAR_REGEXES) {
+            NameMatcher matcher = RegexQueryPlanner.plan(regex, true, budget(), 10_000);
+            assertTrue(regex, matcher instanceof AutomatonNameMatcher);
+            Pattern pattern = Pattern.compile(regex);
+            for (String name : NAMES) {
+                assertEquals(regex + " on " + escape(name), pattern.matcher(name).find(), matches(matcher, name));
+            }
+        }
+    }
+
+    @Test
+    public void dollarDoesNotSplitAFinalCarriageReturnLineFeed() {
+        NameMatcher matcher = RegexQueryPlanner.plan("a\\r$", true, budget(), 10_000);
+        assertFalse(matches(matcher, "a\r\n"));
+        assertTrue(matches(matcher, "a\r"));
+        assertTrue(matches(matcher, "a\r\r\n"));
+        assertTrue(matches(matcher, "a\r\r"));
+        assertTrue(matches(RegexQueryPlanner.plan("a\\r?$", true, budget(), 10_000), "a\r\n"));
+    }
+
+    @Test
+    public void simpleRegexesAreMatchedOnTheBytes() {
+        assertTrue(RegexQueryPlanner.plan("x\\.", false, budget(), 10_000) instanceof LiteralNameMatcher);
+        assertTrue(RegexQueryPlanner.plan(".*abc.*", false, budget(), 10_000) instanceof LiteralNameMatcher);
+        assertTrue(RegexQueryPlanner.plan("[0-9]$", false, budget(), 10_000) instanceof ByteClassNameMatcher);
+        assertTrue(RegexQueryPlanner.plan("(ab)+", false, budget(), 10_000) instanceof PatternNameMatcher);
+    }
+
+    static MatchBudget budget() {
+        return new MatchBudget(1_000_000L, 60_000L);
+    }
+
+    static boolean matches(NameMatcher matcher, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        // a name between two others, as in a segment
+        ByteBuffer names = ByteBuffer.allocate(bytes.length + 16);
+        names.put("abc".getBytes(StandardCharsets.UTF_8)).put(bytes).put("abc".getBytes(StandardCharsets.UTF_8));
+        return matcher.matches(names, 3, bytes.length);
+    }
+
+    static String escape(String name) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : name.toCharArray()) {
+            escaped.append(c < ' ' || c > '~' ? String.format("\\u%04x", (int) c) : String.valueOf(c));
+        }
+        return escaped.toString();
+    }
+}
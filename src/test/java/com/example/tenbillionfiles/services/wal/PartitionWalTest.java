@@ -0,0 +1,168 @@
+package com.example.tenbillionfiles.services.wal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionWalTest {
+
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void concurrentAppendsAreAllDurable() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        int threads = 8;
+        int appends = 200;
+        Set<Long> sequences = new ConcurrentSkipListSet<>();
+        try (PartitionWal wal = new PartitionWal(0, dir, MAX_SIZE)) {
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int writer = t;
+                writers.add(new Thread(() -> {
+                    for (int i = 0; i < appends; i++) {
+                        long sequence = wal.append(WalOperation.ADD, "file-" + writer + "-" + i);
+                        sequences.add(sequence);
+                    }
+                }));
+            }
+            for (Thread thread : writers) {
+                thread.start();
+            }
+            for (Thread thread : writers) {
+                thread.join();
+            }
+        }
+        assertEquals(threads * appends, sequences.size());
+        assertEquals(1L, (long) ((ConcurrentSkipListSet<Long>) sequences).first());
+        assertEquals(threads * appends, (long) ((ConcurrentSkipListSet<Long>) sequences).last());
+
+        try (PartitionWal wal = new PartitionWal(0, dir, MAX_SIZE)) {
+            assertEquals(threads * appends, wal.getLastSequence());
+            assertEquals(threads * appends, wal.readTail().size());
+        }
+    }
+
+    @Test
+    public void tornTailIsTruncatedOnRecovery() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        appendAndClose(dir, 3);
+        Path log = dir.resolve("wal.log");
+        long validLength = Files.size(log);
+
+        // a crash in the middle of the 4th record
+        ByteBuffer record = encode(new WalRecord(4, WalOperation.ADD, "file-4"));
+        byte[] torn = new byte[record.remaining() - 3];
+        record.get(torn);
+        Files.write(log, torn, StandardOpenOption.APPEND);
+
+        try (PartitionWal wal = new PartitionWal(0, dir, MAX_SIZE)) {
+            assertEquals(3L, wal.getLastSequence());
+            assertEquals(validLength, Files.size(log));
+            assertEquals(4L, wal.append(WalOperation.DELETE, "file-1"));
+            assertEquals(4, wal.readTail().size());
+        }
+    }
+
+    @Test
+    public void corruptedRecordEndsTheLog() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        appendAndClose(dir, 3);
+        Path log = dir.resolve("wal.log");
+
+        // flip the last byte of the name of the last record, its CRC doesn't match anymore
+        long lastNameByte = Files.size(log) - Integer.BYTES - 1;
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, lastNameByte);
+            b.flip();
+            byte flipped = (byte) (b.get() ^ 0x01);
+            channel.write(ByteBuffer.wrap(new byte[]{flipped}), lastNameByte);
+        }
+
+        try (PartitionWal wal = new PartitionWal(0, dir, MAX_SIZE)) {
+            assertEquals(2L, wal.getLastSequence());
+            assertEquals(2, wal.readTail().size());
+        }
+    }
+
+    @Test
+    public void checkpointStopsBeforeTheOldestIncompleteRecord() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (PartitionWal wal = new PartitionWal(0, dir, MAX_SIZE)) {
+            assertFalse(wal.hasCheckpoint());
+            for (int i = 1; i <= 3; i++) {
+                wal.append(WalOperation.ADD, "file-" + i);
+            }
+            wal.complete(1);
+            wal.complete(3);
+            assertEquals(1L, wal.getAppliedSequence());
+            wal.checkpoint();
+            assertTrue(wal.hasCheckpoint());
+            assertEquals(1L, wal.getCheckpointSequence());
+        }
+
+        // record 2 was never completed, it is replayed
+        try (PartitionWal wal = new PartitionWal(0, dir, MAX_SIZE)) {
+            assertEquals(1L, wal.getCheckpointSequence());
+            assertEquals(3L, wal.getLastSequence());
+            List<Long> tail = wal.readTail().stream().map(WalRecord::getSequence).collect(Collectors.toList());
+            assertEquals(2, tail.size());
+            assertEquals(2L, (long) tail.get(0));
+            assertEquals(3L, (long) tail.get(1));
+        }
+    }
+
+    @Test
+    public void checkpointTruncatesTheLogOnceEverythingIsApplied() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (PartitionWal wal = new PartitionWal(0, dir, 16)) {
+            for (int i = 1; i <= 3; i++) {
+                wal.complete(wal.append(WalOperation.ADD, "file-" + i));
+            }
+            wal.checkpoint();
+            assertEquals(3L, wal.getCheckpointSequence());
+            assertEquals(0L, Files.size(dir.resolve("wal.log")));
+        }
+
+        // sequences go on from the checkpoint
+        try (PartitionWal wal = new PartitionWal(0, dir, 16)) {
+            assertEquals(3L, wal.getLastSequence());
+            assertTrue(wal.readTail().isEmpty());
+            assertEquals(4L, wal.append(WalOperation.MODIFY, "file-1"));
+        }
+    }
+
+    private static void appendAndClose(Path dir, int records) throws IOException {
+        try (PartitionWal wal = new PartitionWal(0, dir, MAX_SIZE)) {
+            for (int i = 1; i <= records; i++) {
+                wal.append(WalOperation.ADD, "file-" + i);
+            }
+        }
+    }
+
+    private static ByteBuffer encode(WalRecord record) {
+        ByteBuffer buffer = ByteBuffer.allocate(record.encodedLength());
+        record.writeTo(buffer);
+        buffer.flip();
+        return buffer;
+    }
+}